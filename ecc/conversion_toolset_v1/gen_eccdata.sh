@@ -25,4 +25,7 @@ aprotoc --encode=ecc.AllInfo proto/protobuf_ecc_data.proto \
 echo "Compressing eccdata..."
 gzip -c < "${RAW_DATA}" > "${OUTPUT_DATA}"
 
+echo "Indexing eccdata..."
+python3 "${LOCAL_TOOLSET_DIR}/gen_eccdata_index.py" "${RAW_DATA}" "${OUTPUT_INDEXED_DATA}"
+
 echo "Done"
@@ -0,0 +1,126 @@
+#!/usr/bin/env python3
+
+# Copyright 2022 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+"""Converts a binary ecc.AllInfo message into the indexed eccdata format.
+
+The indexed format lets the runtime read the CountryInfo of a single country
+without inflating and parsing the whole database. All integers are big-endian:
+
+  magic            4 bytes, "ECCI"
+  format version   int32, currently 1
+  revision         int32, AllInfo.revision
+  country count    int32
+  directory        one entry per country, sorted by ISO code:
+                     ISO code length  uint8
+                     ISO code         ASCII bytes
+                     offset           int32, from the start of the data section
+                     length           int32
+  data section     the serialized CountryInfo messages, unmodified
+
+Only the protobuf wire format is used so no protobuf library is needed.
+
+Usage: gen_eccdata_index.py <AllInfo binary input> <indexed output>
+"""
+
+import struct
+import sys
+
+MAGIC = b"ECCI"
+FORMAT_VERSION = 1
+
+WIRE_VARINT = 0
+WIRE_64BIT = 1
+WIRE_LENGTH_DELIMITED = 2
+WIRE_32BIT = 5
+
+ALL_INFO_REVISION = 1
+ALL_INFO_COUNTRIES = 2
+COUNTRY_INFO_ISO_CODE = 1
+
+
+def read_varint(data, pos):
+  result = 0
+  shift = 0
+  while True:
+    b = data[pos]
+    pos += 1
+    result |= (b & 0x7f) << shift
+    if not b & 0x80:
+      return result, pos
+    shift += 7
+
+
+def fields(data):
+  """Yields (field number, wire type, value) for each field of a message."""
+  pos = 0
+  while pos < len(data):
+    key, pos = read_varint(data, pos)
+    number, wire_type = key >> 3, key & 7
+    if wire_type == WIRE_VARINT:
+      value, pos = read_varint(data, pos)
+    elif wire_type == WIRE_64BIT:
+      value, pos = data[pos:pos + 8], pos + 8
+    elif wire_type == WIRE_LENGTH_DELIMITED:
+      length, pos = read_varint(data, pos)
+      value, pos = data[pos:pos + length], pos + length
+    elif wire_type == WIRE_32BIT:
+      value, pos = data[pos:pos + 4], pos + 4
+    else:
+      raise ValueError("Unsupported wire type %d" % wire_type)
+    yield number, wire_type, value
+
+
+def main(argv):
+  if len(argv) != 3:
+    sys.stderr.write(__doc__)
+    return 1
+  with open(argv[1], "rb") as f:
+    all_info = f.read()
+
+  revision = 0
+  countries = {}
+  for number, wire_type, value in fields(all_info):
+    if number == ALL_INFO_REVISION and wire_type == WIRE_VARINT:
+      revision = value
+    elif number == ALL_INFO_COUNTRIES and wire_type == WIRE_LENGTH_DELIMITED:
+      iso_code = None
+      for field, field_type, field_value in fields(value):
+        if field == COUNTRY_INFO_ISO_CODE and field_type == WIRE_LENGTH_DELIMITED:
+          iso_code = field_value.decode("ascii")
+      if not iso_code:
+        raise ValueError("CountryInfo without iso_code")
+      if iso_code in countries:
+        raise ValueError("Duplicated iso_code " + iso_code)
+      countries[iso_code] = value
+
+  directory = bytearray()
+  data = bytearray()
+  for iso_code in sorted(countries):
+    encoded = iso_code.encode("ascii")
+    directory += struct.pack(">B", len(encoded)) + encoded
+    directory += struct.pack(">ii", len(data), len(countries[iso_code]))
+    data += countries[iso_code]
+
+  with open(argv[2], "wb") as f:
+    f.write(MAGIC)
+    f.write(struct.pack(">iii", FORMAT_VERSION, revision, len(countries)))
+    f.write(directory)
+    f.write(data)
+  return 0
+
+
+if __name__ == "__main__":
+  sys.exit(main(sys.argv))
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.CommandException;
+import com.android.internal.telephony.uicc.IccIoResult;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transmits APDUs to the UICC with one command queue per phone and channel.
+ *
+ * <p>APDUs on the same channel are sent one after the other in submission order, APDUs on
+ * different channels are sent concurrently, without going through the main thread. The basic
+ * channel is channel 0. Internally an APDU is queued as a script of one, a script runs in order
+ * with each APDU sent as soon as the response to the previous one arrives.
+ */
+public class ApduChannelExecutor {
+    private static final String LOG_TAG = "ApduChannelExecutor";
+
+    private static final int MSG_SUBMIT = 1;
+    private static final int MSG_APDU_DONE = 2;
+
+    /** The result of an APDU which could not be sent or failed. */
+    private static final int SW1_ERROR = 0x6F;
+
+    /**
+     * A command APDU.
+     */
+    public static final class Apdu {
+        public final int cla, command, p1, p2, p3;
+        public final String data;
+
+        public Apdu(int cla, int command, int p1, int p2, int p3, String data) {
+            this.cla = cla;
+            this.command = command;
+            this.p1 = p1;
+            this.p2 = p2;
+            this.p3 = p3;
+            this.data = data;
+        }
+
+        @Override
+        public String toString() {
+            return "cla=" + cla + " cmd=" + command + " p1=" + p1 + " p2=" + p2 + " p3=" + p3
+                    + " data=" + data;
+        }
+    }
+
+    /**
+     * Sends APDUs to the radio, usually a UiccPort.
+     */
+    public interface Transport {
+        /**
+         * Sends an APDU on a channel, 0 being the basic channel. {@code onCompleted} is sent with
+         * an {@link AsyncResult} holding an {@link IccIoResult}.
+         */
+        void transmit(int channel, Apdu apdu, Message onCompleted);
+    }
+
+    /**
+     * Finds the transport of a phone.
+     */
+    public interface TransportProvider {
+        /** @return the transport of the phone, or null if it has no UICC. */
+        @Nullable Transport getTransport(int phoneId);
+    }
+
+    private static final class Job {
+        final int mPhoneId;
+        final int mChannel;
+        final Apdu[] mScript;
+        final IccIoResult[] mResults;
+        Transport mTransport;
+        int mNext;
+        boolean mDone;
+
+        Job(int phoneId, int channel, List<Apdu> script) {
+            mPhoneId = phoneId;
+            mChannel = channel;
+            mScript = script.toArray(new Apdu[0]);
+            mResults = new IccIoResult[mScript.length];
+        }
+    }
+
+    private final Handler mHandler;
+    private final TransportProvider mTransportProvider;
+    // Pending jobs per phone and channel, the head is running. Only used on the handler thread.
+    private final Map<Long, ArrayDeque<Job>> mQueues = new HashMap<>();
+
+    // Only updated on the handler thread.
+    private volatile long mScripts;
+    private volatile long mApdus;
+
+    public ApduChannelExecutor(@NonNull Looper looper,
+            @NonNull TransportProvider transportProvider) {
+        mTransportProvider = transportProvider;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_SUBMIT:
+                        onSubmit((Job) msg.obj);
+                        break;
+                    case MSG_APDU_DONE:
+                        onApduDone((AsyncResult) msg.obj);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Transmits a single APDU, waiting for the response.
+     */
+    @NonNull
+    public IccIoResult transmit(int phoneId, int channel, @NonNull Apdu apdu) {
+        return transmitScript(phoneId, channel, Arrays.asList(apdu)).get(0);
+    }
+
+    /**
+     * Transmits the APDUs of a script in order on a channel, waiting for all the responses.
+     * An APDU which fails does not stop the script, its response has the status word 6F00.
+     *
+     * @return the responses, in the order of the script.
+     */
+    @VisibleForTesting
+    @NonNull
+    List<IccIoResult> transmitScript(int phoneId, int channel, @NonNull List<Apdu> script) {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            throw new RuntimeException("This method will deadlock if called from the executor.");
+        }
+        Job job = new Job(phoneId, channel, script);
+        mHandler.obtainMessage(MSG_SUBMIT, job).sendToTarget();
+        synchronized (job) {
+            while (!job.mDone) {
+                try {
+                    job.wait();
+                } catch (InterruptedException e) {
+                    // Do nothing, go back and wait until the script is complete
+                }
+            }
+        }
+        return Arrays.asList(job.mResults);
+    }
+
+    private void onSubmit(Job job) {
+        mScripts++;
+        long key = getQueueKey(job);
+        ArrayDeque<Job> queue = mQueues.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            mQueues.put(key, queue);
+        }
+        queue.add(job);
+        if (queue.size() == 1) {
+            start(job);
+        }
+    }
+
+    private static long getQueueKey(Job job) {
+        return ((long) job.mPhoneId << 32) | (job.mChannel & 0xFFFFFFFFL);
+    }
+
+    private void start(Job job) {
+        job.mTransport = mTransportProvider.getTransport(job.mPhoneId);
+        if (job.mTransport == null) {
+            Log.e(LOG_TAG, "transmitScript: No UICC on phone " + job.mPhoneId);
+            while (job.mNext < job.mScript.length) {
+                job.mResults[job.mNext++] = new IccIoResult(SW1_ERROR, 0, (byte[]) null);
+            }
+        }
+        sendNextOrFinish(job);
+    }
+
+    private void sendNextOrFinish(Job job) {
+        if (job.mNext < job.mScript.length) {
+            mApdus++;
+            job.mTransport.transmit(job.mChannel, job.mScript[job.mNext],
+                    mHandler.obtainMessage(MSG_APDU_DONE, job));
+            return;
+        }
+
+        long key = getQueueKey(job);
+        ArrayDeque<Job> queue = mQueues.get(key);
+        queue.poll();
+        if (queue.isEmpty()) {
+            mQueues.remove(key);
+        }
+        synchronized (job) {
+            job.mDone = true;
+            job.notifyAll();
+        }
+        Job next = queue.peek();
+        if (next != null) {
+            start(next);
+        }
+    }
+
+    private void onApduDone(AsyncResult ar) {
+        Job job = (Job) ar.userObj;
+        IccIoResult result;
+        if (ar.exception == null && ar.result != null) {
+            result = (IccIoResult) ar.result;
+        } else {
+            result = new IccIoResult(SW1_ERROR, 0, (byte[]) null);
+            if (ar.result == null) {
+                Log.e(LOG_TAG, "transmitScript: Empty response");
+            } else if (ar.exception instanceof CommandException) {
+                Log.e(LOG_TAG, "transmitScript: CommandException: " + ar.exception);
+            } else {
+                Log.e(LOG_TAG, "transmitScript: Unknown exception");
+            }
+        }
+        job.mResults[job.mNext++] = result;
+        sendNextOrFinish(job);
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.println(LOG_TAG + ": scripts=" + mScripts + ", apdus=" + mApdus);
+    }
+}
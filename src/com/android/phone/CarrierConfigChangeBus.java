@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+import android.util.ArraySet;
+import android.util.LocalLog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.telephony.Rlog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Single in-process receiver of {@link CarrierConfigManager#ACTION_CARRIER_CONFIG_CHANGED}.
+ *
+ * <p>Bursts of the broadcast for a slot are coalesced, the carrier config is fetched once per
+ * burst and compared against the last config delivered for that slot. Listeners are only notified
+ * when one of the keys they registered for has changed, or when the subscription associated with
+ * the slot has changed.
+ */
+public class CarrierConfigChangeBus {
+    private static final String TAG = "CarrierConfigChangeBus";
+    private static final boolean DBG = false;
+    private static final int LOG_SIZE = 50;
+
+    // Window in which repeated broadcasts for the same slot are coalesced.
+    private static final long COALESCE_WINDOW_MS = 200;
+
+    private static final int EVENT_CARRIER_CONFIG_CHANGED = 1;
+
+    /**
+     * Listener notified when the carrier config of a slot has changed.
+     */
+    public interface Listener {
+        /**
+         * Called when the carrier config for a slot has changed.
+         *
+         * @param slotIndex The slot the config is associated with.
+         * @param subId The subscription currently associated with the slot, may be invalid.
+         * @param config The carrier config which was fetched for the subscription. Shared with
+         *               all other listeners and must not be modified.
+         * @param changedKeys The keys whose values have changed since the last notification for
+         *                    this slot. Contains every key if the subscription has changed.
+         */
+        void onCarrierConfigChanged(int slotIndex, int subId, PersistableBundle config,
+                Set<String> changedKeys);
+    }
+
+    private static final class Registration {
+        final Listener mListener;
+        final Executor mExecutor;
+        // null means the listener is interested in every key.
+        final Set<String> mKeys;
+
+        Registration(Listener listener, Executor executor, Set<String> keys) {
+            mListener = listener;
+            mExecutor = executor;
+            mKeys = keys;
+        }
+
+        boolean isInterestedIn(Set<String> changedKeys) {
+            if (mKeys == null) {
+                return true;
+            }
+            for (String key : mKeys) {
+                if (changedKeys.contains(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class SlotState {
+        final int mSubId;
+        final PersistableBundle mConfig;
+
+        SlotState(int subId, PersistableBundle config) {
+            mSubId = subId;
+            mConfig = config;
+        }
+    }
+
+    private static CarrierConfigChangeBus sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final long mCoalesceWindowMs;
+    private final CarrierConfigManager mCarrierConfigManager;
+    private final LocalLog mLocalLog = new LocalLog(LOG_SIZE);
+
+    private final List<Registration> mRegistrations = new ArrayList<>();
+    // Latest subscription reported for each slot with a pending coalesced event, handler only.
+    private final SparseIntArray mPendingSubIds = new SparseIntArray();
+    // Last config delivered for each slot, handler only.
+    private final SparseArray<SlotState> mSlotStates = new SparseArray<>();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent == null || !CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(
+                    intent.getAction())) {
+                return;
+            }
+            Bundle bundle = intent.getExtras();
+            if (bundle == null) {
+                return;
+            }
+            int slotIndex = bundle.getInt(CarrierConfigManager.EXTRA_SLOT_INDEX,
+                    SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+            int subId = bundle.getInt(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            notifyCarrierConfigChanged(slotIndex, subId);
+        }
+    };
+
+    private final class MyHandler extends Handler {
+        MyHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case EVENT_CARRIER_CONFIG_CHANGED:
+                    onCarrierConfigChanged(msg.arg1);
+                    break;
+                default:
+                    loge("Unhandled event " + msg.what);
+            }
+        }
+    }
+
+    /**
+     * create an instance
+     */
+    public static CarrierConfigChangeBus make(Context context) {
+        synchronized (CarrierConfigChangeBus.class) {
+            if (sInstance == null) {
+                logd("CarrierConfigChangeBus created");
+                HandlerThread handlerThread = new HandlerThread(TAG);
+                handlerThread.start();
+                sInstance = new CarrierConfigChangeBus(context, handlerThread.getLooper(),
+                        COALESCE_WINDOW_MS);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * get the instance
+     */
+    public static CarrierConfigChangeBus getInstance() {
+        synchronized (CarrierConfigChangeBus.class) {
+            return sInstance;
+        }
+    }
+
+    @VisibleForTesting
+    public CarrierConfigChangeBus(Context context, Looper looper, long coalesceWindowMs) {
+        mContext = context;
+        mHandler = new MyHandler(looper);
+        mCoalesceWindowMs = coalesceWindowMs;
+        mCarrierConfigManager = context.getSystemService(CarrierConfigManager.class);
+        mContext.registerReceiver(mReceiver, new IntentFilter(
+                CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+    }
+
+    /**
+     * Registers a listener for carrier config changes.
+     *
+     * @param keys The carrier config keys the listener is interested in, or {@code null} to be
+     *             notified of a change to any key.
+     * @param executor The executor the listener will be called on.
+     * @param listener The listener to register.
+     */
+    public void registerListener(Set<String> keys, Executor executor, Listener listener) {
+        Set<String> keySet =
+                keys == null ? null : Collections.unmodifiableSet(new ArraySet<>(keys));
+        synchronized (mRegistrations) {
+            mRegistrations.add(new Registration(listener, executor, keySet));
+        }
+    }
+
+    /**
+     * Unregisters a listener previously registered with {@link #registerListener}.
+     */
+    public void unregisterListener(Listener listener) {
+        synchronized (mRegistrations) {
+            mRegistrations.removeIf(r -> r.mListener == listener);
+        }
+    }
+
+    /**
+     * Notifies that the carrier config has changed for a slot. Repeated notifications for the
+     * same slot within the coalescing window are merged into one.
+     */
+    @VisibleForTesting
+    public void notifyCarrierConfigChanged(int slotIndex, int subId) {
+        if (slotIndex <= SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+            loge("notifyCarrierConfigChanged invalid slotIndex");
+            return;
+        }
+        mHandler.post(() -> {
+            boolean pending = mPendingSubIds.indexOfKey(slotIndex) >= 0;
+            mPendingSubIds.put(slotIndex, subId);
+            if (!pending) {
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(
+                        EVENT_CARRIER_CONFIG_CHANGED, slotIndex, 0), mCoalesceWindowMs);
+            }
+        });
+    }
+
+    private void onCarrierConfigChanged(int slotIndex) {
+        int index = mPendingSubIds.indexOfKey(slotIndex);
+        if (index < 0) {
+            return;
+        }
+        int subId = mPendingSubIds.valueAt(index);
+        mPendingSubIds.removeAt(index);
+
+        PersistableBundle config = mCarrierConfigManager.getConfigForSubId(subId);
+        if (config == null) {
+            config = new PersistableBundle();
+        }
+        SlotState oldState = mSlotStates.get(slotIndex);
+        mSlotStates.put(slotIndex, new SlotState(subId, config));
+
+        boolean subChanged = oldState == null || oldState.mSubId != subId;
+        Set<String> changedKeys = subChanged
+                ? allKeys(oldState == null ? null : oldState.mConfig, config)
+                : getChangedKeys(oldState.mConfig, config);
+        if (!subChanged && changedKeys.isEmpty()) {
+            log("slot " + slotIndex + ", sub " + subId + ": config unchanged");
+            return;
+        }
+        log("slot " + slotIndex + ", sub " + subId + ": subChanged=" + subChanged
+                + ", " + changedKeys.size() + " keys changed");
+
+        final PersistableBundle delivered = config;
+        final Set<String> keys = Collections.unmodifiableSet(changedKeys);
+        List<Registration> registrations;
+        synchronized (mRegistrations) {
+            registrations = new ArrayList<>(mRegistrations);
+        }
+        for (Registration r : registrations) {
+            if (subChanged || r.isInterestedIn(keys)) {
+                r.mExecutor.execute(() -> r.mListener.onCarrierConfigChanged(
+                        slotIndex, subId, delivered, keys));
+            }
+        }
+    }
+
+    private static Set<String> allKeys(PersistableBundle oldConfig, PersistableBundle newConfig) {
+        ArraySet<String> keys = new ArraySet<>(newConfig.keySet());
+        if (oldConfig != null) {
+            keys.addAll(oldConfig.keySet());
+        }
+        return keys;
+    }
+
+    /**
+     * @return the keys whose values differ between the two configs, including keys only present
+     * in one of them.
+     */
+    @VisibleForTesting
+    public static Set<String> getChangedKeys(PersistableBundle oldConfig,
+            PersistableBundle newConfig) {
+        ArraySet<String> changed = new ArraySet<>();
+        for (String key : newConfig.keySet()) {
+            if (!oldConfig.containsKey(key) || !valuesEqual(oldConfig.get(key),
+                    newConfig.get(key))) {
+                changed.add(key);
+            }
+        }
+        for (String key : oldConfig.keySet()) {
+            if (!newConfig.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    private static boolean valuesEqual(Object oldValue, Object newValue) {
+        if (oldValue instanceof PersistableBundle && newValue instanceof PersistableBundle) {
+            return getChangedKeys((PersistableBundle) oldValue,
+                    (PersistableBundle) newValue).isEmpty();
+        }
+        // deepEquals also compares the primitive and String arrays carrier configs contain.
+        return Objects.deepEquals(oldValue, newValue);
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.increaseIndent();
+        synchronized (mRegistrations) {
+            pw.println("registrations=" + mRegistrations.size());
+        }
+        pw.println("Log:");
+        pw.increaseIndent();
+        mLocalLog.dump(pw);
+        pw.decreaseIndent();
+        pw.decreaseIndent();
+    }
+
+    private void log(String msg) {
+        if (DBG) Rlog.d(TAG, msg);
+        mLocalLog.log(msg);
+    }
+
+    private static void logd(String msg) {
+        Rlog.d(TAG, msg);
+    }
+
+    private static void loge(String msg) {
+        Rlog.e(TAG, msg);
+    }
+}
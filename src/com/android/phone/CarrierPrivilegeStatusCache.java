@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.Process;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Per-slot cache of the carrier privilege status of uids and packages, as computed by the slot's
+ * CarrierPrivilegesTracker.
+ *
+ * <p>Only {@link TelephonyManager#CARRIER_PRIVILEGE_STATUS_NO_ACCESS} is cached. The changes
+ * which invalidate the cache are only reported asynchronously, so a cached grant could outlive
+ * its revocation: {@link TelephonyManager#CARRIER_PRIVILEGE_STATUS_HAS_ACCESS} is always checked
+ * with the tracker, and the other statuses mean the rules are still being loaded. A slot is
+ * dropped when its carrier privileges or SIM state change, or when the number of slots changes.
+ * The entries of a uid and its packages are dropped when one of its packages is installed,
+ * updated or removed in any user, which is the only way the signatures of a uid change.
+ */
+public class CarrierPrivilegeStatusCache {
+    // Bound on the number of cached statuses per slot, the slot is dropped when it is reached.
+    private static final int MAX_ENTRIES_PER_SLOT = 1024;
+
+    private static final class SlotCache {
+        final ConcurrentHashMap<Integer, Integer> mUidStatus = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, Integer> mPackageStatus = new ConcurrentHashMap<>();
+        // Bumped on every invalidation, a value computed across a bump is not cached.
+        final AtomicLong mGeneration = new AtomicLong();
+
+        void clear() {
+            mGeneration.incrementAndGet();
+            mUidStatus.clear();
+            mPackageStatus.clear();
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, SlotCache> mSlots = new ConcurrentHashMap<>();
+    // Carrier privileges callbacks by slot index, guarded by itself.
+    private final List<CarrierPrivilegesCallback> mCarrierPrivilegesCallbacks = new ArrayList<>();
+    private TelephonyManager mTelephonyManager;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            invalidatePackage(intent.getIntExtra(Intent.EXTRA_UID, Process.INVALID_UID),
+                    data == null ? null : data.getSchemeSpecificPart());
+        }
+    };
+
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int slotIndex = intent.getIntExtra(SubscriptionManager.EXTRA_SLOT_INDEX,
+                    SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+            if (slotIndex == SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+                invalidateAll();
+            } else {
+                invalidateSlot(slotIndex);
+            }
+        }
+    };
+
+    private final BroadcastReceiver mMultiSimConfigReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateCarrierPrivilegesCallbacks(intent.getIntExtra(
+                    TelephonyManager.EXTRA_ACTIVE_SIM_SUPPORTED_COUNT, 0));
+            invalidateAll();
+        }
+    };
+
+    private final class CarrierPrivilegesCallback implements
+            TelephonyManager.CarrierPrivilegesCallback {
+        private final int mSlotIndex;
+
+        CarrierPrivilegesCallback(int slotIndex) {
+            mSlotIndex = slotIndex;
+        }
+
+        @Override
+        public void onCarrierPrivilegesChanged(@NonNull Set<String> privilegedPackageNames,
+                @NonNull Set<Integer> privilegedUids) {
+            invalidateSlot(mSlotIndex);
+        }
+    }
+
+    /**
+     * Registers for the package, SIM state, slot count and carrier privilege changes which
+     * invalidate the cache.
+     */
+    public void registerForInvalidation(Context context, int numSlots) {
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiverForAllUsers(mPackageReceiver, packageFilter, null, null);
+
+        IntentFilter simStateFilter = new IntentFilter();
+        simStateFilter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        simStateFilter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        context.registerReceiver(mSimStateReceiver, simStateFilter);
+
+        context.registerReceiver(mMultiSimConfigReceiver,
+                new IntentFilter(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED));
+
+        synchronized (mCarrierPrivilegesCallbacks) {
+            mTelephonyManager = context.getSystemService(TelephonyManager.class);
+        }
+        updateCarrierPrivilegesCallbacks(numSlots);
+    }
+
+    // Registers a carrier privileges callback for each slot, and unregisters the removed slots.
+    private void updateCarrierPrivilegesCallbacks(int numSlots) {
+        synchronized (mCarrierPrivilegesCallbacks) {
+            if (mTelephonyManager == null) return;
+            while (mCarrierPrivilegesCallbacks.size() > numSlots) {
+                mTelephonyManager.unregisterCarrierPrivilegesCallback(
+                        mCarrierPrivilegesCallbacks.remove(mCarrierPrivilegesCallbacks.size() - 1));
+            }
+            while (mCarrierPrivilegesCallbacks.size() < numSlots) {
+                CarrierPrivilegesCallback callback =
+                        new CarrierPrivilegesCallback(mCarrierPrivilegesCallbacks.size());
+                mCarrierPrivilegesCallbacks.add(callback);
+                mTelephonyManager.registerCarrierPrivilegesCallback(callback.mSlotIndex,
+                        Runnable::run, callback);
+            }
+        }
+    }
+
+    /**
+     * @param compute Computes the status on a miss.
+     * @return the carrier privilege status of the uid on the slot.
+     */
+    public int getStatusForUid(int slotIndex, int uid, IntSupplier compute) {
+        SlotCache slot = getSlot(slotIndex);
+        Integer status = slot.mUidStatus.get(uid);
+        if (status != null) {
+            mHits.incrementAndGet();
+            return status;
+        }
+        return computeAndPut(slot, slot.mUidStatus, uid, compute);
+    }
+
+    /**
+     * @param compute Computes the status on a miss.
+     * @return the carrier privilege status of the package on the slot.
+     */
+    public int getStatusForPackage(int slotIndex, @NonNull String packageName,
+            IntSupplier compute) {
+        SlotCache slot = getSlot(slotIndex);
+        Integer status = slot.mPackageStatus.get(packageName);
+        if (status != null) {
+            mHits.incrementAndGet();
+            return status;
+        }
+        return computeAndPut(slot, slot.mPackageStatus, packageName, compute);
+    }
+
+    private <K> int computeAndPut(SlotCache slot, ConcurrentHashMap<K, Integer> map, K key,
+            IntSupplier compute) {
+        mMisses.incrementAndGet();
+        long generation = slot.mGeneration.get();
+        int status = compute.getAsInt();
+        if (status != TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
+            return status;
+        }
+        if (map.size() >= MAX_ENTRIES_PER_SLOT) {
+            map.clear();
+        }
+        map.put(key, status);
+        // An invalidation may have raced with the computation, drop what it may have missed.
+        if (slot.mGeneration.get() != generation) {
+            map.remove(key);
+        }
+        return status;
+    }
+
+    private SlotCache getSlot(int slotIndex) {
+        return mSlots.computeIfAbsent(slotIndex, k -> new SlotCache());
+    }
+
+    /**
+     * Drops the cached statuses of a slot.
+     */
+    public void invalidateSlot(int slotIndex) {
+        SlotCache slot = mSlots.get(slotIndex);
+        if (slot != null) {
+            slot.clear();
+        }
+        mInvalidations.incrementAndGet();
+    }
+
+    /**
+     * Drops the cached statuses of a uid and one of its packages on every slot.
+     *
+     * @param uid The uid of the package, or {@link Process#INVALID_UID} if unknown.
+     * @param packageName The package, or {@code null} if unknown.
+     */
+    public void invalidatePackage(int uid, String packageName) {
+        if (uid == Process.INVALID_UID || packageName == null) {
+            invalidateAll();
+            return;
+        }
+        for (SlotCache slot : mSlots.values()) {
+            slot.mGeneration.incrementAndGet();
+            slot.mUidStatus.remove(uid);
+            slot.mPackageStatus.remove(packageName);
+        }
+        mInvalidations.incrementAndGet();
+    }
+
+    /**
+     * Drops every cached status.
+     */
+    public void invalidateAll() {
+        for (SlotCache slot : mSlots.values()) {
+            slot.clear();
+        }
+        mInvalidations.incrementAndGet();
+    }
+
+    @VisibleForTesting
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    @VisibleForTesting
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        pw.println("CarrierPrivilegeStatusCache: slots=" + mSlots.size()
+                + ", hits=" + hits + ", misses=" + (total - hits)
+                + ", hitRate=" + (total == 0 ? 0 : (hits * 100 / total)) + "%"
+                + ", invalidations=" + mInvalidations.get());
+        pw.increaseIndent();
+        for (Integer slotIndex : mSlots.keySet()) {
+            SlotCache slot = mSlots.get(slotIndex);
+            if (slot == null) continue;
+            pw.println("slot " + slotIndex + ": uids=" + slot.mUidStatus.size()
+                    + ", packages=" + slot.mPackageStatus.size());
+        }
+        pw.decreaseIndent();
+    }
+}
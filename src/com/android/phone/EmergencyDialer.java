@@ -40,6 +40,7 @@ import android.media.ToneGenerator;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.PersistableBundle;
 import android.provider.Settings;
 import android.telecom.PhoneAccount;
@@ -47,7 +48,6 @@ import android.telecom.TelecomManager;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.ServiceState;
-import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.Editable;
 import android.text.InputType;
@@ -221,8 +221,17 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
     private boolean mIsWfcEmergencyCallingWarningEnabled;
     private float mDefaultDigitsTextSize;
 
+    // Whether the carrier config read by the last power menu launch allowed the shortcut view,
+    // used until the carrier config of this launch is loaded. Only accessed on the main thread.
+    private static boolean sCanEnableShortcutView;
+
     private int mEntryType;
     private ShortcutViewUtils.Config mShortcutViewConfig;
+    // Whether the dial button was shown or hidden, it is not changed again after that.
+    private boolean mDialButtonVisibilityResolved;
+    private EmergencyDialerDataLoader mDataLoader;
+    // Telephony data loaded in the background, null until loaded.
+    private EmergencyDialerDataLoader.Snapshot mDataSnapshot;
 
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -264,11 +273,11 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
         // Allow turning screen on
         setTurnScreenOn(true);
 
-        CarrierConfigManager configMgr = getSystemService(CarrierConfigManager.class);
-        PersistableBundle carrierConfig =
-                configMgr.getConfigForSubId(SubscriptionManager.getDefaultVoiceSubscriptionId());
-
-        mShortcutViewConfig = new ShortcutViewUtils.Config(this, carrierConfig, mEntryType);
+        // Only the power menu can enable the shortcut view, which also picks the theme. The
+        // carrier config is loaded in the background, so the decision of the last launch is used
+        // until it is, see onDataLoaded().
+        mShortcutViewConfig = new ShortcutViewUtils.Config(this,
+                mEntryType == ENTRY_TYPE_POWER_MENU && sCanEnableShortcutView);
         Log.d(LOG_TAG, "Enable emergency dialer shortcut: "
                 + mShortcutViewConfig.isEnabled());
 
@@ -312,18 +321,9 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
         mDelete.setOnLongClickListener(this);
 
         mDialButton = findViewById(R.id.floating_action_button);
-
-        // Check whether we should show the onscreen "Dial" button and co.
-        // Read carrier config through the public API because PhoneGlobals is not available when we
-        // run as a secondary user.
-        if (carrierConfig.getBoolean(CarrierConfigManager.KEY_SHOW_ONSCREEN_DIAL_BUTTON_BOOL)) {
-            mDialButton.setOnClickListener(this);
-        } else {
-            mDialButton.setVisibility(View.GONE);
-        }
-        mIsWfcEmergencyCallingWarningEnabled = carrierConfig.getInt(
-                CarrierConfigManager.KEY_EMERGENCY_NOTIFICATION_DELAY_INT) > -1;
-        maybeShowWfcEmergencyCallingWarning();
+        // Not shown until the carrier config says whether it is shown at all.
+        mDialButton.setOnClickListener(this);
+        mDialButton.setVisibility(View.INVISIBLE);
 
         ViewUtil.setupFloatingActionButton(mDialButton, getResources());
 
@@ -365,14 +365,58 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
 
         setupEmergencyDialpadViews();
 
+        mDataLoader = new EmergencyDialerDataLoader(
+                new EmergencyDialerDataLoader.TelephonyDataSource(getApplicationContext()),
+                AsyncTask.THREAD_POOL_EXECUTOR, new Handler(getMainLooper()));
+        mDataLoader.load(this::onDataLoaded);
+
         if (mShortcutViewConfig.isEnabled()) {
             setupEmergencyShortcutsView();
         }
     }
 
+    /**
+     * Applies the carrier config and emergency numbers loaded in the background, or the default
+     * carrier config if they were not loaded in time.
+     */
+    private void onDataLoaded(EmergencyDialerDataLoader.Snapshot snapshot) {
+        mDataSnapshot = snapshot;
+        PersistableBundle carrierConfig = snapshot.getCarrierConfig();
+
+        // Check whether we should show the onscreen "Dial" button and co.
+        if (!mDialButtonVisibilityResolved) {
+            mDialButtonVisibilityResolved = true;
+            if (carrierConfig.getBoolean(
+                    CarrierConfigManager.KEY_SHOW_ONSCREEN_DIAL_BUTTON_BOOL)) {
+                mDialButton.setVisibility(View.VISIBLE);
+            } else {
+                mDialButton.setOnClickListener(null);
+                mDialButton.setVisibility(View.GONE);
+            }
+        }
+
+        if (mEntryType == ENTRY_TYPE_POWER_MENU && !snapshot.isFallback()) {
+            boolean canEnableShortcutView = ShortcutViewUtils.Config.canEnableShortcutView(
+                    carrierConfig, mEntryType);
+            if (canEnableShortcutView != sCanEnableShortcutView) {
+                sCanEnableShortcutView = canEnableShortcutView;
+                // The theme can only be changed by recreating the activity, do not do it under a
+                // number being dialed. The next launch uses the new decision.
+                if (mDigits.length() == 0) {
+                    recreate();
+                    return;
+                }
+            }
+        }
+        mIsWfcEmergencyCallingWarningEnabled = carrierConfig.getInt(
+                CarrierConfigManager.KEY_EMERGENCY_NOTIFICATION_DELAY_INT) > -1;
+        maybeShowWfcEmergencyCallingWarning();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mDataLoader.cancel();
         synchronized (mToneGeneratorLock) {
             if (mToneGenerator != null) {
                 mToneGenerator.release();
@@ -735,6 +779,8 @@ public class EmergencyDialer extends Activity implements View.OnClickListener,
             // shortcut button because a number provided by database has higher priority.
             isEmergencyNumber = true;
             phoneToMakeCall = mShortcutViewConfig.getPhoneInfo();
+        } else if (mDataSnapshot != null && mDataSnapshot.isKnownEmergencyNumber(mLastNumber)) {
+            isEmergencyNumber = true;
         } else {
             try {
                 isEmergencyNumber = getSystemService(TelephonyManager.class)
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.os.Handler;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.telephony.emergency.EmergencyNumber;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads the telephony data used by {@link EmergencyDialer} off the main thread, so that the
+ * keypad can be shown before any call into telephony services is made.
+ *
+ * <p>If the data is not loaded within {@link #LOAD_DEADLINE_MS}, or fails to load, a fallback
+ * snapshot with the default carrier config is delivered instead. The loaded snapshot still
+ * follows the fallback if it arrives later.
+ */
+class EmergencyDialerDataLoader {
+    private static final String LOG_TAG = "EmergencyDialerLoader";
+
+    /** How long to wait for the data before delivering the fallback snapshot. */
+    static final long LOAD_DEADLINE_MS = 1000;
+
+    /**
+     * Telephony data used by the emergency dialer.
+     */
+    static class Snapshot {
+        private final PersistableBundle mCarrierConfig;
+        private final Map<Integer, List<EmergencyNumber>> mEmergencyNumbers;
+        private final boolean mIsFallback;
+
+        Snapshot(@NonNull PersistableBundle carrierConfig,
+                @Nullable Map<Integer, List<EmergencyNumber>> emergencyNumbers) {
+            this(carrierConfig, emergencyNumbers, false /* isFallback */);
+        }
+
+        private Snapshot(@NonNull PersistableBundle carrierConfig,
+                @Nullable Map<Integer, List<EmergencyNumber>> emergencyNumbers,
+                boolean isFallback) {
+            mCarrierConfig = carrierConfig;
+            mEmergencyNumbers = emergencyNumbers == null
+                    ? Collections.emptyMap() : emergencyNumbers;
+            mIsFallback = isFallback;
+        }
+
+        /** @return a snapshot with the default carrier config and no emergency numbers. */
+        static Snapshot createFallback() {
+            return new Snapshot(CarrierConfigManager.getDefaultConfig(), null,
+                    true /* isFallback */);
+        }
+
+        /** Whether this is the fallback snapshot rather than loaded data. */
+        boolean isFallback() {
+            return mIsFallback;
+        }
+
+        /** The carrier config of the default voice subscription. */
+        @NonNull
+        PersistableBundle getCarrierConfig() {
+            return mCarrierConfig;
+        }
+
+        /**
+         * @return {@code true} if the number is exactly one of the emergency numbers of any
+         * subscription at the time the snapshot was taken. A {@code false} result is not
+         * conclusive, telephony applies more rules than the snapshot can.
+         */
+        boolean isKnownEmergencyNumber(String number) {
+            if (number == null) {
+                return false;
+            }
+            String networkPortion = PhoneNumberUtils.extractNetworkPortionAlt(number);
+            for (List<EmergencyNumber> numbers : mEmergencyNumbers.values()) {
+                if (numbers == null) {
+                    continue;
+                }
+                for (EmergencyNumber emergencyNumber : numbers) {
+                    if (emergencyNumber.getNumber().equals(networkPortion)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The telephony calls the loader makes, all of them are made on the background executor.
+     */
+    interface DataSource {
+        @NonNull
+        PersistableBundle getCarrierConfig();
+
+        @Nullable
+        Map<Integer, List<EmergencyNumber>> getEmergencyNumberList();
+    }
+
+    /**
+     * Receives the loaded data on the main thread.
+     */
+    interface Callback {
+        /**
+         * @param snapshot The loaded data, or the fallback snapshot which may be followed by the
+         *                 loaded data.
+         */
+        void onLoaded(@NonNull Snapshot snapshot);
+    }
+
+    /** Reads the data from the telephony services. */
+    static class TelephonyDataSource implements DataSource {
+        private final Context mContext;
+
+        TelephonyDataSource(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public PersistableBundle getCarrierConfig() {
+            // Read carrier config through the public API because PhoneGlobals is not available
+            // when we run as a secondary user.
+            CarrierConfigManager configMgr = mContext.getSystemService(CarrierConfigManager.class);
+            PersistableBundle config = configMgr.getConfigForSubId(
+                    SubscriptionManager.getDefaultVoiceSubscriptionId());
+            return config == null ? CarrierConfigManager.getDefaultConfig() : config;
+        }
+
+        @Override
+        public Map<Integer, List<EmergencyNumber>> getEmergencyNumberList() {
+            try {
+                return mContext.getSystemService(TelephonyManager.class).getEmergencyNumberList();
+            } catch (IllegalStateException e) {
+                Log.w(LOG_TAG, "Unable to get emergency number list: " + e);
+                return null;
+            }
+        }
+    }
+
+    private final DataSource mDataSource;
+    private final Executor mExecutor;
+    private final Handler mMainHandler;
+
+    // Only accessed on the main thread.
+    private Callback mCallback;
+    private boolean mFallbackDelivered;
+
+    EmergencyDialerDataLoader(DataSource dataSource, Executor executor, Handler mainHandler) {
+        mDataSource = dataSource;
+        mExecutor = executor;
+        mMainHandler = mainHandler;
+    }
+
+    /**
+     * Starts loading the data, the callback is called on the main thread unless the load is
+     * cancelled first. Must be called on the main thread.
+     */
+    void load(@NonNull Callback callback) {
+        mCallback = callback;
+        mFallbackDelivered = false;
+        Runnable deadline = () -> deliverFallback(callback);
+        mMainHandler.postDelayed(deadline, LOAD_DEADLINE_MS);
+        mExecutor.execute(() -> {
+            Snapshot snapshot;
+            try {
+                snapshot = new Snapshot(mDataSource.getCarrierConfig(),
+                        mDataSource.getEmergencyNumberList());
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "Unable to load emergency dialer data: " + e);
+                snapshot = null;
+            }
+            final Snapshot loaded = snapshot;
+            mMainHandler.post(() -> {
+                mMainHandler.removeCallbacks(deadline);
+                if (loaded == null) {
+                    deliverFallback(callback);
+                } else if (mCallback == callback) {
+                    callback.onLoaded(loaded);
+                }
+                if (mCallback == callback) {
+                    mCallback = null;
+                }
+            });
+        });
+    }
+
+    private void deliverFallback(Callback callback) {
+        if (mCallback != callback || mFallbackDelivered) {
+            return;
+        }
+        mFallbackDelivered = true;
+        callback.onLoaded(Snapshot.createFallback());
+    }
+
+    /**
+     * Drops the result of a pending load. Must be called on the main thread.
+     */
+    void cancel() {
+        mCallback = null;
+    }
+}
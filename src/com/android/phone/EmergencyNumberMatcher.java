@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.telephony.emergency.EmergencyNumber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable matcher over the emergency number lists of every slot.
+ *
+ * <p>The numbers of all slots are stored in a trie keyed by dialable character, where each node
+ * records the slots which have a number ending at that node. A lookup walks the dialed number
+ * once and does not allocate. Its result is the same as scanning each slot's list the way
+ * EmergencyNumberTracker does once the radio has reported a list.
+ *
+ * <p>A slot whose list has no number reported by the radio is matched by EmergencyNumberTracker
+ * against its ECC list and database instead, with different rules. Such slots are not added to
+ * the trie and are reported by {@link #isSlotDelegated} so the caller can ask the tracker.
+ *
+ * @see EmergencyNumberMatcherCache
+ */
+public final class EmergencyNumberMatcher {
+    // Maximum number of slots, slots are tracked as bits of an int.
+    private static final int MAX_SLOTS = 32;
+
+    // Characters kept by PhoneNumberUtils#extractNetworkPortionAlt: 0-9, '*', '#', '+' and 'N'.
+    private static final int ALPHABET_SIZE = 14;
+
+    // Countries where dialing extra digits after an emergency number does not reach the emergency
+    // service, so only exact matches count. Mirrors EmergencyNumberTracker#isEmergencyNumber.
+    private static final Set<String> EXACT_MATCH_ONLY_COUNTRIES = Set.of("br", "cl", "ni");
+
+    // Sources of numbers reported by the radio.
+    private static final int RADIO_SOURCES =
+            EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING
+            | EmergencyNumber.EMERGENCY_NUMBER_SOURCE_SIM
+            | EmergencyNumber.EMERGENCY_NUMBER_SOURCE_MODEM_CONFIG
+            | EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DEFAULT;
+
+    // Child of node n for symbol s is at n * ALPHABET_SIZE + s, 0 when absent. The root is node 0
+    // and is never a child.
+    private final int[] mChildren;
+    // Slots with a number ending at each node.
+    private final int[] mSlotMasks;
+    // Slots where a number matches dialed numbers it is a prefix of.
+    private final int mPrefixMatchSlots;
+    private final int mDelegatedSlots;
+    private final int mSlotCount;
+    private final Map<Integer, List<EmergencyNumber>> mNumbersBySubId;
+
+    /**
+     * Builder for an {@link EmergencyNumberMatcher}, slots are added in slot index order.
+     */
+    public static final class Builder {
+        private final List<Integer> mSubIds = new ArrayList<>();
+        private final List<String> mCountryIsos = new ArrayList<>();
+        private final List<List<EmergencyNumber>> mNumbers = new ArrayList<>();
+
+        /**
+         * Adds the next slot.
+         *
+         * @param subId The subscription of the slot, may be invalid.
+         * @param countryIso The emergency country of the slot.
+         * @param numbers The emergency number list of the slot, {@code null} if the slot has no
+         *                emergency number tracker.
+         */
+        public Builder addSlot(int subId, String countryIso, List<EmergencyNumber> numbers) {
+            if (mSubIds.size() == MAX_SLOTS) {
+                throw new IllegalStateException("Too many slots");
+            }
+            mSubIds.add(subId);
+            mCountryIsos.add(countryIso);
+            mNumbers.add(numbers);
+            return this;
+        }
+
+        /**
+         * @return a new matcher over the slots added so far.
+         */
+        public EmergencyNumberMatcher build() {
+            return new EmergencyNumberMatcher(this);
+        }
+    }
+
+    private EmergencyNumberMatcher(Builder builder) {
+        int slotCount = builder.mSubIds.size();
+        mSlotCount = slotCount;
+
+        int[] children = new int[ALPHABET_SIZE * 16];
+        int[] slotMasks = new int[16];
+        int nodeCount = 1;
+        int prefixMatchSlots = 0;
+        int delegatedSlots = 0;
+        Map<Integer, List<EmergencyNumber>> numbersBySubId = new HashMap<>();
+
+        for (int slot = 0; slot < slotCount; slot++) {
+            List<EmergencyNumber> numbers = builder.mNumbers.get(slot);
+            if (numbers == null) {
+                continue;
+            }
+            // Copied, a tracker's list can be a view of a list it updates later.
+            numbers = new ArrayList<>(numbers);
+            numbersBySubId.put(builder.mSubIds.get(slot), Collections.unmodifiableList(numbers));
+            if (!hasRadioNumber(numbers)) {
+                delegatedSlots |= 1 << slot;
+                continue;
+            }
+            if (!EXACT_MATCH_ONLY_COUNTRIES.contains(builder.mCountryIsos.get(slot))) {
+                prefixMatchSlots |= 1 << slot;
+            }
+            for (EmergencyNumber emergencyNumber : numbers) {
+                String number = emergencyNumber.getNumber();
+                if (!isInAlphabet(number)) {
+                    // Can never equal, or prefix, a dialed number once it is normalized.
+                    continue;
+                }
+                int node = 0;
+                for (int i = 0; i < number.length(); i++) {
+                    int index = node * ALPHABET_SIZE + symbolOf(number.charAt(i));
+                    if (children[index] == 0) {
+                        if (nodeCount == slotMasks.length) {
+                            slotMasks = Arrays.copyOf(slotMasks, nodeCount * 2);
+                            children = Arrays.copyOf(children, nodeCount * 2 * ALPHABET_SIZE);
+                        }
+                        children[index] = nodeCount++;
+                    }
+                    node = children[index];
+                }
+                slotMasks[node] |= 1 << slot;
+            }
+        }
+
+        mChildren = Arrays.copyOf(children, nodeCount * ALPHABET_SIZE);
+        mSlotMasks = Arrays.copyOf(slotMasks, nodeCount);
+        mPrefixMatchSlots = prefixMatchSlots;
+        mDelegatedSlots = delegatedSlots;
+        mNumbersBySubId = Collections.unmodifiableMap(numbersBySubId);
+    }
+
+    /**
+     * @return the number of slots this matcher was built for.
+     */
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    /**
+     * @return whether the numbers of the slot are not matched by this matcher and the slot's
+     * EmergencyNumberTracker must be asked instead.
+     */
+    public boolean isSlotDelegated(int slot) {
+        return (mDelegatedSlots & (1 << slot)) != 0;
+    }
+
+    /**
+     * @return the emergency number lists keyed by subscription, as returned by
+     * ITelephony#getEmergencyNumberList. The map and lists are unmodifiable.
+     */
+    public Map<Integer, List<EmergencyNumber>> getEmergencyNumberList() {
+        return mNumbersBySubId;
+    }
+
+    /**
+     * Checks whether a dialed number matches the emergency numbers of any slot which is not
+     * delegated.
+     *
+     * @param number The dialed number, may contain separators and post dial characters.
+     * @param exactMatch {@code true} to only match numbers equal to an emergency number,
+     *                   {@code false} to also match numbers starting with one where the country
+     *                   allows it.
+     */
+    public boolean isEmergencyNumber(String number, boolean exactMatch) {
+        if (number == null || isUriNumber(number)) {
+            return false;
+        }
+        int prefixMatchSlots = exactMatch ? 0 : mPrefixMatchSlots;
+        if ((mSlotMasks[0] & prefixMatchSlots) != 0) {
+            return true;
+        }
+        // Walk the network portion of the number, as extracted by
+        // PhoneNumberUtils#extractNetworkPortionAlt.
+        int node = 0;
+        boolean haveSeenPlus = false;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c == '+') {
+                if (haveSeenPlus) {
+                    continue;
+                }
+                haveSeenPlus = true;
+            }
+            int symbol = symbolOf(c);
+            if (symbol < 0) {
+                if (c == ',' || c == ';') {
+                    // Start of the post dial string.
+                    break;
+                }
+                continue;
+            }
+            node = mChildren[node * ALPHABET_SIZE + symbol];
+            if (node == 0) {
+                return false;
+            }
+            if ((mSlotMasks[node] & prefixMatchSlots) != 0) {
+                return true;
+            }
+        }
+        return mSlotMasks[node] != 0;
+    }
+
+    private static boolean hasRadioNumber(List<EmergencyNumber> numbers) {
+        for (EmergencyNumber number : numbers) {
+            if ((number.getEmergencyNumberSourceBitmask() & RADIO_SOURCES) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUriNumber(String number) {
+        // Same as PhoneNumberUtils#isUriNumber.
+        return number.indexOf('@') >= 0 || number.contains("%40");
+    }
+
+    private static boolean isInAlphabet(String number) {
+        if (number == null) {
+            return false;
+        }
+        for (int i = 0; i < number.length(); i++) {
+            if (symbolOf(number.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int symbolOf(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        switch (c) {
+            case '*':
+                return 10;
+            case '#':
+                return 11;
+            case '+':
+                return 12;
+            case 'N':
+                return 13;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.telephony.emergency.EmergencyNumber;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Holds the {@link EmergencyNumberMatcher} over the current emergency number lists of every slot.
+ *
+ * <p>The matcher is built on the first query after an emergency number list, subscription,
+ * network country or slot count change, and shared by every query until the next change. A query
+ * which does not rebuild costs one volatile read.
+ *
+ * <p>Emergency number list changes are only reported for active subscriptions, the list of a
+ * slot without one is picked up on the next subscription, country or slot count change.
+ */
+public class EmergencyNumberMatcherCache {
+    private final Supplier<EmergencyNumberMatcher> mSource;
+    private final Object mLock = new Object();
+    private volatile EmergencyNumberMatcher mMatcher;
+    // Incremented on every invalidation, guarded by mLock.
+    private long mVersion;
+    private final AtomicLong mRebuilds = new AtomicLong();
+
+    private TelephonyManager mTelephonyManager;
+    private SubscriptionManager mSubscriptionManager;
+    private Executor mExecutor;
+    // Emergency number list callbacks by subscription, only accessed on mExecutor.
+    private final SparseArray<EmergencyNumberListCallback> mCallbacks = new SparseArray<>();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsChangedListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    updateCallbacks();
+                    invalidate();
+                }
+            };
+
+    private final class EmergencyNumberListCallback extends TelephonyCallback implements
+            TelephonyCallback.EmergencyNumberListListener {
+        @Override
+        public void onEmergencyNumberListChanged(
+                @NonNull Map<Integer, List<EmergencyNumber>> emergencyNumberList) {
+            invalidate();
+        }
+    }
+
+    /**
+     * @param source Builds a matcher from the current state of every slot.
+     */
+    public EmergencyNumberMatcherCache(Supplier<EmergencyNumberMatcher> source) {
+        mSource = source;
+    }
+
+    /**
+     * Registers for the changes which invalidate the matcher, the callbacks run on the executor.
+     */
+    public void registerForInvalidation(Context context, Executor executor) {
+        mTelephonyManager = context.getSystemService(TelephonyManager.class);
+        mSubscriptionManager = context.getSystemService(SubscriptionManager.class);
+        mExecutor = executor;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(TelephonyManager.ACTION_NETWORK_COUNTRY_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED);
+        context.registerReceiver(mReceiver, filter);
+
+        // Also called once registered, which registers the emergency number list callbacks.
+        mSubscriptionManager.addOnSubscriptionsChangedListener(executor,
+                mSubscriptionsChangedListener);
+    }
+
+    // Registers an emergency number list callback for each active subscription.
+    private void updateCallbacks() {
+        SparseArray<EmergencyNumberListCallback> previous = mCallbacks.clone();
+        mCallbacks.clear();
+        for (int subId : mSubscriptionManager.getActiveSubscriptionIdList()) {
+            EmergencyNumberListCallback callback = previous.get(subId);
+            if (callback == null) {
+                callback = new EmergencyNumberListCallback();
+                mTelephonyManager.createForSubscriptionId(subId)
+                        .registerTelephonyCallback(mExecutor, callback);
+            } else {
+                previous.remove(subId);
+            }
+            mCallbacks.put(subId, callback);
+        }
+        for (int i = 0; i < previous.size(); i++) {
+            mTelephonyManager.unregisterTelephonyCallback(previous.valueAt(i));
+        }
+    }
+
+    /**
+     * Drops the matcher, the next query rebuilds it.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mVersion++;
+            mMatcher = null;
+        }
+    }
+
+    /**
+     * @return the matcher for the current emergency number lists.
+     */
+    public EmergencyNumberMatcher getMatcher() {
+        EmergencyNumberMatcher matcher = mMatcher;
+        if (matcher != null) {
+            return matcher;
+        }
+        long version;
+        synchronized (mLock) {
+            version = mVersion;
+        }
+        mRebuilds.incrementAndGet();
+        matcher = mSource.get();
+        synchronized (mLock) {
+            // A change during the build may not be reflected, serve it once but do not keep it.
+            if (mVersion == version) {
+                mMatcher = matcher;
+            }
+        }
+        return matcher;
+    }
+
+    @VisibleForTesting
+    public long getRebuildCount() {
+        return mRebuilds.get();
+    }
+}
@@ -51,8 +51,10 @@ import com.android.ims.ImsManager;
 import com.android.ims.internal.IImsServiceFeatureCallback;
 import com.android.internal.telephony.IIntegerConsumer;
 import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.TelephonyPermissions;
 import com.android.internal.telephony.ims.ImsResolver;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.services.telephony.rcs.RcsFeatureController;
 import com.android.services.telephony.rcs.SipTransportController;
 import com.android.services.telephony.rcs.TelephonyRcsService;
@@ -75,6 +77,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
     private ImsResolver mImsResolver;
     // set by shell cmd phone src set-device-enabled true/false
     private Boolean mSingleRegistrationOverride;
+    // Caches granted permission checks for the frequently polled query APIs.
+    private final PermissionDecisionCache mPermissionCache = new PermissionDecisionCache();
 
     /**
      * For apps targeting Android T and above, support the publishing state on APIs, such as
@@ -107,6 +111,7 @@ public class ImsRcsController extends IImsRcsController.Stub {
         TelephonyFrameworkInitializer
                 .getTelephonyServiceManager().getTelephonyImsServiceRegisterer().register(this);
         mImsResolver = ImsResolver.getInstance();
+        mPermissionCache.registerForInvalidation(app, PhoneFactory.getPhones().length);
     }
 
     /**
@@ -115,8 +120,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
      */
     @Override
     public void registerImsRegistrationCallback(int subId, IImsRegistrationCallback callback) {
-        TelephonyPermissions.enforceCallingOrSelfReadPrecisePhoneStatePermissionOrCarrierPrivilege(
-                mApp, subId, "registerImsRegistrationCallback");
+        enforceReadPrecisePhoneStatePermissionOrCarrierPrivilege(subId,
+                "registerImsRegistrationCallback");
         final long token = Binder.clearCallingIdentity();
         try {
             getRcsFeatureController(subId).registerImsRegistrationCallback(subId, callback);
@@ -133,8 +138,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
      */
     @Override
     public void unregisterImsRegistrationCallback(int subId, IImsRegistrationCallback callback) {
-        TelephonyPermissions.enforceCallingOrSelfReadPrecisePhoneStatePermissionOrCarrierPrivilege(
-                mApp, subId, "unregisterImsRegistrationCallback");
+        enforceReadPrecisePhoneStatePermissionOrCarrierPrivilege(subId,
+                "unregisterImsRegistrationCallback");
         final long token = Binder.clearCallingIdentity();
         try {
             getRcsFeatureController(subId).unregisterImsRegistrationCallback(subId, callback);
@@ -150,8 +155,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
      */
     @Override
     public void getImsRcsRegistrationState(int subId, IIntegerConsumer consumer) {
-        TelephonyPermissions.enforceCallingOrSelfReadPrecisePhoneStatePermissionOrCarrierPrivilege(
-                mApp, subId, "getImsRcsRegistrationState");
+        enforceReadPrecisePhoneStatePermissionOrCarrierPrivilege(subId,
+                "getImsRcsRegistrationState");
         final long token = Binder.clearCallingIdentity();
         try {
             getRcsFeatureController(subId).getRegistrationState(regState -> {
@@ -172,8 +177,8 @@ public class ImsRcsController extends IImsRcsController.Stub {
      */
     @Override
     public void getImsRcsRegistrationTransportType(int subId, IIntegerConsumer consumer) {
-        TelephonyPermissions.enforceCallingOrSelfReadPrecisePhoneStatePermissionOrCarrierPrivilege(
-                mApp, subId, "getImsRcsRegistrationTransportType");
+        enforceReadPrecisePhoneStatePermissionOrCarrierPrivilege(subId,
+                "getImsRcsRegistrationTransportType");
         final long token = Binder.clearCallingIdentity();
         try {
             getRcsFeatureController(subId).getRegistrationTech(regTech -> {
@@ -702,14 +707,46 @@ public class ImsRcsController extends IImsRcsController.Stub {
         }
     }
 
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.increaseIndent();
+        mPermissionCache.dump(pw);
+        pw.decreaseIndent();
+    }
+
     /**
      * Make sure either called from same process as self (phone) or IPC caller has read privilege.
      *
      * @throws SecurityException if the caller does not have the required permission
      */
     private void enforceReadPrivilegedPermission(String message) {
-        mApp.enforceCallingOrSelfPermission(
-                android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE, message);
+        mPermissionCache.enforce(Binder.getCallingUid(), Binder.getCallingPid(),
+                android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                () -> mApp.enforceCallingOrSelfPermission(
+                        android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE, message));
+    }
+
+    /**
+     * Make sure the caller has READ_PRECISE_PHONE_STATE or carrier privileges on the subId.
+     * Only the permission grant is cached, carrier privileges are checked on every call.
+     *
+     * @throws SecurityException if the caller does not have the required permission
+     */
+    private void enforceReadPrecisePhoneStatePermissionOrCarrierPrivilege(int subId,
+            String message) {
+        if (mPermissionCache.isGranted(Binder.getCallingUid(), Binder.getCallingPid(),
+                android.Manifest.permission.READ_PRECISE_PHONE_STATE,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID,
+                () -> mApp.checkCallingOrSelfPermission(
+                        android.Manifest.permission.READ_PRECISE_PHONE_STATE)
+                        == PackageManager.PERMISSION_GRANTED)) {
+            return;
+        }
+        TelephonyPermissions.enforceCallingOrSelfReadPrecisePhoneStatePermissionOrCarrierPrivilege(
+                mApp, subId, message);
     }
 
     /**
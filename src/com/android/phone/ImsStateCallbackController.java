@@ -32,23 +32,21 @@ import static com.android.ims.FeatureConnector.UNAVAILABLE_REASON_IMS_UNSUPPORTE
 import static com.android.ims.FeatureConnector.UNAVAILABLE_REASON_NOT_READY;
 import static com.android.ims.FeatureConnector.UNAVAILABLE_REASON_SERVER_UNAVAILABLE;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.AsyncResult;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.RemoteException;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyRegistryManager;
 import android.telephony.ims.feature.ImsFeature;
 import android.util.LocalLog;
 import android.util.Log;
+import android.util.LongSparseArray;
 import android.util.SparseArray;
 
 import com.android.ims.FeatureConnector;
@@ -68,6 +66,8 @@ import com.android.telephony.Rlog;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.Executor;
 
 /**
@@ -124,6 +124,7 @@ public class ImsStateCallbackController {
     private static final int EVENT_CARRIER_CONFIG_CHANGED = 4;
     private static final int EVENT_EXTERNAL_RCS_STATE_CHANGED = 5;
     private static final int EVENT_MSIM_CONFIGURATION_CHANGE = 6;
+    private static final int EVENT_BINDER_DIED = 7;
 
     private static ImsStateCallbackController sInstance;
     private static final LocalLog sLocalLog = new LocalLog(LOG_SIZE);
@@ -140,6 +141,7 @@ public class ImsStateCallbackController {
     private final PhoneGlobals mApp;
     private final Handler mHandler;
     private final ImsResolver mImsResolver;
+    private final CarrierConfigChangeBus mCarrierConfigChangeBus;
     private final SparseArray<MmTelFeatureListener> mMmTelFeatureListeners = new SparseArray<>();
     private final SparseArray<RcsFeatureListener> mRcsFeatureListeners = new SparseArray<>();
 
@@ -149,42 +151,37 @@ public class ImsStateCallbackController {
     private RcsFeatureConnectorFactory mRcsFeatureFactory;
 
     private HashMap<IBinder, CallbackWrapper> mWrappers = new HashMap<>();
+    // The same wrappers as mWrappers, indexed by subscription and feature.
+    private final LongSparseArray<ArrayList<CallbackWrapper>> mWrappersBySubFeature =
+            new LongSparseArray<>();
+    // Binders of callbacks whose process died, removed together on the handler.
+    private final ArrayList<IBinder> mDiedBinders = new ArrayList<>();
+
+    // Callback statistics, reported in dump.
+    private int mDeliveredCount;
+    private int mSuppressedCount;
+    private int mDeadRemovedCount;
 
     private final Object mDumpLock = new Object();
 
     private int mNumSlots;
 
-    private BroadcastReceiver mReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent == null) {
-                return;
-            }
-            if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(intent.getAction())) {
-                Bundle bundle = intent.getExtras();
-                if (bundle == null) {
-                    return;
-                }
-                int slotId = bundle.getInt(CarrierConfigManager.EXTRA_SLOT_INDEX,
-                        SubscriptionManager.INVALID_PHONE_INDEX);
-                int subId = bundle.getInt(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
-                        SubscriptionManager.INVALID_SUBSCRIPTION_ID);
-
-                if (slotId <= SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
-                    loge("onReceive ACTION_CARRIER_CONFIG_CHANGED invalid slotId");
-                    return;
-                }
+    // Only the ImsService package overrides affect whether IMS is configured for a slot.
+    private static final Set<String> CARRIER_CONFIG_KEYS = Set.of(
+            CarrierConfigManager.KEY_CONFIG_IMS_PACKAGE_OVERRIDE_STRING,
+            CarrierConfigManager.KEY_CONFIG_IMS_MMTEL_PACKAGE_OVERRIDE_STRING,
+            CarrierConfigManager.KEY_CONFIG_IMS_RCS_PACKAGE_OVERRIDE_STRING);
 
+    private final CarrierConfigChangeBus.Listener mCarrierConfigListener =
+            (slotId, subId, config, changedKeys) -> {
                 if (subId <= SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
-                    loge("onReceive ACTION_CARRIER_CONFIG_CHANGED invalid subId");
+                    loge("onCarrierConfigChanged invalid subId");
                     //subscription changed will be notified by mSubChangedListener
                     return;
                 }
 
                 notifyCarrierConfigChanged(slotId);
-            }
-        }
-    };
+            };
 
     private final SubscriptionManager.OnSubscriptionsChangedListener mSubChangedListener =
             new SubscriptionManager.OnSubscriptionsChangedListener() {
@@ -227,6 +224,10 @@ public class ImsStateCallbackController {
                         onExternalRcsStateChanged((ExternalRcsFeatureState) msg.obj);
                         break;
 
+                    case EVENT_BINDER_DIED:
+                        onBindersDied();
+                        break;
+
                     case EVENT_MSIM_CONFIGURATION_CHANGE:
                         AsyncResult result = (AsyncResult) msg.obj;
                         Integer numSlots = (Integer) result.result;
@@ -255,7 +256,7 @@ public class ImsStateCallbackController {
          * true means ImsResolver found an IMS package for FEATURE_MMTEL.
          *
          * mReason is updated through connectionUnavailable triggered by ImsResolver.
-         * mHasConfig is update through notifyConfigChanged triggered by mReceiver.
+         * mHasConfig is update through notifyConfigChanged triggered by mCarrierConfigListener.
          * mHasConfig can be a redundancy of (mReason == REASON_NO_IMS_SERVICE_CONFIGURED).
          * However, when a carrier config changes, we are not sure the order
          * of execution of connectionUnavailable and notifyConfigChanged.
@@ -384,7 +385,7 @@ public class ImsStateCallbackController {
          * true means ImsResolver found an IMS package for FEATURE_RCS.
          *
          * mReason is updated through connectionUnavailable triggered by ImsResolver.
-         * mHasConfig is update through notifyConfigChanged triggered by mReceiver,
+         * mHasConfig is update through notifyConfigChanged triggered by mCarrierConfigListener,
          * and notifyExternalRcsState which triggered by TelephonyRcsService refers it.
          * mHasConfig can be a redundancy of (mReason == REASON_NO_IMS_SERVICE_CONFIGURED).
          * However, when a carrier config changes, we are not sure the order
@@ -605,7 +606,9 @@ public class ImsStateCallbackController {
         private final IImsStateCallback mCallback;
         private final IBinder mBinder;
         private final String mCallingPackage;
+        private int mLastState = STATE_UNKNOWN;
         private int mLastReason = NOT_INITIALIZED;
+        private IBinder.DeathRecipient mDeathRecipient;
 
         CallbackWrapper(int subId, int feature, IImsStateCallback callback,
                 String callingPackage) {
@@ -636,6 +639,7 @@ public class ImsStateCallbackController {
                 } else {
                     mCallback.onUnavailable(reason);
                 }
+                mLastState = state;
                 mLastReason = reason;
             } catch (Exception e) {
                 loge("CallbackWrapper notifyState e=" + e);
@@ -645,6 +649,13 @@ public class ImsStateCallbackController {
             return true;
         }
 
+        /**
+         * @return true if the given state was the last one delivered to this callback.
+         */
+        boolean isLastDelivered(int state, int reason) {
+            return mLastState == state && mLastReason == reason;
+        }
+
         void notifyInactive() {
             logd("CallbackWrapper notifyInactive subId=" + mSubId);
 
@@ -696,7 +707,7 @@ public class ImsStateCallbackController {
                 handlerThread.start();
                 sInstance = new ImsStateCallbackController(app, handlerThread.getLooper(), numSlots,
                         ImsManager::getConnector, RcsFeatureManager::getConnector,
-                        ImsResolver.getInstance());
+                        ImsResolver.getInstance(), CarrierConfigChangeBus.getInstance());
             }
         }
         return sInstance;
@@ -705,7 +716,7 @@ public class ImsStateCallbackController {
     @VisibleForTesting
     public ImsStateCallbackController(PhoneGlobals app, Looper looper, int numSlots,
             MmTelFeatureConnectorFactory mmTelFactory, RcsFeatureConnectorFactory rcsFactory,
-            ImsResolver imsResolver) {
+            ImsResolver imsResolver, CarrierConfigChangeBus carrierConfigChangeBus) {
         mApp = app;
         mHandler = new MyHandler(looper);
         mImsResolver = imsResolver;
@@ -722,8 +733,9 @@ public class ImsStateCallbackController {
         PhoneConfigurationManager.registerForMultiSimConfigChange(mHandler,
                 EVENT_MSIM_CONFIGURATION_CHANGE, null);
 
-        mApp.registerReceiver(mReceiver, new IntentFilter(
-                CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+        mCarrierConfigChangeBus = carrierConfigChangeBus;
+        mCarrierConfigChangeBus.registerListener(CARRIER_CONFIG_KEYS, Runnable::run,
+                mCarrierConfigListener);
 
         onSubChanged();
     }
@@ -808,18 +820,96 @@ public class ImsStateCallbackController {
                     + ", reason=" + imsStateReasonToString(reason));
         }
 
+        ArrayList<CallbackWrapper> wrappers =
+                mWrappersBySubFeature.get(subFeatureKey(subId, feature));
+        if (wrappers == null) return;
+
         ArrayList<IBinder> inactiveCallbacks = new ArrayList<>();
-        mWrappers.values().forEach(wrapper -> {
-            if (subId == wrapper.mSubId
-                    && feature == wrapper.mRequiredFeature
-                    && !wrapper.notifyState(subId, feature, state, reason)) {
+        for (CallbackWrapper wrapper : wrappers) {
+            if (wrapper.isLastDelivered(state, reason)) {
+                mSuppressedCount++;
+                continue;
+            }
+            if (wrapper.notifyState(subId, feature, state, reason)) {
+                mDeliveredCount++;
+            } else {
                 // callback has exception, remove it
                 inactiveCallbacks.add(wrapper.mBinder);
             }
-        });
+        }
         removeInactiveCallbacks(inactiveCallbacks, "onFeatureStateChange");
     }
 
+    private static long subFeatureKey(int subId, int feature) {
+        return ((long) subId << 32) | (feature & 0xFFFFFFFFL);
+    }
+
+    private void addWrapper(CallbackWrapper wrapper) {
+        removeWrapper(wrapper.mBinder);
+        mWrappers.put(wrapper.mBinder, wrapper);
+        long key = subFeatureKey(wrapper.mSubId, wrapper.mRequiredFeature);
+        ArrayList<CallbackWrapper> wrappers = mWrappersBySubFeature.get(key);
+        if (wrappers == null) {
+            wrappers = new ArrayList<>();
+            mWrappersBySubFeature.put(key, wrappers);
+        }
+        wrappers.add(wrapper);
+
+        final IBinder binder = wrapper.mBinder;
+        IBinder.DeathRecipient recipient = () -> notifyBinderDied(binder);
+        try {
+            binder.linkToDeath(recipient, 0);
+            wrapper.mDeathRecipient = recipient;
+        } catch (RemoteException e) {
+            // already dead, the failed notification will remove it.
+        }
+    }
+
+    private CallbackWrapper removeWrapper(IBinder binder) {
+        CallbackWrapper wrapper = mWrappers.remove(binder);
+        if (wrapper == null) return null;
+
+        long key = subFeatureKey(wrapper.mSubId, wrapper.mRequiredFeature);
+        ArrayList<CallbackWrapper> wrappers = mWrappersBySubFeature.get(key);
+        if (wrappers != null) {
+            wrappers.remove(wrapper);
+            if (wrappers.isEmpty()) mWrappersBySubFeature.remove(key);
+        }
+        if (wrapper.mDeathRecipient != null) {
+            try {
+                binder.unlinkToDeath(wrapper.mDeathRecipient, 0);
+            } catch (NoSuchElementException e) {
+                // ignored
+            }
+            wrapper.mDeathRecipient = null;
+        }
+        return wrapper;
+    }
+
+    private void notifyBinderDied(IBinder binder) {
+        synchronized (mDiedBinders) {
+            mDiedBinders.add(binder);
+            // A single message removes every callback that died in the meantime.
+            if (mDiedBinders.size() == 1) {
+                mHandler.sendEmptyMessage(EVENT_BINDER_DIED);
+            }
+        }
+    }
+
+    private void onBindersDied() {
+        ArrayList<IBinder> died;
+        synchronized (mDiedBinders) {
+            died = new ArrayList<>(mDiedBinders);
+            mDiedBinders.clear();
+        }
+        int removed = 0;
+        for (IBinder binder : died) {
+            if (removeWrapper(binder) != null) removed++;
+        }
+        mDeadRemovedCount += removed;
+        logd("onBindersDied removed " + removed + " callbacks");
+    }
+
     private void onRegisterCallback(CallbackWrapper wrapper) {
         if (wrapper == null) return;
 
@@ -836,14 +926,16 @@ public class ImsStateCallbackController {
         // The validity of the subId is checked PhoneInterfaceManager#registerImsStateCallback.
         // So, register the wrapper here before trying to notifyState.
         // TODO: implement the recovery for this case, notifying the current reson, in onSubChanged
-        mWrappers.put(wrapper.mBinder, wrapper);
+        addWrapper(wrapper);
 
         if (wrapper.mRequiredFeature == FEATURE_MMTEL) {
             for (int i = 0; i < mMmTelFeatureListeners.size(); i++) {
                 if (wrapper.mSubId == getSubId(i)) {
                     MmTelFeatureListener l = mMmTelFeatureListeners.valueAt(i);
-                    if (!l.notifyState(wrapper)) {
-                        mWrappers.remove(wrapper.mBinder);
+                    if (l.notifyState(wrapper)) {
+                        mDeliveredCount++;
+                    } else {
+                        removeWrapper(wrapper.mBinder);
                     }
                     break;
                 }
@@ -852,8 +944,10 @@ public class ImsStateCallbackController {
             for (int i = 0; i < mRcsFeatureListeners.size(); i++) {
                 if (wrapper.mSubId == getSubId(i)) {
                     RcsFeatureListener l = mRcsFeatureListeners.valueAt(i);
-                    if (!l.notifyState(wrapper)) {
-                        mWrappers.remove(wrapper.mBinder);
+                    if (l.notifyState(wrapper)) {
+                        mDeliveredCount++;
+                    } else {
+                        removeWrapper(wrapper.mBinder);
                     }
                     break;
                 }
@@ -865,7 +959,7 @@ public class ImsStateCallbackController {
 
     private void onUnregisterCallback(IImsStateCallback cb) {
         if (cb == null) return;
-        mWrappers.remove(cb.asBinder());
+        removeWrapper(cb.asBinder());
     }
 
     private void onCarrierConfigChanged(int slotId) {
@@ -983,11 +1077,10 @@ public class ImsStateCallbackController {
         }
 
         for (IBinder binder : inactiveCallbacks) {
-            CallbackWrapper wrapper = mWrappers.get(binder);
+            CallbackWrapper wrapper = removeWrapper(binder);
             if (wrapper != null) {
                 // Send the reason REASON_SUBSCRIPTION_INACTIVE to the client
                 wrapper.notifyInactive();
-                mWrappers.remove(binder);
             }
         }
         inactiveCallbacks.clear();
@@ -1101,7 +1194,7 @@ public class ImsStateCallbackController {
         if (VDBG) logv("release");
 
         mTelephonyRegistryManager.removeOnSubscriptionsChangedListener(mSubChangedListener);
-        mApp.unregisterReceiver(mReceiver);
+        mCarrierConfigChangeBus.unregisterListener(mCarrierConfigListener);
 
         for (int i = 0; i < mMmTelFeatureListeners.size(); i++) {
             mMmTelFeatureListeners.valueAt(i).destroy();
@@ -1168,6 +1261,9 @@ public class ImsStateCallbackController {
                 l.dump(pw);
             }
             pw.decreaseIndent();
+            pw.println("Callbacks: delivered=" + mDeliveredCount
+                    + ", suppressed=" + mSuppressedCount
+                    + ", deadRemoved=" + mDeadRemovedCount);
             pw.println("Most recent logs:");
             pw.increaseIndent();
             sLocalLog.dump(pw);
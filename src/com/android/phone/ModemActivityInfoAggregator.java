@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.os.AsyncResult;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.ResultReceiver;
+import android.os.WorkSource;
+import android.telephony.AccessNetworkConstants;
+import android.telephony.ActivityStatsTechSpecificInfo;
+import android.telephony.ModemActivityInfo;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.CommandException;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Answers requests for the cumulative {@link ModemActivityInfo} of the modem.
+ *
+ * <p>The modem reports the activity since its previous report and clears its counters, so the
+ * reports are summed here. Requests arriving while a query is in flight wait for that query
+ * instead of issuing another one, and all of them get its result. Optionally, a result younger
+ * than a maximum age is served without querying the modem.
+ */
+public class ModemActivityInfoAggregator {
+    private static final String LOG_TAG = "ModemActivityInfoAggregator";
+
+    private static final int MSG_QUERY_DONE = 1;
+
+    /**
+     * Queries the modem, usually through the default phone.
+     */
+    public interface ModemQuery {
+        /**
+         * Queries the modem activity info, {@code onCompleted} is sent with an
+         * {@link AsyncResult} holding the {@link ModemActivityInfo}.
+         *
+         * @return false if there is no modem to query.
+         */
+        boolean query(Message onCompleted, WorkSource workSource);
+    }
+
+    /**
+     * The sum of the modem activity reports, kept in primitive arrays so that adding a report
+     * does not allocate unless it has a technology not seen before.
+     */
+    @VisibleForTesting
+    public static class Accumulator {
+        private final int mNumTxPowerLevels;
+        private long mTimestampMillis;
+        private long mSleepTimeMillis;
+        private long mIdleTimeMillis;
+        private int mSize;
+        private int[] mRats;
+        private int[] mFrequencyRanges;
+        private int[][] mTxTimeMillis;
+        private long[] mRxTimeMillis;
+
+        public Accumulator() {
+            mNumTxPowerLevels = ModemActivityInfo.getNumTxPowerLevels();
+            mRats = new int[4];
+            mFrequencyRanges = new int[4];
+            mTxTimeMillis = new int[4][];
+            mRxTimeMillis = new long[4];
+            // An unknown technology with no activity, as reported before the first report.
+            insertAt(0, 0, 0);
+        }
+
+        /**
+         * @return true if the durations of the report fit in the time since the previous one.
+         */
+        public boolean isValid(ModemActivityInfo info) {
+            if (info == null || !info.isValid()) {
+                return false;
+            }
+            int activityDurationMs = (int) (info.getTimestampMillis() - mTimestampMillis);
+            int totalTxTimeMs = 0;
+            for (int txTimeMs : info.getTransmitTimeMillis()) {
+                totalTxTimeMs += txTimeMs;
+            }
+            return info.getSleepTimeMillis() <= activityDurationMs
+                    && info.getIdleTimeMillis() <= activityDurationMs
+                    && info.getReceiveTimeMillis() <= activityDurationMs
+                    && totalTxTimeMs <= activityDurationMs;
+        }
+
+        /**
+         * Adds a report. The activity of a technology already seen is added to it, 5G activity
+         * being kept per frequency range. Technologies not seen before are put first, in the
+         * order of the report.
+         */
+        public void add(ModemActivityInfo info) {
+            int previousSize = mSize;
+            int inserted = 0;
+            for (int i = 0; i < info.getSpecificInfoLength(); i++) {
+                int rat = info.getSpecificInfoRat(i);
+                int freq = info.getSpecificInfoFrequencyRange(i);
+                boolean ngran = rat == AccessNetworkConstants.AccessNetworkType.NGRAN;
+                int index = indexOf(rat, freq, ngran, inserted, previousSize);
+                if (index >= 0) {
+                    int[] txTimeMs = ngran ? info.getTransmitTimeMillis(rat, freq)
+                            : info.getTransmitTimeMillis(rat);
+                    int[] total = mTxTimeMillis[index];
+                    for (int lvl = 0; lvl < mNumTxPowerLevels; lvl++) {
+                        total[lvl] += txTimeMs[lvl];
+                    }
+                    mRxTimeMillis[index] += ngran ? info.getReceiveTimeMillis(rat, freq)
+                            : info.getReceiveTimeMillis(rat);
+                } else {
+                    insertAt(inserted++, rat, freq);
+                    int[] txTimeMs = info.getTransmitTimeMillis(rat, freq);
+                    System.arraycopy(txTimeMs, 0, mTxTimeMillis[inserted - 1], 0,
+                            Math.min(txTimeMs.length, mNumTxPowerLevels));
+                    mRxTimeMillis[inserted - 1] = (int) info.getReceiveTimeMillis(rat, freq);
+                }
+            }
+            mTimestampMillis = info.getTimestampMillis();
+            mSleepTimeMillis += info.getSleepTimeMillis();
+            mIdleTimeMillis += info.getIdleTimeMillis();
+        }
+
+        // Finds the technologies known before this report, which follow the inserted ones.
+        private int indexOf(int rat, int freq, boolean ngran, int inserted, int previousSize) {
+            for (int j = inserted; j < inserted + previousSize; j++) {
+                if (mRats[j] == rat && (!ngran || mFrequencyRanges[j] == freq)) {
+                    return j;
+                }
+            }
+            return -1;
+        }
+
+        private void insertAt(int index, int rat, int freq) {
+            if (mSize == mRats.length) {
+                int capacity = mSize * 2;
+                mRats = Arrays.copyOf(mRats, capacity);
+                mFrequencyRanges = Arrays.copyOf(mFrequencyRanges, capacity);
+                mTxTimeMillis = Arrays.copyOf(mTxTimeMillis, capacity);
+                mRxTimeMillis = Arrays.copyOf(mRxTimeMillis, capacity);
+            }
+            int moved = mSize - index;
+            System.arraycopy(mRats, index, mRats, index + 1, moved);
+            System.arraycopy(mFrequencyRanges, index, mFrequencyRanges, index + 1, moved);
+            System.arraycopy(mTxTimeMillis, index, mTxTimeMillis, index + 1, moved);
+            System.arraycopy(mRxTimeMillis, index, mRxTimeMillis, index + 1, moved);
+            mRats[index] = rat;
+            mFrequencyRanges[index] = freq;
+            mTxTimeMillis[index] = new int[mNumTxPowerLevels];
+            mRxTimeMillis[index] = 0;
+            mSize++;
+        }
+
+        /**
+         * @return a copy of the sums.
+         */
+        @NonNull
+        public ModemActivityInfo toModemActivityInfo() {
+            ActivityStatsTechSpecificInfo[] specificInfos =
+                    new ActivityStatsTechSpecificInfo[mSize];
+            for (int i = 0; i < mSize; i++) {
+                specificInfos[i] = new ActivityStatsTechSpecificInfo(mRats[i],
+                        mFrequencyRanges[i], mTxTimeMillis[i].clone(), (int) mRxTimeMillis[i]);
+            }
+            return new ModemActivityInfo(mTimestampMillis, mSleepTimeMillis, mIdleTimeMillis,
+                    specificInfos);
+        }
+    }
+
+    private final Handler mHandler;
+    private final ModemQuery mModemQuery;
+    private final long mMaxAgeMillis;
+    private final LongSupplier mClock;
+    private final Accumulator mAccumulator = new Accumulator();
+
+    // The following are only used on the handler thread.
+    private final List<ResultReceiver> mWaiting = new ArrayList<>();
+    private boolean mQueryInFlight;
+    private ModemActivityInfo mLastResult;
+    private long mLastResultTimeMillis;
+    private long mRequests;
+    private long mQueries;
+    private long mServedFromCache;
+
+    /**
+     * @param maxAgeMillis How long a result can be served without querying the modem again, 0
+     *                     to always query.
+     */
+    public ModemActivityInfoAggregator(@NonNull Looper looper, @NonNull ModemQuery modemQuery,
+            long maxAgeMillis, @NonNull LongSupplier clock) {
+        mModemQuery = modemQuery;
+        mMaxAgeMillis = maxAgeMillis;
+        mClock = clock;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_QUERY_DONE:
+                        onQueryDone((AsyncResult) msg.obj);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * Responds to the ResultReceiver with the cumulative modem activity info. Can be called on
+     * any thread.
+     */
+    public void request(@NonNull ResultReceiver result, WorkSource workSource) {
+        mHandler.post(() -> onRequest(result, workSource));
+    }
+
+    private void onRequest(ResultReceiver result, WorkSource workSource) {
+        mRequests++;
+        if (mLastResult != null && mMaxAgeMillis > 0
+                && mClock.getAsLong() - mLastResultTimeMillis < mMaxAgeMillis) {
+            mServedFromCache++;
+            result.send(0, createResultBundle(mLastResult));
+            return;
+        }
+        mWaiting.add(result);
+        if (mQueryInFlight) {
+            return;
+        }
+        if (!mModemQuery.query(mHandler.obtainMessage(MSG_QUERY_DONE), workSource)) {
+            Bundle bundle = createResultBundle(new ModemActivityInfo(0, 0, 0,
+                    new int[ModemActivityInfo.getNumTxPowerLevels()], 0));
+            sendToWaiting(bundle);
+            return;
+        }
+        mQueries++;
+        mQueryInFlight = true;
+    }
+
+    private void onQueryDone(AsyncResult ar) {
+        mQueryInFlight = false;
+        Bundle bundle;
+        if (ar.exception == null && ar.result != null) {
+            ModemActivityInfo info = (ModemActivityInfo) ar.result;
+            if (mAccumulator.isValid(info)) {
+                mAccumulator.add(info);
+            }
+            mLastResult = mAccumulator.toModemActivityInfo();
+            mLastResultTimeMillis = mClock.getAsLong();
+            bundle = createResultBundle(mLastResult);
+        } else {
+            int error;
+            if (ar.result == null) {
+                Log.e(LOG_TAG, "queryModemActivityInfo: Empty response");
+                error = TelephonyManager.ModemActivityInfoException.ERROR_INVALID_INFO_RECEIVED;
+            } else if (ar.exception instanceof CommandException) {
+                Log.e(LOG_TAG, "queryModemActivityInfo: CommandException: " + ar.exception);
+                error = TelephonyManager.ModemActivityInfoException.ERROR_MODEM_RESPONSE_ERROR;
+            } else {
+                Log.e(LOG_TAG, "queryModemActivityInfo: Unknown exception");
+                error = TelephonyManager.ModemActivityInfoException.ERROR_UNKNOWN;
+            }
+            bundle = new Bundle();
+            bundle.putInt(TelephonyManager.EXCEPTION_RESULT_KEY, error);
+        }
+        sendToWaiting(bundle);
+    }
+
+    private void sendToWaiting(Bundle bundle) {
+        for (ResultReceiver result : mWaiting) {
+            result.send(0, bundle);
+        }
+        mWaiting.clear();
+    }
+
+    private static Bundle createResultBundle(ModemActivityInfo info) {
+        Bundle bundle = new Bundle();
+        bundle.putParcelable(TelephonyManager.MODEM_ACTIVITY_RESULT_KEY, info);
+        return bundle;
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.println(LOG_TAG + ": requests=" + mRequests + ", modemQueries=" + mQueries
+                + ", servedFromCache=" + mServedFromCache + ", maxAgeMs=" + mMaxAgeMillis);
+    }
+}
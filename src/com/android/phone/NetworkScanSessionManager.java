@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.telephony.CellIdentity;
+import android.telephony.CellInfo;
+import android.telephony.LocationAccessPolicy;
+import android.telephony.NetworkScan;
+import android.telephony.NetworkScanRequest;
+import android.telephony.TelephonyScanManager;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.NetworkScanRequestTracker;
+import com.android.internal.telephony.Phone;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Shares network scans between the clients of
+ * {@link PhoneInterfaceManager#requestNetworkScan}.
+ *
+ * <p>Identical requests on the same phone, by clients with the same location access, are served
+ * by one modem scan. Each client keeps its own scan id and gets the results as before, starting
+ * with the cells already found when it joins.
+ *
+ * <p>The modem scan only checks the location access of the client which started it. Every other
+ * client is checked before it gets results, and gets them sanitized if it has no access.
+ */
+public class NetworkScanSessionManager {
+    private static final String LOG_TAG = "NetworkScanSessionManager";
+
+    /**
+     * Starts and stops modem scans, {@link NetworkScanRequestTracker} outside of tests.
+     */
+    public interface ScanStarter {
+        /** @see NetworkScanRequestTracker#startNetworkScan */
+        int startNetworkScan(boolean renounceFineLocationAccess, NetworkScanRequest request,
+                Messenger messenger, IBinder binder, Phone phone, int callingUid,
+                int callingPid, String callingPackage);
+
+        /** @see NetworkScanRequestTracker#stopNetworkScan */
+        void stopNetworkScan(int scanId, int callingUid);
+    }
+
+    /**
+     * Checks the location access of a client, and notes it with AppOps, before it gets results.
+     */
+    public interface LocationAccessChecker {
+        /**
+         * @return whether the client may get unsanitized scan results.
+         */
+        boolean hasLocationAccess(Phone phone, int callingUid, int callingPid,
+                String callingPackage);
+    }
+
+    private static final class SessionKey {
+        final int mPhoneId;
+        final NetworkScanRequest mRequest;
+        final boolean mHasFullLocationAccess;
+
+        SessionKey(int phoneId, NetworkScanRequest request, boolean hasFullLocationAccess) {
+            mPhoneId = phoneId;
+            mRequest = request;
+            mHasFullLocationAccess = hasFullLocationAccess;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SessionKey)) return false;
+            SessionKey other = (SessionKey) o;
+            return mPhoneId == other.mPhoneId
+                    && mHasFullLocationAccess == other.mHasFullLocationAccess
+                    && Objects.equals(mRequest, other.mRequest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mPhoneId, mRequest, mHasFullLocationAccess);
+        }
+    }
+
+    private final class Subscriber implements IBinder.DeathRecipient {
+        final int mScanId;
+        final int mUid;
+        final int mPid;
+        final String mCallingPackage;
+        final boolean mRenounceFineLocationAccess;
+        final Messenger mMessenger;
+        final IBinder mBinder;
+        Session mSession;
+
+        Subscriber(int scanId, int uid, int pid, String callingPackage,
+                boolean renounceFineLocationAccess, Messenger messenger, IBinder binder) {
+            mScanId = scanId;
+            mUid = uid;
+            mPid = pid;
+            mCallingPackage = callingPackage;
+            mRenounceFineLocationAccess = renounceFineLocationAccess;
+            mMessenger = messenger;
+            mBinder = binder;
+        }
+
+        void onResults(int what, CellInfo[] cells) {
+            Message message = Message.obtain(null, what, NetworkScan.SUCCESS, mScanId);
+            Bundle b = new Bundle();
+            b.putParcelableArray(TelephonyScanManager.SCAN_RESULT_KEY, cells);
+            message.setData(b);
+            send(message);
+        }
+
+        void onComplete(int what, int error) {
+            send(Message.obtain(null, what, error, mScanId));
+        }
+
+        private void send(Message message) {
+            try {
+                mMessenger.send(message);
+            } catch (RemoteException e) {
+                Log.e(LOG_TAG, "Failed to notify scan " + mScanId + ": " + e);
+            }
+        }
+
+        void unlinkToDeath() {
+            if (mBinder != null) {
+                mBinder.unlinkToDeath(this, 0);
+            }
+        }
+
+        @Override
+        public void binderDied() {
+            Log.d(LOG_TAG, "Client of scan " + mScanId + " died");
+            synchronized (mLock) {
+                removeSubscriber(this);
+            }
+        }
+    }
+
+    private static final class CellState {
+        CellInfo mCellInfo;
+        long mLastSeenMillis;
+
+        CellState(CellInfo cellInfo, long lastSeenMillis) {
+            mCellInfo = cellInfo;
+            mLastSeenMillis = lastSeenMillis;
+        }
+    }
+
+    private final class Session {
+        final SessionKey mKey;
+        final Phone mPhone;
+        // The subscriber which started the modem scan, its location access is checked by it.
+        final Subscriber mOwner;
+        final int mOwnerUid;
+        // Keeps the modem scan alive until every subscriber is gone.
+        final Binder mToken = new Binder();
+        final List<Subscriber> mSubscribers = new ArrayList<>();
+        // The cells found so far, in the order they were found.
+        final Map<CellIdentity, CellState> mCells = new LinkedHashMap<>();
+        int mModemScanId;
+        int mResultsWhat = TelephonyScanManager.CALLBACK_SCAN_RESULTS;
+        boolean mStopping;
+
+        Session(SessionKey key, Phone phone, Subscriber owner) {
+            mKey = key;
+            mPhone = phone;
+            mOwner = owner;
+            mOwnerUid = owner.mUid;
+        }
+
+        CellInfo[] getCells() {
+            CellInfo[] cells = new CellInfo[mCells.size()];
+            int i = 0;
+            for (CellState state : mCells.values()) {
+                cells[i++] = state.mCellInfo;
+            }
+            return cells;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final ScanStarter mScanStarter;
+    private final LocationAccessChecker mLocationAccessChecker;
+    private final LongSupplier mClock;
+    private final Messenger mMessenger;
+
+    // The following are guarded by mLock.
+    private final Map<SessionKey, Session> mSessions = new HashMap<>();
+    private final Map<Integer, Session> mSessionsByModemScanId = new HashMap<>();
+    private final Map<Integer, Subscriber> mSubscribers = new HashMap<>();
+    private int mNextScanId = 1;
+    private long mModemScans;
+    private long mMergedRequests;
+
+    public NetworkScanSessionManager(@NonNull Looper looper, @NonNull LongSupplier clock) {
+        this(looper, new ScanStarter() {
+            private final NetworkScanRequestTracker mTracker = new NetworkScanRequestTracker();
+
+            @Override
+            public int startNetworkScan(boolean renounceFineLocationAccess,
+                    NetworkScanRequest request, Messenger messenger, IBinder binder, Phone phone,
+                    int callingUid, int callingPid, String callingPackage) {
+                return mTracker.startNetworkScan(renounceFineLocationAccess, request, messenger,
+                        binder, phone, callingUid, callingPid, callingPackage);
+            }
+
+            @Override
+            public void stopNetworkScan(int scanId, int callingUid) {
+                mTracker.stopNetworkScan(scanId, callingUid);
+            }
+        }, NetworkScanSessionManager::checkLocationAccess, clock);
+    }
+
+    @VisibleForTesting
+    public NetworkScanSessionManager(@NonNull Looper looper, @NonNull ScanStarter scanStarter,
+            @NonNull LocationAccessChecker locationAccessChecker, @NonNull LongSupplier clock) {
+        mScanStarter = scanStarter;
+        mLocationAccessChecker = locationAccessChecker;
+        mClock = clock;
+        mMessenger = new Messenger(new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                onModemScanMessage(msg);
+            }
+        });
+    }
+
+    /**
+     * Starts a network scan, or joins an identical one. Results and errors are sent to the
+     * messenger the way {@link NetworkScanRequestTracker} sends them.
+     *
+     * @param hasFullLocationAccess Whether the caller may see unsanitized scan results.
+     * @param binder The binder of the caller, the scan is stopped for it when it dies.
+     * @return the id of the scan for this caller.
+     */
+    public int startNetworkScan(boolean renounceFineLocationAccess, boolean hasFullLocationAccess,
+            NetworkScanRequest request, Messenger messenger, IBinder binder, Phone phone,
+            int callingUid, int callingPid, String callingPackage) {
+        synchronized (mLock) {
+            Subscriber subscriber = new Subscriber(mNextScanId++, callingUid,
+                    callingPid, callingPackage, renounceFineLocationAccess, messenger, binder);
+            if (binder != null) {
+                try {
+                    binder.linkToDeath(subscriber, 0);
+                } catch (RemoteException e) {
+                    Log.d(LOG_TAG, "Client of scan " + subscriber.mScanId + " already died");
+                    return subscriber.mScanId;
+                }
+            }
+            addSubscriber(subscriber, renounceFineLocationAccess, hasFullLocationAccess, request,
+                    phone, callingUid, callingPid, callingPackage);
+            return subscriber.mScanId;
+        }
+    }
+
+    private void addSubscriber(Subscriber subscriber, boolean renounceFineLocationAccess,
+            boolean hasFullLocationAccess, NetworkScanRequest request, Phone phone,
+            int callingUid, int callingPid, String callingPackage) {
+        mSubscribers.put(subscriber.mScanId, subscriber);
+        SessionKey key = new SessionKey(phone == null ? -1 : phone.getPhoneId(), request,
+                hasFullLocationAccess);
+        Session session = mSessions.get(key);
+        if (session != null && !session.mStopping) {
+            mMergedRequests++;
+            subscriber.mSession = session;
+            session.mSubscribers.add(subscriber);
+            if (!session.mCells.isEmpty()) {
+                deliverResults(session, subscriber, session.mResultsWhat, session.getCells());
+            }
+            return;
+        }
+
+        session = new Session(key, phone, subscriber);
+        subscriber.mSession = session;
+        session.mSubscribers.add(subscriber);
+        mSessions.put(key, session);
+        mModemScans++;
+        session.mModemScanId = mScanStarter.startNetworkScan(renounceFineLocationAccess, request,
+                mMessenger, session.mToken, phone, callingUid, callingPid, callingPackage);
+        mSessionsByModemScanId.put(session.mModemScanId, session);
+    }
+
+    /**
+     * Stops the scan of a caller. The modem scan stops when no other caller shares it.
+     */
+    public void stopNetworkScan(int scanId, int callingUid) {
+        synchronized (mLock) {
+            Subscriber subscriber = mSubscribers.get(scanId);
+            if (subscriber == null || subscriber.mUid != callingUid) {
+                Log.e(LOG_TAG, "stopNetworkScan: scan " + scanId + " not found for uid "
+                        + callingUid);
+                return;
+            }
+            Session session = subscriber.mSession;
+            if (session.mSubscribers.size() > 1) {
+                removeSubscriber(subscriber);
+                subscriber.onComplete(TelephonyScanManager.CALLBACK_SCAN_COMPLETE,
+                        NetworkScan.SUCCESS);
+            } else {
+                // The modem scan completes for the last subscriber.
+                session.mStopping = true;
+                mScanStarter.stopNetworkScan(session.mModemScanId, session.mOwnerUid);
+            }
+        }
+    }
+
+    // Drops a subscriber without notifying it, stopping the modem scan if it was the last one.
+    private void removeSubscriber(Subscriber subscriber) {
+        if (mSubscribers.remove(subscriber.mScanId) == null) {
+            return;
+        }
+        subscriber.unlinkToDeath();
+        Session session = subscriber.mSession;
+        session.mSubscribers.remove(subscriber);
+        if (session.mSubscribers.isEmpty() && !session.mStopping) {
+            session.mStopping = true;
+            mScanStarter.stopNetworkScan(session.mModemScanId, session.mOwnerUid);
+        }
+    }
+
+    private void onModemScanMessage(Message msg) {
+        synchronized (mLock) {
+            Session session = mSessionsByModemScanId.get(msg.arg2);
+            if (session == null) {
+                Log.d(LOG_TAG, "Message for unknown scan " + msg.arg2);
+                return;
+            }
+            switch (msg.what) {
+                case TelephonyScanManager.CALLBACK_SCAN_RESULTS:
+                case TelephonyScanManager.CALLBACK_RESTRICTED_SCAN_RESULTS:
+                    onResults(session, msg);
+                    break;
+                case TelephonyScanManager.CALLBACK_SCAN_ERROR:
+                case TelephonyScanManager.CALLBACK_SCAN_COMPLETE:
+                    mSessionsByModemScanId.remove(session.mModemScanId);
+                    if (mSessions.get(session.mKey) == session) {
+                        mSessions.remove(session.mKey);
+                    }
+                    for (Subscriber subscriber : session.mSubscribers) {
+                        mSubscribers.remove(subscriber.mScanId);
+                        subscriber.unlinkToDeath();
+                        subscriber.onComplete(msg.what, msg.arg1);
+                    }
+                    session.mSubscribers.clear();
+                    break;
+                default:
+                    Log.e(LOG_TAG, "Unexpected message " + msg.what);
+                    break;
+            }
+        }
+    }
+
+    private void onResults(Session session, Message msg) {
+        Bundle data = msg.getData();
+        Parcelable[] parcelables = data == null ? null
+                : data.getParcelableArray(TelephonyScanManager.SCAN_RESULT_KEY);
+        CellInfo[] cells = new CellInfo[parcelables == null ? 0 : parcelables.length];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = (CellInfo) parcelables[i];
+        }
+        session.mResultsWhat = msg.what;
+
+        // Kept for the clients which join later, until not found again for two scan periods.
+        long now = mClock.getAsLong();
+        for (CellInfo cell : cells) {
+            CellState state = session.mCells.get(cell.getCellIdentity());
+            if (state == null) {
+                session.mCells.put(cell.getCellIdentity(), new CellState(cell, now));
+            } else {
+                state.mCellInfo = cell;
+                state.mLastSeenMillis = now;
+            }
+        }
+        NetworkScanRequest request = session.mKey.mRequest;
+        if (request.getScanType() == NetworkScanRequest.SCAN_TYPE_PERIODIC) {
+            long maxAgeMillis = 2000L * request.getSearchPeriodicity();
+            Iterator<Map.Entry<CellIdentity, CellState>> it = session.mCells.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<CellIdentity, CellState> entry = it.next();
+                if (now - entry.getValue().mLastSeenMillis > maxAgeMillis) {
+                    it.remove();
+                }
+            }
+        }
+
+        for (Subscriber subscriber : session.mSubscribers) {
+            deliverResults(session, subscriber, msg.what, cells);
+        }
+    }
+
+    // Sends results to a subscriber, sanitized unless it may see them as they are.
+    private void deliverResults(Session session, Subscriber subscriber, int what,
+            CellInfo[] cells) {
+        if (what == TelephonyScanManager.CALLBACK_SCAN_RESULTS && subscriber != session.mOwner
+                && (subscriber.mRenounceFineLocationAccess
+                        || !mLocationAccessChecker.hasLocationAccess(session.mPhone,
+                                subscriber.mUid, subscriber.mPid, subscriber.mCallingPackage))) {
+            CellInfo[] sanitized = new CellInfo[cells.length];
+            for (int i = 0; i < cells.length; i++) {
+                sanitized[i] = cells[i].sanitizeLocationInfo();
+            }
+            subscriber.onResults(TelephonyScanManager.CALLBACK_RESTRICTED_SCAN_RESULTS, sanitized);
+            return;
+        }
+        subscriber.onResults(what, cells);
+    }
+
+    private static boolean checkLocationAccess(Phone phone, int callingUid, int callingPid,
+            String callingPackage) {
+        if (phone == null) {
+            return false;
+        }
+        LocationAccessPolicy.LocationPermissionResult locationResult =
+                LocationAccessPolicy.checkLocationPermission(phone.getContext(),
+                        new LocationAccessPolicy.LocationPermissionQuery.Builder()
+                                .setCallingPackage(callingPackage)
+                                .setCallingPid(callingPid)
+                                .setCallingUid(callingUid)
+                                .setMethod("NetworkScanSessionManager#onResults")
+                                .setMinSdkVersionForFine(Build.VERSION_CODES.Q)
+                                .setMinSdkVersionForCoarse(Build.VERSION_CODES.Q)
+                                .setMinSdkVersionForEnforcement(Build.VERSION_CODES.Q)
+                                .build());
+        return locationResult == LocationAccessPolicy.LocationPermissionResult.ALLOWED;
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(LOG_TAG + ": sessions=" + mSessions.size() + ", subscribers="
+                    + mSubscribers.size() + ", modemScans=" + mModemScans + ", mergedRequests="
+                    + mMergedRequests);
+        }
+    }
+}
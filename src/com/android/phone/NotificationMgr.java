@@ -25,15 +25,21 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.StatusBarManager;
+import android.app.role.OnRoleHoldersChangedListener;
+import android.app.role.RoleManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
-import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerExecutor;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PersistableBundle;
 import android.os.SystemClock;
@@ -44,7 +50,6 @@ import android.preference.PreferenceManager;
 import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Settings;
 import android.telecom.PhoneAccount;
-import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
@@ -59,17 +64,20 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.widget.Toast;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.RILConstants;
 import com.android.internal.telephony.TelephonyCapabilities;
 import com.android.internal.telephony.util.NotificationChannelController;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.settings.VoicemailSettingsActivity;
 
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -91,7 +99,13 @@ public class NotificationMgr {
     private static final String MWI_SHOULD_CHECK_VVM_CONFIGURATION_KEY_PREFIX =
             "mwi_should_check_vvm_configuration_state_";
 
-    private static final String EXTRA_SUB_ID = "sub_id";
+    @VisibleForTesting
+    static final String EXTRA_SUB_ID = "sub_id";
+
+    // Sent to this process when the user dismisses a voicemail notification it posted.
+    @VisibleForTesting
+    static final String ACTION_VOICEMAIL_NOTIFICATION_DISMISSED =
+            "com.android.phone.action.VOICEMAIL_NOTIFICATION_DISMISSED";
 
     // notification types
     static final int MMI_NOTIFICATION = 1;
@@ -106,6 +120,9 @@ public class NotificationMgr {
     // Event for network selection notification.
     private static final int EVENT_PENDING_NETWORK_SELECTION_NOTIFICATION = 1;
 
+    // Event for the voicemail notification, handled on the MWI thread.
+    private static final int EVENT_UPDATE_MWI = 1;
+
     private static final long NETWORK_SELECTION_NOTIFICATION_MAX_PENDING_TIME_IN_MS = 10000L;
     private static final int NETWORK_SELECTION_NOTIFICATION_MAX_PENDING_TIMES = 10;
 
@@ -141,6 +158,15 @@ public class NotificationMgr {
     // used to track whether the message waiting indicator is visible, per subscription id.
     private ArrayMap<Integer, Boolean> mMwiVisible = new ArrayMap<Integer, Boolean>();
 
+    // Latest MWI update not yet handled by the MWI thread, per subscription id. Guarded by itself.
+    private final SparseArray<MwiUpdate> mPendingMwiUpdates = new SparseArray<>();
+    // Last voicemail notification content posted per subscription id then per user id, and how
+    // each user's default dialer shows the notification. Only accessed on the MWI thread.
+    private final SparseArray<SparseArray<MwiContent>> mPostedMwi = new SparseArray<>();
+    private final SparseArray<DialerInfo> mDialerInfoCache = new SparseArray<>();
+    private int mPostedMwiCount;
+    private int mSkippedMwiCount;
+
     // those flags are used to track whether to show network selection notification or not.
     private SparseArray<Integer> mPreviousServiceState = new SparseArray<>();
     private SparseArray<Long> mOOSTimestamp = new SparseArray<>();
@@ -165,19 +191,197 @@ public class NotificationMgr {
         }
     };
 
+    private final Handler mMwiHandler;
+
+    /**
+     * PhoneGlobals dependencies for testing.
+     */
+    @VisibleForTesting
+    public interface PhoneGlobalsProxy {
+        /**
+         * Override getPhone for testing.
+         */
+        Phone getPhone(int subId);
+
+        /**
+         * Override getCarrierConfigForSubId for testing.
+         */
+        PersistableBundle getCarrierConfigForSubId(int subId);
+    }
+
+    private final PhoneGlobalsProxy mPhoneGlobalsProxy;
+
+    private final BroadcastReceiver mPackageChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The default dialer may have gained or lost its voicemail notification receiver.
+            mDialerInfoCache.clear();
+        }
+    };
+
+    private final BroadcastReceiver mVoicemailDismissedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // The next refresh must post the notification again, even if it looks the same.
+            mPostedMwi.remove(intent.getIntExtra(EXTRA_SUB_ID,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID));
+        }
+    };
+
+    private final OnRoleHoldersChangedListener mRoleHoldersChangedListener =
+            (roleName, user) -> {
+                if (RoleManager.ROLE_DIALER.equals(roleName)) {
+                    mDialerInfoCache.remove(user.getIdentifier());
+                }
+            };
+
+    /** An MWI update waiting to be handled on the MWI thread. */
+    private static final class MwiUpdate {
+        final boolean mVisible;
+        final boolean mIsRefresh;
+
+        MwiUpdate(boolean visible, boolean isRefresh) {
+            mVisible = visible;
+            mIsRefresh = isRefresh;
+        }
+    }
+
+    /**
+     * What the user sees of a voicemail notification, used to avoid re-posting a refreshed
+     * notification which would look the same.
+     */
+    private static final class MwiContent {
+        static final MwiContent HIDDEN = new MwiContent(false /* visible */, 0, null, null, null,
+                null, false, false, null);
+
+        final boolean mVisible;
+        final int mIconResId;
+        final String mTitle;
+        final String mText;
+        final String mVoicemailNumber;
+        final Integer mCount;
+        final boolean mIsSettingsIntent;
+        final boolean mOngoing;
+        // The default dialer the notification was handed to, null if posted by this class.
+        final String mDialerPackage;
+
+        MwiContent(boolean visible, int iconResId, String title, String text,
+                String voicemailNumber, Integer count, boolean isSettingsIntent, boolean ongoing,
+                String dialerPackage) {
+            mVisible = visible;
+            mIconResId = iconResId;
+            mTitle = title;
+            mText = text;
+            mVoicemailNumber = voicemailNumber;
+            mCount = count;
+            mIsSettingsIntent = isSettingsIntent;
+            mOngoing = ongoing;
+            mDialerPackage = dialerPackage;
+        }
+
+        MwiContent forDialer(String dialerPackage) {
+            return new MwiContent(mVisible, mIconResId, mTitle, mText, mVoicemailNumber, mCount,
+                    mIsSettingsIntent, mOngoing, dialerPackage);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MwiContent)) return false;
+            MwiContent c = (MwiContent) o;
+            return mVisible == c.mVisible && mIconResId == c.mIconResId
+                    && mIsSettingsIntent == c.mIsSettingsIntent && mOngoing == c.mOngoing
+                    && Objects.equals(mTitle, c.mTitle) && Objects.equals(mText, c.mText)
+                    && Objects.equals(mVoicemailNumber, c.mVoicemailNumber)
+                    && Objects.equals(mCount, c.mCount)
+                    && Objects.equals(mDialerPackage, c.mDialerPackage);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mVisible, mIconResId, mTitle, mText, mVoicemailNumber, mCount,
+                    mIsSettingsIntent, mOngoing, mDialerPackage);
+        }
+    }
+
+    /** How the default dialer of a user shows the voicemail notification. */
+    private static final class DialerInfo {
+        final String mPackageName;
+        // Whether the dialer shows the notification itself instead of this class.
+        final boolean mShowsVoicemailNotification;
+
+        DialerInfo(String packageName, boolean showsVoicemailNotification) {
+            mPackageName = packageName;
+            mShowsVoicemailNotification = showsVoicemailNotification;
+        }
+    }
+
     /**
      * Private constructor (this is a singleton).
      * @see #init(PhoneGlobals)
      */
     private NotificationMgr(PhoneGlobals app) {
+        this(app, app, createMwiLooper(), new PhoneGlobalsProxy() {
+            @Override
+            public Phone getPhone(int subId) {
+                return PhoneGlobals.getPhone(subId);
+            }
+
+            @Override
+            public PersistableBundle getCarrierConfigForSubId(int subId) {
+                return PhoneGlobals.getInstance().getCarrierConfigForSubId(subId);
+            }
+        });
+    }
+
+    @VisibleForTesting
+    NotificationMgr(PhoneGlobals app, Context context, Looper mwiLooper,
+            PhoneGlobalsProxy phoneGlobalsProxy) {
         mApp = app;
-        mContext = app;
+        mContext = context;
+        mPhoneGlobalsProxy = phoneGlobalsProxy;
         mStatusBarManager =
-                (StatusBarManager) app.getSystemService(Context.STATUS_BAR_SERVICE);
-        mUserManager = (UserManager) app.getSystemService(Context.USER_SERVICE);
+                (StatusBarManager) context.getSystemService(Context.STATUS_BAR_SERVICE);
+        mUserManager = (UserManager) context.getSystemService(Context.USER_SERVICE);
         mSubscriptionManager = SubscriptionManager.from(mContext);
-        mTelecomManager = app.getSystemService(TelecomManager.class);
-        mTelephonyManager = (TelephonyManager) app.getSystemService(Context.TELEPHONY_SERVICE);
+        mTelecomManager = context.getSystemService(TelecomManager.class);
+        mTelephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+
+        mMwiHandler = new Handler(mwiLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case EVENT_UPDATE_MWI:
+                        onUpdateMwi(msg.arg1);
+                        break;
+                }
+            }
+        };
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverForAllUsers(mPackageChangedReceiver, packageFilter,
+                null /* broadcastPermission */, mMwiHandler);
+        mContext.registerReceiver(mVoicemailDismissedReceiver,
+                new IntentFilter(ACTION_VOICEMAIL_NOTIFICATION_DISMISSED),
+                null /* broadcastPermission */, mMwiHandler, Context.RECEIVER_NOT_EXPORTED);
+        RoleManager roleManager = context.getSystemService(RoleManager.class);
+        if (roleManager != null) {
+            roleManager.addOnRoleHoldersChangedListenerAsUser(new HandlerExecutor(mMwiHandler),
+                    mRoleHoldersChangedListener, UserHandle.ALL);
+        }
+    }
+
+    // Building the voicemail notification queries several services per user, keep it off the
+    // main thread.
+    private static Looper createMwiLooper() {
+        HandlerThread mwiThread = new HandlerThread(LOG_TAG + "-mwi");
+        mwiThread.start();
+        return mwiThread.getLooper();
     }
 
     /**
@@ -267,6 +471,10 @@ public class NotificationMgr {
     /**
      * Updates the message waiting indicator (voicemail) notification.
      *
+     * The notification is built and posted on a background thread. Updates for a subscription
+     * which arrive while a previous one is still pending are coalesced, only the latest visibility
+     * is applied.
+     *
      * @param subId the subId to update.
      * @param visible true if there are messages waiting
      * @param isRefresh {@code true} if the notification is a refresh and the user should not be
@@ -280,10 +488,37 @@ public class NotificationMgr {
             return;
         }
 
-        Phone phone = PhoneGlobals.getPhone(subId);
         Log.i(LOG_TAG, "updateMwi(): subId " + subId + " update to " + visible);
         mMwiVisible.put(subId, visible);
 
+        synchronized (mPendingMwiUpdates) {
+            MwiUpdate pending = mPendingMwiUpdates.get(subId);
+            // The coalesced update alerts the user if any of the updates it replaces would have.
+            boolean refresh = isRefresh && (pending == null || pending.mIsRefresh);
+            mPendingMwiUpdates.put(subId, new MwiUpdate(visible, refresh));
+            if (pending == null) {
+                mMwiHandler.obtainMessage(EVENT_UPDATE_MWI, subId, 0).sendToTarget();
+            }
+        }
+    }
+
+    private void onUpdateMwi(int subId) {
+        MwiUpdate update;
+        synchronized (mPendingMwiUpdates) {
+            update = mPendingMwiUpdates.get(subId);
+            mPendingMwiUpdates.remove(subId);
+        }
+        if (update != null) {
+            postMwiNotification(subId, update.mVisible, update.mIsRefresh);
+        }
+    }
+
+    /**
+     * Builds and posts, or cancels, the voicemail notification of a subscription for every user.
+     * Runs on the MWI handler thread.
+     */
+    private void postMwiNotification(int subId, boolean visible, boolean isRefresh) {
+        Phone phone = mPhoneGlobalsProxy.getPhone(subId);
         if (visible) {
             if (phone == null) {
                 Log.w(LOG_TAG, "Found null phone for: " + subId);
@@ -335,92 +570,167 @@ public class NotificationMgr {
                 notificationTitle = String.format(titleFormat, vmCount);
             }
 
-            // This pathway only applies to PSTN accounts; only SIMS have subscription ids.
-            PhoneAccountHandle phoneAccountHandle = PhoneUtils.makePstnPhoneAccountHandle(phone);
-
-            Intent intent;
             String notificationText;
             boolean isSettingsIntent = TextUtils.isEmpty(vmNumber);
 
             if (isSettingsIntent) {
-                notificationText = mContext.getString(
-                        R.string.notification_voicemail_no_vm_number);
-
                 // If the voicemail number if unknown, instead of calling voicemail, take the user
                 // to the voicemail settings.
                 notificationText = mContext.getString(
                         R.string.notification_voicemail_no_vm_number);
-                intent = new Intent(VoicemailSettingsActivity.ACTION_ADD_VOICEMAIL);
-                intent.putExtra(SubscriptionInfoHelper.SUB_ID_EXTRA, subId);
-                intent.setClass(mContext, VoicemailSettingsActivity.class);
+            } else if (mTelephonyManager.getPhoneCount() > 1) {
+                notificationText = subInfo.getDisplayName().toString();
             } else {
-                if (mTelephonyManager.getPhoneCount() > 1) {
-                    notificationText = subInfo.getDisplayName().toString();
-                } else {
-                    notificationText = String.format(
-                            mContext.getString(R.string.notification_voicemail_text_format),
-                            PhoneNumberUtils.formatNumber(vmNumber));
-                }
-                intent = new Intent(
-                        Intent.ACTION_CALL, Uri.fromParts(PhoneAccount.SCHEME_VOICEMAIL, "",
-                                null));
-                intent.putExtra(TelecomManager.EXTRA_PHONE_ACCOUNT_HANDLE, phoneAccountHandle);
+                notificationText = String.format(
+                        mContext.getString(R.string.notification_voicemail_text_format),
+                        PhoneNumberUtils.formatNumber(vmNumber));
             }
 
-            PendingIntent pendingIntent =
-                    PendingIntent.getActivity(mContext, subId /* requestCode */, intent,
-                            PendingIntent.FLAG_IMMUTABLE);
-
-            Resources res = mContext.getResources();
-            PersistableBundle carrierConfig = PhoneGlobals.getInstance().getCarrierConfigForSubId(
-                    subId);
-            Notification.Builder builder = new Notification.Builder(mContext);
-            builder.setSmallIcon(resId)
-                    .setWhen(System.currentTimeMillis())
-                    .setColor(subInfo.getIconTint())
-                    .setContentTitle(notificationTitle)
-                    .setContentText(notificationText)
-                    .setContentIntent(pendingIntent)
-                    .setColor(res.getColor(R.color.dialer_theme_color))
-                    .setOngoing(carrierConfig.getBoolean(
-                            CarrierConfigManager.KEY_VOICEMAIL_NOTIFICATION_PERSISTENT_BOOL))
-                    .setChannelId(NotificationChannelController.CHANNEL_ID_VOICE_MAIL)
-                    .setOnlyAlertOnce(isRefresh);
+            PersistableBundle carrierConfig = mPhoneGlobalsProxy.getCarrierConfigForSubId(subId);
+            boolean ongoing = carrierConfig.getBoolean(
+                    CarrierConfigManager.KEY_VOICEMAIL_NOTIFICATION_PERSISTENT_BOOL);
+            MwiContent content = new MwiContent(true /* visible */, resId, notificationTitle,
+                    notificationText, vmNumber, vmCount, isSettingsIntent, ongoing,
+                    null /* dialerPackage */);
 
-            final Notification notification = builder.build();
+            PendingIntent pendingIntent = null;
+            Notification notification = null;
             List<UserHandle> users = getUsersExcludeDying();
             for (UserHandle userHandle : users) {
-                if (!hasUserRestriction(
-                        UserManager.DISALLOW_OUTGOING_CALLS, userHandle)
-                        && !mUserManager.isManagedProfile(userHandle.getIdentifier())) {
-                    if (!maybeSendVoicemailNotificationUsingDefaultDialer(phone, vmCount, vmNumber,
-                            pendingIntent, isSettingsIntent, userHandle, isRefresh, subId)) {
-                        notifyAsUser(
-                                Integer.toString(subId) /* tag */,
-                                VOICEMAIL_NOTIFICATION,
-                                notification,
-                                userHandle);
+                if (hasUserRestriction(UserManager.DISALLOW_OUTGOING_CALLS, userHandle)
+                        || mUserManager.isManagedProfile(userHandle.getIdentifier())) {
+                    continue;
+                }
+                DialerInfo dialer = getDialerInfo(userHandle);
+                MwiContent userContent = dialer.mShowsVoicemailNotification
+                        ? content.forDialer(dialer.mPackageName) : content;
+                // The dismissal of a notification shown by the dialer is not known here, so only
+                // refreshes of a notification posted by this class are skipped.
+                if (isRefresh && !dialer.mShowsVoicemailNotification
+                        && userContent.equals(getPostedMwi(subId, userHandle))) {
+                    // Nothing the user can see would change.
+                    mSkippedMwiCount++;
+                    continue;
+                }
+                if (pendingIntent == null) {
+                    pendingIntent = createVoicemailPendingIntent(phone, subId, isSettingsIntent);
+                }
+                if (dialer.mShowsVoicemailNotification) {
+                    sendVoicemailNotificationToDefaultDialer(dialer.mPackageName, phone, vmCount,
+                            vmNumber, pendingIntent, isSettingsIntent, userHandle, isRefresh,
+                            subId);
+                } else {
+                    if (notification == null) {
+                        Notification.Builder builder = new Notification.Builder(mContext);
+                        builder.setSmallIcon(resId)
+                                .setWhen(System.currentTimeMillis())
+                                .setColor(subInfo.getIconTint())
+                                .setContentTitle(notificationTitle)
+                                .setContentText(notificationText)
+                                .setContentIntent(pendingIntent)
+                                .setDeleteIntent(createVoicemailDismissedPendingIntent(subId))
+                                .setColor(mContext.getResources().getColor(
+                                        R.color.dialer_theme_color))
+                                .setOngoing(ongoing)
+                                .setChannelId(NotificationChannelController.CHANNEL_ID_VOICE_MAIL)
+                                .setOnlyAlertOnce(isRefresh);
+                        notification = builder.build();
                     }
+                    notifyAsUser(
+                            Integer.toString(subId) /* tag */,
+                            VOICEMAIL_NOTIFICATION,
+                            notification,
+                            userHandle);
                 }
+                setPostedMwi(subId, userHandle, userContent);
+                mPostedMwiCount++;
             }
         } else {
             List<UserHandle> users = getUsersExcludeDying();
             for (UserHandle userHandle : users) {
-                if (!hasUserRestriction(
-                        UserManager.DISALLOW_OUTGOING_CALLS, userHandle)
-                        && !mUserManager.isManagedProfile(userHandle.getIdentifier())) {
-                    if (!maybeSendVoicemailNotificationUsingDefaultDialer(phone, 0, null, null,
-                            false, userHandle, isRefresh, subId)) {
-                        cancelAsUser(
-                                Integer.toString(subId) /* tag */,
-                                VOICEMAIL_NOTIFICATION,
-                                userHandle);
-                    }
+                if (hasUserRestriction(UserManager.DISALLOW_OUTGOING_CALLS, userHandle)
+                        || mUserManager.isManagedProfile(userHandle.getIdentifier())) {
+                    continue;
+                }
+                DialerInfo dialer = getDialerInfo(userHandle);
+                MwiContent userContent = dialer.mShowsVoicemailNotification
+                        ? MwiContent.HIDDEN.forDialer(dialer.mPackageName) : MwiContent.HIDDEN;
+                if (userContent.equals(getPostedMwi(subId, userHandle))) {
+                    // Already cleared.
+                    mSkippedMwiCount++;
+                    continue;
+                }
+                if (dialer.mShowsVoicemailNotification) {
+                    sendVoicemailNotificationToDefaultDialer(dialer.mPackageName, phone, 0, null,
+                            null, false, userHandle, isRefresh, subId);
+                } else {
+                    cancelAsUser(
+                            Integer.toString(subId) /* tag */,
+                            VOICEMAIL_NOTIFICATION,
+                            userHandle);
                 }
+                setPostedMwi(subId, userHandle, userContent);
+                mPostedMwiCount++;
             }
         }
     }
 
+    private PendingIntent createVoicemailPendingIntent(Phone phone, int subId,
+            boolean isSettingsIntent) {
+        Intent intent;
+        if (isSettingsIntent) {
+            intent = new Intent(VoicemailSettingsActivity.ACTION_ADD_VOICEMAIL);
+            intent.putExtra(SubscriptionInfoHelper.SUB_ID_EXTRA, subId);
+            intent.setClass(mContext, VoicemailSettingsActivity.class);
+        } else {
+            intent = new Intent(
+                    Intent.ACTION_CALL, Uri.fromParts(PhoneAccount.SCHEME_VOICEMAIL, "", null));
+            // This pathway only applies to PSTN accounts; only SIMS have subscription ids.
+            intent.putExtra(TelecomManager.EXTRA_PHONE_ACCOUNT_HANDLE,
+                    PhoneUtils.makePstnPhoneAccountHandle(phone));
+        }
+        return PendingIntent.getActivity(mContext, subId /* requestCode */, intent,
+                PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private PendingIntent createVoicemailDismissedPendingIntent(int subId) {
+        Intent intent = new Intent(ACTION_VOICEMAIL_NOTIFICATION_DISMISSED)
+                .setPackage(mContext.getPackageName())
+                .putExtra(EXTRA_SUB_ID, subId);
+        return PendingIntent.getBroadcast(mContext, subId /* requestCode */, intent,
+                PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private MwiContent getPostedMwi(int subId, UserHandle userHandle) {
+        SparseArray<MwiContent> posted = mPostedMwi.get(subId);
+        return posted == null ? null : posted.get(userHandle.getIdentifier());
+    }
+
+    private void setPostedMwi(int subId, UserHandle userHandle, MwiContent content) {
+        SparseArray<MwiContent> posted = mPostedMwi.get(subId);
+        if (posted == null) {
+            posted = new SparseArray<>();
+            mPostedMwi.put(subId, posted);
+        }
+        posted.put(userHandle.getIdentifier(), content);
+    }
+
+    /**
+     * @return how the voicemail notification is shown for the user, resolved once per user until
+     * the default dialer or the installed packages change. Runs on the MWI handler thread.
+     */
+    private DialerInfo getDialerInfo(UserHandle userHandle) {
+        DialerInfo info = mDialerInfoCache.get(userHandle.getIdentifier());
+        if (info == null) {
+            Intent intent = getShowVoicemailIntentForDefaultDialer(userHandle);
+            List<ResolveInfo> receivers = mContext.getPackageManager()
+                    .queryBroadcastReceivers(intent, 0);
+            info = new DialerInfo(intent.getPackage(), receivers.size() > 0);
+            mDialerInfoCache.put(userHandle.getIdentifier(), info);
+        }
+        return info;
+    }
+
     private List<UserHandle> getUsersExcludeDying() {
         long[] serialNumbersOfUsers =
                 mUserManager.getSerialNumbersOfUsers(/* excludeDying= */ true);
@@ -442,6 +752,8 @@ public class NotificationMgr {
      * method is also used to indicate to the default dialer when to clear the
      * notification. A pending intent can be passed to the default dialer to indicate an action to
      * be taken as it would by a notification produced in this class.
+     * @param dialerPackage The package of the default dialer, as resolved by
+     *                      {@link #getDialerInfo}.
      * @param phone The phone the notification is sent from
      * @param count The number of pending voicemail messages to indicate on the notification. A
      *              Value of 0 is passed here to indicate that the notification should be cleared.
@@ -451,67 +763,49 @@ public class NotificationMgr {
      *                         otherwise, {@code false} to indicate the intent launches voicemail.
      * @param userHandle The user to receive the notification. Each user can have their own default
      *                   dialer.
-     * @return {@code true} if the default was notified of the notification.
      */
-    private boolean maybeSendVoicemailNotificationUsingDefaultDialer(Phone phone, Integer count,
-            String number, PendingIntent pendingIntent, boolean isSettingsIntent,
+    private void sendVoicemailNotificationToDefaultDialer(String dialerPackage, Phone phone,
+            Integer count, String number, PendingIntent pendingIntent, boolean isSettingsIntent,
             UserHandle userHandle, boolean isRefresh, int subId) {
+        Intent intent = new Intent(TelephonyManager.ACTION_SHOW_VOICEMAIL_NOTIFICATION)
+                .setPackage(dialerPackage);
+        intent.setFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+        intent.setAction(TelephonyManager.ACTION_SHOW_VOICEMAIL_NOTIFICATION);
+        intent.putExtra(TelephonyManager.EXTRA_PHONE_ACCOUNT_HANDLE,
+                PhoneUtils.makePstnPhoneAccountHandle(phone));
+        intent.putExtra(TelephonyManager.EXTRA_IS_REFRESH, isRefresh);
+        intent.putExtra(EXTRA_SUB_ID, subId);
+        if (count != null) {
+            intent.putExtra(TelephonyManager.EXTRA_NOTIFICATION_COUNT, count);
+        }
 
-        if (shouldManageNotificationThroughDefaultDialer(userHandle)) {
-            Intent intent = getShowVoicemailIntentForDefaultDialer(userHandle);
-            intent.setFlags(Intent.FLAG_RECEIVER_FOREGROUND);
-            intent.setAction(TelephonyManager.ACTION_SHOW_VOICEMAIL_NOTIFICATION);
-            intent.putExtra(TelephonyManager.EXTRA_PHONE_ACCOUNT_HANDLE,
-                    PhoneUtils.makePstnPhoneAccountHandle(phone));
-            intent.putExtra(TelephonyManager.EXTRA_IS_REFRESH, isRefresh);
-            intent.putExtra(EXTRA_SUB_ID, subId);
-            if (count != null) {
-                intent.putExtra(TelephonyManager.EXTRA_NOTIFICATION_COUNT, count);
+        // Additional information about the voicemail notification beyond the count is only
+        // present when the count not specified or greater than 0. The value of 0 represents
+        // clearing the notification, which does not require additional information.
+        if (count == null || count > 0) {
+            if (!TextUtils.isEmpty(number)) {
+                intent.putExtra(TelephonyManager.EXTRA_VOICEMAIL_NUMBER, number);
             }
 
-            // Additional information about the voicemail notification beyond the count is only
-            // present when the count not specified or greater than 0. The value of 0 represents
-            // clearing the notification, which does not require additional information.
-            if (count == null || count > 0) {
-                if (!TextUtils.isEmpty(number)) {
-                    intent.putExtra(TelephonyManager.EXTRA_VOICEMAIL_NUMBER, number);
-                }
-
-                if (pendingIntent != null) {
-                    intent.putExtra(isSettingsIntent
-                            ? TelephonyManager.EXTRA_LAUNCH_VOICEMAIL_SETTINGS_INTENT
-                            : TelephonyManager.EXTRA_CALL_VOICEMAIL_INTENT,
-                            pendingIntent);
-                }
+            if (pendingIntent != null) {
+                intent.putExtra(isSettingsIntent
+                        ? TelephonyManager.EXTRA_LAUNCH_VOICEMAIL_SETTINGS_INTENT
+                        : TelephonyManager.EXTRA_CALL_VOICEMAIL_INTENT,
+                        pendingIntent);
             }
-
-            BroadcastOptions bopts = BroadcastOptions.makeBasic();
-            bopts.setTemporaryAppWhitelistDuration(VOICEMAIL_ALLOW_LIST_DURATION_MILLIS);
-            mContext.sendBroadcastAsUser(intent, userHandle, READ_PHONE_STATE, bopts.toBundle());
-            return true;
         }
 
-        return false;
+        BroadcastOptions bopts = BroadcastOptions.makeBasic();
+        bopts.setTemporaryAppWhitelistDuration(VOICEMAIL_ALLOW_LIST_DURATION_MILLIS);
+        mContext.sendBroadcastAsUser(intent, userHandle, READ_PHONE_STATE, bopts.toBundle());
     }
 
     private Intent getShowVoicemailIntentForDefaultDialer(UserHandle userHandle) {
-        String dialerPackage = mContext.getSystemService(TelecomManager.class)
-                .getDefaultDialerPackage(userHandle);
+        String dialerPackage = mTelecomManager.getDefaultDialerPackage(userHandle);
         return new Intent(TelephonyManager.ACTION_SHOW_VOICEMAIL_NOTIFICATION)
                 .setPackage(dialerPackage);
     }
 
-    private boolean shouldManageNotificationThroughDefaultDialer(UserHandle userHandle) {
-        Intent intent = getShowVoicemailIntentForDefaultDialer(userHandle);
-        if (intent == null) {
-            return false;
-        }
-
-        List<ResolveInfo> receivers = mContext.getPackageManager()
-                .queryBroadcastReceivers(intent, 0);
-        return receivers.size() > 0;
-    }
-
     /**
      * Updates the message call forwarding indicator notification.
      *
@@ -902,6 +1196,19 @@ public class NotificationMgr {
         mToast.show();
     }
 
+    /**
+     * Dump the state of the voicemail notification pipeline for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        pw.increaseIndent();
+        synchronized (mPendingMwiUpdates) {
+            pw.println("pendingMwiUpdates=" + mPendingMwiUpdates.size());
+        }
+        // Counters are written on the MWI thread, the values printed may be slightly stale.
+        pw.println("postedMwi=" + mPostedMwiCount + ", skippedMwi=" + mSkippedMwiCount);
+        pw.decreaseIndent();
+    }
+
     private void log(String msg) {
         Log.d(LOG_TAG, msg);
     }
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Short-lived cache of successful permission checks made on behalf of binder callers.
+ *
+ * <p>Only granted decisions are cached, a denied check is always re-evaluated so the caller gets
+ * the same SecurityException as before. Decisions are keyed by the calling uid and pid, so a
+ * process restarted after a runtime permission revocation never sees a stale grant. The whole
+ * cache is dropped when packages change, when carrier privileges change on any slot, or when the
+ * number of slots changes.
+ */
+public class PermissionDecisionCache {
+    // Bound on the number of cached decisions, the cache is dropped when it is reached.
+    private static final int MAX_ENTRIES = 512;
+
+    /** How long a granted decision is reused for. */
+    public static final long DEFAULT_TTL_MS = 5000;
+
+    /**
+     * A permission check, throws SecurityException when the permission is not granted.
+     */
+    public interface PermissionCheck {
+        void enforce();
+    }
+
+    private static final class Key {
+        final int mUid;
+        final int mPid;
+        final String mPermission;
+        final int mSubId;
+
+        Key(int uid, int pid, String permission, int subId) {
+            mUid = uid;
+            mPid = pid;
+            mPermission = permission;
+            mSubId = subId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return mUid == k.mUid && mPid == k.mPid && mSubId == k.mSubId
+                    && mPermission.equals(k.mPermission);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mUid, mPid, mPermission, mSubId);
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Long> mGrantExpiry = new ConcurrentHashMap<>();
+    private final long mTtlMs;
+    private final LongSupplier mClock;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+    // Carrier privileges callbacks by slot index, guarded by itself.
+    private final List<CarrierPrivilegesCallback> mCarrierPrivilegesCallbacks = new ArrayList<>();
+    private TelephonyManager mTelephonyManager;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    private final BroadcastReceiver mMultiSimConfigReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateCarrierPrivilegesCallbacks(intent.getIntExtra(
+                    TelephonyManager.EXTRA_ACTIVE_SIM_SUPPORTED_COUNT, 0));
+            invalidate();
+        }
+    };
+
+    private final class CarrierPrivilegesCallback implements
+            TelephonyManager.CarrierPrivilegesCallback {
+        @Override
+        public void onCarrierPrivilegesChanged(@NonNull Set<String> privilegedPackageNames,
+                @NonNull Set<Integer> privilegedUids) {
+            invalidate();
+        }
+    }
+
+    public PermissionDecisionCache() {
+        this(DEFAULT_TTL_MS, SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    public PermissionDecisionCache(long ttlMs, LongSupplier clock) {
+        mTtlMs = ttlMs;
+        mClock = clock;
+    }
+
+    /**
+     * Registers for the package, slot count and carrier privilege changes which invalidate the
+     * cache.
+     */
+    public void registerForInvalidation(Context context, int numSlots) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiverForAllUsers(mPackageReceiver, filter, null, null);
+
+        context.registerReceiver(mMultiSimConfigReceiver,
+                new IntentFilter(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED));
+
+        synchronized (mCarrierPrivilegesCallbacks) {
+            mTelephonyManager = context.getSystemService(TelephonyManager.class);
+        }
+        updateCarrierPrivilegesCallbacks(numSlots);
+    }
+
+    // Registers a carrier privileges callback for each slot, and unregisters the removed slots.
+    private void updateCarrierPrivilegesCallbacks(int numSlots) {
+        synchronized (mCarrierPrivilegesCallbacks) {
+            if (mTelephonyManager == null) return;
+            while (mCarrierPrivilegesCallbacks.size() > numSlots) {
+                mTelephonyManager.unregisterCarrierPrivilegesCallback(
+                        mCarrierPrivilegesCallbacks.remove(mCarrierPrivilegesCallbacks.size() - 1));
+            }
+            while (mCarrierPrivilegesCallbacks.size() < numSlots) {
+                CarrierPrivilegesCallback callback = new CarrierPrivilegesCallback();
+                mTelephonyManager.registerCarrierPrivilegesCallback(
+                        mCarrierPrivilegesCallbacks.size(), Runnable::run, callback);
+                mCarrierPrivilegesCallbacks.add(callback);
+            }
+        }
+    }
+
+    /**
+     * Runs the permission check for the caller unless the same check was granted recently.
+     *
+     * @param permission The name of the permission the check enforces, used as part of the key.
+     * @param subId The subscription the check was made for, or INVALID_SUBSCRIPTION_ID.
+     * @param check The check to run on a miss.
+     * @throws SecurityException if the check is run and fails.
+     */
+    public void enforce(int uid, int pid, String permission, int subId, PermissionCheck check) {
+        Key key = new Key(uid, pid, permission, subId);
+        long now = mClock.getAsLong();
+        if (isCached(key, now)) return;
+        // Throws if not granted, in which case nothing is cached.
+        check.enforce();
+        put(key, now);
+    }
+
+    /**
+     * Returns whether the caller holds the permission, using a recent grant if there is one.
+     *
+     * @param permission The name of the permission the check is for, used as part of the key.
+     * @param subId The subscription the check was made for, or INVALID_SUBSCRIPTION_ID.
+     * @param check The check to run on a miss, only a {@code true} result is cached.
+     */
+    public boolean isGranted(int uid, int pid, String permission, int subId,
+            BooleanSupplier check) {
+        Key key = new Key(uid, pid, permission, subId);
+        long now = mClock.getAsLong();
+        if (isCached(key, now)) return true;
+        if (!check.getAsBoolean()) return false;
+        put(key, now);
+        return true;
+    }
+
+    private boolean isCached(Key key, long now) {
+        Long expiry = mGrantExpiry.get(key);
+        if (expiry != null && now < expiry) {
+            mHits.incrementAndGet();
+            return true;
+        }
+        mMisses.incrementAndGet();
+        return false;
+    }
+
+    private void put(Key key, long now) {
+        if (mGrantExpiry.size() >= MAX_ENTRIES) {
+            mGrantExpiry.clear();
+        }
+        mGrantExpiry.put(key, now + mTtlMs);
+    }
+
+    /**
+     * Drops every cached decision.
+     */
+    public void invalidate() {
+        mGrantExpiry.clear();
+        mInvalidations.incrementAndGet();
+    }
+
+    @VisibleForTesting
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    @VisibleForTesting
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        pw.println("PermissionDecisionCache: entries=" + mGrantExpiry.size()
+                + ", hits=" + hits + ", misses=" + (total - hits)
+                + ", hitRate=" + (total == 0 ? 0 : (hits * 100 / total)) + "%"
+                + ", invalidations=" + mInvalidations.get());
+    }
+}
@@ -80,8 +80,11 @@ import com.android.internal.telephony.imsphone.ImsPhoneCallTracker;
 import com.android.internal.telephony.uicc.UiccPort;
 import com.android.internal.telephony.uicc.UiccProfile;
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.phone.callcomposer.CallComposerPictureManager;
 import com.android.phone.settings.SettingsConstants;
 import com.android.phone.vvm.CarrierVvmPackageInstalledReceiver;
+import com.android.phone.vvm.VisualVoicemailSmsFilterConfig;
+import com.android.services.telephony.RadioOnLatencyStats;
 import com.android.services.telephony.rcs.TelephonyRcsService;
 
 import com.qti.extphone.ExtTelephonyManager;
@@ -488,6 +491,9 @@ public class PhoneGlobals extends ContextWrapper {
                         new ImsFeatureBinderRepository());
                 ImsResolver.getInstance().initialize();
 
+                // Single receiver of carrier config changes for the IMS controllers below.
+                CarrierConfigChangeBus.make(this);
+
                 // With the IMS phone created, load static config.xml values from the phone process
                 // so that it can be provided to the ImsPhoneCallTracker.
                 for (Phone p : PhoneFactory.getPhones()) {
@@ -592,6 +598,7 @@ public class PhoneGlobals extends ContextWrapper {
                 }
             }
             mCarrierVvmPackageInstalledReceiver.register(this);
+            VisualVoicemailSmsFilterConfig.init(this);
 
             //set the default values for the preferences in the phone.
             PreferenceManager.setDefaultValues(this, R.xml.call_feature_setting, false);
@@ -1196,12 +1203,74 @@ public class PhoneGlobals extends ContextWrapper {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        pw.println("ImsRcsController:");
+        try {
+            if (imsRcsController != null) imsRcsController.dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.println("CarrierConfigChangeBus:");
+        try {
+            if (CarrierConfigChangeBus.getInstance() != null) {
+                CarrierConfigChangeBus.getInstance().dump(pw);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.println("NotificationMgr:");
+        try {
+            if (notificationMgr != null) notificationMgr.dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
         pw.println("ImsStateCallbackController:");
         try {
             if (mImsStateCallbackController != null) mImsStateCallbackController.dump(pw);
         } catch (Exception e) {
             e.printStackTrace();
         }
+        pw.println("CarrierPrivilegeStatusCache:");
+        try {
+            if (phoneMgr != null) phoneMgr.getCarrierPrivilegeStatusCache().dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.println("UiccInfoSnapshotCache:");
+        try {
+            if (phoneMgr != null) phoneMgr.getUiccInfoSnapshotCache().dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.println("ApduChannelExecutor:");
+        try {
+            if (phoneMgr != null) phoneMgr.getApduChannelExecutor().dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.println("ModemActivityInfoAggregator:");
+        try {
+            if (phoneMgr != null) phoneMgr.getModemActivityInfoAggregator().dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.println("NetworkScanSessionManager:");
+        try {
+            if (phoneMgr != null) phoneMgr.getNetworkScanSessionManager().dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.println("CallComposerPictureManager:");
+        try {
+            CallComposerPictureManager.dumpAll(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pw.println("RadioOnLatencyStats:");
+        try {
+            RadioOnLatencyStats.getInstance().dump(pw);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
         pw.decreaseIndent();
         pw.println("------- End PhoneGlobals -------");
     }
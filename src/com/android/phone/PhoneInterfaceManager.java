@@ -49,6 +49,8 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerExecutor;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.LocaleList;
 import android.os.Looper;
@@ -62,6 +64,7 @@ import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceSpecificException;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.WorkSource;
@@ -73,8 +76,6 @@ import android.sysprop.TelephonyProperties;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
-import android.telephony.AccessNetworkConstants;
-import android.telephony.ActivityStatsTechSpecificInfo;
 import android.telephony.Annotation.ApnType;
 import android.telephony.Annotation.DataActivityType;
 import android.telephony.Annotation.ThermalMitigationResult;
@@ -167,7 +168,6 @@ import com.android.internal.telephony.ITelephony;
 import com.android.internal.telephony.IccCard;
 import com.android.internal.telephony.IccLogicalChannelRequest;
 import com.android.internal.telephony.LocaleTracker;
-import com.android.internal.telephony.NetworkScanRequestTracker;
 import com.android.internal.telephony.OperatorInfo;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConfigurationManager;
@@ -197,12 +197,10 @@ import com.android.internal.telephony.uicc.IccCardApplicationStatus.AppType;
 import com.android.internal.telephony.uicc.IccIoResult;
 import com.android.internal.telephony.uicc.IccUtils;
 import com.android.internal.telephony.uicc.SIMRecords;
-import com.android.internal.telephony.uicc.UiccCard;
 import com.android.internal.telephony.uicc.UiccCardApplication;
 import com.android.internal.telephony.uicc.UiccController;
 import com.android.internal.telephony.uicc.UiccPort;
 import com.android.internal.telephony.uicc.UiccProfile;
-import com.android.internal.telephony.uicc.UiccSlot;
 import com.android.internal.telephony.util.LocaleUtils;
 import com.android.internal.telephony.util.VoicemailNotificationSettingsUtil;
 import com.android.internal.util.FunctionalUtils;
@@ -226,7 +224,6 @@ import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -249,10 +246,12 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final boolean DBG_LOC = false;
     private static final boolean DBG_MERGE = false;
 
+    // How long a modem activity info result is served without querying the modem again, in ms.
+    private static final String MODEM_ACTIVITY_INFO_MAX_AGE_PROPERTY =
+            "persist.radio.modem_activity_info_max_age_ms";
+
     // Message codes used with mMainThreadHandler
     private static final int CMD_HANDLE_PIN_MMI = 1;
-    private static final int CMD_TRANSMIT_APDU_LOGICAL_CHANNEL = 7;
-    private static final int EVENT_TRANSMIT_APDU_LOGICAL_CHANNEL_DONE = 8;
     private static final int CMD_OPEN_CHANNEL = 9;
     private static final int EVENT_OPEN_CHANNEL_DONE = 10;
     private static final int CMD_CLOSE_CHANNEL = 11;
@@ -271,16 +270,12 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_SEND_ENVELOPE_DONE = 26;
     private static final int CMD_INVOKE_OEM_RIL_REQUEST_RAW = 27;
     private static final int EVENT_INVOKE_OEM_RIL_REQUEST_RAW_DONE = 28;
-    private static final int CMD_TRANSMIT_APDU_BASIC_CHANNEL = 29;
-    private static final int EVENT_TRANSMIT_APDU_BASIC_CHANNEL_DONE = 30;
     private static final int CMD_EXCHANGE_SIM_IO = 31;
     private static final int EVENT_EXCHANGE_SIM_IO_DONE = 32;
     private static final int CMD_SET_VOICEMAIL_NUMBER = 33;
     private static final int EVENT_SET_VOICEMAIL_NUMBER_DONE = 34;
     private static final int CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC = 35;
     private static final int EVENT_SET_NETWORK_SELECTION_MODE_AUTOMATIC_DONE = 36;
-    private static final int CMD_GET_MODEM_ACTIVITY_INFO = 37;
-    private static final int EVENT_GET_MODEM_ACTIVITY_INFO_DONE = 38;
     private static final int CMD_PERFORM_NETWORK_SCAN = 39;
     private static final int EVENT_PERFORM_NETWORK_SCAN_DONE = 40;
     private static final int CMD_SET_NETWORK_SELECTION_MODE_MANUAL = 41;
@@ -388,6 +383,17 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     private Set<Integer> mCarrierPrivilegeTestOverrideSubIds = new ArraySet<>();
 
+    /** Emergency numbers of every slot, rebuilt when one of the slots changed. */
+    private final EmergencyNumberMatcherCache mEmergencyNumberMatcherCache =
+            new EmergencyNumberMatcherCache(PhoneInterfaceManager::buildEmergencyNumberMatcher);
+
+    private final CarrierPrivilegeStatusCache mCarrierPrivilegeStatusCache =
+            new CarrierPrivilegeStatusCache();
+    private final UiccInfoSnapshotCache mUiccInfoSnapshotCache = new UiccInfoSnapshotCache();
+    // Sends APDUs to the UICC on its own thread, so they do not wait behind the main thread.
+    private final ApduChannelExecutor mApduChannelExecutor;
+    private final ModemActivityInfoAggregator mModemActivityInfoAggregator;
+
     private static final String PREF_CARRIERS_ALPHATAG_PREFIX = "carrier_alphtag_";
     private static final String PREF_CARRIERS_NUMBER_PREFIX = "carrier_number_";
     private static final String PREF_CARRIERS_SUBSCRIBER_PREFIX = "carrier_subscriber_";
@@ -399,7 +405,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     // The AID of ISD-R.
     private static final String ISDR_AID = "A0000005591010FFFFFFFF8900000100";
 
-    private NetworkScanRequestTracker mNetworkScanRequestTracker;
+    private NetworkScanSessionManager mNetworkScanSessionManager;
 
     private static final int TYPE_ALLOCATION_CODE_LENGTH = 8;
     private static final int MANUFACTURER_CODE_LENGTH = 8;
@@ -583,80 +589,6 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     break;
                 }
 
-                case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
-                    request = (MainThreadRequest) msg.obj;
-                    iccArgument = (IccAPDUArgument) request.argument;
-                    uiccPort = getUiccPortFromRequest(request);
-                    if (uiccPort == null) {
-                        loge("iccTransmitApduLogicalChannel: No UICC");
-                        request.result = new IccIoResult(0x6F, 0, (byte[]) null);
-                        notifyRequester(request);
-                    } else {
-                        onCompleted = obtainMessage(EVENT_TRANSMIT_APDU_LOGICAL_CHANNEL_DONE,
-                                request);
-                        uiccPort.iccTransmitApduLogicalChannel(
-                                iccArgument.channel, iccArgument.cla, iccArgument.command,
-                                iccArgument.p1, iccArgument.p2, iccArgument.p3, iccArgument.data,
-                                onCompleted);
-                    }
-                    break;
-
-                case EVENT_TRANSMIT_APDU_LOGICAL_CHANNEL_DONE:
-                    ar = (AsyncResult) msg.obj;
-                    request = (MainThreadRequest) ar.userObj;
-                    if (ar.exception == null && ar.result != null) {
-                        request.result = ar.result;
-                    } else {
-                        request.result = new IccIoResult(0x6F, 0, (byte[]) null);
-                        if (ar.result == null) {
-                            loge("iccTransmitApduLogicalChannel: Empty response");
-                        } else if (ar.exception instanceof CommandException) {
-                            loge("iccTransmitApduLogicalChannel: CommandException: " +
-                                    ar.exception);
-                        } else {
-                            loge("iccTransmitApduLogicalChannel: Unknown exception");
-                        }
-                    }
-                    notifyRequester(request);
-                    break;
-
-                case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
-                    request = (MainThreadRequest) msg.obj;
-                    iccArgument = (IccAPDUArgument) request.argument;
-                    uiccPort = getUiccPortFromRequest(request);
-                    if (uiccPort == null) {
-                        loge("iccTransmitApduBasicChannel: No UICC");
-                        request.result = new IccIoResult(0x6F, 0, (byte[]) null);
-                        notifyRequester(request);
-                    } else {
-                        onCompleted = obtainMessage(EVENT_TRANSMIT_APDU_BASIC_CHANNEL_DONE,
-                                request);
-                        uiccPort.iccTransmitApduBasicChannel(
-                                iccArgument.cla, iccArgument.command, iccArgument.p1,
-                                iccArgument.p2,
-                                iccArgument.p3, iccArgument.data, onCompleted);
-                    }
-                    break;
-
-                case EVENT_TRANSMIT_APDU_BASIC_CHANNEL_DONE:
-                    ar = (AsyncResult) msg.obj;
-                    request = (MainThreadRequest) ar.userObj;
-                    if (ar.exception == null && ar.result != null) {
-                        request.result = ar.result;
-                    } else {
-                        request.result = new IccIoResult(0x6F, 0, (byte[]) null);
-                        if (ar.result == null) {
-                            loge("iccTransmitApduBasicChannel: Empty response");
-                        } else if (ar.exception instanceof CommandException) {
-                            loge("iccTransmitApduBasicChannel: CommandException: " +
-                                    ar.exception);
-                        } else {
-                            loge("iccTransmitApduBasicChannel: Unknown exception");
-                        }
-                    }
-                    notifyRequester(request);
-                    break;
-
                 case CMD_EXCHANGE_SIM_IO:
                     request = (MainThreadRequest) msg.obj;
                     iccArgument = (IccAPDUArgument) request.argument;
@@ -1395,82 +1327,6 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     mApp.onNetworkSelectionChanged(request.subId);
                     break;
 
-                case CMD_GET_MODEM_ACTIVITY_INFO:
-                    request = (MainThreadRequest) msg.obj;
-                    onCompleted = obtainMessage(EVENT_GET_MODEM_ACTIVITY_INFO_DONE, request);
-                    if (defaultPhone != null) {
-                        defaultPhone.getModemActivityInfo(onCompleted, request.workSource);
-                    } else {
-                        ResultReceiver result = (ResultReceiver) request.argument;
-                        Bundle bundle = new Bundle();
-                        bundle.putParcelable(TelephonyManager.MODEM_ACTIVITY_RESULT_KEY,
-                                new ModemActivityInfo(0, 0, 0,
-                                        new int[ModemActivityInfo.getNumTxPowerLevels()], 0));
-                        result.send(0, bundle);
-                    }
-                    break;
-
-                case EVENT_GET_MODEM_ACTIVITY_INFO_DONE: {
-                    ar = (AsyncResult) msg.obj;
-                    request = (MainThreadRequest) ar.userObj;
-                    ResultReceiver result = (ResultReceiver) request.argument;
-                    int error = 0;
-                    ModemActivityInfo ret = null;
-                    if (mLastModemActivityInfo == null) {
-                        mLastModemActivitySpecificInfo = new ActivityStatsTechSpecificInfo[1];
-                        mLastModemActivitySpecificInfo[0] =
-                                new ActivityStatsTechSpecificInfo(
-                                        0,
-                                        0,
-                                        new int[ModemActivityInfo.getNumTxPowerLevels()],
-                                        0);
-                        mLastModemActivityInfo =
-                                new ModemActivityInfo(0, 0, 0, mLastModemActivitySpecificInfo);
-                    }
-
-                    if (ar.exception == null && ar.result != null) {
-                        // Update the last modem activity info and the result of the request.
-                        ModemActivityInfo info = (ModemActivityInfo) ar.result;
-                        if (isModemActivityInfoValid(info)) {
-                            mergeModemActivityInfo(info);
-                        }
-                        // This is needed to decouple ret from mLastModemActivityInfo
-                        // We don't want to return mLastModemActivityInfo which is updated
-                        // inside mergeModemActivityInfo()
-                        ret = new ModemActivityInfo(
-                                mLastModemActivityInfo.getTimestampMillis(),
-                                mLastModemActivityInfo.getSleepTimeMillis(),
-                                mLastModemActivityInfo.getIdleTimeMillis(),
-                                deepCopyModemActivitySpecificInfo(mLastModemActivitySpecificInfo));
-
-                    } else {
-                        if (ar.result == null) {
-                            loge("queryModemActivityInfo: Empty response");
-                            error = TelephonyManager.ModemActivityInfoException
-                                    .ERROR_INVALID_INFO_RECEIVED;
-                        } else if (ar.exception instanceof CommandException) {
-                            loge("queryModemActivityInfo: CommandException: " + ar.exception);
-                            error = TelephonyManager.ModemActivityInfoException
-                                    .ERROR_MODEM_RESPONSE_ERROR;
-                        } else {
-                            loge("queryModemActivityInfo: Unknown exception");
-                            error = TelephonyManager.ModemActivityInfoException
-                                    .ERROR_UNKNOWN;
-                        }
-                    }
-                    Bundle bundle = new Bundle();
-                    if (ret != null) {
-                        bundle.putParcelable(
-                                TelephonyManager.MODEM_ACTIVITY_RESULT_KEY,
-                                ret);
-                    } else {
-                        bundle.putInt(TelephonyManager.EXCEPTION_RESULT_KEY, error);
-                    }
-                    result.send(0, bundle);
-                    notifyRequester(request);
-                    break;
-                }
-
                 case CMD_SET_ALLOWED_CARRIERS:
                     request = (MainThreadRequest) msg.obj;
                     CarrierRestrictionRules argument =
@@ -2346,10 +2202,31 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         mSubscriptionController = SubscriptionController.getInstance();
         mTelephonySharedPreferences =
                 PreferenceManager.getDefaultSharedPreferences(mApp);
-        mNetworkScanRequestTracker = new NetworkScanRequestTracker();
+        mNetworkScanSessionManager = new NetworkScanSessionManager(
+                mMainThreadHandler.getLooper(), SystemClock::elapsedRealtime);
         mPhoneConfigurationManager = PhoneConfigurationManager.getInstance();
         mRadioInterfaceCapabilities = RadioInterfaceCapabilityController.getInstance();
         mNotifyUserActivity = new AtomicBoolean(false);
+        mCarrierPrivilegeStatusCache.registerForInvalidation(mApp,
+                PhoneFactory.getPhones().length);
+        mUiccInfoSnapshotCache.registerForInvalidation(mApp);
+        mEmergencyNumberMatcherCache.registerForInvalidation(mApp,
+                new HandlerExecutor(mMainThreadHandler));
+        HandlerThread apduThread = new HandlerThread("ApduChannelExecutor");
+        apduThread.start();
+        mApduChannelExecutor = new ApduChannelExecutor(apduThread.getLooper(),
+                PhoneInterfaceManager::getApduTransport);
+        mModemActivityInfoAggregator = new ModemActivityInfoAggregator(
+                mMainThreadHandler.getLooper(), (onCompleted, workSource) -> {
+                    Phone defaultPhone = getDefaultPhone();
+                    if (defaultPhone == null) {
+                        return false;
+                    }
+                    defaultPhone.getModemActivityInfo(onCompleted, workSource);
+                    return true;
+                },
+                SystemProperties.getLong(MODEM_ACTIVITY_INFO_MAX_AGE_PROPERTY, 0),
+                SystemClock::elapsedRealtime);
         PropertyInvalidatedCache.invalidateCache(TelephonyManager.CACHE_KEY_PHONE_ACCOUNT_TO_SUBID);
         publish();
     }
@@ -2381,6 +2258,26 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 ? getDefaultPhone() : getPhone(subId);
     }
 
+    @Nullable
+    private static ApduChannelExecutor.Transport getApduTransport(int phoneId) {
+        if (!SubscriptionManager.isValidPhoneId(phoneId)) {
+            return null;
+        }
+        UiccPort uiccPort = UiccController.getInstance().getUiccPort(phoneId);
+        if (uiccPort == null) {
+            return null;
+        }
+        return (channel, apdu, onCompleted) -> {
+            if (channel == 0) {
+                uiccPort.iccTransmitApduBasicChannel(apdu.cla, apdu.command, apdu.p1, apdu.p2,
+                        apdu.p3, apdu.data, onCompleted);
+            } else {
+                uiccPort.iccTransmitApduLogicalChannel(channel, apdu.cla, apdu.command, apdu.p1,
+                        apdu.p2, apdu.p3, apdu.data, onCompleted);
+            }
+        };
+    }
+
     @Nullable
     private UiccPort getUiccPortFromRequest(@NonNull MainThreadRequest request) {
         Phone phone = getPhoneFromRequest(request);
@@ -5338,18 +5235,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 return "";
             }
 
-            IccIoResult response = (IccIoResult) sendRequest(CMD_TRANSMIT_APDU_LOGICAL_CHANNEL,
-                    new IccAPDUArgument(channel, cla, command, p1, p2, p3, data), phone,
-                    null /* workSource */);
+            IccIoResult response = mApduChannelExecutor.transmit(getPhoneIdForApdu(phone),
+                    channel, new ApduChannelExecutor.Apdu(cla, command, p1, p2, p3, data));
             if (DBG) log("iccTransmitApduLogicalChannelWithPermission: " + response);
-
-            // Append the returned status code to the end of the response payload.
-            String s = Integer.toHexString(
-                    (response.sw1 << 8) + response.sw2 + 0x10000).substring(1);
-            if (response.payload != null) {
-                s = IccUtils.bytesToHexString(response.payload) + s;
-            }
-            return s;
+            return formatApduResponse(response);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -5403,23 +5292,37 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 }
             }
 
-            IccIoResult response = (IccIoResult) sendRequest(CMD_TRANSMIT_APDU_BASIC_CHANNEL,
-                    new IccAPDUArgument(0, cla, command, p1, p2, p3, data), phone,
-                    null /* workSource */);
+            IccIoResult response = mApduChannelExecutor.transmit(getPhoneIdForApdu(phone),
+                    0 /* basic channel */,
+                    new ApduChannelExecutor.Apdu(cla, command, p1, p2, p3, data));
             if (DBG) log("iccTransmitApduBasicChannelWithPermission: " + response);
-
-            // Append the returned status code to the end of the response payload.
-            String s = Integer.toHexString(
-                    (response.sw1 << 8) + response.sw2 + 0x10000).substring(1);
-            if (response.payload != null) {
-                s = IccUtils.bytesToHexString(response.payload) + s;
-            }
-            return s;
+            return formatApduResponse(response);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
     }
 
+    private static int getPhoneIdForApdu(Phone phone) {
+        return phone == null ? SubscriptionManager.INVALID_PHONE_INDEX : phone.getPhoneId();
+    }
+
+    // Appends the returned status code to the end of the response payload.
+    private static String formatApduResponse(IccIoResult response) {
+        String s = Integer.toHexString(
+                (response.sw1 << 8) + response.sw2 + 0x10000).substring(1);
+        if (response.payload != null) {
+            s = IccUtils.bytesToHexString(response.payload) + s;
+        }
+        return s;
+    }
+
+    /**
+     * @return the executor of APDUs on UICC channels, for dumpsys.
+     */
+    ApduChannelExecutor getApduChannelExecutor() {
+        return mApduChannelExecutor;
+    }
+
     @Override
     public byte[] iccExchangeSimIO(int subId, int fileID, int command, int p1, int p2, int p3,
             String filePath) {
@@ -6331,9 +6234,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         int callingPid = Binder.getCallingPid();
         final long identity = Binder.clearCallingIdentity();
         try {
-            return mNetworkScanRequestTracker.startNetworkScan(
-                    renounceFineLocationAccess, request, messenger, binder, getPhone(subId),
-                    callingUid, callingPid, callingPackage);
+            return mNetworkScanSessionManager.startNetworkScan(renounceFineLocationAccess,
+                    locationResult == LocationAccessPolicy.LocationPermissionResult.ALLOWED,
+                    request, messenger, binder, getPhone(subId), callingUid, callingPid,
+                    callingPackage);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -6384,7 +6288,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         int callingUid = Binder.getCallingUid();
         final long identity = Binder.clearCallingIdentity();
         try {
-            mNetworkScanRequestTracker.stopNetworkScan(scanId, callingUid);
+            mNetworkScanSessionManager.stopNetworkScan(scanId, callingUid);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -6760,7 +6664,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             loge("getCarrierPrivilegeStatusForUid: No CarrierPrivilegesTracker");
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
         }
-        return cpt.getCarrierPrivilegeStatusForUid(uid);
+        return mCarrierPrivilegeStatusCache.getStatusForUid(phone.getPhoneId(), uid,
+                () -> cpt.getCarrierPrivilegeStatusForUid(uid));
     }
 
     @Override
@@ -6779,7 +6684,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             loge("checkCarrierPrivilegesForPackage: No CarrierPrivilegesTracker");
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
         }
-        return cpt.getCarrierPrivilegeStatusForPackage(pkgName);
+        return mCarrierPrivilegeStatusCache.getStatusForPackage(phone.getPhoneId(), pkgName,
+                () -> cpt.getCarrierPrivilegeStatusForPackage(pkgName));
     }
 
     @Override
@@ -6802,7 +6708,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             if (cpt == null) {
                 continue;
             }
-            result = cpt.getCarrierPrivilegeStatusForPackage(pkgName);
+            result = mCarrierPrivilegeStatusCache.getStatusForPackage(phoneId, pkgName,
+                    () -> cpt.getCarrierPrivilegeStatusForPackage(pkgName));
             if (result == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS) {
                 break;
             }
@@ -6838,6 +6745,20 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         return new ArrayList<>(cpt.getPackagesWithCarrierPrivileges());
     }
 
+    /**
+     * @return the cache of carrier privilege statuses, for dumpsys.
+     */
+    CarrierPrivilegeStatusCache getCarrierPrivilegeStatusCache() {
+        return mCarrierPrivilegeStatusCache;
+    }
+
+    /**
+     * @return the snapshot of UICC slot and card info, for dumpsys.
+     */
+    UiccInfoSnapshotCache getUiccInfoSnapshotCache() {
+        return mUiccInfoSnapshotCache;
+    }
+
     @Override
     public List<String> getPackagesWithCarrierPrivilegesForAllPhones() {
         enforceReadPrivilegedPermission("getPackagesWithCarrierPrivilegesForAllPhones");
@@ -7778,9 +7699,6 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 mApp.getAttributionTag());
     }
 
-    private ActivityStatsTechSpecificInfo[] mLastModemActivitySpecificInfo = null;
-    private ModemActivityInfo mLastModemActivityInfo = null;
-
     /**
      * Responds to the ResultReceiver with the {@link android.telephony.ModemActivityInfo} object
      * representing the state of the modem.
@@ -7796,132 +7714,24 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         final long identity = Binder.clearCallingIdentity();
         try {
-            sendRequestAsync(CMD_GET_MODEM_ACTIVITY_INFO, result, null, workSource);
+            mModemActivityInfoAggregator.request(result, workSource);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
     }
 
-    // Checks that ModemActivityInfo is valid. Sleep time, Idle time, Rx time and Tx time should be
-    // less than total activity duration.
-    private boolean isModemActivityInfoValid(ModemActivityInfo info) {
-        if (info == null) {
-            return false;
-        }
-        int activityDurationMs =
-                (int) (info.getTimestampMillis() - mLastModemActivityInfo.getTimestampMillis());
-        int totalTxTimeMs = Arrays.stream(info.getTransmitTimeMillis()).sum();
-
-        return (info.isValid()
-            && (info.getSleepTimeMillis() <= activityDurationMs)
-            && (info.getIdleTimeMillis() <= activityDurationMs)
-            && (info.getReceiveTimeMillis() <= activityDurationMs)
-            && (totalTxTimeMs <= activityDurationMs));
-    }
-
-    private void updateLastModemActivityInfo(ModemActivityInfo info, int rat, int freq) {
-        int[] mergedTxTimeMs = new int [ModemActivityInfo.getNumTxPowerLevels()];
-        int[] txTimeMs = info.getTransmitTimeMillis(rat, freq);
-        int[] lastModemTxTimeMs = mLastModemActivityInfo.getTransmitTimeMillis(rat, freq);
-
-        for (int lvl = 0; lvl < mergedTxTimeMs.length; lvl++) {
-            mergedTxTimeMs[lvl] = txTimeMs[lvl] + lastModemTxTimeMs[lvl];
-        }
-
-        mLastModemActivityInfo.setTransmitTimeMillis(rat, freq, mergedTxTimeMs);
-        mLastModemActivityInfo.setReceiveTimeMillis(
-                rat,
-                freq,
-                info.getReceiveTimeMillis(rat, freq)
-                        + mLastModemActivityInfo.getReceiveTimeMillis(rat, freq));
-    }
-
-    private void updateLastModemActivityInfo(ModemActivityInfo info, int rat) {
-        int[] mergedTxTimeMs = new int [ModemActivityInfo.getNumTxPowerLevels()];
-        int[] txTimeMs = info.getTransmitTimeMillis(rat);
-        int[] lastModemTxTimeMs = mLastModemActivityInfo.getTransmitTimeMillis(rat);
-
-        for (int lvl = 0; lvl < mergedTxTimeMs.length; lvl++) {
-            mergedTxTimeMs[lvl] = txTimeMs[lvl] + lastModemTxTimeMs[lvl];
-        }
-        mLastModemActivityInfo.setTransmitTimeMillis(rat, mergedTxTimeMs);
-        mLastModemActivityInfo.setReceiveTimeMillis(
-                rat,
-                info.getReceiveTimeMillis(rat) + mLastModemActivityInfo.getReceiveTimeMillis(rat));
-    }
-
-   /**
-    * Merge this ModemActivityInfo with mLastModemActivitySpecificInfo
-    * @param info recent ModemActivityInfo
-    */
-    private void mergeModemActivityInfo(ModemActivityInfo info) {
-        List<ActivityStatsTechSpecificInfo> merged = new ArrayList<>();
-        ActivityStatsTechSpecificInfo deltaSpecificInfo;
-        boolean matched;
-        for (int i = 0; i < info.getSpecificInfoLength(); i++) {
-            matched = false;
-            int rat = info.getSpecificInfoRat(i);
-            int freq = info.getSpecificInfoFrequencyRange(i);
-            //Check each ActivityStatsTechSpecificInfo in this ModemActivityInfo for new rat returns
-            //Add a new ActivityStatsTechSpecificInfo if is a new rat, and merge with the original
-            //if it already exists
-            for (int j = 0; j < mLastModemActivitySpecificInfo.length; j++) {
-                if (rat == mLastModemActivityInfo.getSpecificInfoRat(j) && !matched) {
-                    //Merged based on frequency range (MMWAVE vs SUB6) for 5G
-                    if (rat == AccessNetworkConstants.AccessNetworkType.NGRAN) {
-                        if (freq == mLastModemActivityInfo.getSpecificInfoFrequencyRange(j)) {
-                            updateLastModemActivityInfo(info, rat, freq);
-                            matched = true;
-                        }
-                    } else {
-                        updateLastModemActivityInfo(info, rat);
-                        matched = true;
-                    }
-                }
-            }
-
-            if (!matched) {
-                deltaSpecificInfo =
-                        new ActivityStatsTechSpecificInfo(
-                                rat,
-                                freq,
-                                info.getTransmitTimeMillis(rat, freq),
-                                (int) info.getReceiveTimeMillis(rat, freq));
-                merged.addAll(Arrays.asList(deltaSpecificInfo));
-            }
-        }
-        merged.addAll(Arrays.asList(mLastModemActivitySpecificInfo));
-        mLastModemActivitySpecificInfo =
-                new ActivityStatsTechSpecificInfo[merged.size()];
-        merged.toArray(mLastModemActivitySpecificInfo);
-
-        mLastModemActivityInfo.setTimestamp(info.getTimestampMillis());
-        mLastModemActivityInfo.setSleepTimeMillis(
-                info.getSleepTimeMillis()
-                + mLastModemActivityInfo.getSleepTimeMillis());
-        mLastModemActivityInfo.setIdleTimeMillis(
-                info.getIdleTimeMillis()
-                + mLastModemActivityInfo.getIdleTimeMillis());
-
-        mLastModemActivityInfo =
-                 new ModemActivityInfo(
-                         mLastModemActivityInfo.getTimestampMillis(),
-                         mLastModemActivityInfo.getSleepTimeMillis(),
-                         mLastModemActivityInfo.getIdleTimeMillis(),
-                         mLastModemActivitySpecificInfo);
+    /**
+     * @return the network scan sessions, for dumpsys.
+     */
+    NetworkScanSessionManager getNetworkScanSessionManager() {
+        return mNetworkScanSessionManager;
     }
 
-    private ActivityStatsTechSpecificInfo[] deepCopyModemActivitySpecificInfo(
-            ActivityStatsTechSpecificInfo[] info) {
-        int infoSize = info.length;
-        ActivityStatsTechSpecificInfo[] ret = new ActivityStatsTechSpecificInfo[infoSize];
-        for (int i = 0; i < infoSize; i++) {
-            ret[i] = new ActivityStatsTechSpecificInfo(
-                    info[i].getRat(), info[i].getFrequencyRange(),
-                    info[i].getTransmitTimeMillis(),
-                    (int) info[i].getReceiveTimeMillis());
-        }
-        return ret;
+    /**
+     * @return the aggregator of modem activity info, for dumpsys.
+     */
+    ModemActivityInfoAggregator getModemActivityInfoAggregator() {
+        return mModemActivityInfoAggregator;
     }
 
     /**
@@ -8812,7 +8622,6 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 .checkPackage(Binder.getCallingUid(), callingPackage);
 
         boolean hasReadPermission = false;
-        boolean isIccIdAccessRestricted = false;
         try {
             enforceReadPrivilegedPermission("getUiccCardsInfo");
             hasReadPermission = true;
@@ -8824,62 +8633,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 throw new SecurityException("Caller does not have permission.");
             }
         }
-        // checking compatibility, if calling app's target SDK is T and beyond.
-        if (CompatChanges.isChangeEnabled(GET_API_SIGNATURES_FROM_UICC_PORT_INFO,
-                Binder.getCallingUid())) {
-            isIccIdAccessRestricted = true;
-        }
         final long identity = Binder.clearCallingIdentity();
         try {
-            UiccController uiccController = UiccController.getInstance();
-            ArrayList<UiccCardInfo> cardInfos = uiccController.getAllUiccCardInfos();
-            if (hasReadPermission) {
-                return cardInfos;
-            }
-
-            // Remove private info if the caller doesn't have access
-            ArrayList<UiccCardInfo> filteredInfos = new ArrayList<>();
-            for (UiccCardInfo cardInfo : cardInfos) {
-                //setting the value after compatibility check
-                cardInfo.setIccIdAccessRestricted(isIccIdAccessRestricted);
-                // For an inactive eUICC, the UiccCard will be null even though the UiccCardInfo
-                // is available
-                UiccCard card = uiccController.getUiccCardForSlot(cardInfo.getPhysicalSlotIndex());
-                if (card == null) {
-                    // assume no access if the card is unavailable
-                    filteredInfos.add(getUiccCardInfoUnPrivileged(cardInfo));
-                    continue;
-                }
-                Collection<UiccPortInfo> portInfos = cardInfo.getPorts();
-                if (portInfos.isEmpty()) {
-                    filteredInfos.add(getUiccCardInfoUnPrivileged(cardInfo));
-                    continue;
-                }
-                List<UiccPortInfo> uiccPortInfos = new  ArrayList<>();
-                for (UiccPortInfo portInfo : portInfos) {
-                    UiccPort port = uiccController.getUiccPortForSlot(
-                            cardInfo.getPhysicalSlotIndex(), portInfo.getPortIndex());
-                    if (port == null) {
-                        // assume no access if port is null
-                        uiccPortInfos.add(getUiccPortInfoUnPrivileged(portInfo));
-                        continue;
-                    }
-                    if (haveCarrierPrivilegeAccess(port, callingPackage)) {
-                        uiccPortInfos.add(portInfo);
-                    } else {
-                        uiccPortInfos.add(getUiccPortInfoUnPrivileged(portInfo));
-                    }
-                }
-                filteredInfos.add(new UiccCardInfo(
-                        cardInfo.isEuicc(),
-                        cardInfo.getCardId(),
-                        null,
-                        cardInfo.getPhysicalSlotIndex(),
-                        cardInfo.isRemovable(),
-                        cardInfo.isMultipleEnabledProfilesSupported(),
-                        uiccPortInfos));
-            }
-            return filteredInfos;
+            return mUiccInfoSnapshotCache.getCardsInfo(hasReadPermission,
+                    port -> haveCarrierPrivilegeAccess(port, callingPackage));
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -8893,19 +8650,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      */
     @NonNull
     public UiccCardInfo getUiccCardInfoUnPrivileged(UiccCardInfo cardInfo) {
-        List<UiccPortInfo> portinfo = new  ArrayList<>();
-        for (UiccPortInfo portinfos : cardInfo.getPorts()) {
-            portinfo.add(getUiccPortInfoUnPrivileged(portinfos));
-        }
-        return new UiccCardInfo(
-                cardInfo.isEuicc(),
-                cardInfo.getCardId(),
-                null,
-                cardInfo.getPhysicalSlotIndex(),
-                cardInfo.isRemovable(),
-                cardInfo.isMultipleEnabledProfilesSupported(),
-                portinfo
-        );
+        return UiccInfoSnapshotCache.redactCardInfo(cardInfo);
     }
 
     /**
@@ -8915,13 +8660,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      */
     @NonNull
     public UiccPortInfo getUiccPortInfoUnPrivileged(UiccPortInfo portInfo) {
-        return new UiccPortInfo(
-                UiccPortInfo.ICCID_REDACTED,
-                portInfo.getPortIndex(),
-                portInfo.getLogicalSlotIndex(),
-                portInfo.isActive()
-        );
+        return UiccInfoSnapshotCache.redactPortInfo(portInfo);
     }
+
     @Override
     public UiccSlotInfo[] getUiccSlotsInfo(String callingPackage) {
         // Verify that the callingPackage belongs to the calling UID
@@ -8941,70 +8682,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
         final long identity = Binder.clearCallingIdentity();
         try {
-            UiccSlot[] slots = UiccController.getInstance().getUiccSlots();
-            if (slots == null || slots.length == 0) {
+            UiccSlotInfo[] infos = mUiccInfoSnapshotCache.getSlotsInfo(
+                    isLogicalSlotAccessRestricted);
+            if (infos == null) {
                 Rlog.i(LOG_TAG, "slots is null or empty.");
-                return null;
-            }
-            UiccSlotInfo[] infos = new UiccSlotInfo[slots.length];
-            for (int i = 0; i < slots.length; i++) {
-                UiccSlot slot = slots[i];
-                if (slot == null) {
-                    continue;
-                }
-
-                String cardId;
-                UiccCard card = slot.getUiccCard();
-                if (card != null) {
-                    cardId = card.getCardId();
-                } else {
-                    cardId = slot.getEid();
-                    if (TextUtils.isEmpty(cardId)) {
-                        // If cardId is null, use iccId of default port as cardId.
-                        cardId = slot.getIccId(TelephonyManager.DEFAULT_PORT_INDEX);
-                    }
-                }
-
-                if (cardId != null) {
-                    // if cardId is an ICCID, strip off trailing Fs before exposing to user
-                    // if cardId is an EID, it's all digits so this is fine
-                    cardId = IccUtils.stripTrailingFs(cardId);
-                }
-
-                int cardState = 0;
-                switch (slot.getCardState()) {
-                    case CARDSTATE_ABSENT:
-                        cardState = UiccSlotInfo.CARD_STATE_INFO_ABSENT;
-                        break;
-                    case CARDSTATE_PRESENT:
-                        cardState = UiccSlotInfo.CARD_STATE_INFO_PRESENT;
-                        break;
-                    case CARDSTATE_ERROR:
-                        cardState = UiccSlotInfo.CARD_STATE_INFO_ERROR;
-                        break;
-                    case CARDSTATE_RESTRICTED:
-                        cardState = UiccSlotInfo.CARD_STATE_INFO_RESTRICTED;
-                        break;
-                    default:
-                        break;
-
-                }
-                List<UiccPortInfo> portInfos = new ArrayList<>();
-                int[] portIndexes = slot.getPortList();
-                for (int portIdx : portIndexes) {
-                    String iccId = IccUtils.stripTrailingFs(getIccId(slot, portIdx,
-                            callingPackage, /* hasReadPermission= */ true));
-                    portInfos.add(new UiccPortInfo(iccId, portIdx,
-                            slot.getPhoneIdFromPortIndex(portIdx), slot.isPortActive(portIdx)));
-                }
-                infos[i] = new UiccSlotInfo(
-                        slot.isEuicc(),
-                        cardId,
-                        cardState,
-                        slot.isExtendedApduSupported(),
-                        slot.isRemovable(), portInfos);
-                //setting the value after compatibility check
-                infos[i].setLogicalSlotAccessRestricted(isLogicalSlotAccessRestricted);
             }
             return infos;
         } finally {
@@ -9012,25 +8693,6 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
     }
 
-    /* Returns null if doesn't have read permission or carrier privilege access. */
-    private String getIccId(UiccSlot slot, int portIndex, String callingPackage,
-            boolean hasReadPermission) {
-        String iccId = slot.getIccId(portIndex);
-        if (hasReadPermission) { // if has read permission
-            return iccId;
-        } else {
-            if (slot.getUiccCard() != null && slot.getUiccCard().getUiccPort(portIndex) != null) {
-                UiccPort port = slot.getUiccCard().getUiccPort(portIndex);
-                // if no read permission, checking carrier privilege access
-                if (haveCarrierPrivilegeAccess(port, callingPackage)) {
-                    return iccId;
-                }
-            }
-        }
-        // No read permission or carrier privilege access.
-        return UiccPortInfo.ICCID_REDACTED;
-    }
-
     @Override
     @Deprecated
     public boolean switchSlots(int[] physicalSlots) {
@@ -9154,6 +8816,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             if (cpt != null) {
                 cpt.setTestOverrideCarrierPrivilegeRules(carrierPrivilegeRules);
             }
+            mCarrierPrivilegeStatusCache.invalidateSlot(phone.getPhoneId());
             // TODO(b/211796398): remove the legacy logic below once CPT migration is done.
             phone.setCarrierTestOverride(mccmnc, imsi, iccid, gid1, gid2, plmn, spn,
                     carrierPrivilegeRules, apn);
@@ -9265,16 +8928,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
         final long identity = Binder.clearCallingIdentity();
         try {
-            Map<Integer, List<EmergencyNumber>> emergencyNumberListInternal = new HashMap<>();
-            for (Phone phone: PhoneFactory.getPhones()) {
-                if (phone.getEmergencyNumberTracker() != null
-                        && phone.getEmergencyNumberTracker().getEmergencyNumberList() != null) {
-                    emergencyNumberListInternal.put(
-                            phone.getSubId(),
-                            phone.getEmergencyNumberTracker().getEmergencyNumberList());
-                }
-            }
-            return emergencyNumberListInternal;
+            return mEmergencyNumberMatcherCache.getMatcher().getEmergencyNumberList();
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -9290,11 +8944,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
         final long identity = Binder.clearCallingIdentity();
         try {
-            for (Phone phone: PhoneFactory.getPhones()) {
-                if (phone.getEmergencyNumberTracker() != null
-                        && phone.getEmergencyNumberTracker()
-                                .isEmergencyNumber(number, exactMatch)) {
-                    return true;
+            EmergencyNumberMatcher matcher = mEmergencyNumberMatcherCache.getMatcher();
+            if (matcher.isEmergencyNumber(number, exactMatch)) {
+                return true;
+            }
+            // Slots without a list from the radio are matched by their tracker.
+            Phone[] phones = PhoneFactory.getPhones();
+            for (int slot = 0; slot < matcher.getSlotCount() && slot < phones.length; slot++) {
+                if (matcher.isSlotDelegated(slot)) {
+                    EmergencyNumberTracker tracker = phones[slot].getEmergencyNumberTracker();
+                    if (tracker != null && tracker.isEmergencyNumber(number, exactMatch)) {
+                        return true;
+                    }
                 }
             }
             return false;
@@ -9303,6 +8964,21 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
     }
 
+    /**
+     * @return a new emergency number matcher over the emergency number lists of every slot,
+     * including slots without a subscription.
+     */
+    private static EmergencyNumberMatcher buildEmergencyNumberMatcher() {
+        EmergencyNumberMatcher.Builder builder = new EmergencyNumberMatcher.Builder();
+        for (Phone phone : PhoneFactory.getPhones()) {
+            EmergencyNumberTracker tracker = phone.getEmergencyNumberTracker();
+            builder.addSlot(phone.getSubId(),
+                    tracker == null ? null : tracker.getEmergencyCountryIso(),
+                    tracker == null ? null : tracker.getEmergencyNumberList());
+        }
+        return builder.build();
+    }
+
     /**
      * Start emergency callback mode for GsmCdmaPhone for testing.
      */
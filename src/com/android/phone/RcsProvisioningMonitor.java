@@ -23,10 +23,8 @@ import static com.android.internal.telephony.TelephonyStatsLog.RCS_CLIENT_PROVIS
 import android.Manifest;
 import android.app.role.OnRoleHoldersChangedListener;
 import android.app.role.RoleManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
@@ -37,7 +35,9 @@ import android.os.PersistableBundle;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
 import android.telephony.TelephonyRegistryManager;
 import android.telephony.ims.ProvisioningManager;
 import android.telephony.ims.RcsConfig;
@@ -61,6 +61,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 
@@ -80,13 +81,25 @@ public class RcsProvisioningMonitor {
     private static final int EVENT_CARRIER_CONFIG_OVERRIDE = 7;
     private static final int EVENT_RESET = 8;
     private static final int EVENT_FEATURE_ENABLED_OVERRIDE = 9;
+    private static final int EVENT_CONFIG_LOADED = 10;
 
     // indicate that the carrier single registration capable is initial value as
     // carrier config is not ready yet.
     private static final int MASK_CAP_CARRIER_INIT = 0xF000;
 
+    // The carrier config keys read by this class.
+    private static final Set<String> CARRIER_CONFIG_KEYS = Set.of(
+            CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL,
+            CarrierConfigManager.KEY_USE_ACS_FOR_RCS_BOOL,
+            CarrierConfigManager.Ims.KEY_IMS_SINGLE_REGISTRATION_REQUIRED_BOOL);
+
     private final PhoneGlobals mPhone;
     private final Handler mHandler;
+    // Executor used to load and store rcs config in the database, so that large configs do not
+    // block the handler.
+    private final Executor mConfigIoExecutor;
+    // Subs which have a config load in flight, only accessed on the handler thread.
+    private final ArraySet<Integer> mPendingConfigLoads = new ArraySet<>();
     // Cache the RCS provsioning info and related sub id
     private final ConcurrentHashMap<Integer, RcsProvisioningInfo> mRcsProvisioningInfos =
             new ConcurrentHashMap<>();
@@ -100,6 +113,10 @@ public class RcsProvisioningMonitor {
     private volatile boolean mTestModeEnabled;
 
     private final CarrierConfigManager mCarrierConfigManager;
+    private final CarrierConfigChangeBus mCarrierConfigChangeBus;
+    // Carrier configs delivered by mCarrierConfigChangeBus, keyed by sub id.
+    private final ConcurrentHashMap<Integer, PersistableBundle> mCarrierConfigs =
+            new ConcurrentHashMap<>();
     private final DmaChangedListener mDmaChangedListener;
     private final SubscriptionManager mSubscriptionManager;
     private final TelephonyRegistryManager mTelephonyRegistryManager;
@@ -120,21 +137,16 @@ public class RcsProvisioningMonitor {
         }
     };
 
-    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(
-                    intent.getAction())) {
-                int subId = intent.getIntExtra(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX,
-                        SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+    private final CarrierConfigChangeBus.Listener mCarrierConfigListener =
+            (slotId, subId, config, changedKeys) -> {
                 logv("Carrier-config changed for sub : " + subId);
-                if (SubscriptionManager.isValidSubscriptionId(subId)
-                        && !mHandler.hasMessages(EVENT_CC_CHANGED)) {
-                    mHandler.sendEmptyMessage(EVENT_CC_CHANGED);
+                if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                    mCarrierConfigs.put(subId, config);
+                    if (!mHandler.hasMessages(EVENT_CC_CHANGED)) {
+                        mHandler.sendEmptyMessage(EVENT_CC_CHANGED);
+                    }
                 }
-            }
-        }
-    };
+            };
 
     private final class DmaChangedListener implements OnRoleHoldersChangedListener {
         @Override
@@ -184,6 +196,9 @@ public class RcsProvisioningMonitor {
                 case EVENT_CONFIG_RECEIVED:
                     onConfigReceived(msg.arg1, (byte[]) msg.obj, msg.arg2 == 1);
                     break;
+                case EVENT_CONFIG_LOADED:
+                    onConfigLoaded((ConfigLoadResult) msg.obj);
+                    break;
                 case EVENT_RECONFIG_REQUEST:
                     onReconfigRequest(msg.arg1);
                     break;
@@ -211,18 +226,34 @@ public class RcsProvisioningMonitor {
         }
     }
 
+    private static final class ConfigLoadResult {
+        final int mSubId;
+        final Object mToken;
+        final byte[] mConfig;
+
+        ConfigLoadResult(int subId, Object token, byte[] config) {
+            mSubId = subId;
+            mToken = token;
+            mConfig = config;
+        }
+    }
+
     private final class RcsProvisioningInfo {
         private int mSubId;
+        // The carrier of the sub when the info was created, the config is reloaded if it changes.
+        private final int mCarrierId;
         private volatile int mSingleRegistrationCapability;
         private volatile byte[] mConfig;
+        // Whether mConfig was loaded from the database or set since.
+        private volatile boolean mConfigLoaded;
         private ArraySet<IRcsConfigCallback> mRcsConfigCallbacks;
         private IImsConfig mIImsConfig;
         private boolean mHasReconfigRequest;
 
-        RcsProvisioningInfo(int subId, int singleRegistrationCapability, byte[] config) {
+        RcsProvisioningInfo(int subId, int carrierId, int singleRegistrationCapability) {
             mSubId = subId;
+            mCarrierId = carrierId;
             mSingleRegistrationCapability = singleRegistrationCapability;
-            mConfig = config;
             mRcsConfigCallbacks = new ArraySet<>();
             registerRcsFeatureListener(this);
         }
@@ -231,6 +262,10 @@ public class RcsProvisioningMonitor {
             return mSubId;
         }
 
+        int getCarrierId() {
+            return mCarrierId;
+        }
+
         void setSingleRegistrationCapability(int singleRegistrationCapability) {
             if (mSingleRegistrationCapability != singleRegistrationCapability) {
                 mSingleRegistrationCapability = singleRegistrationCapability;
@@ -256,6 +291,7 @@ public class RcsProvisioningMonitor {
         }
 
         void setConfig(byte[] config) {
+            mConfigLoaded = true;
             if (!Arrays.equals(mConfig, config)) {
                 mConfig = config;
                 if (mConfig != null) {
@@ -270,6 +306,10 @@ public class RcsProvisioningMonitor {
             return mConfig;
         }
 
+        boolean isConfigLoaded() {
+            return mConfigLoaded;
+        }
+
         boolean addRcsConfigCallback(IRcsConfigCallback cb) {
             if (mIImsConfig == null) {
                 logd("fail to addRcsConfigCallback as imsConfig is null");
@@ -481,9 +521,12 @@ public class RcsProvisioningMonitor {
 
     @VisibleForTesting
     public RcsProvisioningMonitor(PhoneGlobals app, Looper looper, RoleManagerAdapter roleManager,
-            FeatureConnectorFactory<RcsFeatureManager> factory, RcsStats rcsStats) {
+            FeatureConnectorFactory<RcsFeatureManager> factory, RcsStats rcsStats,
+            Executor configIoExecutor, CarrierConfigChangeBus carrierConfigChangeBus) {
         mPhone = app;
         mHandler = new MyHandler(looper);
+        mConfigIoExecutor = configIoExecutor;
+        mCarrierConfigChangeBus = carrierConfigChangeBus;
         mCarrierConfigManager = mPhone.getSystemService(CarrierConfigManager.class);
         mSubscriptionManager = mPhone.getSystemService(SubscriptionManager.class);
         mTelephonyRegistryManager = mPhone.getSystemService(TelephonyRegistryManager.class);
@@ -504,9 +547,12 @@ public class RcsProvisioningMonitor {
             logd("RcsProvisioningMonitor created.");
             HandlerThread handlerThread = new HandlerThread(TAG);
             handlerThread.start();
+            HandlerThread ioThread = new HandlerThread(TAG + "-io");
+            ioThread.start();
             sInstance = new RcsProvisioningMonitor(app, handlerThread.getLooper(),
                     new RoleManagerAdapterImpl(app), RcsFeatureManager::getConnector,
-                    RcsStats.getInstance());
+                    RcsStats.getInstance(), new HandlerExecutor(new Handler(ioThread.getLooper())),
+                    CarrierConfigChangeBus.getInstance());
         }
         return sInstance;
     }
@@ -520,9 +566,8 @@ public class RcsProvisioningMonitor {
 
     private void init() {
         logd("init.");
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
-        mPhone.registerReceiver(mReceiver, filter);
+        mCarrierConfigChangeBus.registerListener(CARRIER_CONFIG_KEYS, Runnable::run,
+                mCarrierConfigListener);
         mTelephonyRegistryManager.addOnSubscriptionsChangedListener(
                 mSubChangedListener, mSubChangedListener.getHandlerExecutor());
         mDmaChangedListener.register();
@@ -534,13 +579,15 @@ public class RcsProvisioningMonitor {
         logd("release.");
         mDmaChangedListener.unregister();
         mTelephonyRegistryManager.removeOnSubscriptionsChangedListener(mSubChangedListener);
-        mPhone.unregisterReceiver(mReceiver);
+        mCarrierConfigChangeBus.unregisterListener(mCarrierConfigListener);
+        mCarrierConfigs.clear();
         for (int i = 0; i < mRcsFeatureListeners.size(); i++) {
             mRcsFeatureListeners.valueAt(i).destroy();
         }
         mRcsFeatureListeners.clear();
         mRcsProvisioningInfos.forEach((k, v)->v.destroy());
         mRcsProvisioningInfos.clear();
+        mPendingConfigLoads.clear();
         mCarrierSingleRegistrationEnabledOverride.clear();
     }
 
@@ -572,10 +619,15 @@ public class RcsProvisioningMonitor {
      */
     @VisibleForTesting
     public byte[] getConfig(int subId) {
-        if (mRcsProvisioningInfos.containsKey(subId)) {
-            return mRcsProvisioningInfos.get(subId).getConfig();
+        RcsProvisioningInfo info = mRcsProvisioningInfos.get(subId);
+        if (info == null) {
+            return null;
         }
-        return null;
+        if (!info.isConfigLoaded() && !mTestModeEnabled) {
+            // The background load has not completed yet, read the stored config directly.
+            return RcsConfig.loadRcsConfigForSub(mPhone, subId, false);
+        }
+        return info.getConfig();
     }
 
     /**
@@ -727,6 +779,7 @@ public class RcsProvisioningMonitor {
                 v.clear();
                 if (isAcsUsed(k)) {
                     logv("acs used, trigger to re-configure.");
+                    mPendingConfigLoads.remove(k);
                     updateConfigForSub(k, null, true);
                     v.triggerRcsReconfiguration();
                 } else {
@@ -744,20 +797,50 @@ public class RcsProvisioningMonitor {
     private void updateConfigForSub(int subId, byte[] config, boolean isCompressed) {
         logv("updateConfigForSub, subId:" + subId + ", mTestModeEnabled:" + mTestModeEnabled);
         if (!mTestModeEnabled) {
-            RcsConfig.updateConfigForSub(mPhone, subId, config, isCompressed);
+            mConfigIoExecutor.execute(
+                    () -> RcsConfig.updateConfigForSub(mPhone, subId, config, isCompressed));
         }
     }
 
-    private byte[] loadConfigForSub(int subId) {
+    /**
+     * Loads the stored config for the sub on the io executor, the result is delivered back to
+     * the handler with {@link #EVENT_CONFIG_LOADED}. Only one load per sub is kept in flight.
+     */
+    private void loadConfigForSub(int subId, Object token) {
         logv("loadConfigForSub, subId:" + subId + ", mTestModeEnabled:" + mTestModeEnabled);
-        if (!mTestModeEnabled) {
-            return RcsConfig.loadRcsConfigForSub(mPhone, subId, false);
+        if (mTestModeEnabled || !mPendingConfigLoads.add(subId)) {
+            return;
         }
-        return null;
+        mConfigIoExecutor.execute(() -> {
+            byte[] data = RcsConfig.loadRcsConfigForSub(mPhone, subId, false);
+            mHandler.sendMessage(mHandler.obtainMessage(EVENT_CONFIG_LOADED,
+                    new ConfigLoadResult(subId, token, data)));
+        });
+    }
+
+    private void onConfigLoaded(ConfigLoadResult result) {
+        RcsProvisioningInfo info = mRcsProvisioningInfos.get(result.mSubId);
+        if (info != result.mToken) {
+            logd("sub[" + result.mSubId + "] has changed, drop loaded config");
+            return;
+        }
+        // the load has been superseded if a new config was set while it was in flight
+        if (!mPendingConfigLoads.remove(result.mSubId)) {
+            logv("config load superseded for sub : " + result.mSubId);
+            return;
+        }
+        logv("config loaded for sub : " + result.mSubId + ", size : "
+                + (result.mConfig == null ? 0 : result.mConfig.length));
+        info.setConfig(result.mConfig);
+    }
+
+    private PersistableBundle getCarrierConfig(int subId) {
+        PersistableBundle b = mCarrierConfigs.get(subId);
+        return b != null ? b : mCarrierConfigManager.getConfigForSubId(subId);
     }
 
     private boolean isAcsUsed(int subId) {
-        PersistableBundle b = mCarrierConfigManager.getConfigForSubId(subId);
+        PersistableBundle b = getCarrierConfig(subId);
         if (b == null) {
             return false;
         }
@@ -771,7 +854,7 @@ public class RcsProvisioningMonitor {
                     : ProvisioningManager.STATUS_CARRIER_NOT_CAPABLE;
         }
 
-        PersistableBundle b = mCarrierConfigManager.getConfigForSubId(subId);
+        PersistableBundle b = getCarrierConfig(subId);
         if (!CarrierConfigManager.isConfigForIdentifiedCarrier(b)) {
             return MASK_CAP_CARRIER_INIT;
         }
@@ -809,16 +892,28 @@ public class RcsProvisioningMonitor {
 
         for (int i : activeSubs) {
             subsToBeDeactivated.remove(i);
-            if (!mRcsProvisioningInfos.containsKey(i)) {
-                byte[] data = loadConfigForSub(i);
+            int carrierId = getCarrierId(i);
+            RcsProvisioningInfo oldInfo = mRcsProvisioningInfos.get(i);
+            if (oldInfo != null && oldInfo.getCarrierId() != carrierId) {
+                logv("carrier changed for sub : " + i + ", reload config");
+                mPendingConfigLoads.remove(i);
+                mRcsProvisioningInfos.remove(i);
+                oldInfo.destroy();
+                oldInfo = null;
+            }
+            if (oldInfo == null) {
                 int capability = getSingleRegistrationCapableValue(i);
                 logv("new info is created for sub : " + i + ", single registration capability :"
-                        + capability + ", rcs config : " + Arrays.toString(data));
-                mRcsProvisioningInfos.put(i, new RcsProvisioningInfo(i, capability, data));
+                        + capability);
+                RcsProvisioningInfo info = new RcsProvisioningInfo(i, carrierId, capability);
+                mRcsProvisioningInfos.put(i, info);
+                loadConfigForSub(i, info);
             }
         }
 
         subsToBeDeactivated.forEach(i -> {
+            mPendingConfigLoads.remove(i);
+            mCarrierConfigs.remove(i);
             RcsProvisioningInfo info = mRcsProvisioningInfos.remove(i);
             if (info != null) {
                 info.destroy();
@@ -826,6 +921,11 @@ public class RcsProvisioningMonitor {
         });
     }
 
+    private int getCarrierId(int subId) {
+        SubscriptionInfo info = mSubscriptionManager.getActiveSubscriptionInfo(subId);
+        return info != null ? info.getCarrierId() : TelephonyManager.UNKNOWN_CARRIER_ID;
+    }
+
     private void onConfigReceived(int subId, byte[] config, boolean isCompressed) {
         logv("onConfigReceived, subId:" + subId + ", config:"
                 + config + ", isCompressed:" + isCompressed);
@@ -834,6 +934,7 @@ public class RcsProvisioningMonitor {
             logd("sub[" + subId + "] has been removed");
             return;
         }
+        mPendingConfigLoads.remove(subId);
         info.setConfig(isCompressed ? RcsConfig.decompressGzip(config) : config);
         updateConfigForSub(subId, config, isCompressed);
 
@@ -850,6 +951,7 @@ public class RcsProvisioningMonitor {
         logv("onReconfigRequest, subId:" + subId);
         RcsProvisioningInfo info = mRcsProvisioningInfos.get(subId);
         if (info != null) {
+            mPendingConfigLoads.remove(subId);
             info.setConfig(null);
             // clear rcs config stored in db
             updateConfigForSub(subId, null, true);
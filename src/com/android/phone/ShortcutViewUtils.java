@@ -63,8 +63,8 @@ class ShortcutViewUtils {
         private final boolean mCanEnableShortcutView;
         private PhoneInfo mPhoneInfo = null;
 
-        Config(@NonNull Context context, PersistableBundle carrierConfig, int entryType) {
-            mCanEnableShortcutView = canEnableShortcutView(carrierConfig, entryType);
+        Config(@NonNull Context context, boolean canEnableShortcutView) {
+            mCanEnableShortcutView = canEnableShortcutView;
             refresh(context);
         }
 
@@ -98,7 +98,7 @@ class ShortcutViewUtils {
             return mPhoneInfo.hasPromotedEmergencyNumber(number);
         }
 
-        private boolean canEnableShortcutView(PersistableBundle carrierConfig, int entryType) {
+        static boolean canEnableShortcutView(PersistableBundle carrierConfig, int entryType) {
             if (entryType != EmergencyDialer.ENTRY_TYPE_POWER_MENU) {
                 Log.d(LOG_TAG, "Disables shortcut view since it's not launched from power menu");
                 return false;
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.TelephonyManager;
+import android.telephony.UiccCardInfo;
+import android.telephony.UiccPortInfo;
+import android.telephony.UiccSlotInfo;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.uicc.IccUtils;
+import com.android.internal.telephony.uicc.UiccCard;
+import com.android.internal.telephony.uicc.UiccController;
+import com.android.internal.telephony.uicc.UiccPort;
+import com.android.internal.telephony.uicc.UiccSlot;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Immutable snapshot of the UICC slot and card info served by
+ * {@link PhoneInterfaceManager#getUiccSlotsInfo} and
+ * {@link PhoneInterfaceManager#getUiccCardsInfo}.
+ *
+ * <p>The snapshot is built from {@link UiccController} on the first query after a slot status,
+ * card state or application state change, and shared by every caller until the next change.
+ * Callers without READ_PRIVILEGED_PHONE_STATE get the snapshot with the EID and the ICCIDs of the
+ * ports they have no carrier privileges on redacted. The redacted variants are built with the
+ * snapshot, so only a card with both privileged and unprivileged ports costs an allocation.
+ */
+public class UiccInfoSnapshotCache {
+    private static final String LOG_TAG = "UiccInfoSnapshotCache";
+
+    /**
+     * Where the snapshot is read from, {@link UiccController} outside of tests.
+     */
+    @VisibleForTesting
+    public interface DataSource {
+        /** @see UiccController#getUiccSlots() */
+        UiccSlot[] getUiccSlots();
+        /** @see UiccController#getAllUiccCardInfos() */
+        List<UiccCardInfo> getAllUiccCardInfos();
+        /** @see UiccController#getUiccCardForSlot(int) */
+        UiccCard getUiccCardForSlot(int physicalSlotIndex);
+        /** @see UiccController#getUiccPortForSlot(int, int) */
+        UiccPort getUiccPortForSlot(int physicalSlotIndex, int portIndex);
+    }
+
+    private static class UiccControllerDataSource implements DataSource {
+        @Override
+        public UiccSlot[] getUiccSlots() {
+            return UiccController.getInstance().getUiccSlots();
+        }
+
+        @Override
+        public List<UiccCardInfo> getAllUiccCardInfos() {
+            return UiccController.getInstance().getAllUiccCardInfos();
+        }
+
+        @Override
+        public UiccCard getUiccCardForSlot(int physicalSlotIndex) {
+            return UiccController.getInstance().getUiccCardForSlot(physicalSlotIndex);
+        }
+
+        @Override
+        public UiccPort getUiccPortForSlot(int physicalSlotIndex, int portIndex) {
+            return UiccController.getInstance().getUiccPortForSlot(physicalSlotIndex, portIndex);
+        }
+    }
+
+    /**
+     * A card as seen by privileged callers, and the parts needed to redact it for the others.
+     */
+    private static class CardEntry {
+        final UiccCardInfo mCardInfo;
+        // The card with the EID and every ICCID redacted.
+        final UiccCardInfo mUnprivileged;
+        // The card with the EID redacted, null if no port can be checked for carrier privileges.
+        final UiccCardInfo mEidRedacted;
+        // Indexed like the ports of the card. A null port is never privileged.
+        final UiccPort[] mPorts;
+        final UiccPortInfo[] mPortInfos;
+        final UiccPortInfo[] mRedactedPortInfos;
+
+        CardEntry(UiccCardInfo cardInfo, @Nullable UiccCard card, DataSource source) {
+            mCardInfo = cardInfo;
+            mUnprivileged = redactCardInfo(cardInfo);
+            List<UiccPortInfo> portInfos = new ArrayList<>(cardInfo.getPorts());
+            int count = card == null ? 0 : portInfos.size();
+            mPorts = new UiccPort[count];
+            mPortInfos = new UiccPortInfo[count];
+            mRedactedPortInfos = new UiccPortInfo[count];
+            boolean anyPort = false;
+            for (int i = 0; i < count; i++) {
+                UiccPortInfo portInfo = portInfos.get(i);
+                mPorts[i] = source.getUiccPortForSlot(cardInfo.getPhysicalSlotIndex(),
+                        portInfo.getPortIndex());
+                mPortInfos[i] = portInfo;
+                mRedactedPortInfos[i] = redactPortInfo(portInfo);
+                anyPort |= mPorts[i] != null;
+            }
+            mEidRedacted = anyPort ? copyCardInfo(cardInfo, Arrays.asList(mPortInfos)) : null;
+        }
+
+        UiccCardInfo redactFor(Predicate<UiccPort> hasCarrierPrivileges) {
+            if (mEidRedacted == null) {
+                return mUnprivileged;
+            }
+            int privileged = 0;
+            boolean[] access = new boolean[mPorts.length];
+            for (int i = 0; i < mPorts.length; i++) {
+                access[i] = mPorts[i] != null && hasCarrierPrivileges.test(mPorts[i]);
+                if (access[i]) privileged++;
+            }
+            if (privileged == 0) {
+                return mUnprivileged;
+            }
+            if (privileged == mPorts.length) {
+                return mEidRedacted;
+            }
+            List<UiccPortInfo> portInfos = new ArrayList<>(mPorts.length);
+            for (int i = 0; i < mPorts.length; i++) {
+                portInfos.add(access[i] ? mPortInfos[i] : mRedactedPortInfos[i]);
+            }
+            return copyCardInfo(mCardInfo, portInfos);
+        }
+    }
+
+    private static class Snapshot {
+        final long mVersion;
+        // Null if there are no slots.
+        final UiccSlotInfo[] mSlotInfos;
+        // The same slots, with the logical slot access restricted.
+        final UiccSlotInfo[] mRestrictedSlotInfos;
+        final CardEntry[] mCards;
+
+        Snapshot(long version, DataSource source) {
+            mVersion = version;
+            UiccSlot[] slots = source.getUiccSlots();
+            if (slots == null || slots.length == 0) {
+                mSlotInfos = null;
+                mRestrictedSlotInfos = null;
+            } else {
+                mSlotInfos = new UiccSlotInfo[slots.length];
+                mRestrictedSlotInfos = new UiccSlotInfo[slots.length];
+                for (int i = 0; i < slots.length; i++) {
+                    if (slots[i] == null) {
+                        continue;
+                    }
+                    mSlotInfos[i] = buildSlotInfo(slots[i]);
+                    mRestrictedSlotInfos[i] = buildSlotInfo(slots[i]);
+                    mRestrictedSlotInfos[i].setLogicalSlotAccessRestricted(true);
+                }
+            }
+
+            List<UiccCardInfo> cardInfos = source.getAllUiccCardInfos();
+            mCards = new CardEntry[cardInfos == null ? 0 : cardInfos.size()];
+            for (int i = 0; i < mCards.length; i++) {
+                UiccCardInfo cardInfo = cardInfos.get(i);
+                mCards[i] = new CardEntry(cardInfo,
+                        source.getUiccCardForSlot(cardInfo.getPhysicalSlotIndex()), source);
+            }
+        }
+    }
+
+    private final DataSource mDataSource;
+    private volatile Snapshot mSnapshot;
+    // Bumped on every change, a snapshot built across a bump is not published.
+    private final AtomicLong mVersion = new AtomicLong();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mRebuilds = new AtomicLong();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public UiccInfoSnapshotCache() {
+        this(new UiccControllerDataSource());
+    }
+
+    @VisibleForTesting
+    public UiccInfoSnapshotCache(DataSource dataSource) {
+        mDataSource = dataSource;
+    }
+
+    /**
+     * Registers for the slot status, card state and application state changes which invalidate
+     * the snapshot.
+     */
+    public void registerForInvalidation(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(TelephonyManager.ACTION_SIM_SLOT_STATUS_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED);
+        context.registerReceiver(mReceiver, filter);
+    }
+
+    /**
+     * Drops the snapshot, the next query rebuilds it.
+     */
+    public void invalidate() {
+        mVersion.incrementAndGet();
+        mSnapshot = null;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            mHits.incrementAndGet();
+            return snapshot;
+        }
+        mRebuilds.incrementAndGet();
+        long version = mVersion.get();
+        snapshot = new Snapshot(version, mDataSource);
+        // A change during the build may not be reflected, serve it once but do not keep it.
+        if (mVersion.get() == version) {
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param logicalSlotAccessRestricted Whether the caller targets an SDK which hides the
+     *                                    logical slot of the slots.
+     * @return the info of every slot, entries of absent slots are null. Null if there are no
+     * slots. The array is the caller's, the entries are shared and must not be modified.
+     */
+    @Nullable
+    public UiccSlotInfo[] getSlotsInfo(boolean logicalSlotAccessRestricted) {
+        Snapshot snapshot = getSnapshot();
+        UiccSlotInfo[] infos = logicalSlotAccessRestricted
+                ? snapshot.mRestrictedSlotInfos : snapshot.mSlotInfos;
+        return infos == null ? null : infos.clone();
+    }
+
+    /**
+     * @param hasReadPermission Whether the caller holds READ_PRIVILEGED_PHONE_STATE.
+     * @param hasCarrierPrivileges Whether the caller has carrier privileges on a port, only
+     *                             consulted without READ_PRIVILEGED_PHONE_STATE.
+     * @return the info of every card, with the EID and the ICCIDs of the ports the caller has
+     * no access to redacted. The list is the caller's, the entries are shared and must not be
+     * modified.
+     */
+    @NonNull
+    public List<UiccCardInfo> getCardsInfo(boolean hasReadPermission,
+            Predicate<UiccPort> hasCarrierPrivileges) {
+        Snapshot snapshot = getSnapshot();
+        ArrayList<UiccCardInfo> infos = new ArrayList<>(snapshot.mCards.length);
+        for (CardEntry card : snapshot.mCards) {
+            infos.add(hasReadPermission ? card.mCardInfo : card.redactFor(hasCarrierPrivileges));
+        }
+        return infos;
+    }
+
+    @VisibleForTesting
+    public long getRebuildCount() {
+        return mRebuilds.get();
+    }
+
+    private static UiccSlotInfo buildSlotInfo(UiccSlot slot) {
+        String cardId;
+        UiccCard card = slot.getUiccCard();
+        if (card != null) {
+            cardId = card.getCardId();
+        } else {
+            cardId = slot.getEid();
+            if (TextUtils.isEmpty(cardId)) {
+                // If cardId is null, use iccId of default port as cardId.
+                cardId = slot.getIccId(TelephonyManager.DEFAULT_PORT_INDEX);
+            }
+        }
+
+        if (cardId != null) {
+            // if cardId is an ICCID, strip off trailing Fs before exposing to user
+            // if cardId is an EID, it's all digits so this is fine
+            cardId = IccUtils.stripTrailingFs(cardId);
+        }
+
+        int cardState = 0;
+        switch (slot.getCardState()) {
+            case CARDSTATE_ABSENT:
+                cardState = UiccSlotInfo.CARD_STATE_INFO_ABSENT;
+                break;
+            case CARDSTATE_PRESENT:
+                cardState = UiccSlotInfo.CARD_STATE_INFO_PRESENT;
+                break;
+            case CARDSTATE_ERROR:
+                cardState = UiccSlotInfo.CARD_STATE_INFO_ERROR;
+                break;
+            case CARDSTATE_RESTRICTED:
+                cardState = UiccSlotInfo.CARD_STATE_INFO_RESTRICTED;
+                break;
+            default:
+                break;
+
+        }
+        List<UiccPortInfo> portInfos = new ArrayList<>();
+        int[] portIndexes = slot.getPortList();
+        for (int portIdx : portIndexes) {
+            String iccId = IccUtils.stripTrailingFs(slot.getIccId(portIdx));
+            portInfos.add(new UiccPortInfo(iccId, portIdx,
+                    slot.getPhoneIdFromPortIndex(portIdx), slot.isPortActive(portIdx)));
+        }
+        return new UiccSlotInfo(
+                slot.isEuicc(),
+                cardId,
+                cardState,
+                slot.isExtendedApduSupported(),
+                slot.isRemovable(), portInfos);
+    }
+
+    /**
+     * @return a copy of the UiccCardInfo with the EID and ICCID set to null.
+     */
+    @NonNull
+    static UiccCardInfo redactCardInfo(UiccCardInfo cardInfo) {
+        List<UiccPortInfo> portInfos = new ArrayList<>();
+        for (UiccPortInfo portInfo : cardInfo.getPorts()) {
+            portInfos.add(redactPortInfo(portInfo));
+        }
+        return copyCardInfo(cardInfo, portInfos);
+    }
+
+    /**
+     * @return a copy of the UiccPortInfo with ICCID set to {@link UiccPortInfo#ICCID_REDACTED}.
+     */
+    @NonNull
+    static UiccPortInfo redactPortInfo(UiccPortInfo portInfo) {
+        return new UiccPortInfo(
+                UiccPortInfo.ICCID_REDACTED,
+                portInfo.getPortIndex(),
+                portInfo.getLogicalSlotIndex(),
+                portInfo.isActive()
+        );
+    }
+
+    // Copies the card with the EID set to null and the given ports.
+    private static UiccCardInfo copyCardInfo(UiccCardInfo cardInfo, List<UiccPortInfo> ports) {
+        return new UiccCardInfo(
+                cardInfo.isEuicc(),
+                cardInfo.getCardId(),
+                null,
+                cardInfo.getPhysicalSlotIndex(),
+                cardInfo.isRemovable(),
+                cardInfo.isMultipleEnabledProfilesSupported(),
+                ports);
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        Snapshot snapshot = mSnapshot;
+        pw.println(LOG_TAG + ": version=" + mVersion.get() + ", hits=" + mHits.get()
+                + ", rebuilds=" + mRebuilds.get() + ", snapshot="
+                + (snapshot == null ? "none" : "v" + snapshot.mVersion + " slots="
+                        + (snapshot.mSlotInfos == null ? 0 : snapshot.mSlotInfos.length)
+                        + " cards=" + snapshot.mCards.length));
+    }
+}
@@ -21,6 +21,7 @@ import android.location.Location;
 import android.net.Uri;
 import android.os.OutcomeReceiver;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.CallLog;
 import android.telephony.CarrierConfigManager;
@@ -34,30 +35,52 @@ import android.util.SparseArray;
 import androidx.annotation.NonNull;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.R;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 public class CallComposerPictureManager {
     private static final String TAG = CallComposerPictureManager.class.getSimpleName();
     private static final SparseArray<CallComposerPictureManager> sInstances = new SparseArray<>();
     private static final String THREE_GPP_BOOTSTRAPPING = "3GPP-bootstrapping";
+    // Enough for a few pictures of the maximum size.
+    private static final long PICTURE_CACHE_MAX_BYTES = 1024 * 1024;
+    // Longer than the setup of a call, for pictures whose call never reaches the call log.
+    private static final long PICTURE_CACHE_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_RUNNING_TRANSFERS = 4;
+    private static final int MAX_RUNNING_TRANSFERS_PER_SUBSCRIPTION = 2;
+    // About as long as an incoming call rings, or an outgoing one waits for its picture.
+    private static final long TRANSFER_DEADLINE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // The GBA service does not report the lifetime of its keys, so assume a short one and rely
+    // on the server rejecting keys which expired earlier.
+    private static final long GBA_CREDENTIALS_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long GBA_CREDENTIALS_REFRESH_WINDOW_MILLIS =
+            TimeUnit.MINUTES.toMillis(5);
 
     public static CallComposerPictureManager getInstance(Context context, int subscriptionId) {
         synchronized (sInstances) {
             if (sExecutorService == null) {
                 sExecutorService = Executors.newSingleThreadScheduledExecutor();
+                // Each running transfer may have two network requests in flight.
+                sTransferExecutorService =
+                        Executors.newFixedThreadPool(2 * MAX_RUNNING_TRANSFERS);
+                sTransferScheduler = new PictureTransferScheduler(MAX_RUNNING_TRANSFERS,
+                        MAX_RUNNING_TRANSFERS_PER_SUBSCRIPTION, sExecutorService,
+                        SystemClock::elapsedRealtime, new Random());
             }
             if (!sInstances.contains(subscriptionId)) {
                 sInstances.put(subscriptionId,
@@ -74,6 +97,9 @@ public class CallComposerPictureManager {
             if (sExecutorService != null) {
                 sExecutorService.shutdown();
                 sExecutorService = null;
+                sTransferExecutorService.shutdown();
+                sTransferExecutorService = null;
+                sTransferScheduler = null;
             }
         }
     }
@@ -101,11 +127,16 @@ public class CallComposerPictureManager {
         }
     }
 
+    // Runs the callbacks of the transfers, their retries and their deadlines, one at a time.
     private static ScheduledExecutorService sExecutorService = null;
-
-    private final HashMap<UUID, String> mCachedServerUrls = new HashMap<>();
-    private final HashMap<UUID, ImageData> mCachedImages = new HashMap<>();
-    private GbaCredentials mCachedCredentials = null;
+    // Runs the network requests of the transfers.
+    private static ExecutorService sTransferExecutorService = null;
+    private static PictureTransferScheduler sTransferScheduler = null;
+
+    private final PictureCache mPictureCache;
+    private final GbaCredentialCache mCredentialCache;
+    // The digest auth sessions of the servers, by origin.
+    private final Map<String, DigestAuthSession> mAuthSessions = new HashMap<>();
     private final int mSubscriptionId;
     private final TelephonyManager mTelephonyManager;
     private final Context mContext;
@@ -116,14 +147,18 @@ public class CallComposerPictureManager {
         mSubscriptionId = subscriptionId;
         mTelephonyManager = mContext.getSystemService(TelephonyManager.class)
                 .createForSubscriptionId(mSubscriptionId);
+        mPictureCache = new PictureCache(PICTURE_CACHE_MAX_BYTES, PICTURE_CACHE_TTL_MILLIS,
+                SystemClock::elapsedRealtime,
+                (id, reason) -> Log.i(TAG, "Evicted picture " + id + ", reason=" + reason));
+        mCredentialCache = new GbaCredentialCache(GBA_CREDENTIALS_LIFETIME_MILLIS,
+                GBA_CREDENTIALS_REFRESH_WINDOW_MILLIS, SystemClock::elapsedRealtime);
     }
 
     public void handleUploadToServer(CallComposerPictureTransfer.Factory transferFactory,
             ImageData imageData, Consumer<Pair<UUID, Integer>> callback) {
         if (sTestMode) {
             UUID id = UUID.randomUUID();
-            mCachedImages.put(id, imageData);
-            mCachedServerUrls.put(id, FAKE_SERVER_URL);
+            mPictureCache.put(id, imageData, FAKE_SERVER_URL);
             callback.accept(Pair.create(id, TelephonyManager.CallComposerException.SUCCESS));
             return;
         }
@@ -140,84 +175,121 @@ public class CallComposerPictureManager {
         imageData.setId(id.toString());
 
         CallComposerPictureTransfer transfer = transferFactory.create(mContext,
-                mSubscriptionId, uploadUrl, sExecutorService);
+                mSubscriptionId, uploadUrl, sTransferExecutorService);
+        transfer.setAuthSession(getAuthSession(uploadUrl));
+        transfer.setCallbackExecutor(sExecutorService);
+
+        PictureTransferScheduler.Task task = new PictureTransferScheduler.Task(mSubscriptionId,
+                PictureTransferScheduler.PRIORITY_UPLOAD,
+                SystemClock.elapsedRealtime() + TRANSFER_DEADLINE_MILLIS) {
+            @Override
+            protected void start(boolean credentialRefresh) {
+                transfer.uploadPicture(imageData, (realm, executor) ->
+                        getGbaCredentials(realm, credentialRefresh, carrierConfig,
+                                executor));
+            }
 
-        AtomicBoolean hasRetried = new AtomicBoolean(false);
+            @Override
+            protected void onAbandoned(int reason) {
+                transfer.cancel();
+                callback.accept(Pair.create(null,
+                        TelephonyManager.CallComposerException.ERROR_NETWORK_UNAVAILABLE));
+            }
+        };
         transfer.setCallback(new CallComposerPictureTransfer.PictureCallback() {
             @Override
             public void onError(int error) {
-                callback.accept(Pair.create(null, error));
+                if (task.finish()) {
+                    callback.accept(Pair.create(null, error));
+                }
             }
 
             @Override
             public void onRetryNeeded(boolean credentialRefresh, long backoffMillis) {
-                if (hasRetried.getAndSet(true)) {
-                    Log.e(TAG, "Giving up on image upload after one retry.");
-                    callback.accept(Pair.create(null,
-                            TelephonyManager.CallComposerException.ERROR_NETWORK_UNAVAILABLE));
-                    return;
+                if (credentialRefresh) {
+                    mCredentialCache.invalidate();
                 }
-                GbaCredentialsSupplier supplier =
-                        (realm, executor) ->
-                                getGbaCredentials(credentialRefresh, carrierConfig, executor);
-
-                sExecutorService.schedule(() -> transfer.uploadPicture(imageData, supplier),
-                        backoffMillis, TimeUnit.MILLISECONDS);
+                task.retry(credentialRefresh, backoffMillis);
             }
 
             @Override
             public void onUploadSuccessful(String serverUrl) {
-                mCachedServerUrls.put(id, serverUrl);
-                mCachedImages.put(id, imageData);
+                if (!task.finish()) {
+                    return;
+                }
+                mPictureCache.put(id, imageData, serverUrl);
                 Log.i(TAG, "Successfully received url: " + serverUrl + " associated with "
                         + id.toString());
                 callback.accept(Pair.create(id, TelephonyManager.CallComposerException.SUCCESS));
             }
         });
 
-        transfer.uploadPicture(imageData,
-                (realm, executor) -> getGbaCredentials(false, carrierConfig, executor));
+        sTransferScheduler.schedule(task);
     }
 
-    public void handleDownloadFromServer(CallComposerPictureTransfer.Factory transferFactory,
-            String remoteUrl, Consumer<Pair<Uri, Integer>> callback) {
+    /**
+     * Downloads the picture of an incoming call and stores it in the call log.
+     *
+     * @return the download, to cancel when the call ends, or null in test mode.
+     */
+    public PictureTransferScheduler.Task handleDownloadFromServer(
+            CallComposerPictureTransfer.Factory transferFactory, String remoteUrl,
+            Consumer<Pair<Uri, Integer>> callback) {
         if (sTestMode) {
             ImageData imageData = new ImageData(getPlaceholderPictureAsBytes(), "image/png", null);
             UUID id = UUID.randomUUID();
-            mCachedImages.put(id, imageData);
+            mPictureCache.put(id, imageData, null);
             storeUploadedPictureToCallLog(id, uri -> callback.accept(Pair.create(uri, -1)));
-            return;
+            return null;
         }
 
         PersistableBundle carrierConfig = mTelephonyManager.getCarrierConfig();
         CallComposerPictureTransfer transfer = transferFactory.create(mContext,
-                mSubscriptionId, remoteUrl, sExecutorService);
+                mSubscriptionId, remoteUrl, sTransferExecutorService);
+        transfer.setAuthSession(getAuthSession(remoteUrl));
+        transfer.setCallbackExecutor(sExecutorService);
 
-        AtomicBoolean hasRetried = new AtomicBoolean(false);
-        transfer.setCallback(new CallComposerPictureTransfer.PictureCallback() {
+        PictureTransferScheduler.Task task = new PictureTransferScheduler.Task(mSubscriptionId,
+                PictureTransferScheduler.PRIORITY_DOWNLOAD,
+                SystemClock.elapsedRealtime() + TRANSFER_DEADLINE_MILLIS) {
             @Override
-            public void onError(int error) {
-                callback.accept(Pair.create(null, error));
+            protected void start(boolean credentialRefresh) {
+                transfer.downloadPicture((realm, executor) ->
+                        getGbaCredentials(realm, credentialRefresh, carrierConfig,
+                                executor));
             }
 
             @Override
-            public void onRetryNeeded(boolean credentialRefresh, long backoffMillis) {
-                if (hasRetried.getAndSet(true)) {
-                    Log.e(TAG, "Giving up on image download after one retry.");
+            protected void onAbandoned(int reason) {
+                transfer.cancel();
+                // Nobody is waiting for the picture of a call which ended.
+                if (reason != PictureTransferScheduler.REASON_CANCELLED) {
                     callback.accept(Pair.create(null,
                             TelephonyManager.CallComposerException.ERROR_NETWORK_UNAVAILABLE));
-                    return;
                 }
-                GbaCredentialsSupplier supplier =
-                        (realm, executor) ->
-                                getGbaCredentials(credentialRefresh, carrierConfig, executor);
+            }
+        };
+        transfer.setCallback(new CallComposerPictureTransfer.PictureCallback() {
+            @Override
+            public void onError(int error) {
+                if (task.finish()) {
+                    callback.accept(Pair.create(null, error));
+                }
+            }
 
-                sExecutorService.schedule(() -> transfer.downloadPicture(supplier),
-                        backoffMillis, TimeUnit.MILLISECONDS);
+            @Override
+            public void onRetryNeeded(boolean credentialRefresh, long backoffMillis) {
+                if (credentialRefresh) {
+                    mCredentialCache.invalidate();
+                }
+                task.retry(credentialRefresh, backoffMillis);
             }
 
             @Override
             public void onDownloadSuccessful(ImageData data) {
+                if (!task.finish()) {
+                    return;
+                }
                 ByteArrayInputStream imageDataInput =
                         new ByteArrayInputStream(data.getImageBytes());
                 mCallLogProxy.storeCallComposerPictureAsUser(
@@ -240,12 +312,12 @@ public class CallComposerPictureManager {
             }
         });
 
-        transfer.downloadPicture(((realm, executor) ->
-                getGbaCredentials(false, carrierConfig, executor)));
+        sTransferScheduler.schedule(task);
+        return task;
     }
 
     public void storeUploadedPictureToCallLog(UUID id, Consumer<Uri> callback) {
-        ImageData data = mCachedImages.get(id);
+        ImageData data = mPictureCache.getImage(id);
         if (data == null) {
             Log.e(TAG, "No picture associated with uuid " + id);
             callback.accept(null);
@@ -259,7 +331,7 @@ public class CallComposerPictureManager {
                     @Override
                     public void onResult(@NonNull Uri result) {
                         callback.accept(result);
-                        clearCachedData();
+                        mPictureCache.remove(id);
                     }
 
                     @Override
@@ -267,18 +339,48 @@ public class CallComposerPictureManager {
                         // Just report an error to the client for now.
                         Log.e(TAG, "Error logging uploaded image: " + e.getErrorCode());
                         callback.accept(null);
-                        clearCachedData();
+                        mPictureCache.remove(id);
                     }
                 });
     }
 
     public String getServerUrlForImageId(UUID id) {
-        return mCachedServerUrls.get(id);
+        return mPictureCache.getServerUrl(id);
     }
 
     public void clearCachedData() {
-        mCachedServerUrls.clear();
-        mCachedImages.clear();
+        mPictureCache.clear();
+        synchronized (mAuthSessions) {
+            mAuthSessions.clear();
+        }
+    }
+
+    // The transfers to the same server share its digest auth session.
+    private DigestAuthSession getAuthSession(String url) {
+        Uri uri = Uri.parse(url);
+        String origin = uri.getScheme() + "://" + uri.getEncodedAuthority();
+        synchronized (mAuthSessions) {
+            return mAuthSessions.computeIfAbsent(origin, (key) -> new DigestAuthSession());
+        }
+    }
+
+    /**
+     * Dump the picture and credential caches of all subscriptions into a readable format for
+     * dumpsys usage.
+     */
+    public static void dumpAll(IndentingPrintWriter pw) {
+        synchronized (sInstances) {
+            if (sTransferScheduler != null) {
+                sTransferScheduler.dump(pw);
+            }
+            for (int i = 0; i < sInstances.size(); i++) {
+                pw.print("subId=" + sInstances.keyAt(i) + " ");
+                sInstances.valueAt(i).mPictureCache.dump(pw);
+                pw.increaseIndent();
+                sInstances.valueAt(i).mCredentialCache.dump(pw);
+                pw.decreaseIndent();
+            }
+        }
     }
 
     private byte[] getPlaceholderPictureAsBytes() {
@@ -301,18 +403,14 @@ public class CallComposerPictureManager {
         return output.toByteArray();
     }
 
-    private CompletableFuture<GbaCredentials> getGbaCredentials(
+    private CompletableFuture<GbaCredentials> getGbaCredentials(String realm,
             boolean forceRefresh, PersistableBundle config, Executor executor) {
-        synchronized (this) {
-            if (!forceRefresh && mCachedCredentials != null) {
-                return CompletableFuture.completedFuture(mCachedCredentials);
-            }
-
-            if (forceRefresh) {
-                mCachedCredentials = null;
-            }
-        }
+        return mCredentialCache.get(realm, forceRefresh, executor,
+                (refresh, bootstrapExecutor) -> bootstrap(refresh, config, bootstrapExecutor));
+    }
 
+    private CompletableFuture<GbaCredentials> bootstrap(
+            boolean forceRefresh, PersistableBundle config, Executor executor) {
         UaSecurityProtocolIdentifier securityProtocolIdentifier =
                 new UaSecurityProtocolIdentifier.Builder()
                         .setOrg(config.getInt(
@@ -329,11 +427,7 @@ public class CallComposerPictureManager {
                 new TelephonyManager.BootstrapAuthenticationCallback() {
                     @Override
                     public void onKeysAvailable(byte[] gbaKey, String transactionId) {
-                        GbaCredentials creds = new GbaCredentials(transactionId, gbaKey);
-                        synchronized (CallComposerPictureManager.this) {
-                            mCachedCredentials = creds;
-                        }
-                        resultFuture.complete(creds);
+                        resultFuture.complete(new GbaCredentials(transactionId, gbaKey));
                     }
 
                     @Override
@@ -38,7 +38,6 @@ import gov.nist.javax.sip.header.WWWAuthenticate;
 import org.xml.sax.InputSource;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -55,7 +54,9 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Iterator;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.xpath.XPath;
@@ -102,12 +103,16 @@ public class CallComposerPictureTransfer {
     private final ExecutorService mExecutorService;
 
     private PictureCallback mCallback;
+    private Executor mCallbackExecutor;
+    private DigestAuthSession mAuthSession = new DigestAuthSession();
+    private volatile boolean mCancelled;
 
     private CallComposerPictureTransfer(Context context, int subscriptionId, String url,
             ExecutorService executorService) {
         mContext = context;
         mSubscriptionId = subscriptionId;
         mExecutorService = executorService;
+        mCallbackExecutor = executorService;
         mUrl = url;
     }
 
@@ -116,35 +121,55 @@ public class CallComposerPictureTransfer {
         mCallback = callback;
     }
 
+    /**
+     * Runs the callbacks on the given executor instead of the one of the network requests.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Stops the transfer: no new request is sent, and the callback is no longer called.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Shares the digest authentication state of the server with the other transfers to it.
+     */
+    public void setAuthSession(DigestAuthSession authSession) {
+        mAuthSession = authSession;
+    }
+
     public void uploadPicture(ImageData image,
             GbaCredentialsSupplier credentialsSupplier) {
         CompletableFuture<Network> networkFuture = getNetworkForCallComposer();
-        CompletableFuture<WWWAuthenticate> authorizationHeaderFuture = networkFuture
-                .thenApplyAsync((network) -> prepareInitialPost(network, mUrl), mExecutorService)
-                .thenComposeAsync(this::obtainAuthenticateHeader, mExecutorService)
-                .thenApplyAsync(DigestAuthUtils::parseAuthenticateHeader);
-        CompletableFuture<GbaCredentials> credsFuture = authorizationHeaderFuture
-                .thenComposeAsync((header) ->
-                        credentialsSupplier.getCredentials(header.getRealm(), mExecutorService),
-                        mExecutorService);
-
-        CompletableFuture<String> authorizationFuture =
-                authorizationHeaderFuture.thenCombineAsync(credsFuture,
-                        (authHeader, credentials) ->
-                                DigestAuthUtils.generateAuthorizationHeader(
-                                        authHeader, credentials, "POST", mUrl),
+        // Without a session, an empty request obtains the challenge of the server first.
+        boolean preemptive = mAuthSession.isEstablished();
+        CompletableFuture<WWWAuthenticate> authorizationHeaderFuture = preemptive
+                ? CompletableFuture.completedFuture(null)
+                : networkFuture
+                        .thenApplyAsync((network) -> prepareInitialPost(network, mUrl),
+                                mExecutorService)
+                        .thenComposeAsync(this::obtainAuthenticateHeader, mExecutorService)
+                        .thenApplyAsync(DigestAuthUtils::parseAuthenticateHeader);
+
+        CompletableFuture<GbaCredentials> credentialsFuture = authorizationHeaderFuture
+                .thenComposeAsync((header) -> getCredentials(header, credentialsSupplier),
                         mExecutorService)
-                        .whenCompleteAsync(
-                                (authorization, error) -> handleExceptionalCompletion(error),
-                                mExecutorService);
+                .whenCompleteAsync(
+                        (credentials, error) -> handleExceptionalCompletion(error),
+                        mExecutorService);
 
         CompletableFuture<String> networkUrlFuture =
-                networkFuture.thenCombineAsync(authorizationFuture,
-                        (network, auth) -> sendActualImageUpload(network, auth, image),
+                networkFuture.thenCombineAsync(credentialsFuture,
+                        (network, credentials) -> sendActualImageUpload(network, credentials,
+                                image, preemptive),
                         mExecutorService);
         networkUrlFuture.thenAcceptAsync((result) -> {
-            if (result != null) mCallback.onUploadSuccessful(result);
-        }, mExecutorService).exceptionally((ex) -> {
+            if (result != null && !mCancelled) mCallback.onUploadSuccessful(result);
+        }, mCallbackExecutor).exceptionally((ex) -> {
             logException("Exception uploading image" , ex);
             return null;
         });
@@ -152,9 +177,22 @@ public class CallComposerPictureTransfer {
 
     public void downloadPicture(GbaCredentialsSupplier credentialsSupplier) {
         CompletableFuture<Network> networkFuture = getNetworkForCallComposer();
+        // With a session the first request is authorized, and if the server still challenges
+        // it, the challenge is answered like for a first request.
+        CompletableFuture<GbaCredentials> preemptiveCredentialsFuture =
+                mAuthSession.isEstablished()
+                        ? getCredentials(null, credentialsSupplier)
+                        : CompletableFuture.completedFuture(null);
         CompletableFuture<HttpURLConnection> getConnectionFuture =
-                networkFuture.thenApplyAsync((network) ->
-                        prepareImageDownloadRequest(network, mUrl), mExecutorService);
+                networkFuture.thenCombineAsync(preemptiveCredentialsFuture,
+                        (network, credentials) -> {
+                            HttpURLConnection conn = credentials == null ? null
+                                    : sendImageDownloadRequest(network, credentials);
+                            // Without a session, or if another transfer reset it meanwhile,
+                            // the request obtains a challenge.
+                            return conn != null ? conn
+                                    : prepareImageDownloadRequest(network, mUrl);
+                        }, mExecutorService);
 
         CompletableFuture<ImageData> immediatelyDownloadableImage = getConnectionFuture
                 .thenComposeAsync((conn) -> {
@@ -180,27 +218,22 @@ public class CallComposerPictureTransfer {
                         logException("IOException obtaining return code: ", e);
                         throw new NetworkAccessException(ERROR_HTTP_TIMEOUT);
                     }
-                    CompletableFuture<WWWAuthenticate> authenticateHeaderFuture =
+                    CompletableFuture<GbaCredentials> credentialsFuture =
                             obtainAuthenticateHeader(conn)
-                                    .thenApply(DigestAuthUtils::parseAuthenticateHeader);
-                    CompletableFuture<GbaCredentials> credsFuture = authenticateHeaderFuture
-                            .thenComposeAsync((header) ->
-                                    credentialsSupplier.getCredentials(header.getRealm(),
-                                            mExecutorService), mExecutorService);
-
-                    CompletableFuture<String> authorizationFuture = authenticateHeaderFuture
-                            .thenCombineAsync(credsFuture, (authHeader, credentials) ->
-                                    DigestAuthUtils.generateAuthorizationHeader(
-                                            authHeader, credentials, "GET", mUrl),
-                                    mExecutorService)
-                            .whenCompleteAsync((authorization, error) ->
-                                    handleExceptionalCompletion(error), mExecutorService);
-
-                    return networkFuture.thenCombineAsync(authorizationFuture,
+                                    .thenApply(DigestAuthUtils::parseAuthenticateHeader)
+                                    .thenComposeAsync((header) ->
+                                            getCredentials(header, credentialsSupplier),
+                                            mExecutorService)
+                                    .whenCompleteAsync((credentials, error) ->
+                                            handleExceptionalCompletion(error), mExecutorService);
+
+                    return networkFuture.thenCombineAsync(credentialsFuture,
                             this::downloadImageWithAuth, mExecutorService);
                 }, mExecutorService);
 
-        CompletableFuture.allOf(immediatelyDownloadableImage, authRequiredImage).thenRun(() -> {
+        CompletableFuture<Void> downloadsDone =
+                CompletableFuture.allOf(immediatelyDownloadableImage, authRequiredImage);
+        downloadsDone.thenRunAsync(() -> {
             ImageData fromImmediate = immediatelyDownloadableImage.getNow(null);
             ImageData fromAuth = authRequiredImage.getNow(null);
             // If both of these are null, that means an error happened somewhere in the chain.
@@ -208,14 +241,36 @@ public class CallComposerPictureTransfer {
             if (fromAuth == null && fromImmediate == null) {
                 Log.w(TAG, "No result from download -- error happened sometime earlier");
             }
-            if (fromAuth != null) mCallback.onDownloadSuccessful(fromAuth);
-            mCallback.onDownloadSuccessful(fromImmediate);
-        }).exceptionally((ex) -> {
+            if (mCancelled) {
+                return;
+            }
+            if (fromAuth != null) {
+                mCallback.onDownloadSuccessful(fromAuth);
+            } else if (fromImmediate != null) {
+                mCallback.onDownloadSuccessful(fromImmediate);
+            }
+        }, mCallbackExecutor).exceptionally((ex) -> {
             logException("Exception downloading image" , ex);
             return null;
         });
     }
 
+    // Gets the credentials of the next request, answering the challenge if there is one, or else
+    // reusing the nonce of the session.
+    private CompletableFuture<GbaCredentials> getCredentials(WWWAuthenticate challenge,
+            GbaCredentialsSupplier credentialsSupplier) {
+        if (challenge != null) {
+            mAuthSession.onChallenge(challenge);
+        }
+        return credentialsSupplier.getCredentials(mAuthSession.getRealm(), mExecutorService)
+                .thenApplyAsync((credentials) -> {
+                    if (credentials == null) {
+                        throw new IllegalStateException("GBA bootstrap failed");
+                    }
+                    return credentials;
+                }, mExecutorService);
+    }
+
     private CompletableFuture<Network> getNetworkForCallComposer() {
         ConnectivityManager connectivityManager =
                 mContext.getSystemService(ConnectivityManager.class);
@@ -234,6 +289,9 @@ public class CallComposerPictureTransfer {
     }
 
     private HttpURLConnection prepareInitialPost(Network network, String uploadUrl) {
+        if (mCancelled) {
+            throw new NetworkAccessException(ERROR_UNKNOWN);
+        }
         try {
             HttpURLConnection connection =
                     (HttpURLConnection) network.openConnection(new URL(uploadUrl));
@@ -253,6 +311,9 @@ public class CallComposerPictureTransfer {
     }
 
     private HttpURLConnection prepareImageDownloadRequest(Network network, String imageUrl) {
+        if (mCancelled) {
+            throw new NetworkAccessException(ERROR_UNKNOWN);
+        }
         try {
             HttpURLConnection connection =
                     (HttpURLConnection) network.openConnection(new URL(imageUrl));
@@ -298,12 +359,33 @@ public class CallComposerPictureTransfer {
         }, mExecutorService);
     }
 
-    private ImageData downloadImageWithAuth(Network network, String authorization) {
-        HttpURLConnection connection = prepareImageDownloadRequest(network, mUrl);
-        connection.addRequestProperty("Authorization", authorization);
+    private ImageData downloadImageWithAuth(Network network, GbaCredentials credentials) {
+        HttpURLConnection connection = sendImageDownloadRequest(network, credentials);
+        if (connection == null) {
+            // Another transfer reset the session meanwhile.
+            scheduleRetry();
+            return null;
+        }
         return downloadImageFromConnection(connection);
     }
 
+    // Sends an authorized download request and waits for its response, or returns null if the
+    // session was reset.
+    private HttpURLConnection sendImageDownloadRequest(Network network,
+            GbaCredentials credentials) {
+        try {
+            return mAuthSession.send(credentials, "GET", mUrl, (authorization) -> {
+                HttpURLConnection connection = prepareImageDownloadRequest(network, mUrl);
+                connection.addRequestProperty("Authorization", authorization);
+                connection.getResponseCode();
+                return connection;
+            });
+        } catch (IOException e) {
+            logException("IOException obtaining return code: ", e);
+            throw new NetworkAccessException(ERROR_HTTP_TIMEOUT);
+        }
+    }
+
     private ImageData downloadImageFromConnection(HttpURLConnection conn) {
         try {
             if (conn.getResponseCode() != 200) {
@@ -311,7 +393,8 @@ public class CallComposerPictureTransfer {
                         + " to download image");
                 if (conn.getResponseCode() == 401) {
                     Log.i(TAG, "Got 401 even with auth -- key refresh needed?");
-                    mCallback.onRetryNeeded(true, 0);
+                    mAuthSession.reset();
+                    notifyCallback((callback) -> callback.onRetryNeeded(true, 0));
                 }
                 return null;
             }
@@ -321,22 +404,20 @@ public class CallComposerPictureTransfer {
         }
 
         String contentType = conn.getContentType();
-        ByteArrayOutputStream imageDataOut = new ByteArrayOutputStream();
-        byte[] buffer = new byte[4096];
-        int numRead;
-        try {
-            InputStream is = conn.getInputStream();
-            while (true) {
-                numRead = is.read(buffer);
-                if (numRead < 0) break;
-                imageDataOut.write(buffer, 0, numRead);
-            }
+        byte[] imageBytes;
+        try (InputStream is = conn.getInputStream()) {
+            imageBytes = PictureStreams.readBody(is, conn.getContentLengthLong(),
+                    TelephonyManager.getMaximumCallComposerPictureSize());
+        } catch (PictureStreams.PictureTooLargeException e) {
+            Log.w(TAG, "Aborting image download: " + e.getMessage());
+            deliverFailure(TelephonyManager.CallComposerException.ERROR_FILE_TOO_LARGE);
+            return null;
         } catch (IOException e) {
             logException("IOException reading from image body: ", e);
             return null;
         }
 
-        return new ImageData(imageDataOut.toByteArray(), contentType, null);
+        return new ImageData(imageBytes, contentType, null);
     }
 
     private void handleExceptionalCompletion(Throwable error) {
@@ -363,11 +444,19 @@ public class CallComposerPictureTransfer {
     }
 
     private void scheduleRetry() {
-        mCallback.onRetryNeeded(false, DEFAULT_BACKOFF_MILLIS);
+        notifyCallback((callback) -> callback.onRetryNeeded(false, DEFAULT_BACKOFF_MILLIS));
     }
 
     private void deliverFailure(int code) {
-        mCallback.onError(code);
+        notifyCallback((callback) -> callback.onError(code));
+    }
+
+    private void notifyCallback(Consumer<PictureCallback> notification) {
+        mCallbackExecutor.execute(() -> {
+            if (!mCancelled) {
+                notification.accept(mCallback);
+            }
+        });
     }
 
     private static Part makeUploadPart(String name, String contentType, String filename,
@@ -414,7 +503,8 @@ public class CallComposerPictureTransfer {
         };
     }
 
-    private String sendActualImageUpload(Network network, String authHeader, ImageData image) {
+    private String sendActualImageUpload(Network network, GbaCredentials credentials,
+            ImageData image, boolean preemptive) {
         Part transactionIdPart = makeUploadPart("tid", "text/plain",
                 null, image.getId().getBytes());
         Part imageDataPart = makeUploadPart("File", image.getMimeType(),
@@ -423,25 +513,25 @@ public class CallComposerPictureTransfer {
         MultipartEntity multipartEntity =
                 new MultipartEntity(new Part[] {transactionIdPart, imageDataPart});
 
-        HttpURLConnection connection = prepareInitialPost(network, mUrl);
-        connection.setDoOutput(true);
-        connection.addRequestProperty("Authorization", authHeader);
-        connection.addRequestProperty("Content-Length",
-                String.valueOf(multipartEntity.getContentLength()));
-        connection.addRequestProperty("Content-Type", multipartEntity.getContentType().getValue());
-        connection.addRequestProperty("Accept-Encoding", "*");
-
-        try (OutputStream requestBodyOut = connection.getOutputStream()) {
-            multipartEntity.writeTo(requestBodyOut);
-        } catch (IOException e) {
-            logException("IOException making request to upload image: ", e);
-            throw new RuntimeException(e);
-        }
-
         try {
+            HttpURLConnection connection = mAuthSession.send(credentials, "POST", mUrl,
+                    (authorization) -> sendImage(network, authorization, multipartEntity));
+            if (connection == null) {
+                // Another transfer reset the session meanwhile.
+                scheduleRetry();
+                return null;
+            }
             int response = connection.getResponseCode();
             Log.i(TAG, "Received response code: " + response
                     + ", message=" + connection.getResponseMessage());
+            if (response == 401) {
+                mAuthSession.reset();
+                if (preemptive) {
+                    // The credentials of the session expired, start over with new ones.
+                    notifyCallback((callback) -> callback.onRetryNeeded(true, 0));
+                    return null;
+                }
+            }
             if (response == 401 || response == 403) {
                 deliverFailure(TelephonyManager.CallComposerException.ERROR_AUTHENTICATION_FAILED);
                 return null;
@@ -466,6 +556,30 @@ public class CallComposerPictureTransfer {
         }
     }
 
+    // Posts the image and waits for the status of the response.
+    private HttpURLConnection sendImage(Network network, String authorization,
+            MultipartEntity multipartEntity) throws IOException {
+        HttpURLConnection connection = postImage(network, authorization, multipartEntity);
+        connection.getResponseCode();
+        return connection;
+    }
+
+    private HttpURLConnection postImage(Network network, String authHeader,
+            MultipartEntity multipartEntity) {
+        HttpURLConnection connection = prepareInitialPost(network, mUrl);
+        connection.setDoOutput(true);
+        connection.addRequestProperty("Authorization", authHeader);
+        connection.addRequestProperty("Accept-Encoding", "*");
+
+        try {
+            PictureStreams.writeMultipart(connection, multipartEntity);
+        } catch (IOException e) {
+            logException("IOException making request to upload image: ", e);
+            throw new RuntimeException(e);
+        }
+        return connection;
+    }
+
     private static String parseImageUploadResponseXmlForUrl(String xmlData) {
         NamespaceContext ns = new NamespaceContext() {
             public String getNamespaceURI(String prefix) {
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import android.text.TextUtils;
+
+import gov.nist.javax.sip.header.WWWAuthenticate;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+
+/**
+ * The digest authentication state shared by the transfers to a call composer server.
+ *
+ * <p>Once the server challenged a transfer, later transfers reuse its nonce with an increasing
+ * nonce count, so they send their Authorization header with the first request instead of waiting
+ * for a new challenge. The requests sent through {@link #send} go out in parallel, and one the
+ * server rejects because its nonce went stale, or because a later nonce count reached the server
+ * first, is answered once with the next nonce count. The A1 hash is computed once per set of
+ * credentials. All methods are thread safe.
+ */
+public class DigestAuthSession {
+    /**
+     * A request sent with an Authorization header.
+     */
+    public interface AuthorizedRequest {
+        /**
+         * Sends the request, and waits for the status of its response.
+         */
+        HttpURLConnection send(String authorization) throws IOException;
+    }
+
+    private WWWAuthenticate mChallenge;
+    private GbaCredentials mCredentials;
+    private String mA1Hash;
+    private int mNonceCount;
+
+    /**
+     * @return whether the server challenged a transfer, so that the next requests can be
+     * authorized up front.
+     */
+    public synchronized boolean isEstablished() {
+        return mChallenge != null;
+    }
+
+    /**
+     * @return the realm of the last challenge, or null.
+     */
+    public synchronized String getRealm() {
+        return mChallenge == null ? null : mChallenge.getRealm();
+    }
+
+    /**
+     * Starts using the nonce of a new challenge.
+     *
+     * @return whether the server only rejected the nonce, so that the request can be authorized
+     * again with the same credentials.
+     */
+    public synchronized boolean onChallenge(WWWAuthenticate challenge) {
+        if (mChallenge == null || challenge.getRealm() == null
+                || !challenge.getRealm().equals(mChallenge.getRealm())) {
+            mCredentials = null;
+            mA1Hash = null;
+        }
+        if (mChallenge == null || !TextUtils.equals(challenge.getNonce(), mChallenge.getNonce())) {
+            mNonceCount = 0;
+        }
+        mChallenge = challenge;
+        return challenge.isStale() && mCredentials != null;
+    }
+
+    /**
+     * @return the Authorization header for the next request, using the given credentials, or
+     * null if the session was reset.
+     */
+    public synchronized String authorize(GbaCredentials credentials, String method, String uri) {
+        if (mChallenge == null) {
+            return null;
+        }
+        if (mCredentials == null
+                || !mCredentials.getTransactionId().equals(credentials.getTransactionId())
+                || !Arrays.equals(mCredentials.getKey(), credentials.getKey())) {
+            mA1Hash = DigestAuthUtils.generateA1Hash(credentials.getTransactionId(),
+                    mChallenge.getRealm(), credentials.getKey());
+            mCredentials = credentials;
+        }
+        return reauthorize(method, uri);
+    }
+
+    /**
+     * @return the Authorization header for the next request, using the last credentials, or null
+     * if the session was reset.
+     */
+    public synchronized String reauthorize(String method, String uri) {
+        if (mChallenge == null || mCredentials == null) {
+            return null;
+        }
+        mNonceCount++;
+        return DigestAuthUtils.generateAuthorizationHeader(mChallenge,
+                mCredentials.getTransactionId(), mA1Hash, mNonceCount, method, uri);
+    }
+
+    /**
+     * Sends a request authorized with the next nonce count. If the server rejects it for its
+     * nonce or nonce count, it is sent once more with the next nonce count.
+     *
+     * @param credentials The credentials to use, or null for the last ones.
+     * @return the connection of the request, or null if the session was reset.
+     */
+    public HttpURLConnection send(GbaCredentials credentials, String method, String uri,
+            AuthorizedRequest request) throws IOException {
+        String authorization;
+        String nonce;
+        int nonceCount;
+        synchronized (this) {
+            authorization = credentials != null ? authorize(credentials, method, uri)
+                    : reauthorize(method, uri);
+            if (authorization == null) {
+                return null;
+            }
+            nonce = mChallenge.getNonce();
+            nonceCount = mNonceCount;
+        }
+        HttpURLConnection connection = request.send(authorization);
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+            return connection;
+        }
+        WWWAuthenticate challenge = DigestAuthUtils.parseAuthenticateHeader(
+                connection.getHeaderField(DigestAuthUtils.WWW_AUTHENTICATE));
+        String answer = challenge == null ? null
+                : answerRejection(challenge, nonce, nonceCount, method, uri);
+        return answer == null ? connection : request.send(answer);
+    }
+
+    // Returns the Authorization header answering the challenge to a request sent with the nonce
+    // and nonce count, or null if the credentials were rejected.
+    private synchronized String answerRejection(WWWAuthenticate challenge, String nonce,
+            int nonceCount, String method, String uri) {
+        if (!challenge.isStale() && TextUtils.equals(challenge.getNonce(), nonce)) {
+            // The nonce is still good, so only a later nonce count could have been at fault.
+            boolean overtaken = mChallenge != null
+                    && TextUtils.equals(mChallenge.getNonce(), nonce) && mNonceCount > nonceCount;
+            return overtaken ? reauthorize(method, uri) : null;
+        }
+        onChallenge(challenge);
+        return reauthorize(method, uri);
+    }
+
+    /**
+     * Forgets the challenge, once the server rejected the credentials.
+     */
+    public synchronized void reset() {
+        mChallenge = null;
+        mCredentials = null;
+        mA1Hash = null;
+        mNonceCount = 0;
+    }
+}
@@ -39,6 +39,16 @@ public class DigestAuthUtils {
     private static final int CNONCE_LENGTH_BYTES = 16;
     private static final String AUTH_QOP = "auth";
 
+    // Looking up the algorithm is slower than hashing the short inputs of digest auth.
+    private static final ThreadLocal<MessageDigest> sMd5Digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Couldn't find MD5 algorithm: " + e);
+        }
+    });
+    private static final SecureRandom sRandom = new SecureRandom();
+
     public static WWWAuthenticate parseAuthenticateHeader(String header) {
         String reconstitutedHeader = WWW_AUTHENTICATE + ": " + header;
         WWWAuthenticate parsedHeader;
@@ -53,6 +63,16 @@ public class DigestAuthUtils {
     // Generates the Authorization header for use in future requests to the call composer server.
     public static String generateAuthorizationHeader(WWWAuthenticate parsedHeader,
             GbaCredentials credentials, String method, String uri) {
+        String a1Hash = generateA1Hash(credentials.getTransactionId(), parsedHeader.getRealm(),
+                credentials.getKey());
+        return generateAuthorizationHeader(parsedHeader, credentials.getTransactionId(), a1Hash,
+                1, method, uri);
+    }
+
+    // Generates the Authorization header for the given use of the server nonce, from the A1 hash
+    // of the credentials.
+    public static String generateAuthorizationHeader(WWWAuthenticate parsedHeader,
+            String username, String a1Hash, int nonceCount, String method, String uri) {
         if (!TextUtils.isEmpty(parsedHeader.getAlgorithm())
                 && !MD5_ALGORITHM.equals(parsedHeader.getAlgorithm().toLowerCase())) {
             Log.e(TAG, "This client only supports MD5 auth");
@@ -66,20 +86,19 @@ public class DigestAuthUtils {
 
         String clientNonce = makeClientNonce();
 
-        String response = computeResponse(parsedHeader.getNonce(), clientNonce, AUTH_QOP,
-                credentials.getTransactionId(), parsedHeader.getRealm(), credentials.getKey(),
-                method, uri);
+        String response = computeResponseFromA1Hash(a1Hash, parsedHeader.getNonce(),
+                nonceCount, clientNonce, AUTH_QOP, method, uri);
 
         Authorization replyHeader = new Authorization();
         try {
             replyHeader.setScheme(parsedHeader.getScheme());
-            replyHeader.setUsername(credentials.getTransactionId());
+            replyHeader.setUsername(username);
             replyHeader.setURI(new WorkaroundURI(uri));
             replyHeader.setRealm(parsedHeader.getRealm());
             replyHeader.setQop(AUTH_QOP);
             replyHeader.setNonce(parsedHeader.getNonce());
             replyHeader.setCNonce(clientNonce);
-            replyHeader.setNonceCount(1);
+            replyHeader.setNonceCount(nonceCount);
             replyHeader.setResponse(response);
             replyHeader.setOpaque(parsedHeader.getOpaque());
             replyHeader.setAlgorithm(parsedHeader.getAlgorithm());
@@ -94,17 +113,19 @@ public class DigestAuthUtils {
 
     public static String computeResponse(String serverNonce, String clientNonce, String qop,
             String username, String realm, byte[] password, String method, String uri) {
-        String a1Hash = generateA1Hash(username, realm, password);
-        String a2Hash = generateA2Hash(method, uri);
+        return computeResponseFromA1Hash(generateA1Hash(username, realm, password), serverNonce,
+                1, clientNonce, qop, method, uri);
+    }
 
-        // this is the nonce-count; since we don't reuse, it's always 1
-        String nonceCount = "00000001";
+    private static String computeResponseFromA1Hash(String a1Hash, String serverNonce,
+            int nonceCount, String clientNonce, String qop, String method, String uri) {
+        String a2Hash = generateA2Hash(method, uri);
         MessageDigest md5Digest = getMd5Digest();
 
         String hashInput = String.join(":",
                 a1Hash,
                 serverNonce,
-                nonceCount,
+                String.format("%08x", nonceCount),
                 clientNonce,
                 qop,
                 a2Hash);
@@ -113,13 +134,12 @@ public class DigestAuthUtils {
     }
 
     private static String makeClientNonce() {
-        SecureRandom rand = new SecureRandom();
         byte[] clientNonceBytes = new byte[CNONCE_LENGTH_BYTES];
-        rand.nextBytes(clientNonceBytes);
+        sRandom.nextBytes(clientNonceBytes);
         return base16(clientNonceBytes);
     }
 
-    private static String generateA1Hash(
+    public static String generateA1Hash(
             String bootstrapTransactionId, String realm, byte[] gbaKey) {
         MessageDigest md5Digest = getMd5Digest();
 
@@ -141,11 +161,9 @@ public class DigestAuthUtils {
     }
 
     private static MessageDigest getMd5Digest() {
-        try {
-            return MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Couldn't find MD5 algorithm: " + e);
-        }
+        MessageDigest md5Digest = sMd5Digest.get();
+        md5Digest.reset();
+        return md5Digest;
     }
 
     private static class WorkaroundURI extends GenericURI {
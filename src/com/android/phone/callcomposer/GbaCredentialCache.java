@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * The GBA credentials of a subscription, by realm.
+ *
+ * <p>Credentials are reused until their lifetime ends, and refreshed in the background once
+ * they are close to it, so transfers rarely wait for a bootstrap. A failed refresh is tried
+ * again a few times over the refresh window rather than on every use. Transfers missing the
+ * cache at the same time share a single bootstrap. All methods are thread safe.
+ */
+public class GbaCredentialCache {
+    /**
+     * Runs a GBA bootstrap.
+     */
+    public interface Bootstrapper {
+        /**
+         * @param forceRefresh Whether new keys are needed, rather than those of the GBA service.
+         * @return the credentials, or null if the bootstrap failed.
+         */
+        CompletableFuture<GbaCredentials> bootstrap(boolean forceRefresh, Executor executor);
+    }
+
+    // How many times failed refreshes are tried over the refresh window.
+    private static final int REFRESH_ATTEMPTS_PER_WINDOW = 4;
+
+    private static final class Entry {
+        final GbaCredentials mCredentials;
+        final long mExpiryMillis;
+        // When the credentials may be refreshed again, after a failed refresh.
+        long mNextRefreshMillis;
+
+        Entry(GbaCredentials credentials, long expiryMillis) {
+            mCredentials = credentials;
+            mExpiryMillis = expiryMillis;
+        }
+    }
+
+    private static final class Bootstrap {
+        final CompletableFuture<GbaCredentials> mResult = new CompletableFuture<>();
+        final boolean mForceRefresh;
+        // The credentials refreshed in the background, or null.
+        final Entry mRefreshed;
+
+        Bootstrap(boolean forceRefresh, Entry refreshed) {
+            mForceRefresh = forceRefresh;
+            mRefreshed = refreshed;
+        }
+    }
+
+    private final long mLifetimeMillis;
+    private final long mRefreshWindowMillis;
+    private final LongSupplier mClock;
+
+    private final Object mLock = new Object();
+    // The following are guarded by mLock.
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final Map<String, Bootstrap> mBootstraps = new HashMap<>();
+    private long mHits;
+    private long mMisses;
+    private long mSharedBootstraps;
+    private long mBootstrapCount;
+    private long mProactiveRefreshes;
+    private long mFailedRefreshes;
+    private long mInvalidations;
+
+    /**
+     * @param lifetimeMillis How long credentials are used after their bootstrap.
+     * @param refreshWindowMillis How long before the end of their lifetime credentials are
+     *                            refreshed in the background.
+     */
+    public GbaCredentialCache(long lifetimeMillis, long refreshWindowMillis, LongSupplier clock) {
+        mLifetimeMillis = lifetimeMillis;
+        mRefreshWindowMillis = refreshWindowMillis;
+        mClock = clock;
+    }
+
+    /**
+     * Gets the credentials for the realm, from the cache when possible.
+     *
+     * @param forceRefresh Whether the server rejected the cached credentials.
+     * @return the credentials, or null if the bootstrap failed.
+     */
+    public CompletableFuture<GbaCredentials> get(String realm, boolean forceRefresh,
+            Executor executor, Bootstrapper bootstrapper) {
+        Bootstrap toStart;
+        CompletableFuture<GbaCredentials> cached = null;
+        synchronized (mLock) {
+            long now = mClock.getAsLong();
+            Entry entry = mEntries.get(realm);
+            if (entry != null && (forceRefresh || entry.mExpiryMillis <= now)) {
+                mEntries.remove(realm);
+                entry = null;
+            }
+            Bootstrap running = mBootstraps.get(realm);
+            if (entry != null) {
+                mHits++;
+                cached = CompletableFuture.completedFuture(entry.mCredentials);
+                if (running != null || entry.mExpiryMillis - now > mRefreshWindowMillis
+                        || now < entry.mNextRefreshMillis) {
+                    return cached;
+                }
+                mProactiveRefreshes++;
+                forceRefresh = true;
+            } else {
+                mMisses++;
+                // A refresh also replaces rejected credentials.
+                if (running != null && (running.mForceRefresh || !forceRefresh)) {
+                    mSharedBootstraps++;
+                    return running.mResult;
+                }
+            }
+            toStart = new Bootstrap(forceRefresh, entry);
+            mBootstraps.put(realm, toStart);
+            mBootstrapCount++;
+        }
+
+        bootstrapper.bootstrap(forceRefresh, executor).whenComplete((credentials, error) -> {
+            synchronized (mLock) {
+                // Only the latest bootstrap of the realm is cached.
+                if (mBootstraps.get(realm) == toStart) {
+                    mBootstraps.remove(realm);
+                    if (credentials != null) {
+                        mEntries.put(realm,
+                                new Entry(credentials, mClock.getAsLong() + mLifetimeMillis));
+                    } else if (toStart.mRefreshed != null) {
+                        mFailedRefreshes++;
+                        toStart.mRefreshed.mNextRefreshMillis = mClock.getAsLong()
+                                + mRefreshWindowMillis / REFRESH_ATTEMPTS_PER_WINDOW;
+                    }
+                }
+            }
+            toStart.mResult.complete(error == null ? credentials : null);
+        });
+        return cached != null ? cached : toStart.mResult;
+    }
+
+    /**
+     * Drops all the cached credentials, once the server rejected them.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mEntries.clear();
+            mInvalidations++;
+        }
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("GbaCredentialCache: realms=" + mEntries.size() + ", hits=" + mHits
+                    + ", misses=" + mMisses + ", bootstraps=" + mBootstrapCount
+                    + ", shared=" + mSharedBootstraps + ", proactive=" + mProactiveRefreshes
+                    + ", failedRefreshes=" + mFailedRefreshes
+                    + ", invalidations=" + mInvalidations);
+        }
+    }
+}
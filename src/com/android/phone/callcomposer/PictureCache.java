@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+/**
+ * The pictures of calls in progress and their server urls, by picture id.
+ *
+ * <p>The total size of the cached pictures is kept under a budget by evicting the least recently
+ * used ones. A picture only lives as long as its call: it is removed once stored in the call log,
+ * or when its time to live ends for a call which never completes. All methods are thread safe.
+ */
+public class PictureCache {
+    /** The least recently used picture was evicted to stay under the budget. */
+    public static final int REASON_BUDGET = 1;
+    /** The picture outlived its time to live. */
+    public static final int REASON_EXPIRED = 2;
+
+    /**
+     * Notified of the pictures evicted from the cache, with the cache lock held.
+     */
+    public interface EvictionListener {
+        void onEvicted(UUID id, int reason);
+    }
+
+    private static final class Entry {
+        ImageData mImage;
+        String mServerUrl;
+        long mSizeBytes;
+        final long mExpiryMillis;
+
+        Entry(long expiryMillis) {
+            mExpiryMillis = expiryMillis;
+        }
+    }
+
+    private final long mMaxBytes;
+    private final long mTtlMillis;
+    private final LongSupplier mClock;
+    private final EvictionListener mEvictionListener;
+
+    // The following are guarded by the map, in access order.
+    private final LinkedHashMap<UUID, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSizeBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mExpirations;
+
+    public PictureCache(long maxBytes, long ttlMillis, LongSupplier clock,
+            EvictionListener evictionListener) {
+        mMaxBytes = maxBytes;
+        mTtlMillis = ttlMillis;
+        mClock = clock;
+        mEvictionListener = evictionListener;
+    }
+
+    /**
+     * Caches the picture and the url it was uploaded to, the url may be null.
+     */
+    public void put(UUID id, ImageData image, String serverUrl) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.remove(id);
+            if (entry != null) {
+                mSizeBytes -= entry.mSizeBytes;
+            }
+            entry = new Entry(mClock.getAsLong() + mTtlMillis);
+            entry.mImage = image;
+            entry.mServerUrl = serverUrl;
+            entry.mSizeBytes = sizeOf(image, serverUrl);
+            mEntries.put(id, entry);
+            mSizeBytes += entry.mSizeBytes;
+            trim();
+        }
+    }
+
+    /**
+     * @return the cached picture, or null.
+     */
+    public ImageData getImage(UUID id) {
+        synchronized (mEntries) {
+            Entry entry = getEntry(id);
+            return entry == null ? null : entry.mImage;
+        }
+    }
+
+    /**
+     * @return the url the picture was uploaded to, or null.
+     */
+    public String getServerUrl(UUID id) {
+        synchronized (mEntries) {
+            Entry entry = getEntry(id);
+            return entry == null ? null : entry.mServerUrl;
+        }
+    }
+
+    private Entry getEntry(UUID id) {
+        expire();
+        Entry entry = mEntries.get(id);
+        if (entry == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Removes the picture, once its call is over.
+     */
+    public void remove(UUID id) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.remove(id);
+            if (entry != null) {
+                mSizeBytes -= entry.mSizeBytes;
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+            mSizeBytes = 0;
+        }
+    }
+
+    /**
+     * @return the total size of the cached pictures.
+     */
+    public long getSizeBytes() {
+        synchronized (mEntries) {
+            return mSizeBytes;
+        }
+    }
+
+    // Evicts the least recently used pictures until the cache fits in its budget.
+    private void trim() {
+        expire();
+        Iterator<Map.Entry<UUID, Entry>> it = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<UUID, Entry> eldest = it.next();
+            it.remove();
+            mSizeBytes -= eldest.getValue().mSizeBytes;
+            mEvictions++;
+            mEvictionListener.onEvicted(eldest.getKey(), REASON_BUDGET);
+        }
+    }
+
+    private void expire() {
+        long now = mClock.getAsLong();
+        Iterator<Map.Entry<UUID, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<UUID, Entry> next = it.next();
+            if (next.getValue().mExpiryMillis <= now) {
+                it.remove();
+                mSizeBytes -= next.getValue().mSizeBytes;
+                mExpirations++;
+                mEvictionListener.onEvicted(next.getKey(), REASON_EXPIRED);
+            }
+        }
+    }
+
+    private static long sizeOf(ImageData image, String serverUrl) {
+        long size = 0;
+        if (image != null && image.getImageBytes() != null) {
+            size += image.getImageBytes().length;
+        }
+        if (serverUrl != null) {
+            size += 2L * serverUrl.length();
+        }
+        return size;
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mEntries) {
+            pw.println("PictureCache: entries=" + mEntries.size() + ", bytes=" + mSizeBytes
+                    + "/" + mMaxBytes + ", hits=" + mHits + ", misses=" + mMisses
+                    + ", evictions=" + mEvictions + ", expirations=" + mExpirations);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.http.multipart.MultipartEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves call composer pictures between memory and HTTP connections without intermediate copies.
+ *
+ * <p>Uploads are written from the picture to the connection in fixed length streaming mode, so
+ * the connection does not buffer the request body. Downloads are read into an array of the
+ * announced length, or into pooled chunks copied once at the end when the length is unknown, and
+ * are aborted as soon as they are known to exceed the maximum size.
+ */
+public class PictureStreams {
+    @VisibleForTesting
+    public static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 32;
+
+    // Chunks for bodies of unknown length, shared by all transfers.
+    private static final ArrayDeque<byte[]> sChunkPool = new ArrayDeque<>();
+
+    /**
+     * Thrown when a picture is larger than the maximum size.
+     */
+    public static class PictureTooLargeException extends IOException {
+        public PictureTooLargeException(long size, long maxBytes) {
+            super("Picture of " + size + " bytes exceeds " + maxBytes + " bytes");
+        }
+    }
+
+    private PictureStreams() {
+    }
+
+    /**
+     * Writes the multipart entity as the body of the request, with its length announced up front.
+     */
+    public static void writeMultipart(HttpURLConnection connection, MultipartEntity entity)
+            throws IOException {
+        connection.setFixedLengthStreamingMode(entity.getContentLength());
+        connection.addRequestProperty("Content-Type", entity.getContentType().getValue());
+        try (OutputStream out = connection.getOutputStream()) {
+            entity.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads a response body of at most {@code maxBytes}.
+     *
+     * @param contentLength The announced length of the body, or -1 if unknown.
+     * @throws PictureTooLargeException as soon as the body is known to be too large.
+     */
+    public static byte[] readBody(InputStream in, long contentLength, long maxBytes)
+            throws IOException {
+        if (contentLength > maxBytes) {
+            throw new PictureTooLargeException(contentLength, maxBytes);
+        }
+        if (contentLength >= 0) {
+            return readKnownLength(in, (int) contentLength);
+        }
+        return readUnknownLength(in, maxBytes);
+    }
+
+    private static byte[] readKnownLength(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int numRead = in.read(body, offset, length - offset);
+            if (numRead < 0) {
+                throw new IOException("Body ended after " + offset + " of " + length + " bytes");
+            }
+            offset += numRead;
+        }
+        return body;
+    }
+
+    private static byte[] readUnknownLength(InputStream in, long maxBytes) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        long total = 0;
+        try {
+            byte[] chunk = obtainChunk();
+            chunks.add(chunk);
+            int chunkOffset = 0;
+            while (true) {
+                if (chunkOffset == CHUNK_SIZE) {
+                    chunk = obtainChunk();
+                    chunks.add(chunk);
+                    chunkOffset = 0;
+                }
+                int numRead = in.read(chunk, chunkOffset, CHUNK_SIZE - chunkOffset);
+                if (numRead < 0) {
+                    break;
+                }
+                chunkOffset += numRead;
+                total += numRead;
+                if (total > maxBytes) {
+                    throw new PictureTooLargeException(total, maxBytes);
+                }
+            }
+
+            byte[] body = new byte[(int) total];
+            int offset = 0;
+            for (byte[] filled : chunks) {
+                int length = (int) Math.min(CHUNK_SIZE, total - offset);
+                System.arraycopy(filled, 0, body, offset, length);
+                offset += length;
+            }
+            return body;
+        } finally {
+            recycleChunks(chunks);
+        }
+    }
+
+    private static byte[] obtainChunk() {
+        synchronized (sChunkPool) {
+            byte[] chunk = sChunkPool.poll();
+            return chunk != null ? chunk : new byte[CHUNK_SIZE];
+        }
+    }
+
+    private static void recycleChunks(List<byte[]> chunks) {
+        synchronized (sChunkPool) {
+            for (byte[] chunk : chunks) {
+                if (sChunkPool.size() >= MAX_POOLED_CHUNKS) {
+                    break;
+                }
+                sChunkPool.push(chunk);
+            }
+        }
+    }
+}
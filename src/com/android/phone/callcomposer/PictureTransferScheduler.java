@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when the call composer picture transfers of all subscriptions run.
+ *
+ * <p>At most a fixed number of transfers run at once, with a lower limit per subscription, so a
+ * slow server only delays the transfers of its own subscription. Downloads for incoming calls
+ * run before uploads. Failed attempts are retried after a jittered exponential backoff, and a
+ * transfer is abandoned when its call is over, when its deadline passes or when it is out of
+ * attempts.
+ */
+public class PictureTransferScheduler {
+    private static final String TAG = PictureTransferScheduler.class.getSimpleName();
+
+    /** The picture of an incoming call, shown as soon as it is downloaded. */
+    public static final int PRIORITY_DOWNLOAD = 0;
+    /** The picture of an outgoing call, uploaded before dialing. */
+    public static final int PRIORITY_UPLOAD = 1;
+
+    /** The transfer was cancelled, usually because its call ended. */
+    public static final int REASON_CANCELLED = 1;
+    /** The deadline of the transfer passed before it could complete. */
+    public static final int REASON_DEADLINE = 2;
+    /** Every attempt of the transfer failed. */
+    public static final int REASON_RETRIES_EXHAUSTED = 3;
+
+    @VisibleForTesting
+    public static final int MAX_ATTEMPTS = 3;
+    @VisibleForTesting
+    public static final long BASE_BACKOFF_MILLIS = 1000;
+    @VisibleForTesting
+    public static final long MAX_BACKOFF_MILLIS = 16000;
+
+    /**
+     * A transfer, started again for each attempt. The transfer reports the outcome of each
+     * attempt with {@link #finish} or {@link #retry}.
+     */
+    public abstract static class Task {
+        private final int mSubId;
+        private final int mPriority;
+        private final long mDeadlineMillis;
+
+        // The following are guarded by the scheduler.
+        private PictureTransferScheduler mScheduler;
+        private long mSequence;
+        private long mQueuedMillis;
+        private int mAttempts;
+        private boolean mCredentialRefresh;
+        private boolean mRunning;
+        private boolean mDone;
+        private ScheduledFuture<?> mDeadlineTimer;
+
+        /**
+         * @param deadlineMillis When the transfer is no longer useful, in the clock of the
+         *                       scheduler.
+         */
+        protected Task(int subId, int priority, long deadlineMillis) {
+            mSubId = subId;
+            mPriority = priority;
+            mDeadlineMillis = deadlineMillis;
+        }
+
+        /**
+         * Starts an attempt, without blocking.
+         *
+         * @param credentialRefresh Whether the previous attempt asked for new credentials.
+         */
+        protected abstract void start(boolean credentialRefresh);
+
+        /**
+         * Called once if the transfer will not complete. A running attempt should stop, its
+         * result is dropped.
+         */
+        protected abstract void onAbandoned(int reason);
+
+        /**
+         * Ends the transfer after an attempt completed, successfully or not.
+         *
+         * @return false if the transfer was already over, and its result should be dropped.
+         */
+        public boolean finish() {
+            return mScheduler.onFinished(this);
+        }
+
+        /**
+         * Retries the transfer after a failed attempt.
+         *
+         * @param credentialRefresh Whether the next attempt needs new credentials, in which
+         *                          case it runs after {@code backoffMillis} exactly.
+         * @param backoffMillis The minimum delay before the next attempt.
+         */
+        public void retry(boolean credentialRefresh, long backoffMillis) {
+            mScheduler.onRetry(this, credentialRefresh, backoffMillis);
+        }
+
+        /**
+         * Cancels the transfer, when its call is over.
+         */
+        public void cancel() {
+            mScheduler.onCancelled(this);
+        }
+    }
+
+    private static final Comparator<Task> ORDER =
+            Comparator.<Task>comparingInt(t -> t.mPriority).thenComparingLong(t -> t.mSequence);
+
+    private final int mMaxRunning;
+    private final int mMaxRunningPerSubscription;
+    private final ScheduledExecutorService mTimer;
+    private final LongSupplier mClock;
+    private final Random mRandom;
+
+    private final Object mLock = new Object();
+    // The following are guarded by mLock.
+    private final TreeSet<Task> mPending = new TreeSet<>(ORDER);
+    private final SparseIntArray mRunningPerSubscription = new SparseIntArray();
+    private int mRunning;
+    private long mNextSequence;
+    private long mScheduled;
+    private long mRetries;
+    private long mCompleted;
+    private long mAbandoned;
+    private long mMaxQueueMillis;
+
+    /**
+     * @param timer Runs the retries after their backoff, and abandons the transfers at their
+     *              deadline.
+     */
+    public PictureTransferScheduler(int maxRunning, int maxRunningPerSubscription,
+            ScheduledExecutorService timer, LongSupplier clock, Random random) {
+        mMaxRunning = maxRunning;
+        mMaxRunningPerSubscription = maxRunningPerSubscription;
+        mTimer = timer;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    /**
+     * Schedules a transfer. Its first attempt starts on the calling thread if it can run now.
+     */
+    public void schedule(Task task) {
+        synchronized (mLock) {
+            task.mScheduler = this;
+            mScheduled++;
+            enqueue(task);
+            task.mDeadlineTimer = mTimer.schedule(() -> onDeadline(task),
+                    Math.max(0, task.mDeadlineMillis - mClock.getAsLong()),
+                    TimeUnit.MILLISECONDS);
+        }
+        dispatch();
+    }
+
+    private void enqueue(Task task) {
+        task.mSequence = mNextSequence++;
+        task.mQueuedMillis = mClock.getAsLong();
+        mPending.add(task);
+    }
+
+    // Starts the pending transfers allowed to run, and abandons those past their deadline.
+    private void dispatch() {
+        List<Task> toStart = new ArrayList<>();
+        List<Task> expired = new ArrayList<>();
+        List<Boolean> credentialRefresh = new ArrayList<>();
+        synchronized (mLock) {
+            long now = mClock.getAsLong();
+            Iterator<Task> it = mPending.iterator();
+            while (it.hasNext() && mRunning < mMaxRunning) {
+                Task task = it.next();
+                if (task.mDeadlineMillis <= now) {
+                    it.remove();
+                    setDone(task);
+                    mAbandoned++;
+                    expired.add(task);
+                    continue;
+                }
+                int running = mRunningPerSubscription.get(task.mSubId);
+                if (running >= mMaxRunningPerSubscription) {
+                    continue;
+                }
+                it.remove();
+                mRunningPerSubscription.put(task.mSubId, running + 1);
+                mRunning++;
+                task.mRunning = true;
+                task.mAttempts++;
+                mMaxQueueMillis = Math.max(mMaxQueueMillis, now - task.mQueuedMillis);
+                toStart.add(task);
+                credentialRefresh.add(task.mCredentialRefresh);
+            }
+        }
+        for (Task task : expired) {
+            Log.w(TAG, "Transfer for subId " + task.mSubId + " expired before it could run");
+            task.onAbandoned(REASON_DEADLINE);
+        }
+        for (int i = 0; i < toStart.size(); i++) {
+            toStart.get(i).start(credentialRefresh.get(i));
+        }
+    }
+
+    private boolean onFinished(Task task) {
+        synchronized (mLock) {
+            if (task.mDone) {
+                return false;
+            }
+            setDone(task);
+            release(task);
+            mCompleted++;
+        }
+        dispatch();
+        return true;
+    }
+
+    private void onRetry(Task task, boolean credentialRefresh, long backoffMillis) {
+        int reason = 0;
+        synchronized (mLock) {
+            if (task.mDone) {
+                return;
+            }
+            release(task);
+            long delayMillis = credentialRefresh ? backoffMillis
+                    : Math.max(backoffMillis, getBackoffMillis(task.mAttempts, mRandom));
+            if (task.mAttempts >= MAX_ATTEMPTS) {
+                reason = REASON_RETRIES_EXHAUSTED;
+            } else if (mClock.getAsLong() + delayMillis >= task.mDeadlineMillis) {
+                reason = REASON_DEADLINE;
+            } else {
+                mRetries++;
+                task.mCredentialRefresh = credentialRefresh;
+                mTimer.schedule(() -> {
+                    synchronized (mLock) {
+                        if (task.mDone) {
+                            return;
+                        }
+                        enqueue(task);
+                    }
+                    dispatch();
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+            if (reason != 0) {
+                setDone(task);
+                mAbandoned++;
+            }
+        }
+        if (reason != 0) {
+            Log.w(TAG, "Giving up on transfer for subId " + task.mSubId + ", reason=" + reason);
+            task.onAbandoned(reason);
+        }
+        dispatch();
+    }
+
+    private void onCancelled(Task task) {
+        abandon(task, REASON_CANCELLED);
+    }
+
+    // Abandons the transfer at its deadline, whether it is queued, running or waiting to retry.
+    private void onDeadline(Task task) {
+        abandon(task, REASON_DEADLINE);
+    }
+
+    private void abandon(Task task, int reason) {
+        synchronized (mLock) {
+            if (task.mDone) {
+                return;
+            }
+            setDone(task);
+            mPending.remove(task);
+            release(task);
+            mAbandoned++;
+        }
+        if (reason == REASON_DEADLINE) {
+            Log.w(TAG, "Transfer for subId " + task.mSubId + " expired");
+        }
+        task.onAbandoned(reason);
+        dispatch();
+    }
+
+    private void setDone(Task task) {
+        task.mDone = true;
+        if (task.mDeadlineTimer != null) {
+            task.mDeadlineTimer.cancel(false);
+        }
+    }
+
+    private void release(Task task) {
+        if (!task.mRunning) {
+            return;
+        }
+        task.mRunning = false;
+        mRunning--;
+        mRunningPerSubscription.put(task.mSubId,
+                mRunningPerSubscription.get(task.mSubId) - 1);
+    }
+
+    /**
+     * @return the backoff after the given number of failed attempts: exponential, capped, and
+     * with a random part so that clients of the same server do not retry together.
+     */
+    @VisibleForTesting
+    public static long getBackoffMillis(int failedAttempts, Random random) {
+        long backoffMillis = Math.min(MAX_BACKOFF_MILLIS,
+                BASE_BACKOFF_MILLIS << Math.min(Math.max(failedAttempts - 1, 0), 16));
+        return backoffMillis / 2 + (long) (random.nextDouble() * (backoffMillis / 2));
+    }
+
+    /**
+     * Dump this instance into a readable format for dumpsys usage.
+     */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(TAG + ": running=" + mRunning + "/" + mMaxRunning + ", pending="
+                    + mPending.size() + ", scheduled=" + mScheduled + ", retries=" + mRetries
+                    + ", completed=" + mCompleted + ", abandoned=" + mAbandoned
+                    + ", maxQueueMs=" + mMaxQueueMillis);
+        }
+    }
+}
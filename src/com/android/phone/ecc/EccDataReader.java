@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.ecc;
+
+import android.annotation.Nullable;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the CountryInfo of a single country from the packaged ECC database.
+ *
+ * <p>The indexed asset generated by ecc/conversion_toolset_v1/gen_eccdata_index.py is tried
+ * first. Its directory is read once, after which a lookup only reads the bytes of the requested
+ * country. If the indexed asset is missing or unreadable, the gzipped AllInfo asset is inflated
+ * and scanned instead.
+ *
+ * <p>Countries are returned as serialized CountryInfo messages, so callers can parse them with
+ * whichever generated proto classes they are built with.
+ */
+public class EccDataReader {
+    private static final String TAG = "EccDataReader";
+
+    /** The indexed ECC database asset. */
+    public static final String INDEXED_ASSET = "eccdata.idx";
+    /** The gzipped AllInfo ECC database asset. */
+    public static final String GZIP_ASSET = "eccdata";
+
+    // "ECCI"
+    private static final int INDEX_MAGIC = 0x45434349;
+    private static final int INDEX_FORMAT_VERSION = 1;
+    // Magic, format version, revision and country count.
+    private static final int INDEX_HEADER_SIZE = 16;
+
+    // Protobuf wire format, see protobuf_ecc_data.proto for the field numbers.
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_64BIT = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_32BIT = 5;
+    private static final int ALL_INFO_COUNTRIES = 2;
+    private static final int COUNTRY_INFO_ISO_CODE = 1;
+
+    private static final class Directory {
+        final String[] mIsoCodes;
+        final int[] mOffsets;
+        final int[] mLengths;
+        // Offset of the data section from the start of the asset.
+        final long mDataStart;
+
+        Directory(String[] isoCodes, int[] offsets, int[] lengths, long dataStart) {
+            mIsoCodes = isoCodes;
+            mOffsets = offsets;
+            mLengths = lengths;
+            mDataStart = dataStart;
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) mCount += n;
+            return n;
+        }
+    }
+
+    private final AssetManager mAssets;
+    private final String mIndexedAsset;
+    private final String mGzipAsset;
+
+    // Directory of the indexed asset, loaded on first use.
+    private Directory mDirectory;
+    private boolean mIndexUnavailable;
+    private long mLastBytesRead;
+
+    public EccDataReader(AssetManager assets) {
+        this(assets, INDEXED_ASSET, GZIP_ASSET);
+    }
+
+    /**
+     * @param indexedAsset The name of the indexed asset, or {@code null} to only use the gzipped
+     *                     asset.
+     */
+    @VisibleForTesting
+    public EccDataReader(AssetManager assets, @Nullable String indexedAsset, String gzipAsset) {
+        mAssets = assets;
+        mIndexedAsset = indexedAsset;
+        mGzipAsset = gzipAsset;
+        mIndexUnavailable = indexedAsset == null;
+    }
+
+    /**
+     * Reads the CountryInfo of a country.
+     *
+     * @param isoCode The ISO 3166 code of the country, case insensitive.
+     * @return the serialized CountryInfo, or {@code null} if the database has no such country.
+     * @throws IOException if neither asset could be read.
+     */
+    @Nullable
+    public synchronized byte[] readCountryInfo(String isoCode) throws IOException {
+        String iso = isoCode.toUpperCase(Locale.ROOT);
+        if (!mIndexUnavailable) {
+            try {
+                return readFromIndex(iso);
+            } catch (IOException e) {
+                Log.w(TAG, "Indexed ECC data unavailable, using " + mGzipAsset + ": " + e);
+                mIndexUnavailable = true;
+                mDirectory = null;
+            }
+        }
+        return readFromGzip(iso);
+    }
+
+    /**
+     * @return whether lookups are served by the indexed asset.
+     */
+    public synchronized boolean isUsingIndex() {
+        return !mIndexUnavailable;
+    }
+
+    /**
+     * @return the number of asset bytes the last {@link #readCountryInfo} call read, compressed
+     * bytes for the gzipped asset.
+     */
+    public synchronized long getLastBytesRead() {
+        return mLastBytesRead;
+    }
+
+    private byte[] readFromIndex(String iso) throws IOException {
+        CountingInputStream in = new CountingInputStream(
+                mAssets.open(mIndexedAsset, AssetManager.ACCESS_RANDOM));
+        try {
+            DataInputStream data = new DataInputStream(in);
+            if (mDirectory == null) {
+                mDirectory = readDirectory(data);
+            } else {
+                skipFully(data, mDirectory.mDataStart);
+            }
+            int index = Arrays.binarySearch(mDirectory.mIsoCodes, iso);
+            if (index < 0) {
+                return null;
+            }
+            skipFully(data, mDirectory.mOffsets[index]);
+            byte[] countryInfo = new byte[mDirectory.mLengths[index]];
+            data.readFully(countryInfo);
+            return countryInfo;
+        } finally {
+            mLastBytesRead = in.mCount;
+            in.close();
+        }
+    }
+
+    private static Directory readDirectory(DataInputStream data) throws IOException {
+        if (data.readInt() != INDEX_MAGIC) {
+            throw new IOException("Bad magic");
+        }
+        int version = data.readInt();
+        if (version != INDEX_FORMAT_VERSION) {
+            throw new IOException("Unsupported format version " + version);
+        }
+        data.readInt(); // revision
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("Bad country count " + count);
+        }
+        String[] isoCodes = new String[count];
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        long size = INDEX_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            byte[] iso = new byte[data.readUnsignedByte()];
+            data.readFully(iso);
+            isoCodes[i] = new String(iso, StandardCharsets.US_ASCII);
+            offsets[i] = data.readInt();
+            lengths[i] = data.readInt();
+            size += 1 + iso.length + 8;
+            if (i > 0 && isoCodes[i - 1].compareTo(isoCodes[i]) >= 0) {
+                throw new IOException("Directory not sorted at " + isoCodes[i]);
+            }
+        }
+        return new Directory(isoCodes, offsets, lengths, size);
+    }
+
+    private byte[] readFromGzip(String iso) throws IOException {
+        CountingInputStream in = new CountingInputStream(mAssets.open(mGzipAsset));
+        byte[] allInfo;
+        try {
+            allInfo = readAll(new GZIPInputStream(new BufferedInputStream(in)));
+        } finally {
+            mLastBytesRead = in.mCount;
+            in.close();
+        }
+
+        int[] pos = new int[] {0};
+        while (pos[0] < allInfo.length) {
+            int key = readVarint(allInfo, pos);
+            if ((key >>> 3) == ALL_INFO_COUNTRIES && (key & 7) == WIRE_LENGTH_DELIMITED) {
+                int length = readVarint(allInfo, pos);
+                int start = pos[0];
+                if (iso.equals(readIsoCode(allInfo, start, start + length))) {
+                    return Arrays.copyOfRange(allInfo, start, start + length);
+                }
+                pos[0] = start + length;
+            } else {
+                skipField(allInfo, pos, key & 7);
+            }
+        }
+        return null;
+    }
+
+    private static String readIsoCode(byte[] buf, int start, int end) throws IOException {
+        int[] pos = new int[] {start};
+        while (pos[0] < end) {
+            int key = readVarint(buf, pos);
+            if ((key >>> 3) == COUNTRY_INFO_ISO_CODE && (key & 7) == WIRE_LENGTH_DELIMITED) {
+                int length = readVarint(buf, pos);
+                return new String(buf, pos[0], length, StandardCharsets.US_ASCII);
+            }
+            skipField(buf, pos, key & 7);
+        }
+        return null;
+    }
+
+    private static void skipField(byte[] buf, int[] pos, int wireType) throws IOException {
+        switch (wireType) {
+            case WIRE_VARINT:
+                readVarint(buf, pos);
+                break;
+            case WIRE_64BIT:
+                pos[0] += 8;
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                int length = readVarint(buf, pos);
+                pos[0] += length;
+                break;
+            case WIRE_32BIT:
+                pos[0] += 4;
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType);
+        }
+    }
+
+    private static int readVarint(byte[] buf, int[] pos) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos[0] >= buf.length) {
+                throw new EOFException("Truncated varint");
+            }
+            byte b = buf[pos[0]++];
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException("Unexpected end of asset");
+            }
+            count -= skipped;
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] data = new byte[16 * 1024];
+        int n;
+        while ((n = in.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, n);
+        }
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.telecom.PhoneAccountHandle;
+import android.telephony.VisualVoicemailService;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Sends the tasks of {@link RemoteVvmTaskManager} to the {@link VisualVoicemailService}s, on the
+ * thread of its handler.
+ *
+ * <p>A service stays bound until no task has been running for an idle timeout, so that bursts of
+ * events bind once. While a service is being bound, an event repeating the latest one queued for
+ * its account is merged into it, and the oldest tasks are dropped beyond a bound.
+ */
+public class RemoteVvmTaskDispatcher {
+
+    private static final String TAG = "RemoteVvmTaskDispatcher";
+
+    @VisibleForTesting
+    public static final long IDLE_TIMEOUT_MILLIS = 30 * 1000;
+    @VisibleForTesting
+    public static final int MAX_QUEUED_TASKS = 32;
+
+    /**
+     * Binds to the services, as the {@link android.content.Context} methods do.
+     */
+    public interface ServiceBinder {
+        boolean bindService(Intent intent, ServiceConnection connection);
+
+        void unbindService(ServiceConnection connection);
+    }
+
+    private final Handler mHandler;
+    private final ServiceBinder mServiceBinder;
+    private final Runnable mOnIdle;
+    private final Runnable mIdleTimeout = this::onIdleTimeout;
+
+    private final Map<ComponentName, RemoteServiceConnection> mConnections = new ArrayMap<>();
+    private int mTaskReferenceCount;
+
+    private long mTasks;
+    private long mBinds;
+    private long mCoalesced;
+    private long mDropped;
+
+    /**
+     * @param onIdle Run once all the services were unbound after the idle timeout.
+     */
+    public RemoteVvmTaskDispatcher(Handler handler, ServiceBinder serviceBinder,
+            Runnable onIdle) {
+        mHandler = handler;
+        mServiceBinder = serviceBinder;
+        mOnIdle = onIdle;
+    }
+
+    /**
+     * Sends a task to the service, binding it if needed.
+     */
+    public void dispatch(ComponentName remotePackage, int what, Bundle extras) {
+        mTasks++;
+        mTaskReferenceCount++;
+        mHandler.removeCallbacks(mIdleTimeout);
+
+        Message message = Message.obtain();
+        message.what = what;
+        message.setData(new Bundle(extras));
+        RemoteServiceConnection connection = mConnections.get(remotePackage);
+        if (connection == null) {
+            connection = new RemoteServiceConnection(remotePackage);
+            mConnections.put(remotePackage, connection);
+        }
+        connection.enqueue(message);
+
+        if (!connection.mBound) {
+            Intent intent = RemoteVvmTaskManager.newBindIntent();
+            intent.setComponent(remotePackage);
+            VvmLog.i(TAG, "Binding to " + intent.getComponent());
+            mBinds++;
+            connection.mBound = mServiceBinder.bindService(intent, connection);
+            if (!connection.mBound) {
+                VvmLog.e(TAG, "Cannot bind to " + remotePackage);
+                mConnections.remove(remotePackage);
+                mDropped += connection.mTaskQueue.size();
+                dropTasks(connection.mTaskQueue.size());
+            }
+        }
+    }
+
+    private void onTaskEnded(RemoteServiceConnection connection) {
+        // The tasks of a disconnected service were already dropped.
+        if (connection.mRunningTasks == 0) {
+            return;
+        }
+        connection.mRunningTasks--;
+        if (mTaskReferenceCount > 0) {
+            mTaskReferenceCount--;
+        }
+        checkReference();
+    }
+
+    private void dropTasks(int count) {
+        mTaskReferenceCount = Math.max(0, mTaskReferenceCount - count);
+        checkReference();
+    }
+
+    // Unbinds once no task ran for the idle timeout.
+    private void checkReference() {
+        if (mTaskReferenceCount == 0) {
+            mHandler.removeCallbacks(mIdleTimeout);
+            mHandler.postDelayed(mIdleTimeout, IDLE_TIMEOUT_MILLIS);
+        }
+    }
+
+    private void onIdleTimeout() {
+        if (mTaskReferenceCount != 0) {
+            return;
+        }
+        VvmLog.i(TAG, "Idle, unbinding " + mConnections.keySet() + ". tasks=" + mTasks
+                + ", binds=" + mBinds + ", coalesced=" + mCoalesced + ", dropped=" + mDropped);
+        unbindAll();
+        mOnIdle.run();
+    }
+
+    /**
+     * Unbinds all the services, dropping the tasks not sent yet.
+     */
+    public void unbindAll() {
+        mHandler.removeCallbacks(mIdleTimeout);
+        for (RemoteServiceConnection connection : mConnections.values()) {
+            if (connection.mBound) {
+                mServiceBinder.unbindService(connection);
+            }
+        }
+        mConnections.clear();
+        mTaskReferenceCount = 0;
+    }
+
+    @VisibleForTesting
+    public long getBindCount() {
+        return mBinds;
+    }
+
+    @VisibleForTesting
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    // The tasks are counted per service rather than tracked by ID.
+    private int getTaskId() {
+        return 1;
+    }
+
+    // Whether the event only needs to reach the service once while it is queued.
+    private static boolean isCoalescable(int what) {
+        return what == VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED
+                || what == VisualVoicemailService.MSG_ON_SIM_REMOVED;
+    }
+
+    private static PhoneAccountHandle getPhoneAccountHandle(Message message) {
+        return message.getData().getParcelable(VisualVoicemailService.DATA_PHONE_ACCOUNT_HANDLE);
+    }
+
+    /**
+     * Class for interacting with the main interface of the service.
+     */
+    private class RemoteServiceConnection implements ServiceConnection {
+
+        private final ComponentName mComponentName;
+        private final ArrayDeque<Message> mTaskQueue = new ArrayDeque<>();
+        // Receives the end of the tasks sent to this service.
+        private final Messenger mMessenger = new Messenger(new Handler(mHandler.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case VisualVoicemailService.MSG_TASK_ENDED:
+                        onTaskEnded(RemoteServiceConnection.this);
+                        break;
+                    default:
+                        VvmLog.wtf(TAG, "unexpected message " + msg.what);
+                }
+            }
+        });
+
+        private boolean mBound;
+        private boolean mConnected;
+        // The tasks sent to the service which did not end yet.
+        private int mRunningTasks;
+
+        /**
+         * A handler in the VisualVoicemailService
+         */
+        private Messenger mRemoteMessenger;
+
+        RemoteServiceConnection(ComponentName componentName) {
+            mComponentName = componentName;
+        }
+
+        void enqueue(Message message) {
+            if (!mConnected && isCoalescable(message.what)) {
+                // Another event for the account in between may undo the queued one, so only the
+                // latest one is merged into.
+                PhoneAccountHandle phoneAccountHandle = getPhoneAccountHandle(message);
+                Iterator<Message> it = mTaskQueue.descendingIterator();
+                while (it.hasNext()) {
+                    Message queued = it.next();
+                    if (!Objects.equals(getPhoneAccountHandle(queued), phoneAccountHandle)) {
+                        continue;
+                    }
+                    if (queued.what == message.what) {
+                        mCoalesced++;
+                        message.recycle();
+                        dropTasks(1);
+                        return;
+                    }
+                    break;
+                }
+            }
+            if (mTaskQueue.size() >= MAX_QUEUED_TASKS) {
+                Message oldest = mTaskQueue.poll();
+                VvmLog.w(TAG, "Too many tasks for " + mComponentName + ", dropping "
+                        + oldest.what);
+                oldest.recycle();
+                mDropped++;
+                dropTasks(1);
+            }
+            mTaskQueue.add(message);
+            if (mConnected) {
+                runQueue();
+            }
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName className, IBinder service) {
+            mRemoteMessenger = new Messenger(service);
+            mConnected = true;
+            runQueue();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName className) {
+            int tasks = mTaskQueue.size() + mRunningTasks;
+            VvmLog.e(TAG, "Service " + mComponentName + " disconnected, " + tasks
+                    + " tasks dropped.");
+            mConnected = false;
+            mRemoteMessenger = null;
+            mDropped += mTaskQueue.size();
+            mTaskQueue.clear();
+            mRunningTasks = 0;
+            // Only this service is torn down, the others keep their tasks.
+            if (mBound) {
+                mBound = false;
+                mServiceBinder.unbindService(this);
+            }
+            if (mConnections.get(mComponentName) == this) {
+                mConnections.remove(mComponentName);
+            }
+            dropTasks(tasks);
+        }
+
+        private void runQueue() {
+            Iterator<Message> it = mTaskQueue.iterator();
+            while (it.hasNext()) {
+                Message message = it.next();
+                it.remove();
+                message.replyTo = mMessenger;
+                message.arg1 = getTaskId();
+                mRunningTasks++;
+
+                try {
+                    mRemoteMessenger.send(message);
+                } catch (RemoteException e) {
+                    VvmLog.e(TAG, "Error sending message to remote service", e);
+                }
+            }
+        }
+    }
+}
@@ -28,10 +28,7 @@ import android.content.pm.ResolveInfo;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
-import android.os.Messenger;
 import android.os.PersistableBundle;
-import android.os.RemoteException;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telephony.CarrierConfigManager;
@@ -44,9 +41,7 @@ import com.android.phone.Assert;
 import com.android.phone.R;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 
 /**
  * Service to manage tasks issued to the {@link VisualVoicemailService}. This service will bind to
@@ -55,7 +50,7 @@ import java.util.Queue;
  * VisualVoicemailService.VisualVoicemailTask#finish()} has been called on all issued tasks.
  *
  * If the service is already running it will be reused for new events. The service will stop itself
- * after all events are handled.
+ * once no event has been handled for a while, see {@link RemoteVvmTaskDispatcher}.
  */
 public class RemoteVvmTaskManager extends Service {
 
@@ -73,15 +68,7 @@ public class RemoteVvmTaskManager extends Service {
 
     private static final String EXTRA_TARGET_PACKAGE = "target_package";
 
-    // TODO(twyen): track task individually to have time outs.
-    private int mTaskReferenceCount;
-
-    private RemoteServiceConnection mConnection;
-
-    /**
-     * Handles incoming messages from the VisualVoicemailService.
-     */
-    private Messenger mMessenger;
+    private RemoteVvmTaskDispatcher mDispatcher;
 
     static void startCellServiceConnected(Context context,
             PhoneAccountHandle phoneAccountHandle) {
@@ -136,7 +123,7 @@ public class RemoteVvmTaskManager extends Service {
             return broadcastPackage;
         }
 
-        Intent bindIntent = newBindIntent(context);
+        Intent bindIntent = newBindIntent();
 
         TelecomManager telecomManager = context.getSystemService(TelecomManager.class);
         List<String> packages = new ArrayList<>();
@@ -210,30 +197,32 @@ public class RemoteVvmTaskManager extends Service {
     @Override
     public void onCreate() {
         Assert.isMainThread();
-        mMessenger = new Messenger(new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                Assert.isMainThread();
-                switch (msg.what) {
-                    case VisualVoicemailService.MSG_TASK_ENDED:
-                        mTaskReferenceCount--;
-                        checkReference();
-                        break;
-                    default:
-                        VvmLog.wtf(TAG, "unexpected message " + msg.what);
-                }
-            }
-        });
+        mDispatcher = new RemoteVvmTaskDispatcher(new Handler(),
+                new RemoteVvmTaskDispatcher.ServiceBinder() {
+                    @Override
+                    public boolean bindService(Intent intent, ServiceConnection connection) {
+                        return RemoteVvmTaskManager.this.bindService(intent, connection,
+                                Context.BIND_AUTO_CREATE);
+                    }
+
+                    @Override
+                    public void unbindService(ServiceConnection connection) {
+                        RemoteVvmTaskManager.this.unbindService(connection);
+                    }
+                }, this::stopSelf);
+    }
+
+    @Override
+    public void onDestroy() {
+        mDispatcher.unbindAll();
     }
 
     @Override
     public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
         Assert.isMainThread();
-        mTaskReferenceCount++;
 
         if (intent == null) {
             VvmLog.i(TAG, "received intent is null");
-            checkReference();
             return START_NOT_STICKY;
         }
         PhoneAccountHandle phoneAccountHandle = intent.getExtras()
@@ -243,7 +232,6 @@ public class RemoteVvmTaskManager extends Service {
                 intent.getStringExtra(EXTRA_TARGET_PACKAGE));
         if (remotePackage == null) {
             VvmLog.i(TAG, "No service to handle " + intent.getAction() + ", ignoring");
-            checkReference();
             return START_NOT_STICKY;
         }
 
@@ -272,69 +260,6 @@ public class RemoteVvmTaskManager extends Service {
         return null;
     }
 
-    private int getTaskId() {
-        // TODO(twyen): generate unique IDs. Reference counting is used now so it doesn't matter.
-        return 1;
-    }
-
-    /**
-     * Class for interacting with the main interface of the service.
-     */
-    private class RemoteServiceConnection implements ServiceConnection {
-
-        private final Queue<Message> mTaskQueue = new LinkedList<>();
-
-        private boolean mConnected;
-
-        /**
-         * A handler in the VisualVoicemailService
-         */
-        private Messenger mRemoteMessenger;
-
-        public void enqueue(Message message) {
-            mTaskQueue.add(message);
-            if (mConnected) {
-                runQueue();
-            }
-        }
-
-        public boolean isConnected() {
-            return mConnected;
-        }
-
-        public void onServiceConnected(ComponentName className,
-                IBinder service) {
-            mRemoteMessenger = new Messenger(service);
-            mConnected = true;
-            runQueue();
-        }
-
-        public void onServiceDisconnected(ComponentName className) {
-            mConnection = null;
-            mConnected = false;
-            mRemoteMessenger = null;
-            VvmLog.e(TAG, "Service disconnected, " + mTaskReferenceCount + " tasks dropped.");
-            mTaskReferenceCount = 0;
-            checkReference();
-        }
-
-        private void runQueue() {
-            Assert.isMainThread();
-            Message message = mTaskQueue.poll();
-            while (message != null) {
-                message.replyTo = mMessenger;
-                message.arg1 = getTaskId();
-
-                try {
-                    mRemoteMessenger.send(message);
-                } catch (RemoteException e) {
-                    VvmLog.e(TAG, "Error sending message to remote service", e);
-                }
-                message = mTaskQueue.poll();
-            }
-        }
-    }
-
     private void send(ComponentName remotePackage, int what, Bundle extras) {
         Assert.isMainThread();
 
@@ -355,33 +280,10 @@ public class RemoteVvmTaskManager extends Service {
             return;
         }
 
-        Message message = Message.obtain();
-        message.what = what;
-        message.setData(new Bundle(extras));
-        if (mConnection == null) {
-            mConnection = new RemoteServiceConnection();
-        }
-        mConnection.enqueue(message);
-
-        if (!mConnection.isConnected()) {
-            Intent intent = newBindIntent(this);
-            intent.setComponent(remotePackage);
-            VvmLog.i(TAG, "Binding to " + intent.getComponent());
-            bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
-        }
-    }
-
-    private void checkReference() {
-        if (mConnection == null) {
-            return;
-        }
-        if (mTaskReferenceCount == 0) {
-            unbindService(mConnection);
-            mConnection = null;
-        }
+        mDispatcher.dispatch(remotePackage, what, extras);
     }
 
-    private static Intent newBindIntent(Context context) {
+    static Intent newBindIntent() {
         Intent intent = new Intent();
         intent.setAction(VisualVoicemailService.SERVICE_INTERFACE);
         return intent;
@@ -18,73 +18,103 @@ package com.android.phone.vvm;
 import android.annotation.Nullable;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PersistableBundle;
 import android.preference.PreferenceManager;
 import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.phone.NeededForTesting;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Set;
 
 /**
- * Save visual voicemail values in shared preferences to be retrieved later. Because a voicemail
- * source is tied 1:1 to a phone account, the phone account handle is used in the key for each
- * voicemail source and the associated data.
+ * Save visual voicemail values to be retrieved later. Because a voicemail source is tied 1:1 to a
+ * phone account, the values of each phone account are stored in their own file.
+ *
+ * <p>The values of an account are read once and then served from memory. Edits are applied to
+ * memory right away, and written together in the background a short while later, by writing a
+ * new file and renaming it over the old one. Values stored in the shared preferences by earlier
+ * versions are moved to the file on first use.
  */
 public class VisualVoicemailPreferences {
 
+    private static final String TAG = "VvmPreferences";
+
     private static final String VISUAL_VOICEMAIL_SHARED_PREFS_KEY_PREFIX =
             "visual_voicemail_";
+    // The keys stored in the shared preferences by earlier versions which are still read.
+    private static final String[] LEGACY_KEYS = {
+            VisualVoicemailSettingsUtil.IS_ENABLED_KEY,
+            VisualVoicemailSettingsUtil.DEFAULT_OLD_PIN_KEY};
+    private static final String FILE_NAME_PREFIX = "visual_voicemail_";
+    private static final String FILE_NAME_SUFFIX = ".xml";
+
+    @VisibleForTesting
+    public static final long WRITE_DELAY_MILLIS = 500;
 
-    private final SharedPreferences mPreferences;
-    private final PhoneAccountHandle mPhoneAccountHandle;
+    private static final Map<String, Store> sStores = new ArrayMap<>();
+    private static Handler sWriteHandler;
+
+    private final Store mStore;
 
     public VisualVoicemailPreferences(Context context, PhoneAccountHandle phoneAccountHandle) {
-        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        mPhoneAccountHandle = phoneAccountHandle;
+        mStore = getStore(context, phoneAccountHandle);
     }
 
     public class Editor {
 
-        private final SharedPreferences.Editor mEditor;
+        private final Map<String, Object> mChanges = new ArrayMap<>();
 
         private Editor() {
-            mEditor = mPreferences.edit();
         }
 
         public void apply() {
-            mEditor.apply();
+            mStore.apply(mChanges);
         }
 
         public Editor putBoolean(String key, boolean value) {
-            mEditor.putBoolean(getKey(key), value);
+            mChanges.put(key, value);
             return this;
         }
 
         @NeededForTesting
         public Editor putFloat(String key, float value) {
-            mEditor.putFloat(getKey(key), value);
+            mChanges.put(key, value);
             return this;
         }
 
         public Editor putInt(String key, int value) {
-            mEditor.putInt(getKey(key), value);
+            mChanges.put(key, value);
             return this;
         }
 
         @NeededForTesting
         public Editor putLong(String key, long value) {
-            mEditor.putLong(getKey(key), value);
+            mChanges.put(key, value);
             return this;
         }
 
         public Editor putString(String key, String value) {
-            mEditor.putString(getKey(key), value);
+            mChanges.put(key, value);
             return this;
         }
 
         @NeededForTesting
         public Editor putStringSet(String key, Set<String> value) {
-            mEditor.putStringSet(getKey(key), value);
+            mChanges.put(key, value == null ? null : new ArraySet<>(value));
             return this;
         }
     }
@@ -99,7 +129,9 @@ public class VisualVoicemailPreferences {
 
     @NeededForTesting
     public float getFloat(String key, float defValue) {
-        return getValue(key, defValue);
+        // Stored as a double.
+        Number value = getValue(key, null);
+        return value == null ? defValue : value.floatValue();
     }
 
     public int getInt(String key, int defValue) {
@@ -122,25 +154,217 @@ public class VisualVoicemailPreferences {
 
     @NeededForTesting
     public Set<String> getStringSet(String key, Set<String> defValue) {
-        return getValue(key, defValue);
+        Set<String> value = getValue(key, null);
+        return value == null ? defValue : new ArraySet<>(value);
     }
 
     public boolean contains(String key) {
-        return mPreferences.contains(getKey(key));
+        return mStore.get(key) != null;
+    }
+
+    @VisibleForTesting
+    public int getWriteCount() {
+        return mStore.getWriteCount();
     }
 
     private <T> T getValue(String key, T defValue) {
-        if (!contains(key)) {
-            return defValue;
-        }
-        Object object = mPreferences.getAll().get(getKey(key));
+        Object object = mStore.get(key);
         if (object == null) {
             return defValue;
         }
         return (T) object;
     }
 
-    private String getKey(String key) {
-        return VISUAL_VOICEMAIL_SHARED_PREFS_KEY_PREFIX + key + "_" + mPhoneAccountHandle.getId();
+    private static Store getStore(Context context, PhoneAccountHandle phoneAccountHandle) {
+        synchronized (sStores) {
+            Store store = sStores.get(phoneAccountHandle.getId());
+            if (store == null) {
+                store = new Store(context, phoneAccountHandle.getId(),
+                        getFile(context, phoneAccountHandle));
+                sStores.put(phoneAccountHandle.getId(), store);
+            }
+            return store;
+        }
+    }
+
+    private static synchronized Handler getWriteHandler() {
+        if (sWriteHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sWriteHandler = new Handler(thread.getLooper());
+        }
+        return sWriteHandler;
+    }
+
+    @VisibleForTesting
+    public static File getFile(Context context, PhoneAccountHandle phoneAccountHandle) {
+        return new File(context.getFilesDir(),
+                FILE_NAME_PREFIX + Uri.encode(phoneAccountHandle.getId()) + FILE_NAME_SUFFIX);
+    }
+
+    /**
+     * Writes the pending edits now, and forgets the values read so that they are read again,
+     * as after a restart.
+     */
+    @VisibleForTesting
+    public static void resetForTest() {
+        synchronized (sStores) {
+            for (Store store : sStores.values()) {
+                getWriteHandler().removeCallbacks(store.mWrite);
+                store.write(false);
+            }
+            sStores.clear();
+        }
+    }
+
+    /**
+     * The values of a phone account.
+     */
+    private static class Store {
+        private final String mPhoneAccountId;
+        private final AtomicFile mFile;
+        private final Map<String, Object> mValues = new ArrayMap<>();
+        private final Runnable mWrite = () -> {
+            if (!write(false)) {
+                // Try again later rather than losing the edits.
+                synchronized (this) {
+                    scheduleWrite();
+                }
+            }
+        };
+
+        private boolean mWritePending;
+        private int mWriteCount;
+
+        Store(Context context, String phoneAccountId, File file) {
+            mPhoneAccountId = phoneAccountId;
+            mFile = new AtomicFile(file);
+            if (mFile.exists()) {
+                read();
+            } else {
+                migrate(context);
+            }
+        }
+
+        synchronized Object get(String key) {
+            return mValues.get(key);
+        }
+
+        synchronized int getWriteCount() {
+            return mWriteCount;
+        }
+
+        synchronized void apply(Map<String, Object> changes) {
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                if (entry.getValue() == null) {
+                    mValues.remove(entry.getKey());
+                } else {
+                    mValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+            scheduleWrite();
+        }
+
+        private void scheduleWrite() {
+            if (!mWritePending) {
+                mWritePending = true;
+                getWriteHandler().postDelayed(mWrite, WRITE_DELAY_MILLIS);
+            }
+        }
+
+        private void read() {
+            PersistableBundle bundle;
+            try (FileInputStream in = mFile.openRead()) {
+                bundle = PersistableBundle.readFromStream(in);
+            } catch (FileNotFoundException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                VvmLog.e(TAG, "Cannot read values of " + mPhoneAccountId, e);
+                return;
+            }
+            for (String key : bundle.keySet()) {
+                Object value = bundle.get(key);
+                if (value instanceof String[]) {
+                    value = new ArraySet<>(Arrays.asList((String[]) value));
+                }
+                mValues.put(key, value);
+            }
+        }
+
+        // Moves the values stored in the shared preferences by earlier versions. Only whole keys
+        // are matched, as account ids may contain "_" and end like the id of another account.
+        private void migrate(Context context) {
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+            Map<String, ?> legacyValues = preferences.getAll();
+            SharedPreferences.Editor editor = null;
+            for (String key : LEGACY_KEYS) {
+                String legacyKey = VISUAL_VOICEMAIL_SHARED_PREFS_KEY_PREFIX + key + "_"
+                        + mPhoneAccountId;
+                Object value = legacyValues.get(legacyKey);
+                if (value == null) {
+                    continue;
+                }
+                mValues.put(key, value);
+                if (editor == null) {
+                    editor = preferences.edit();
+                }
+                editor.remove(legacyKey);
+            }
+            if (editor == null) {
+                return;
+            }
+            VvmLog.i(TAG, "Migrating " + mValues.size() + " values of " + mPhoneAccountId);
+            // The old values are only removed once the new file is in place, otherwise they are
+            // migrated again on the next start.
+            if (write(true)) {
+                editor.apply();
+            }
+        }
+
+        /**
+         * @return false if the values could not be written.
+         */
+        private boolean write(boolean force) {
+            PersistableBundle bundle = new PersistableBundle();
+            synchronized (this) {
+                if (!mWritePending && !force) {
+                    return true;
+                }
+                mWritePending = false;
+                for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+                    putValue(bundle, entry.getKey(), entry.getValue());
+                }
+                mWriteCount++;
+            }
+            synchronized (mFile) {
+                FileOutputStream out = null;
+                try {
+                    out = mFile.startWrite();
+                    bundle.writeToStream(out);
+                    mFile.finishWrite(out);
+                    return true;
+                } catch (IOException | RuntimeException e) {
+                    VvmLog.e(TAG, "Cannot write values of " + mPhoneAccountId, e);
+                    mFile.failWrite(out);
+                    return false;
+                }
+            }
+        }
+
+        private static void putValue(PersistableBundle bundle, String key, Object value) {
+            if (value instanceof Boolean) {
+                bundle.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Integer) {
+                bundle.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                bundle.putLong(key, (Long) value);
+            } else if (value instanceof Number) {
+                bundle.putDouble(key, ((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                bundle.putString(key, (String) value);
+            } else if (value instanceof Set) {
+                bundle.putStringArray(key, ((Set<String>) value).toArray(new String[0]));
+            }
+        }
     }
 }
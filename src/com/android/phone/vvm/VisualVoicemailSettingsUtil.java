@@ -25,9 +25,9 @@ import android.telephony.TelephonyManager;
  */
 public class VisualVoicemailSettingsUtil {
 
-    private static final String IS_ENABLED_KEY = "is_enabled";
+    static final String IS_ENABLED_KEY = "is_enabled";
 
-    private static final String DEFAULT_OLD_PIN_KEY = "default_old_pin";
+    static final String DEFAULT_OLD_PIN_KEY = "default_old_pin";
 
     public static Bundle dump(Context context, PhoneAccountHandle phoneAccountHandle){
         Bundle result = new Bundle();
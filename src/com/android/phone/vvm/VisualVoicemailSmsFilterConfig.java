@@ -16,24 +16,89 @@
 package com.android.phone.vvm;
 
 import android.annotation.Nullable;
+import android.app.role.OnRoleHoldersChangedListener;
+import android.app.role.RoleManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerExecutor;
+import android.os.UserHandle;
 import android.preference.PreferenceManager;
+import android.telecom.TelecomManager;
+import android.telephony.CarrierConfigManager;
 import android.telephony.VisualVoicemailSmsFilterSettings;
+import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Stores the config values needed for visual voicemail sms filtering. The values from
  * OmtpVvmCarrierConfigHelper are stored here during activation instead. These values are read and
  * written through TelephonyManager.
+ *
+ * <p>The settings are read from storage once and then served from memory, as they are looked up
+ * for every incoming SMS. Writes go to both. The package whose settings are active is resolved
+ * once per subscription, until packages of any user, the dialer role holders, the foreground user
+ * or the carrier config change.
  */
 public class VisualVoicemailSmsFilterConfig {
 
+    private static final String TAG = "VvmSmsFilterConfig";
+
+    /**
+     * Resolves the package of the active visual voicemail client.
+     */
+    @VisibleForTesting
+    public interface PackageResolver {
+        /**
+         * @return the package of the active client of the subscription, or null.
+         */
+        @Nullable
+        String getActivePackage(Context context, int subId);
+    }
+
+    private static final PackageResolver DEFAULT_PACKAGE_RESOLVER = (context, subId) -> {
+        ComponentName componentName = RemoteVvmTaskManager.getRemotePackage(context, subId);
+        return componentName == null ? null : componentName.getPackageName();
+    };
+
+    private static final Object sLock = new Object();
+    // The following are guarded by sLock.
+    // The enabled settings, by per phone account key prefix.
+    private static final Map<String, VisualVoicemailSmsFilterSettings> sSettings =
+            new ArrayMap<>();
+    // The package of the active client, by subId.
+    private static final SparseArray<String> sActivePackages = new SparseArray<>();
+    // Incremented when the active packages are invalidated.
+    private static int sActivePackagesGeneration;
+    private static boolean sLoaded;
+    private static PackageResolver sPackageResolver = DEFAULT_PACKAGE_RESOLVER;
+
+    private static final BroadcastReceiver sActivePackageInvalidator = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidateActivePackages();
+        }
+    };
+
+    private static final OnRoleHoldersChangedListener sRoleHoldersChangedListener =
+            (roleName, user) -> {
+                if (RoleManager.ROLE_DIALER.equals(roleName)) {
+                    invalidateActivePackages();
+                }
+            };
+
     private static final String VVM_SMS_FILTER_COFIG_SHARED_PREFS_KEY_PREFIX =
             "vvm_sms_filter_config_";
     private static final String ENABLED_KEY = "_enabled";
@@ -42,32 +107,89 @@ public class VisualVoicemailSmsFilterConfig {
     private static final String DESTINATION_PORT_KEY = "_destination_port";
     private static final String DEFAULT_PACKAGE = "com.android.phone";
 
+    /**
+     * Loads the settings of all packages, and starts tracking the active packages.
+     */
+    public static void init(Context context) {
+        synchronized (sLock) {
+            ensureLoaded(context);
+        }
+        registerForActivePackageChanges(context, new Handler(context.getMainLooper()));
+    }
+
+    /**
+     * Registers for the changes which invalidate the active packages, handled on the handler.
+     */
+    @VisibleForTesting
+    public static void registerForActivePackageChanges(Context context, Handler handler) {
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiverForAllUsers(sActivePackageInvalidator, packageFilter,
+                null /* broadcastPermission */, handler);
+        IntentFilter configFilter = new IntentFilter();
+        configFilter.addAction(TelecomManager.ACTION_DEFAULT_DIALER_CHANGED);
+        configFilter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        configFilter.addAction(Intent.ACTION_USER_SWITCHED);
+        context.registerReceiverForAllUsers(sActivePackageInvalidator, configFilter,
+                null /* broadcastPermission */, handler);
+        RoleManager roleManager = context.getSystemService(RoleManager.class);
+        if (roleManager != null) {
+            roleManager.addOnRoleHoldersChangedListenerAsUser(new HandlerExecutor(handler),
+                    sRoleHoldersChangedListener, UserHandle.ALL);
+        }
+    }
+
     public static void enableVisualVoicemailSmsFilter(Context context, String callingPackage,
             int subId,
             VisualVoicemailSmsFilterSettings settings) {
-        new Editor(context, callingPackage, subId)
-                .setBoolean(ENABLED_KEY, true)
-                .setString(PREFIX_KEY, settings.clientPrefix)
-                .setStringList(ORIGINATING_NUMBERS_KEY, settings.originatingNumbers)
-                .setInt(DESTINATION_PORT_KEY, settings.destinationPort)
-                .apply();
+        synchronized (sLock) {
+            ensureLoaded(context);
+            new Editor(context, callingPackage, subId)
+                    .setBoolean(ENABLED_KEY, true)
+                    .setString(PREFIX_KEY, settings.clientPrefix)
+                    .setStringList(ORIGINATING_NUMBERS_KEY, settings.originatingNumbers)
+                    .setInt(DESTINATION_PORT_KEY, settings.destinationPort)
+                    .apply();
+            sSettings.put(makePerPhoneAccountKeyPrefix(callingPackage, subId),
+                    read(context, callingPackage, subId));
+        }
     }
 
     public static void disableVisualVoicemailSmsFilter(Context context, String callingPackage,
             int subId) {
-        new Editor(context, callingPackage, subId)
-                .setBoolean(ENABLED_KEY, false)
-                .apply();
+        synchronized (sLock) {
+            ensureLoaded(context);
+            new Editor(context, callingPackage, subId)
+                    .setBoolean(ENABLED_KEY, false)
+                    .apply();
+            sSettings.remove(makePerPhoneAccountKeyPrefix(callingPackage, subId));
+        }
     }
 
     public static VisualVoicemailSmsFilterSettings getActiveVisualVoicemailSmsFilterSettings(
             Context context, int subId) {
-        ComponentName componentName = RemoteVvmTaskManager.getRemotePackage(context, subId);
         String packageName;
-        if (componentName == null) {
-            packageName = DEFAULT_PACKAGE;
-        } else {
-            packageName = componentName.getPackageName();
+        int generation;
+        PackageResolver packageResolver;
+        synchronized (sLock) {
+            packageName = sActivePackages.get(subId);
+            generation = sActivePackagesGeneration;
+            packageResolver = sPackageResolver;
+        }
+        if (packageName == null) {
+            // Resolved without the lock, as it calls into other services.
+            packageName = packageResolver.getActivePackage(context, subId);
+            if (packageName == null) {
+                packageName = DEFAULT_PACKAGE;
+            }
+            synchronized (sLock) {
+                if (generation == sActivePackagesGeneration) {
+                    sActivePackages.put(subId, packageName);
+                }
+            }
         }
         return getVisualVoicemailSmsFilterSettings(
                 context,
@@ -79,10 +201,74 @@ public class VisualVoicemailSmsFilterConfig {
     public static VisualVoicemailSmsFilterSettings getVisualVoicemailSmsFilterSettings(
             Context context,
             String packageName, int subId) {
-        Reader reader = new Reader(context, packageName, subId);
-        if (!reader.getBoolean(ENABLED_KEY, false)) {
-            return null;
+        synchronized (sLock) {
+            ensureLoaded(context);
+            return sSettings.get(makePerPhoneAccountKeyPrefix(packageName, subId));
+        }
+    }
+
+    /**
+     * Forgets the active packages, to resolve them again on the next lookup.
+     */
+    @VisibleForTesting
+    public static void invalidateActivePackages() {
+        synchronized (sLock) {
+            sActivePackages.clear();
+            sActivePackagesGeneration++;
+        }
+    }
+
+    /**
+     * Drops everything held in memory, as after a restart of the process.
+     */
+    @VisibleForTesting
+    public static void resetForTest(@Nullable PackageResolver packageResolver) {
+        synchronized (sLock) {
+            sSettings.clear();
+            sActivePackages.clear();
+            sActivePackagesGeneration++;
+            sLoaded = false;
+            sPackageResolver = packageResolver != null ? packageResolver
+                    : DEFAULT_PACKAGE_RESOLVER;
+        }
+    }
+
+    // Reads the enabled settings of all packages, once.
+    private static void ensureLoaded(Context context) {
+        if (sLoaded) {
+            return;
         }
+        for (Map.Entry<String, ?> entry : getSharedPreferences(context).getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(VVM_SMS_FILTER_COFIG_SHARED_PREFS_KEY_PREFIX)
+                    || !key.endsWith(ENABLED_KEY) || !Boolean.TRUE.equals(entry.getValue())) {
+                continue;
+            }
+            // The key is made of the package name and the subId, the latter without "_".
+            String packageAndSubId = key.substring(
+                    VVM_SMS_FILTER_COFIG_SHARED_PREFS_KEY_PREFIX.length(),
+                    key.length() - ENABLED_KEY.length());
+            int separator = packageAndSubId.lastIndexOf('_');
+            if (separator < 0) {
+                continue;
+            }
+            int subId;
+            try {
+                subId = Integer.parseInt(packageAndSubId.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                VvmLog.w(TAG, "Ignoring malformed key " + key);
+                continue;
+            }
+            String packageName = packageAndSubId.substring(0, separator);
+            sSettings.put(makePerPhoneAccountKeyPrefix(packageName, subId),
+                    read(context, packageName, subId));
+        }
+        sLoaded = true;
+    }
+
+    private static VisualVoicemailSmsFilterSettings read(Context context, String packageName,
+            int subId) {
+        Reader reader = new Reader(context, packageName, subId);
         return new VisualVoicemailSmsFilterSettings.Builder()
                 .setClientPrefix(reader.getString(PREFIX_KEY,
                         VisualVoicemailSmsFilterSettings.DEFAULT_CLIENT_PREFIX))
@@ -165,10 +351,6 @@ public class VisualVoicemailSmsFilterConfig {
             return mPrefs.getString(makeKey(key), defaultValue);
         }
 
-        private boolean getBoolean(String key, boolean defaultValue) {
-            return mPrefs.getBoolean(makeKey(key), defaultValue);
-        }
-
         private List<String> getStringSet(String key, List<String> defaultValue) {
             Set<String> result = mPrefs.getStringSet(makeKey(key), null);
             if (result == null) {
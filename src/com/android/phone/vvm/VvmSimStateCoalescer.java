@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm;
+
+import android.os.Handler;
+import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns the SIM broadcasts received by {@link VvmSimStateTracker} into one connected or removed
+ * event per account and real change. All methods must be called on the thread of the handler.
+ *
+ * <p>Broadcasts are not acted upon right away: the accounts they concern are noted, and looked at
+ * once no other broadcast arrived for a short while, so that the bursts of carrier config and SIM
+ * state changes sent during boot or a SIM swap only leave their net transition. An account is
+ * either unknown, waiting for service or connected; a carrier config change moves it to connected
+ * (or waiting for service), and its removal moves it back to unknown.
+ */
+public class VvmSimStateCoalescer {
+
+    private static final String TAG = "VvmSimStateCoalescer";
+
+    @VisibleForTesting
+    public static final long COALESCE_DELAY_MILLIS = 500;
+
+    /**
+     * Queries the telephony state and sends the events, for the coalescer.
+     */
+    public interface Host {
+        boolean isBootCompleted();
+
+        boolean isActive(PhoneAccountHandle phoneAccountHandle);
+
+        boolean isInService(PhoneAccountHandle phoneAccountHandle);
+
+        /**
+         * Starts reporting the service state of the account to
+         * {@link #onServiceStateChanged(PhoneAccountHandle, boolean)}.
+         */
+        void listen(PhoneAccountHandle phoneAccountHandle);
+
+        void unlisten(PhoneAccountHandle phoneAccountHandle);
+
+        void sendConnected(PhoneAccountHandle phoneAccountHandle);
+
+        void sendSimRemoved(PhoneAccountHandle phoneAccountHandle);
+    }
+
+    private static final int STATE_WAITING_FOR_SERVICE = 0;
+    private static final int STATE_CONNECTED = 1;
+
+    private final Handler mHandler;
+    private final Host mHost;
+    private final Runnable mFlush = this::flush;
+
+    /** The state of the known accounts. Unknown accounts are not in the map. */
+    private final Map<PhoneAccountHandle, Integer> mStates = new ArrayMap<>();
+
+    /**
+     * Accounts whose carrier config changed since the last flush. Before boot, they are kept until
+     * the device has fully booted.
+     */
+    private final Set<PhoneAccountHandle> mConfigChanged = new ArraySet<>();
+
+    private long mBroadcasts;
+    private long mEvents;
+
+    public VvmSimStateCoalescer(Handler handler, Host host) {
+        mHandler = handler;
+        mHost = host;
+    }
+
+    public void onBootCompleted() {
+        scheduleFlush();
+    }
+
+    public void onCarrierConfigChanged(PhoneAccountHandle phoneAccountHandle) {
+        mConfigChanged.add(phoneAccountHandle);
+        scheduleFlush();
+    }
+
+    /**
+     * A SIM might have been removed. Which one is found out when flushing.
+     */
+    public void onSimRemoved() {
+        scheduleFlush();
+    }
+
+    public void onServiceStateChanged(PhoneAccountHandle phoneAccountHandle, boolean inService) {
+        Integer state = mStates.get(phoneAccountHandle);
+        if (!inService || state == null || state != STATE_WAITING_FOR_SERVICE) {
+            return;
+        }
+        VvmLog.i(TAG, "in service");
+        mHost.unlisten(phoneAccountHandle);
+        mStates.put(phoneAccountHandle, STATE_CONNECTED);
+        sendConnected(phoneAccountHandle);
+    }
+
+    @VisibleForTesting
+    public long getBroadcastCount() {
+        return mBroadcasts;
+    }
+
+    @VisibleForTesting
+    public long getEventCount() {
+        return mEvents;
+    }
+
+    private void scheduleFlush() {
+        mBroadcasts++;
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, COALESCE_DELAY_MILLIS);
+    }
+
+    private void flush() {
+        if (!mHost.isBootCompleted()) {
+            mConfigChanged.removeIf(phoneAccountHandle -> !mHost.isActive(phoneAccountHandle));
+            return;
+        }
+
+        List<PhoneAccountHandle> removed = new ArrayList<>();
+        for (Map.Entry<PhoneAccountHandle, Integer> entry : mStates.entrySet()) {
+            if (!mHost.isActive(entry.getKey())) {
+                removed.add(entry.getKey());
+            }
+        }
+        for (PhoneAccountHandle phoneAccountHandle : removed) {
+            if (mStates.remove(phoneAccountHandle) == STATE_WAITING_FOR_SERVICE) {
+                mHost.unlisten(phoneAccountHandle);
+            }
+            mEvents++;
+            VvmLog.i(TAG, "Sim removed on " + phoneAccountHandle);
+            mHost.sendSimRemoved(phoneAccountHandle);
+        }
+
+        for (PhoneAccountHandle phoneAccountHandle : mConfigChanged) {
+            if (!mHost.isActive(phoneAccountHandle)) {
+                // Inserted and removed again.
+                continue;
+            }
+            Integer state = mStates.get(phoneAccountHandle);
+            if (mHost.isInService(phoneAccountHandle)) {
+                if (state != null && state == STATE_WAITING_FOR_SERVICE) {
+                    mHost.unlisten(phoneAccountHandle);
+                }
+                mStates.put(phoneAccountHandle, STATE_CONNECTED);
+                sendConnected(phoneAccountHandle);
+            } else if (state == null || state != STATE_WAITING_FOR_SERVICE) {
+                mStates.put(phoneAccountHandle, STATE_WAITING_FOR_SERVICE);
+                mHost.listen(phoneAccountHandle);
+            } else {
+                VvmLog.i(TAG, "Listener is registered for " + phoneAccountHandle);
+            }
+        }
+        mConfigChanged.clear();
+        VvmLog.i(TAG, mBroadcasts + " broadcasts led to " + mEvents + " events so far");
+    }
+
+    private void sendConnected(PhoneAccountHandle phoneAccountHandle) {
+        mEvents++;
+        VvmLog.i(TAG, "Service connected on " + phoneAccountHandle);
+        mHost.sendConnected(phoneAccountHandle);
+    }
+}
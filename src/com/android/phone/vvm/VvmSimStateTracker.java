@@ -32,7 +32,6 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyManager;
 import android.util.ArrayMap;
-import android.util.ArraySet;
 
 import com.android.internal.telephony.IccCardConstants;
 import com.android.internal.telephony.PhoneConstants;
@@ -40,7 +39,6 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.phone.PhoneUtils;
 
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Tracks the status of all inserted SIMs. Will notify {@link RemoteVvmTaskManager} of when a SIM
@@ -48,30 +46,25 @@ import java.util.Set;
  * the SIM is removed. Losing cell signal or entering airplane mode will not cause the connected
  * event to be triggered again. Reinserting the SIM will trigger the connected event. Changing the
  * carrier config will also trigger the connected event. Events will be delayed until the device has
- * been fully booted (and left FBE mode).
+ * been fully booted (and left FBE mode). Broadcasts arriving in a burst are coalesced by
+ * {@link VvmSimStateCoalescer}, so that each account gets one event per change.
  */
 public class VvmSimStateTracker extends BroadcastReceiver {
 
     private static final String TAG = "VvmSimStateTracker";
 
     /**
-     * Map to keep track of currently inserted SIMs. If the SIM hasn't been connected to the service
-     * before the value will be a {@link ServiceStateListener} that is still waiting for the
-     * connection. A value of {@code null} means the SIM has been connected to the service before.
+     * The listeners of the SIMs that haven't been connected to the service yet.
      */
     private static Map<PhoneAccountHandle, ServiceStateListener> sListeners = new ArrayMap<>();
 
-    /**
-     * Accounts that has events before the device is booted. The events should be regenerated after
-     * the device has fully booted.
-     */
-    private static Set<PhoneAccountHandle> sPreBootHandles = new ArraySet<>();
+    private static VvmSimStateCoalescer sCoalescer;
 
     /**
      * Waits for the account to become {@link ServiceState#STATE_IN_SERVICE} and notify the
-     * connected event. Will unregister itself once the event has been triggered.
+     * connected event. Will be unregistered once the event has been triggered.
      */
-    private class ServiceStateListener extends TelephonyCallback implements
+    private static class ServiceStateListener extends TelephonyCallback implements
             TelephonyCallback.ServiceStateListener  {
 
         private final PhoneAccountHandle mPhoneAccountHandle;
@@ -98,17 +91,79 @@ public class VvmSimStateTracker extends BroadcastReceiver {
             // (e.g. SIM removal)
             mContext.getSystemService(TelephonyManager.class)
                     .unregisterTelephonyCallback(this);
-            sListeners.put(mPhoneAccountHandle, null);
         }
 
         @Override
         public void onServiceStateChanged(ServiceState serviceState) {
-            if (serviceState.getState() == ServiceState.STATE_IN_SERVICE) {
-                VvmLog.i(TAG, "in service");
-                sendConnected(mContext, mPhoneAccountHandle);
-                unlisten();
+            getCoalescer(mContext).onServiceStateChanged(mPhoneAccountHandle,
+                    serviceState.getState() == ServiceState.STATE_IN_SERVICE);
+        }
+    }
+
+    /**
+     * Gives the coalescer access to the telephony state, and sends its events.
+     */
+    private static class Host implements VvmSimStateCoalescer.Host {
+        private final Context mContext;
+
+        Host(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public boolean isBootCompleted() {
+            return SystemProperties.getBoolean("sys.boot_completed", false);
+        }
+
+        @Override
+        public boolean isActive(PhoneAccountHandle phoneAccountHandle) {
+            return PhoneUtils.isPhoneAccountActive(SubscriptionManager.from(mContext),
+                    phoneAccountHandle);
+        }
+
+        @Override
+        public boolean isInService(PhoneAccountHandle phoneAccountHandle) {
+            TelephonyManager telephonyManager = getTelephonyManager(mContext, phoneAccountHandle);
+            if (telephonyManager == null) {
+                int subId = mContext.getSystemService(TelephonyManager.class)
+                        .getSubIdForPhoneAccount(mContext.getSystemService(TelecomManager.class)
+                                .getPhoneAccount(phoneAccountHandle));
+                VvmLog.e(TAG, "Cannot create TelephonyManager from " + phoneAccountHandle
+                        + ", subId=" + subId);
+                // TODO(b/33945549): investigate more why this is happening. The
+                // PhoneAccountHandle was just converted from a valid subId so
+                // createForPhoneAccountHandle shouldn't really return null.
+                return false;
+            }
+            return telephonyManager.getServiceState().getState()
+                    == ServiceState.STATE_IN_SERVICE;
+        }
+
+        @Override
+        public void listen(PhoneAccountHandle phoneAccountHandle) {
+            ServiceStateListener listener = new ServiceStateListener(mContext,
+                    phoneAccountHandle);
+            listener.listen();
+            sListeners.put(phoneAccountHandle, listener);
+        }
+
+        @Override
+        public void unlisten(PhoneAccountHandle phoneAccountHandle) {
+            ServiceStateListener listener = sListeners.remove(phoneAccountHandle);
+            if (listener != null) {
+                listener.unlisten();
             }
         }
+
+        @Override
+        public void sendConnected(PhoneAccountHandle phoneAccountHandle) {
+            RemoteVvmTaskManager.startCellServiceConnected(mContext, phoneAccountHandle);
+        }
+
+        @Override
+        public void sendSimRemoved(PhoneAccountHandle phoneAccountHandle) {
+            RemoteVvmTaskManager.startSimRemoved(mContext, phoneAccountHandle);
+        }
     }
 
     @Override
@@ -122,16 +177,16 @@ public class VvmSimStateTracker extends BroadcastReceiver {
         VvmLog.i(TAG, action);
         switch (action) {
             case Intent.ACTION_BOOT_COMPLETED:
-                onBootCompleted(context);
+                getCoalescer(context).onBootCompleted();
                 break;
             case TelephonyIntents.ACTION_SIM_STATE_CHANGED:
                 if (IccCardConstants.INTENT_VALUE_ICC_ABSENT.equals(
                         intent.getStringExtra(IccCardConstants.INTENT_KEY_ICC_STATE))) {
-                    // checkRemovedSim will scan all known accounts with isPhoneAccountActive() to find
-                    // which SIM is removed.
+                    // The coalescer will scan all known accounts with isPhoneAccountActive() to
+                    // find which SIM is removed.
                     // ACTION_SIM_STATE_CHANGED only provides subId which cannot be converted to a
                     // PhoneAccountHandle when the SIM is absent.
-                    checkRemovedSim(context);
+                    getCoalescer(context).onSimRemoved();
                 }
                 break;
             case CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED:
@@ -141,7 +196,7 @@ public class VvmSimStateTracker extends BroadcastReceiver {
                 SubscriptionManager subscriptionManager = SubscriptionManager.from(context);
                 if (!subscriptionManager.isActiveSubId(subId)) {
                     VvmLog.i(TAG, "Received SIM change for invalid subscription id.");
-                    checkRemovedSim(context);
+                    getCoalescer(context).onSimRemoved();
                     return;
                 }
 
@@ -154,101 +209,17 @@ public class VvmSimStateTracker extends BroadcastReceiver {
                                     + " Ignoring carrier config changed event");
                     return;
                 }
-                onCarrierConfigChanged(context, phoneAccountHandle);
-        }
-    }
-
-    private void onBootCompleted(Context context) {
-        for (PhoneAccountHandle phoneAccountHandle : sPreBootHandles) {
-            TelephonyManager telephonyManager = getTelephonyManager(context, phoneAccountHandle);
-            if (telephonyManager == null) {
-                continue;
-            }
-            if (telephonyManager.getServiceState().getState() == ServiceState.STATE_IN_SERVICE) {
-                sListeners.put(phoneAccountHandle, null);
-                sendConnected(context, phoneAccountHandle);
-            } else {
-                listenToAccount(context, phoneAccountHandle);
-            }
-        }
-        sPreBootHandles.clear();
-    }
-
-    private void sendConnected(Context context, PhoneAccountHandle phoneAccountHandle) {
-        VvmLog.i(TAG, "Service connected on " + phoneAccountHandle);
-        RemoteVvmTaskManager.startCellServiceConnected(context, phoneAccountHandle);
-    }
-
-    private void checkRemovedSim(Context context) {
-        SubscriptionManager subscriptionManager = SubscriptionManager.from(context);
-        if (!isBootCompleted()) {
-            for (PhoneAccountHandle phoneAccountHandle : sPreBootHandles) {
-                if (!PhoneUtils.isPhoneAccountActive(subscriptionManager, phoneAccountHandle)) {
-                    sPreBootHandles.remove(phoneAccountHandle);
-                }
-            }
-            return;
-        }
-        Set<PhoneAccountHandle> removeList = new ArraySet<>();
-        for (PhoneAccountHandle phoneAccountHandle : sListeners.keySet()) {
-            if (!PhoneUtils.isPhoneAccountActive(subscriptionManager, phoneAccountHandle)) {
-                removeList.add(phoneAccountHandle);
-                ServiceStateListener listener = sListeners.get(phoneAccountHandle);
-                if (listener != null) {
-                    listener.unlisten();
-                }
-                sendSimRemoved(context, phoneAccountHandle);
-            }
-        }
-
-        for (PhoneAccountHandle phoneAccountHandle : removeList) {
-            sListeners.remove(phoneAccountHandle);
-        }
-    }
-
-    private boolean isBootCompleted() {
-        return SystemProperties.getBoolean("sys.boot_completed", false);
-    }
-
-    private void sendSimRemoved(Context context, PhoneAccountHandle phoneAccountHandle) {
-        VvmLog.i(TAG, "Sim removed on " + phoneAccountHandle);
-        RemoteVvmTaskManager.startSimRemoved(context, phoneAccountHandle);
-    }
-
-    private void onCarrierConfigChanged(Context context, PhoneAccountHandle phoneAccountHandle) {
-        if (!isBootCompleted()) {
-            sPreBootHandles.add(phoneAccountHandle);
-            return;
-        }
-        TelephonyManager telephonyManager = getTelephonyManager(context, phoneAccountHandle);
-        if(telephonyManager == null){
-            int subId = context.getSystemService(TelephonyManager.class).getSubIdForPhoneAccount(
-                    context.getSystemService(TelecomManager.class)
-                            .getPhoneAccount(phoneAccountHandle));
-            VvmLog.e(TAG, "Cannot create TelephonyManager from " + phoneAccountHandle + ", subId="
-                    + subId);
-            // TODO(b/33945549): investigate more why this is happening. The PhoneAccountHandle was
-            // just converted from a valid subId so createForPhoneAccountHandle shouldn't really
-            // return null.
-            return;
-        }
-        if (telephonyManager.getServiceState().getState()
-                == ServiceState.STATE_IN_SERVICE) {
-            sendConnected(context, phoneAccountHandle);
-            sListeners.put(phoneAccountHandle, null);
-        } else {
-            listenToAccount(context, phoneAccountHandle);
+                getCoalescer(context).onCarrierConfigChanged(phoneAccountHandle);
         }
     }
 
-    private void listenToAccount(Context context, PhoneAccountHandle phoneAccountHandle) {
-        if (sListeners.get(phoneAccountHandle) != null) {
-            VvmLog.i(TAG, "Listener is registered for " + phoneAccountHandle);
-            return;
+    private static VvmSimStateCoalescer getCoalescer(Context context) {
+        // Broadcasts and service state changes are all received on the main thread.
+        if (sCoalescer == null) {
+            sCoalescer = new VvmSimStateCoalescer(new Handler(Looper.getMainLooper()),
+                    new Host(context.getApplicationContext()));
         }
-        ServiceStateListener listener = new ServiceStateListener(context, phoneAccountHandle);
-        listener.listen();
-        sListeners.put(phoneAccountHandle, listener);
+        return sCoalescer;
     }
 
     @Nullable
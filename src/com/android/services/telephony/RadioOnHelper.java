@@ -18,15 +18,18 @@ package com.android.services.telephony;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.LongSupplier;
 
 /**
  * Helper class that implements special behavior related to emergency calls or making phone calls
@@ -34,17 +37,50 @@ import java.util.List;
  * trying to dial an emergency number while the radio is off (i.e. the device is in airplane mode)
  * or a normal number while the radio is off (because of the device is on Bluetooth), by turning the
  * radio back on, waiting for it to come up, and then retrying the call.
+ *
+ * All radios are powered on at once, and the callback fires as soon as the phone selected for the
+ * call is ready, without waiting for the other phones.
  */
 public class RadioOnHelper implements RadioOnStateListener.Callback {
 
     private final Context mContext;
+    private final TelephonyConnectionService.PhoneFactoryProxy mPhoneFactoryProxy;
+    private final LongSupplier mClock;
+    private final RadioOnLatencyStats mStats;
     private RadioOnStateListener.Callback mCallback;
     private List<RadioOnStateListener> mListeners;
     private List<RadioOnStateListener> mInProgressListeners;
+    // The listener of the phone that will place the call, if any.
+    private RadioOnStateListener mSelectedListener;
     private boolean mIsRadioOnCallingEnabled;
 
     public RadioOnHelper(Context context) {
+        this(context, new TelephonyConnectionService.PhoneFactoryProxy() {
+            @Override
+            public Phone getPhone(int index) {
+                return PhoneFactory.getPhone(index);
+            }
+
+            @Override
+            public Phone getDefaultPhone() {
+                return PhoneFactory.getDefaultPhone();
+            }
+
+            @Override
+            public Phone[] getPhones() {
+                return PhoneFactory.getPhones();
+            }
+        }, SystemClock::elapsedRealtime, RadioOnLatencyStats.getInstance());
+    }
+
+    @VisibleForTesting
+    public RadioOnHelper(Context context,
+            TelephonyConnectionService.PhoneFactoryProxy phoneFactoryProxy, LongSupplier clock,
+            RadioOnLatencyStats stats) {
         mContext = context;
+        mPhoneFactoryProxy = phoneFactoryProxy;
+        mClock = clock;
+        mStats = stats;
         mInProgressListeners = new ArrayList<>(2);
     }
 
@@ -55,7 +91,7 @@ public class RadioOnHelper implements RadioOnStateListener.Callback {
         int activeModems = TelephonyManager.from(mContext).getActiveModemCount();
         // Add new listeners if active modem count increased.
         while (mListeners.size() < activeModems) {
-            mListeners.add(new RadioOnStateListener());
+            mListeners.add(new RadioOnStateListener(mClock, mStats));
         }
         // Clean up listeners if active modem count decreased.
         while (mListeners.size() > activeModems) {
@@ -70,6 +106,7 @@ public class RadioOnHelper implements RadioOnStateListener.Callback {
      * This method kicks off the following sequence:
      * - Power on the radio for each Phone
      * - Listen for radio events telling us the radio has come up.
+     * - Report as soon as phoneForEmergencyCall is ready, or once every Phone is done.
      * - Retry if we've gone a significant amount of time without any response from the radio.
      * - Finally, clean up any leftover state.
      *
@@ -82,14 +119,18 @@ public class RadioOnHelper implements RadioOnStateListener.Callback {
         setupListeners();
         mCallback = callback;
         mInProgressListeners.clear();
+        mSelectedListener = null;
         mIsRadioOnCallingEnabled = false;
-        for (int i = 0; i < TelephonyManager.from(mContext).getActiveModemCount(); i++) {
-            Phone phone = PhoneFactory.getPhone(i);
+        for (int i = 0; i < mListeners.size(); i++) {
+            Phone phone = mPhoneFactoryProxy.getPhone(i);
             if (phone == null) {
                 continue;
             }
 
             mInProgressListeners.add(mListeners.get(i));
+            if (phone == phoneForEmergencyCall) {
+                mSelectedListener = mListeners.get(i);
+            }
             mListeners.get(i).waitForRadioOn(phone, this, forEmergencyCall, forEmergencyCall
                     && phone == phoneForEmergencyCall);
         }
@@ -104,7 +145,7 @@ public class RadioOnHelper implements RadioOnStateListener.Callback {
 
         // Always try to turn on the radio here independent of APM setting - if we got here in the
         // first place, the radio is off independent of APM setting.
-        for (Phone phone : PhoneFactory.getPhones()) {
+        for (Phone phone : mPhoneFactoryProxy.getPhones()) {
             Log.d(this, "powerOnRadio, enabling Radio");
             if (isTestEmergencyNumber) {
                 phone.setRadioPowerOnForTestEmergencyCall(phone == phoneForEmergencyCall);
@@ -140,10 +181,26 @@ public class RadioOnHelper implements RadioOnStateListener.Callback {
      */
     @Override
     public void onComplete(RadioOnStateListener listener, boolean isRadioReady) {
+        if (!mInProgressListeners.remove(listener)) {
+            return;
+        }
         mIsRadioOnCallingEnabled |= isRadioReady;
-        mInProgressListeners.remove(listener);
-        if (mCallback != null && mInProgressListeners.isEmpty()) {
-            mCallback.onComplete(null, mIsRadioOnCallingEnabled);
+        if (mCallback == null) {
+            return;
+        }
+        // The first ready phone is good enough unless another phone was selected for the call.
+        boolean isCallingPhoneReady = isRadioReady
+                && (mSelectedListener == null || listener == mSelectedListener);
+        if (isCallingPhoneReady || mInProgressListeners.isEmpty()) {
+            RadioOnStateListener.Callback callback = mCallback;
+            mCallback = null;
+            // Stop waiting for the other phones, their radios have already been asked to power on.
+            List<RadioOnStateListener> remaining = new ArrayList<>(mInProgressListeners);
+            mInProgressListeners.clear();
+            for (RadioOnStateListener remainingListener : remaining) {
+                remainingListener.cleanup();
+            }
+            callback.onComplete(null, mIsRadioOnCallingEnabled);
         }
     }
 
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Latency statistics of the attempts {@link RadioOnStateListener} makes to power on a radio, and
+ * the retry interval derived from them.
+ */
+public class RadioOnLatencyStats {
+
+    // Upper bounds of the histogram buckets, the last bucket holds everything above.
+    private static final long[] BUCKET_UPPER_BOUNDS_MILLIS =
+            {100, 250, 500, 1000, 2000, 4000, 8000, 16000, 32000};
+
+    // Radio on latencies needed before the retry interval adapts to them.
+    @VisibleForTesting
+    public static final int MIN_SAMPLES_FOR_ADAPTIVE_RETRY = 3;
+    // Shortest interval between attempts to power on the radio.
+    @VisibleForTesting
+    public static final long MIN_RETRY_INTERVAL_MILLIS = 2000;
+
+    /**
+     * A histogram of latencies in fixed buckets.
+     */
+    @VisibleForTesting
+    public static class Histogram {
+        private final int[] mCounts = new int[BUCKET_UPPER_BOUNDS_MILLIS.length + 1];
+        private int mTotal;
+        private long mMaxMillis;
+
+        void record(long latencyMillis) {
+            int bucket = 0;
+            while (bucket < BUCKET_UPPER_BOUNDS_MILLIS.length
+                    && latencyMillis > BUCKET_UPPER_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mTotal++;
+            mMaxMillis = Math.max(mMaxMillis, latencyMillis);
+        }
+
+        public int getCount() {
+            return mTotal;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile, or the largest
+         * latency recorded if that is lower. 0 if nothing was recorded.
+         */
+        public long getPercentileMillis(int percentile) {
+            if (mTotal == 0) {
+                return 0;
+            }
+            int rank = Math.max(1, (int) Math.ceil(mTotal * percentile / 100.0));
+            int seen = 0;
+            for (int bucket = 0; bucket < BUCKET_UPPER_BOUNDS_MILLIS.length; bucket++) {
+                seen += mCounts[bucket];
+                if (seen >= rank) {
+                    return Math.min(BUCKET_UPPER_BOUNDS_MILLIS[bucket], mMaxMillis);
+                }
+            }
+            return mMaxMillis;
+        }
+
+        void dump(IndentingPrintWriter pw) {
+            StringBuilder sb = new StringBuilder();
+            for (int bucket = 0; bucket < mCounts.length; bucket++) {
+                if (bucket > 0) sb.append(' ');
+                sb.append(bucket < BUCKET_UPPER_BOUNDS_MILLIS.length
+                        ? "<=" + BUCKET_UPPER_BOUNDS_MILLIS[bucket]
+                        : ">" + BUCKET_UPPER_BOUNDS_MILLIS[bucket - 1]);
+                sb.append(':').append(mCounts[bucket]);
+            }
+            pw.println("count=" + mTotal + " p50=" + getPercentileMillis(50) + " p90="
+                    + getPercentileMillis(90) + " max=" + mMaxMillis);
+            pw.println(sb);
+        }
+    }
+
+    private static RadioOnLatencyStats sInstance;
+
+    private final Histogram mRadioOnLatency = new Histogram();
+    private final Histogram mReadyLatency = new Histogram();
+    private int mAttempts;
+    private int mPowerRetries;
+    private int mTimeouts;
+
+    /**
+     * @return the statistics shared by all {@link RadioOnStateListener}s.
+     */
+    public static synchronized RadioOnLatencyStats getInstance() {
+        if (sInstance == null) {
+            sInstance = new RadioOnLatencyStats();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public RadioOnLatencyStats() {
+    }
+
+    /** A listener started waiting for a radio. */
+    public synchronized void onAttemptStarted() {
+        mAttempts++;
+    }
+
+    /** A radio reported it is on, the given time after the attempt started. */
+    public synchronized void onRadioOn(long latencyMillis) {
+        mRadioOnLatency.record(latencyMillis);
+    }
+
+    /** A phone became ready for the call, the given time after the attempt started. */
+    public synchronized void onReady(long latencyMillis) {
+        mReadyLatency.record(latencyMillis);
+    }
+
+    /** The radio was asked to power on again. */
+    public synchronized void onPowerRetry() {
+        mPowerRetries++;
+    }
+
+    /** A listener gave up waiting. */
+    public synchronized void onTimeout() {
+        mTimeouts++;
+    }
+
+    /**
+     * @param maxIntervalMillis The configured interval between retries.
+     * @return how long to wait for a radio to power on before asking it again. Twice the 90th
+     * percentile of the radio on latencies seen so far, within
+     * [{@link #MIN_RETRY_INTERVAL_MILLIS}, maxIntervalMillis].
+     */
+    public synchronized long getRetryIntervalMillis(long maxIntervalMillis) {
+        if (mRadioOnLatency.getCount() < MIN_SAMPLES_FOR_ADAPTIVE_RETRY) {
+            return maxIntervalMillis;
+        }
+        long interval = Math.max(MIN_RETRY_INTERVAL_MILLIS,
+                2 * mRadioOnLatency.getPercentileMillis(90));
+        return Math.min(interval, maxIntervalMillis);
+    }
+
+    @VisibleForTesting
+    public synchronized Histogram getRadioOnLatency() {
+        return mRadioOnLatency;
+    }
+
+    @VisibleForTesting
+    public synchronized Histogram getReadyLatency() {
+        return mReadyLatency;
+    }
+
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.increaseIndent();
+        pw.println("attempts=" + mAttempts + " powerRetries=" + mPowerRetries
+                + " timeouts=" + mTimeouts);
+        pw.println("Radio on latency (ms):");
+        pw.increaseIndent();
+        mRadioOnLatency.dump(pw);
+        pw.decreaseIndent();
+        pw.println("Ready latency (ms):");
+        pw.increaseIndent();
+        mReadyLatency.dump(pw);
+        pw.decreaseIndent();
+        pw.decreaseIndent();
+    }
+}
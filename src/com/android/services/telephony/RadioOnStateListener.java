@@ -20,12 +20,15 @@ import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.telephony.ServiceState;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.SomeArgs;
 import com.android.internal.telephony.Phone;
 
+import java.util.function.LongSupplier;
+
 /**
  * Helper class that listens to a Phone's radio state and sends an onComplete callback when we
  * return true for isOkToCall.
@@ -45,7 +48,11 @@ public class RadioOnStateListener {
         boolean isOkToCall(Phone phone, int serviceState);
     }
 
-    // Number of times to retry the call, and time between retry attempts.
+    // Number of times to retry the call, and the longest time between retry attempts. The time
+    // between attempts to power on the radio adapts to how long radios took to power on before,
+    // see RadioOnLatencyStats, but the radio is asked to power on again at most MAX_NUM_RETRIES
+    // times and we never give up before it had (MAX_NUM_RETRIES + 1) *
+    // TIME_BETWEEN_RETRIES_MILLIS to become ready.
     // not final for testing
     private static int MAX_NUM_RETRIES = 5;
     // not final for testing
@@ -105,6 +112,22 @@ public class RadioOnStateListener {
     // mForEmergencyCall is true.
     private boolean mSelectedPhoneForEmergencyCall;
     private int mNumRetriesSoFar;
+    private int mNumPowerRetriesSoFar;
+    private long mStartTimeMillis;
+    private boolean mIsRadioOnRecorded;
+
+    private final LongSupplier mClock;
+    private final RadioOnLatencyStats mStats;
+
+    public RadioOnStateListener() {
+        this(SystemClock::elapsedRealtime, RadioOnLatencyStats.getInstance());
+    }
+
+    @VisibleForTesting
+    public RadioOnStateListener(LongSupplier clock, RadioOnLatencyStats stats) {
+        mClock = clock;
+        mStats = stats;
+    }
 
     /**
      * Starts the "wait for radio" sequence. This is the (single) external API of the
@@ -112,8 +135,8 @@ public class RadioOnStateListener {
      *
      * This method kicks off the following sequence:
      * - Listen for the service state change event telling us the radio has come up.
-     * - Retry if we've gone {@link #TIME_BETWEEN_RETRIES_MILLIS} without any response from the
-     *   radio.
+     * - Retry if we've gone too long without any response from the radio, see
+     *   {@link RadioOnLatencyStats#getRetryIntervalMillis}.
      * - Finally, clean up any leftover state.
      *
      * This method is safe to call from any thread, since it simply posts a message to the
@@ -155,6 +178,9 @@ public class RadioOnStateListener {
         mCallback = callback;
         mForEmergencyCall = forEmergencyCall;
         mSelectedPhoneForEmergencyCall = isSelectedPhoneForEmergencyCall;
+        mStartTimeMillis = mClock.getAsLong();
+        mIsRadioOnRecorded = false;
+        mStats.onAttemptStarted();
 
         registerForServiceStateChanged();
         // Register for RADIO_OFF to handle cases where emergency call is dialed before
@@ -163,7 +189,7 @@ public class RadioOnStateListener {
         // Next step: when the SERVICE_STATE_CHANGED event comes in, we'll retry the call; see
         // onServiceStateChanged(). But also, just in case, start a timer to make sure we'll retry
         // the call even if the SERVICE_STATE_CHANGED event never comes in for some reason.
-        startRetryTimer();
+        startRetryTimer(mStats.getRetryIntervalMillis(TIME_BETWEEN_RETRIES_MILLIS));
     }
 
     /**
@@ -200,11 +226,18 @@ public class RadioOnStateListener {
         ServiceState state =  mPhone.getServiceState();
         Log.d(this, "onRadioOn, state = %s, Phone = %s", state,
                 mPhone.getPhoneId());
+        if (!mIsRadioOnRecorded) {
+            mIsRadioOnRecorded = true;
+            mStats.onRadioOn(getElapsedMillis());
+        }
         if (isOkToCall(state.getState())) {
             onComplete(true);
             cleanup();
         } else {
+            // The radio is up, there is no point in asking it to power on again soon. Give it the
+            // full retry interval to find service.
             Log.d(this, "onRadioOn: not ready to call yet, keep waiting.");
+            startRetryTimer(TIME_BETWEEN_RETRIES_MILLIS);
         }
     }
     /**
@@ -242,14 +275,29 @@ public class RadioOnStateListener {
             mNumRetriesSoFar++;
             Log.d(this, "mNumRetriesSoFar is now " + mNumRetriesSoFar);
 
-            if (mNumRetriesSoFar > MAX_NUM_RETRIES) {
-                Log.w(this, "Hit MAX_NUM_RETRIES; giving up.");
+            // Retries may come faster than TIME_BETWEEN_RETRIES_MILLIS, so don't give up before
+            // the radio had as long as it would have with fixed retries.
+            long elapsed = getElapsedMillis();
+            long remaining = (MAX_NUM_RETRIES + 1) * TIME_BETWEEN_RETRIES_MILLIS - elapsed;
+            if (mNumRetriesSoFar > MAX_NUM_RETRIES && remaining <= 0) {
+                Log.w(this, "Hit MAX_NUM_RETRIES; giving up after %d ms.", elapsed);
+                mStats.onTimeout();
                 cleanup();
+            } else if (mPhone.isRadioOn() || mNumPowerRetriesSoFar >= MAX_NUM_RETRIES) {
+                // The radio is up but has no service yet, or was asked to power on as many
+                // times as with fixed retries. Powering it on again won't help.
+                Log.d(this, "Waiting for the radio, power retries = %d.", mNumPowerRetriesSoFar);
+                long minDelay = Math.min(TIME_BETWEEN_RETRIES_MILLIS,
+                        RadioOnLatencyStats.MIN_RETRY_INTERVAL_MILLIS);
+                startRetryTimer(Math.max(minDelay,
+                        Math.min(TIME_BETWEEN_RETRIES_MILLIS, remaining)));
             } else {
                 Log.d(this, "Trying (again) to turn on the radio.");
                 mPhone.setRadioPower(true, mForEmergencyCall, mSelectedPhoneForEmergencyCall,
                         false);
-                startRetryTimer();
+                mNumPowerRetriesSoFar++;
+                mStats.onPowerRetry();
+                startRetryTimer(mStats.getRetryIntervalMillis(TIME_BETWEEN_RETRIES_MILLIS));
             }
         }
     }
@@ -286,11 +334,16 @@ public class RadioOnStateListener {
         // Used for unregisterForServiceStateChanged() so we null it out here instead.
         mPhone = null;
         mNumRetriesSoFar = 0;
+        mNumPowerRetriesSoFar = 0;
     }
 
-    private void startRetryTimer() {
+    private void startRetryTimer(long delayMillis) {
         cancelRetryTimer();
-        mHandler.sendEmptyMessageDelayed(MSG_RETRY_TIMEOUT, TIME_BETWEEN_RETRIES_MILLIS);
+        mHandler.sendEmptyMessageDelayed(MSG_RETRY_TIMEOUT, delayMillis);
+    }
+
+    private long getElapsedMillis() {
+        return mClock.getAsLong() - mStartTimeMillis;
     }
 
     private void cancelRetryTimer() {
@@ -341,6 +394,9 @@ public class RadioOnStateListener {
 
     private void onComplete(boolean isRadioReady) {
         if (mCallback != null) {
+            if (isRadioReady) {
+                mStats.onReady(getElapsedMillis());
+            }
             Callback tempCallback = mCallback;
             mCallback = null;
             tempCallback.onComplete(this, isRadioReady);
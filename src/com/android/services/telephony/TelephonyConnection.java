@@ -91,6 +91,7 @@ import com.android.phone.PhoneUtils;
 import com.android.phone.R;
 import com.android.phone.callcomposer.CallComposerPictureManager;
 import com.android.phone.callcomposer.CallComposerPictureTransfer;
+import com.android.phone.callcomposer.PictureTransferScheduler;
 import com.android.telephony.Rlog;
 
 import org.codeaurora.ims.QtiCallConstants;
@@ -945,6 +946,12 @@ abstract class TelephonyConnection extends Connection implements Holdable,
      */
     private boolean mIsHoldable;
 
+    /**
+     * The download of the call composer picture of this incoming call, cancelled when the call
+     * is closed.
+     */
+    private PictureTransferScheduler.Task mPictureDownload;
+
     /**
      * Indicates whether TTY is enabled; used to determine whether a call is VT capable.
      */
@@ -1301,7 +1308,8 @@ abstract class TelephonyConnection extends Connection implements Holdable,
                         && !TextUtils.isEmpty(serverUrl)) {
                     CallComposerPictureManager manager = CallComposerPictureManager
                             .getInstance(getPhone().getContext(), getPhone().getSubId());
-                    manager.handleDownloadFromServer(new CallComposerPictureTransfer.Factory() {},
+                    mPictureDownload = manager.handleDownloadFromServer(
+                            new CallComposerPictureTransfer.Factory() {},
                             serverUrl,
                             (result) -> {
                                 if (result.first != null) {
@@ -2776,6 +2784,10 @@ abstract class TelephonyConnection extends Connection implements Holdable,
 
     public void close() {
         Log.v(this, "close");
+        if (mPictureDownload != null) {
+            mPictureDownload.cancel();
+            mPictureDownload = null;
+        }
         clearOriginalConnection();
         destroy();
         if (mTelephonyConnectionService != null) {
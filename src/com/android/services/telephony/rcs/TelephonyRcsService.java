@@ -17,14 +17,11 @@
 package com.android.services.telephony.rcs;
 
 import android.annotation.AnyThread;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.AsyncResult;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.PersistableBundle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.util.Log;
@@ -34,6 +31,7 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.PhoneConfigurationManager;
 import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.phone.CarrierConfigChangeBus;
 import com.android.phone.ImsStateCallbackController;
 import com.android.phone.R;
 
@@ -121,25 +119,11 @@ public class TelephonyRcsService {
     // Whether the device supports User Capability Exchange
     private boolean mRcsUceEnabled;
 
-    private BroadcastReceiver mCarrierConfigChangedReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent == null) {
-                return;
-            }
-            if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(intent.getAction())) {
-                Bundle bundle = intent.getExtras();
-                if (bundle == null) {
-                    return;
-                }
-                int slotId = bundle.getInt(CarrierConfigManager.EXTRA_SLOT_INDEX,
-                        SubscriptionManager.INVALID_PHONE_INDEX);
-                int subId = bundle.getInt(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
-                        SubscriptionManager.INVALID_SUBSCRIPTION_ID);
-                onCarrierConfigChangedForSlot(slotId, subId);
-            }
-        }
-    };
+    private final CarrierConfigChangeBus mCarrierConfigChangeBus;
+    // The RCS features read many carrier config keys, so listen for a change to any of them.
+    private final CarrierConfigChangeBus.Listener mCarrierConfigListener =
+            (slotId, subId, config, changedKeys) ->
+                    onCarrierConfigChangedForSlot(slotId, subId, config);
 
     private Handler mHandler = new Handler(Looper.getMainLooper(), (msg) -> {
         switch (msg.what) {
@@ -162,6 +146,7 @@ public class TelephonyRcsService {
     public TelephonyRcsService(Context context, int numSlots) {
         mContext = context;
         mNumSlots = numSlots;
+        mCarrierConfigChangeBus = CarrierConfigChangeBus.getInstance();
         mFeatureControllers = new SparseArray<>(numSlots);
         mSlotToAssociatedSubIds = new SparseArray<>(numSlots);
         mRcsUceEnabled = sResourceProxy.getDeviceUceEnabled(mContext);
@@ -169,9 +154,11 @@ public class TelephonyRcsService {
     }
 
     @VisibleForTesting
-    public TelephonyRcsService(Context context, int numSlots, ResourceProxy resourceProxy) {
+    public TelephonyRcsService(Context context, int numSlots, ResourceProxy resourceProxy,
+            CarrierConfigChangeBus carrierConfigChangeBus) {
         mContext = context;
         mNumSlots = numSlots;
+        mCarrierConfigChangeBus = carrierConfigChangeBus;
         mFeatureControllers = new SparseArray<>(numSlots);
         mSlotToAssociatedSubIds = new SparseArray<>(numSlots);
         sResourceProxy = resourceProxy;
@@ -197,8 +184,8 @@ public class TelephonyRcsService {
 
         PhoneConfigurationManager.registerForMultiSimConfigChange(mHandler,
                 HANDLER_MSIM_CONFIGURATION_CHANGE, null);
-        mContext.registerReceiver(mCarrierConfigChangedReceiver, new IntentFilter(
-                CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+        mCarrierConfigChangeBus.registerListener(null /*keys*/, mContext.getMainExecutor(),
+                mCarrierConfigListener);
     }
 
     @VisibleForTesting
@@ -244,12 +231,13 @@ public class TelephonyRcsService {
     }
 
     /**
-     * ACTION_CARRIER_CONFIG_CHANGED was received by this service for a specific slot.
+     * The carrier config has changed for a specific slot.
      * @param slotId The slotId associated with the event.
      * @param subId The subId associated with the event. May cause the subId associated with the
      *              RcsFeatureController to change if the subscription itself has changed.
+     * @param config The carrier config already fetched for the subId.
      */
-    private void onCarrierConfigChangedForSlot(int slotId, int subId) {
+    private void onCarrierConfigChangedForSlot(int slotId, int subId, PersistableBundle config) {
         synchronized (mLock) {
             RcsFeatureController f = mFeatureControllers.get(slotId);
             final int oldSubId = mSlotToAssociatedSubIds.get(slotId,
@@ -262,10 +250,10 @@ public class TelephonyRcsService {
                 if (f == null) {
                     // A controller doesn't exist for this slot yet.
                     f = mFeatureFactory.createController(mContext, slotId, subId);
-                    updateSupportedFeatures(f, slotId, subId);
+                    updateSupportedFeatures(f, slotId, subId, config);
                     if (f.hasActiveFeatures()) mFeatureControllers.put(slotId, f);
                 } else {
-                    updateSupportedFeatures(f, slotId, subId);
+                    updateSupportedFeatures(f, slotId, subId, config);
                     // Do not keep an empty container around.
                     if (!f.hasActiveFeatures()) {
                         f.destroy();
@@ -286,12 +274,13 @@ public class TelephonyRcsService {
     private RcsFeatureController constructFeatureController(int slotId) {
         int subId = getSubscriptionFromSlot(slotId);
         RcsFeatureController c = mFeatureFactory.createController(mContext, slotId, subId);
-        updateSupportedFeatures(c, slotId, subId);
+        updateSupportedFeatures(c, slotId, subId, getCarrierConfig(subId));
         return c;
     }
 
-    private void updateSupportedFeatures(RcsFeatureController c, int slotId, int subId) {
-        if (isDeviceUceEnabled() && doesSubscriptionSupportPresence(subId)) {
+    private void updateSupportedFeatures(RcsFeatureController c, int slotId, int subId,
+            PersistableBundle config) {
+        if (isDeviceUceEnabled() && doesSubscriptionSupportPresence(subId, config)) {
             if (c.getFeature(UceControllerManager.class) == null) {
                 c.addFeature(mFeatureFactory.createUceControllerManager(mContext, slotId, subId),
                         UceControllerManager.class);
@@ -302,7 +291,7 @@ public class TelephonyRcsService {
             }
         }
 
-        if (doesSubscriptionSupportSingleRegistration(subId)) {
+        if (doesSubscriptionSupportSingleRegistration(subId, config)) {
             if (c.getFeature(SipTransportController.class) == null) {
                 c.addFeature(mFeatureFactory.createSipTransportController(mContext, slotId, subId),
                         SipTransportController.class);
@@ -333,24 +322,24 @@ public class TelephonyRcsService {
         mRcsUceEnabled = isEnabled;
     }
 
-    private boolean doesSubscriptionSupportPresence(int subId) {
-        if (!SubscriptionManager.isValidSubscriptionId(subId)) return false;
+    private PersistableBundle getCarrierConfig(int subId) {
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) return null;
         CarrierConfigManager carrierConfigManager =
                 mContext.getSystemService(CarrierConfigManager.class);
-        if (carrierConfigManager == null) return false;
-        boolean supportsUce = carrierConfigManager.getConfigForSubId(subId).getBoolean(
-                CarrierConfigManager.Ims.KEY_ENABLE_PRESENCE_PUBLISH_BOOL);
-        supportsUce |= carrierConfigManager.getConfigForSubId(subId).getBoolean(
-                CarrierConfigManager.KEY_USE_RCS_SIP_OPTIONS_BOOL);
-        return supportsUce;
+        if (carrierConfigManager == null) return null;
+        return carrierConfigManager.getConfigForSubId(subId);
     }
 
-    private boolean doesSubscriptionSupportSingleRegistration(int subId) {
-        if (!SubscriptionManager.isValidSubscriptionId(subId)) return false;
-        CarrierConfigManager carrierConfigManager =
-                mContext.getSystemService(CarrierConfigManager.class);
-        if (carrierConfigManager == null) return false;
-        return carrierConfigManager.getConfigForSubId(subId).getBoolean(
+    private boolean doesSubscriptionSupportPresence(int subId, PersistableBundle config) {
+        if (!SubscriptionManager.isValidSubscriptionId(subId) || config == null) return false;
+        return config.getBoolean(CarrierConfigManager.Ims.KEY_ENABLE_PRESENCE_PUBLISH_BOOL)
+                || config.getBoolean(CarrierConfigManager.KEY_USE_RCS_SIP_OPTIONS_BOOL);
+    }
+
+    private boolean doesSubscriptionSupportSingleRegistration(int subId,
+            PersistableBundle config) {
+        if (!SubscriptionManager.isValidSubscriptionId(subId) || config == null) return false;
+        return config.getBoolean(
                 CarrierConfigManager.Ims.KEY_IMS_SINGLE_REGISTRATION_REQUIRED_BOOL);
     }
 
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.libraries.rcs.simpleclient.protocol.msrp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static org.junit.Assert.assertThrows;
+
+import com.android.libraries.rcs.simpleclient.protocol.msrp.MsrpChunk.Continuation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for MsrpFrameParser and MsrpFrameSerializer against MsrpParser and MsrpSerializer. Runs on
+ * the JVM, including a benchmark of both parsers on the same capture which only prints its
+ * results.
+ */
+@RunWith(JUnit4.class)
+public class MsrpFrameParserTest {
+
+    private static final int TRANSACTIONS = 300;
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    @Test
+    public void whenParseCapture_sameChunksAsMsrpParser() throws IOException {
+        byte[] capture = serialize(capture());
+
+        assertThat(parseWithFrameParser(capture, new MsrpBufferPool(64 * 1024, 1)))
+                .isEqualTo(parseWithMsrpParser(capture));
+    }
+
+    @Test
+    public void whenCaptureSplitAnywhere_sameChunks() throws IOException {
+        List<MsrpChunk> expected = capture();
+        byte[] capture = serialize(expected);
+        // Smaller than the file transfer chunks, so that the buffer grows.
+        MsrpFrameParser parser = new MsrpFrameParser(new MsrpBufferPool(256, 1));
+        List<MsrpChunk> chunks = new ArrayList<>();
+
+        int offset = 0;
+        for (int length = 1; offset < capture.length; length = length % 13 + 1) {
+            length = Math.min(length, capture.length - offset);
+            parser.append(ByteBuffer.wrap(capture, offset, length));
+            offset += length;
+            for (MsrpFrame frame = parser.next(); frame != null; frame = parser.next()) {
+                chunks.add(frame.toChunk());
+            }
+        }
+
+        assertThat(chunks).isEqualTo(expected);
+    }
+
+    @Test
+    public void whenSerialize_sameBytesAsMsrpSerializer() throws IOException {
+        MsrpBufferPool pool = new MsrpBufferPool(1024, 1);
+        for (MsrpChunk chunk : capture()) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            MsrpSerializer.serialize(expected, chunk);
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            MsrpFrameSerializer.serialize(actual, chunk, pool);
+
+            assertThat(actual.toByteArray()).isEqualTo(expected.toByteArray());
+        }
+    }
+
+    @Test
+    public void whenParse_headersAndContentAreViews() throws IOException {
+        MsrpChunk chunk = textMessage(1);
+        MsrpFrameParser parser = new MsrpFrameParser(new MsrpBufferPool(1024, 1));
+        parser.append(ByteBuffer.wrap(serialize(List.of(chunk))));
+
+        MsrpFrame frame = parser.next();
+
+        assertThat(frame.transactionId()).isEqualTo(chunk.transactionId());
+        assertThat(frame.method()).isEqualTo(MsrpChunk.Method.SEND);
+        assertThat(frame.headerCount()).isEqualTo(chunk.headers().size());
+        assertThat(frame.header(MsrpConstants.HEADER_TO_PATH).toString())
+                .isEqualTo(chunk.header(MsrpConstants.HEADER_TO_PATH).value());
+        assertThat(frame.header("Unknown-Header")).isNull();
+        ByteBuffer content = frame.content();
+        assertThat(content.isReadOnly()).isTrue();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        assertThat(bytes).isEqualTo(chunk.content());
+        assertThat(frame.continuation()).isEqualTo(Continuation.COMPLETE);
+        assertThat(parser.next()).isNull();
+    }
+
+    @Test
+    public void whenUnknownMethod_throws() {
+        MsrpFrameParser parser = new MsrpFrameParser(new MsrpBufferPool(1024, 1));
+        parser.append(ByteBuffer.wrap("MSRP abc FOO\r\n-------abc$\r\n".getBytes(UTF_8)));
+
+        assertThrows(ProtocolException.class, parser::next);
+    }
+
+    @Test
+    public void whenContentDoesNotMatchByteRange_throws() {
+        MsrpFrameParser parser = new MsrpFrameParser(new MsrpBufferPool(1024, 1));
+        parser.append(ByteBuffer.wrap(("MSRP abc SEND\r\nByte-Range: 1-4/4\r\n\r\n"
+                + "abcdef\r\n-------abc$\r\n").getBytes(UTF_8)));
+
+        assertThrows(ProtocolException.class, parser::next);
+    }
+
+    @Test
+    public void benchmark() throws IOException {
+        byte[] capture = serialize(capture());
+        MsrpBufferPool pool = new MsrpBufferPool(64 * 1024, 1);
+        // Warm up.
+        parseWithMsrpParser(capture);
+        parseWithFrameParser(capture, pool);
+
+        long msrpParserBytes = allocatedBytes();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            parseWithMsrpParser(capture);
+        }
+        long msrpParserNanos = System.nanoTime() - startNanos;
+        msrpParserBytes = allocatedBytes() - msrpParserBytes;
+
+        long frameParserBytes = allocatedBytes();
+        startNanos = System.nanoTime();
+        long headers = 0;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            MsrpFrameParser parser = new MsrpFrameParser(pool);
+            ByteArrayInputStream stream = new ByteArrayInputStream(capture);
+            do {
+                // Only look at the views, as a relay would.
+                for (MsrpFrame frame = parser.next(); frame != null; frame = parser.next()) {
+                    headers += frame.headerCount();
+                }
+            } while (parser.readFrom(stream));
+            parser.release();
+        }
+        long frameParserNanos = System.nanoTime() - startNanos;
+        frameParserBytes = allocatedBytes() - frameParserBytes;
+
+        // Allocations are only known on JVMs which count them per thread, and 0 otherwise.
+        int chunks = TRANSACTIONS * BENCHMARK_ITERATIONS;
+        double megabytes = (double) capture.length * BENCHMARK_ITERATIONS / (1024 * 1024);
+        System.out.println(String.format("MsrpParser: %.1f MB/s, %d bytes allocated per chunk",
+                megabytes * 1e9 / msrpParserNanos, msrpParserBytes / chunks));
+        System.out.println(String.format(
+                "MsrpFrameParser: %.1f MB/s, %d bytes allocated per chunk, %d headers seen",
+                megabytes * 1e9 / frameParserNanos, frameParserBytes / chunks, headers));
+    }
+
+    // A chat and file transfer session, with the responses of the other side.
+    private static List<MsrpChunk> capture() {
+        Random random = new Random(0);
+        List<MsrpChunk> chunks = new ArrayList<>();
+        long fileOffset = 1;
+        for (int i = 0; chunks.size() < TRANSACTIONS; i++) {
+            if (i % 3 == 0) {
+                chunks.add(textMessage(i));
+            } else {
+                byte[] content = new byte[4096];
+                random.nextBytes(content);
+                chunks.add(MsrpChunk.newBuilder()
+                        .method(MsrpChunk.Method.SEND)
+                        .transactionId("ft" + i)
+                        .addHeader(MsrpConstants.HEADER_TO_PATH, "msrp://10.0.0.1:9/ft;tcp")
+                        .addHeader(MsrpConstants.HEADER_FROM_PATH, "msrp://10.0.0.2:9/ft;tcp")
+                        .addHeader(MsrpConstants.HEADER_MESSAGE_ID, "file" + i)
+                        .addHeader(MsrpConstants.HEADER_BYTE_RANGE, fileOffset + "-"
+                                + (fileOffset + content.length - 1) + "/*")
+                        .addHeader(MsrpConstants.HEADER_CONTENT_TYPE, "image/jpeg")
+                        .content(content)
+                        .continuation(Continuation.MORE)
+                        .build());
+                fileOffset += content.length;
+            }
+            chunks.add(MsrpChunk.newBuilder()
+                    .transactionId("r" + i)
+                    .responseCode(MsrpConstants.RESPONSE_CODE_OK)
+                    .responseReason("OK")
+                    .addHeader(MsrpConstants.HEADER_TO_PATH, "msrp://10.0.0.2:9/ft;tcp")
+                    .addHeader(MsrpConstants.HEADER_FROM_PATH, "msrp://10.0.0.1:9/ft;tcp")
+                    .continuation(Continuation.COMPLETE)
+                    .build());
+        }
+        return chunks;
+    }
+
+    private static MsrpChunk textMessage(int i) {
+        return MsrpChunk.newBuilder()
+                .method(MsrpChunk.Method.SEND)
+                .transactionId("tx" + i)
+                .addHeader(MsrpConstants.HEADER_TO_PATH, "msrp://10.0.0.1:9/chat;tcp")
+                .addHeader(MsrpConstants.HEADER_FROM_PATH, "msrp://10.0.0.2:9/chat;tcp")
+                .addHeader(MsrpConstants.HEADER_MESSAGE_ID, "message" + i)
+                .addHeader(MsrpConstants.HEADER_BYTE_RANGE, "1-*/*")
+                .addHeader(MsrpConstants.HEADER_CONTENT_TYPE, "text/plain")
+                .content(("Message " + i + ", -------tx\r\n").getBytes(UTF_8))
+                .continuation(Continuation.COMPLETE)
+                .build();
+    }
+
+    private static byte[] serialize(List<MsrpChunk> chunks) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (MsrpChunk chunk : chunks) {
+            MsrpSerializer.serialize(output, chunk);
+        }
+        return output.toByteArray();
+    }
+
+    private static List<MsrpChunk> parseWithMsrpParser(byte[] capture) throws IOException {
+        ByteArrayInputStream stream = new ByteArrayInputStream(capture);
+        List<MsrpChunk> chunks = new ArrayList<>();
+        for (MsrpChunk chunk = MsrpParser.parse(stream); chunk != null;
+                chunk = MsrpParser.parse(stream)) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static List<MsrpChunk> parseWithFrameParser(byte[] capture, MsrpBufferPool pool)
+            throws IOException {
+        MsrpFrameParser parser = new MsrpFrameParser(pool);
+        ByteArrayInputStream stream = new ByteArrayInputStream(capture);
+        List<MsrpChunk> chunks = new ArrayList<>();
+        do {
+            for (MsrpFrame frame = parser.next(); frame != null; frame = parser.next()) {
+                chunks.add(frame.toChunk());
+            }
+        } while (parser.readFrom(stream));
+        parser.release();
+        return chunks;
+    }
+
+    // Returns the bytes allocated by this thread so far, or 0 if the JVM doesn't tell.
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.libraries.rcs.simpleclient.protocol.msrp;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.android.libraries.rcs.simpleclient.protocol.msrp.MsrpChunk.Continuation;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * MSRP transaction parsed by {@link MsrpFrameParser}, as views on the bytes it read.
+ *
+ * <p>Nothing is copied: the header and content views are only valid until the parser reads more
+ * bytes. Use {@link #toChunk()} to keep the transaction.
+ */
+public final class MsrpFrame {
+
+    private byte[] data;
+    private int transactionIdStart;
+    private int transactionIdEnd;
+    private String transactionId;
+    private MsrpChunk.Method method;
+    private int responseCode;
+    private int reasonStart;
+    private int reasonEnd;
+    // Start and end of the name and value of each header.
+    private int[] headers = new int[4 * 8];
+    private int headerCount;
+    private int contentStart;
+    private int contentEnd;
+    private boolean hasContent;
+    private Continuation continuation;
+
+    MsrpFrame() {
+    }
+
+    void reset(byte[] data, int transactionIdStart, int transactionIdEnd) {
+        this.data = data;
+        this.transactionIdStart = transactionIdStart;
+        this.transactionIdEnd = transactionIdEnd;
+        transactionId = null;
+        method = MsrpChunk.Method.UNKNOWN;
+        responseCode = 0;
+        reasonStart = 0;
+        reasonEnd = 0;
+        headerCount = 0;
+        hasContent = false;
+        continuation = Continuation.UNKNOWN;
+    }
+
+    void setMethod(MsrpChunk.Method method) {
+        this.method = method;
+    }
+
+    void setResponse(int responseCode, int reasonStart, int reasonEnd) {
+        this.responseCode = responseCode;
+        this.reasonStart = reasonStart;
+        this.reasonEnd = reasonEnd;
+    }
+
+    void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (headers.length < 4 * (headerCount + 1)) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        int i = 4 * headerCount++;
+        headers[i] = nameStart;
+        headers[i + 1] = nameEnd;
+        headers[i + 2] = valueStart;
+        headers[i + 3] = valueEnd;
+    }
+
+    void setContent(int contentStart, int contentEnd) {
+        this.contentStart = contentStart;
+        this.contentEnd = contentEnd;
+        hasContent = true;
+    }
+
+    void setContinuation(Continuation continuation) {
+        this.continuation = continuation;
+    }
+
+    int transactionIdStart() {
+        return transactionIdStart;
+    }
+
+    int transactionIdLength() {
+        return transactionIdEnd - transactionIdStart;
+    }
+
+    public String transactionId() {
+        if (transactionId == null) {
+            transactionId = new String(data, transactionIdStart, transactionIdLength(),
+                    ISO_8859_1);
+        }
+        return transactionId;
+    }
+
+    /** Returns the method of a request, or {@link MsrpChunk.Method#UNKNOWN} for a response. */
+    public MsrpChunk.Method method() {
+        return method;
+    }
+
+    public int responseCode() {
+        return responseCode;
+    }
+
+    public CharSequence responseReason() {
+        return new ByteView(data, reasonStart, reasonEnd);
+    }
+
+    public int headerCount() {
+        return headerCount;
+    }
+
+    public CharSequence headerName(int index) {
+        return new ByteView(data, headers[4 * index], headers[4 * index + 1]);
+    }
+
+    public CharSequence headerValue(int index) {
+        return new ByteView(data, headers[4 * index + 2], headers[4 * index + 3]);
+    }
+
+    /** Returns the value of the first header with the given name, or null. */
+    public CharSequence header(String name) {
+        int index = indexOfHeader(name);
+        return index < 0 ? null : headerValue(index);
+    }
+
+    int indexOfHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (equals(headers[4 * i], headers[4 * i + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int headerValueStart(int index) {
+        return headers[4 * index + 2];
+    }
+
+    int headerValueEnd(int index) {
+        return headers[4 * index + 3];
+    }
+
+    /** Returns a read-only view of the content, empty if there is none. */
+    public ByteBuffer content() {
+        if (!hasContent) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(data, contentStart, contentEnd - contentStart).slice()
+                .asReadOnlyBuffer();
+    }
+
+    public Continuation continuation() {
+        return continuation;
+    }
+
+    /** Copies the transaction into a chunk, as {@link MsrpParser} would have read it. */
+    public MsrpChunk toChunk() {
+        MsrpChunk.Builder chunk = MsrpChunk.newBuilder().transactionId(transactionId());
+        if (method == MsrpChunk.Method.UNKNOWN) {
+            chunk.responseCode(responseCode).responseReason(responseReason().toString());
+        } else {
+            chunk.method(method);
+        }
+        for (int i = 0; i < headerCount; i++) {
+            chunk.addHeader(headerName(i).toString(), headerValue(i).toString());
+        }
+        if (hasContent) {
+            chunk.content(Arrays.copyOfRange(data, contentStart, contentEnd));
+        }
+        return chunk.continuation(continuation).build();
+    }
+
+    private boolean equals(int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if ((data[i] & 0xff) != value.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Characters of a range of bytes, one per byte.
+     */
+    private static final class ByteView implements CharSequence {
+        private final byte[] data;
+        private final int start;
+        private final int end;
+
+        ByteView(byte[] data, int start, int end) {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return (char) (data[start + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > end - start || from > to) {
+                throw new IndexOutOfBoundsException("range " + from + "-" + to);
+            }
+            return new ByteView(data, start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, start, end - start, ISO_8859_1);
+        }
+    }
+}
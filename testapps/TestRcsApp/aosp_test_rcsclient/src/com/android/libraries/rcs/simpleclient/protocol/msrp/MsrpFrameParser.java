@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.libraries.rcs.simpleclient.protocol.msrp;
+
+import static com.android.libraries.rcs.simpleclient.protocol.msrp.MsrpConstants.CHAR_DOUBLE_POINT;
+import static com.android.libraries.rcs.simpleclient.protocol.msrp.MsrpConstants.CHAR_LF;
+import static com.android.libraries.rcs.simpleclient.protocol.msrp.MsrpConstants.CHAR_MIN;
+import static com.android.libraries.rcs.simpleclient.protocol.msrp.MsrpConstants.CHAR_SP;
+import static com.android.libraries.rcs.simpleclient.protocol.msrp.MsrpConstants.HEADER_BYTE_RANGE;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.android.libraries.rcs.simpleclient.protocol.msrp.MsrpChunk.Continuation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser for MSRP transactions, working in place on a pooled buffer.
+ *
+ * <p>Bytes are added with {@link #readFrom(InputStream)} or {@link #append(ByteBuffer)}, and the
+ * complete transactions taken with {@link #next()}. The end-line of a transaction is looked for
+ * in the buffer, resuming where the previous look stopped, and the transactions are returned as
+ * views on the buffer. The buffer only grows beyond the pool size for a transaction which does
+ * not fit in it.
+ */
+public final class MsrpFrameParser {
+
+    // CHAR_LF is the carriage return.
+    private static final byte CHAR_NL = '\n';
+    private static final MsrpChunk.Method[] METHODS = MsrpChunk.Method.values();
+
+    private final MsrpBufferPool pool;
+    private final MsrpFrame frame = new MsrpFrame();
+    private ByteBuffer buffer;
+    private byte[] data;
+    // The unparsed bytes are data[start, limit).
+    private int start;
+    private int limit;
+    // Where to resume looking for the end-line of the content, from start.
+    private int scanOffset;
+
+    public MsrpFrameParser(MsrpBufferPool pool) {
+        this.pool = pool;
+        buffer = pool.acquire();
+        data = buffer.array();
+    }
+
+    /**
+     * Reads once from the stream, blocking until some bytes are available.
+     *
+     * @return false at the end of the stream
+     */
+    public boolean readFrom(InputStream stream) throws IOException {
+        makeRoom();
+        int read = stream.read(data, limit, data.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    /** Adds the remaining bytes of the given buffer. */
+    public void append(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            makeRoom();
+            int length = Math.min(src.remaining(), data.length - limit);
+            src.get(data, limit, length);
+            limit += length;
+        }
+    }
+
+    /**
+     * Returns the next complete transaction, or null if more bytes are needed. The returned frame
+     * is reused, and only valid until more bytes are added.
+     */
+    public MsrpFrame next() throws ProtocolException {
+        int lineEnd = indexOfLineEnd(start);
+        if (lineEnd < 0) {
+            return null;
+        }
+        int protocolEnd = indexOf(CHAR_SP, start, lineEnd);
+        int transactionIdEnd = protocolEnd < 0 ? -1 : indexOf(CHAR_SP, protocolEnd + 1, lineEnd);
+        if (transactionIdEnd < 0) {
+            throw new ProtocolException("Invalid start line");
+        }
+        frame.reset(data, protocolEnd + 1, transactionIdEnd);
+        parseStartLine(transactionIdEnd + 1, lineEnd);
+
+        // Headers, up to an empty line before the content, or the end-line.
+        int position = lineEnd + 2;
+        while (true) {
+            lineEnd = indexOfLineEnd(position);
+            if (lineEnd < 0) {
+                return null;
+            }
+            if (lineEnd == position) {
+                break;
+            }
+            if (isEndLine(position, lineEnd)) {
+                return complete(position, lineEnd);
+            }
+            int colon = indexOf(CHAR_DOUBLE_POINT, position, lineEnd);
+            if (colon < 0) {
+                throw new ProtocolException("Invalid header");
+            }
+            // Skip the space after the colon.
+            frame.addHeader(position, colon, Math.min(colon + 2, lineEnd), lineEnd);
+            position = lineEnd + 2;
+        }
+
+        int contentStart = lineEnd + 2;
+        int endLineLength = 2 + MsrpConstants.END_MSRP_MSG_LENGTH + frame.transactionIdLength();
+        int contentSize = frame.method() == MsrpChunk.Method.SEND ? getChunkSize() : -1;
+        int contentEnd;
+        if (contentSize >= 0) {
+            contentEnd = contentStart + contentSize;
+            // Content, end-line, flag and new line.
+            if (limit - contentEnd < endLineLength + 3) {
+                return null;
+            }
+            if (data[contentEnd] != CHAR_LF || data[contentEnd + 1] != CHAR_NL
+                    || !isEndLine(contentEnd + 2, contentEnd + endLineLength + 1)) {
+                throw new ProtocolException("Content does not match its byte range");
+            }
+        } else {
+            contentEnd = indexOfEndLine(Math.max(contentStart, start + scanOffset));
+            if (contentEnd < 0) {
+                scanOffset = Math.max(contentStart, limit - endLineLength + 1) - start;
+                return null;
+            }
+            if (limit - contentEnd < endLineLength + 3) {
+                scanOffset = contentEnd - start;
+                return null;
+            }
+        }
+        frame.setContent(contentStart, contentEnd);
+        lineEnd = indexOfLineEnd(contentEnd + endLineLength);
+        if (lineEnd < 0) {
+            scanOffset = contentEnd - start;
+            return null;
+        }
+        return complete(contentEnd + 2, lineEnd);
+    }
+
+    /** Gives the buffer back to the pool. The parser can't be used anymore. */
+    public void release() {
+        pool.release(buffer);
+        buffer = null;
+        data = null;
+    }
+
+    private void parseStartLine(int position, int lineEnd) throws ProtocolException {
+        int space = indexOf(CHAR_SP, position, lineEnd);
+        if (space >= 0) {
+            int responseCode = parseInt(position, space);
+            if (responseCode < 0) {
+                throw new ProtocolException("Invalid response");
+            }
+            frame.setResponse(responseCode, space + 1, lineEnd);
+            return;
+        }
+        int responseCode = parseInt(position, lineEnd);
+        if (responseCode >= 0) {
+            frame.setResponse(responseCode, lineEnd, lineEnd);
+            return;
+        }
+        for (MsrpChunk.Method method : METHODS) {
+            if (method != MsrpChunk.Method.UNKNOWN && matches(position, lineEnd, method.name())) {
+                frame.setMethod(method);
+                return;
+            }
+        }
+        throw new ProtocolException(
+                "Unknown method " + new String(data, position, lineEnd - position, ISO_8859_1));
+    }
+
+    private boolean matches(int from, int to, String value) {
+        if (to - from != value.length()) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (data[i] != value.charAt(i - from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Completes the transaction whose end-line is data[endLineStart, lineEnd).
+    private MsrpFrame complete(int endLineStart, int lineEnd) {
+        int flag = endLineStart + MsrpConstants.END_MSRP_MSG_LENGTH + frame.transactionIdLength();
+        frame.setContinuation(flag < lineEnd ? Continuation.valueOf(data[flag])
+                : Continuation.UNKNOWN);
+        start = lineEnd + 2;
+        scanOffset = 0;
+        return frame;
+    }
+
+    // Returns the size of the content from the Byte-Range header, or -1 if it isn't known.
+    private int getChunkSize() throws ProtocolException {
+        int index = frame.indexOfHeader(HEADER_BYTE_RANGE);
+        if (index < 0) {
+            return -1;
+        }
+        int rangeStart = frame.headerValueStart(index);
+        int rangeEnd = frame.headerValueEnd(index);
+        int dash = indexOf(CHAR_MIN, rangeStart, rangeEnd);
+        int slash = indexOf((byte) '/', rangeStart, rangeEnd);
+        if (dash < 0 || slash < dash) {
+            throw new ProtocolException("Invalid byte range");
+        }
+        if (slash == dash + 2 && data[dash + 1] == '*') {
+            return -1;
+        }
+        int low = parseInt(rangeStart, dash);
+        int high = parseInt(dash + 1, slash);
+        if (low < 0 || high < low) {
+            throw new ProtocolException("Invalid byte range");
+        }
+        return high - low + 1;
+    }
+
+    // Returns the decimal value of data[from, to), or -1 if it isn't a number.
+    private int parseInt(int from, int to) {
+        if (from == to || to - from > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    // Whether data[from, to) is "-------" followed by the transaction ID, and maybe a flag.
+    private boolean isEndLine(int from, int to) {
+        int idLength = frame.transactionIdLength();
+        if (to - from < MsrpConstants.END_MSRP_MSG_LENGTH + idLength) {
+            return false;
+        }
+        for (int i = from; i < from + MsrpConstants.END_MSRP_MSG_LENGTH; i++) {
+            if (data[i] != CHAR_MIN) {
+                return false;
+            }
+        }
+        int idStart = frame.transactionIdStart();
+        int position = from + MsrpConstants.END_MSRP_MSG_LENGTH;
+        for (int i = 0; i < idLength; i++) {
+            if (data[position + i] != data[idStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns where "\r\n" followed by the end-line starts, or -1.
+    private int indexOfEndLine(int from) {
+        int endLineLength = 2 + MsrpConstants.END_MSRP_MSG_LENGTH + frame.transactionIdLength();
+        for (int i = from; i <= limit - endLineLength; i++) {
+            if (data[i] == CHAR_LF && data[i + 1] == CHAR_NL
+                    && isEndLine(i + 2, i + endLineLength)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns where the "\r\n" ending the line at from is, or -1.
+    private int indexOfLineEnd(int from) {
+        for (int i = from; i < limit - 1; i++) {
+            if (data[i] == CHAR_LF && data[i + 1] == CHAR_NL) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Moves the unparsed bytes to the front of the buffer, growing it if they fill it.
+    private void makeRoom() {
+        if (limit < data.length) {
+            return;
+        }
+        if (start == 0) {
+            ByteBuffer grown = ByteBuffer.allocate(data.length * 2);
+            System.arraycopy(data, 0, grown.array(), 0, limit);
+            pool.release(buffer);
+            buffer = grown;
+            data = grown.array();
+            return;
+        }
+        System.arraycopy(data, start, data, 0, limit - start);
+        limit -= start;
+        start = 0;
+    }
+}
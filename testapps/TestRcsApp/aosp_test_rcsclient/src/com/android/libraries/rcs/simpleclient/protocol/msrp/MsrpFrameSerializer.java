@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.libraries.rcs.simpleclient.protocol.msrp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializer writing the same bytes as {@link MsrpSerializer}, into a pooled buffer which is then
+ * written to the stream at once.
+ */
+public final class MsrpFrameSerializer {
+
+    private MsrpFrameSerializer() {
+    }
+
+    public static void serialize(OutputStream outputStream, MsrpChunk message,
+            MsrpBufferPool pool) throws IOException {
+        ByteBuffer pooled = pool.acquire();
+        try {
+            ByteBuffer buffer = serialize(message, pooled);
+            outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        } finally {
+            pool.release(pooled);
+        }
+    }
+
+    /**
+     * Writes the message into the given heap buffer, or into a new one if it doesn't fit.
+     *
+     * @return the buffer written, positioned after the message
+     */
+    public static ByteBuffer serialize(MsrpChunk message, ByteBuffer buffer) {
+        if (buffer.remaining() < length(message)) {
+            buffer = ByteBuffer.allocate(length(message));
+        }
+
+        buffer.put(MsrpConstants.MSRP_PROTOCOL_BYTES).put(MsrpConstants.CHAR_SP);
+        put(buffer, message.transactionId()).put(MsrpConstants.CHAR_SP);
+        if (message.method() != MsrpChunk.Method.UNKNOWN) {
+            put(buffer, message.method().name());
+        } else {
+            put(buffer, Integer.toString(message.responseCode())).put(MsrpConstants.CHAR_SP);
+            put(buffer, message.responseReason());
+        }
+        buffer.put(MsrpConstants.NEW_LINE_BYTES);
+
+        for (MsrpChunkHeader header : message.headers()) {
+            put(buffer, header.name()).put(MsrpConstants.HEADER_DELIMITER_BYTES);
+            put(buffer, header.value()).put(MsrpConstants.NEW_LINE_BYTES);
+        }
+
+        if (message.content().length > 0) {
+            buffer.put(MsrpConstants.NEW_LINE_BYTES);
+            buffer.put(message.content());
+            buffer.put(MsrpConstants.NEW_LINE_BYTES);
+        }
+
+        buffer.put(MsrpConstants.END_MSRP_MSG_BYTES);
+        put(buffer, message.transactionId()).put(message.continuation().toByte());
+        buffer.put(MsrpConstants.NEW_LINE_BYTES);
+        return buffer;
+    }
+
+    private static int length(MsrpChunk message) {
+        int length = MsrpConstants.MSRP_PROTOCOL_BYTES.length + 1
+                + 2 * length(message.transactionId()) + 1;
+        if (message.method() != MsrpChunk.Method.UNKNOWN) {
+            length += message.method().name().length();
+        } else {
+            length += Integer.toString(message.responseCode()).length() + 1
+                    + length(message.responseReason());
+        }
+        length += MsrpConstants.NEW_LINE_BYTES.length;
+        for (MsrpChunkHeader header : message.headers()) {
+            length += length(header.name()) + MsrpConstants.HEADER_DELIMITER_BYTES.length
+                    + length(header.value()) + MsrpConstants.NEW_LINE_BYTES.length;
+        }
+        if (message.content().length > 0) {
+            length += message.content().length + 2 * MsrpConstants.NEW_LINE_BYTES.length;
+        }
+        return length + MsrpConstants.END_MSRP_MSG_BYTES.length + 1
+                + MsrpConstants.NEW_LINE_BYTES.length;
+    }
+
+    // Returns the length of the string in UTF-8.
+    private static int length(String value) {
+        int length = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return value.getBytes(UTF_8).length;
+            }
+        }
+        return length;
+    }
+
+    private static ByteBuffer put(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                return buffer.put(value.substring(i).getBytes(UTF_8));
+            }
+            buffer.put((byte) c);
+        }
+        return buffer;
+    }
+}
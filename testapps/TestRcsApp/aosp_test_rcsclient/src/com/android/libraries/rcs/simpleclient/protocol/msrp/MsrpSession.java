@@ -56,6 +56,7 @@ public class MsrpSession {
     private static final String DEDICATED_BEARER_SUCCESS = "Dedicated bearer succeeded";
     private static final String DEDICATED_BEARER_ERROR = "Dedicated bearer error";
     private static final int TOAST_MSG = 1;
+    private static final MsrpBufferPool BUFFER_POOL = new MsrpBufferPool(64 * 1024, 8);
     private final Network network;
     private final Socket socket;
     private final InputStream input;
@@ -145,7 +146,7 @@ public class MsrpSession {
                         transactions.put(request.transactionId(), transaction);
                         try {
                             synchronized (output) {
-                                MsrpSerializer.serialize(output, request);
+                                MsrpFrameSerializer.serialize(output, request, BUFFER_POOL);
                             }
                             output.flush();
                         } catch (IOException e) {
@@ -157,7 +158,7 @@ public class MsrpSession {
         } else {
             try {
                 synchronized (output) {
-                    MsrpSerializer.serialize(output, request);
+                    MsrpFrameSerializer.serialize(output, request, BUFFER_POOL);
                 }
                 return Futures.immediateFuture(request);
             } catch (IOException e) {
@@ -183,7 +184,8 @@ public class MsrpSession {
     }
 
     /**
-     * Reads and parses MSRP messages from the session input stream.
+     * Reads and parses MSRP messages from the session input stream, in as few reads as the
+     * stream allows.
      */
     private static class StreamReader {
 
@@ -198,19 +200,28 @@ public class MsrpSession {
         }
 
         void run() {
-            while (active.get()) {
-                MsrpChunk chunk = null;
-                try {
-                    chunk = MsrpParser.parse(stream);
+            MsrpFrameParser parser = new MsrpFrameParser(BUFFER_POOL);
+            try {
+                while (active.get()) {
+                    MsrpFrame frame = parser.next();
+                    if (frame == null) {
+                        if (!parser.readFrom(stream)) {
+                            active.compareAndSet(true, false);
+                        }
+                        continue;
+                    }
+                    MsrpChunk chunk = frame.toChunk();
 
                     if (chunk.method() == UNKNOWN) {
                         completeTransaction(chunk);
                     } else {
                         receiveRequest(chunk);
                     }
-                } catch (IOException e) {
-                    active.compareAndSet(true, false);
                 }
+            } catch (IOException e) {
+                active.compareAndSet(true, false);
+            } finally {
+                parser.release();
             }
         }
 
@@ -243,7 +254,7 @@ public class MsrpSession {
                         .build();
 
                 synchronized (session.output) {
-                    MsrpSerializer.serialize(session.output, response);
+                    MsrpFrameSerializer.serialize(session.output, response, BUFFER_POOL);
                     session.output.flush();
                 }
             }
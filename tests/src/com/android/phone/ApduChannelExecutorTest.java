@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.CommandException;
+import com.android.internal.telephony.uicc.IccIoResult;
+import com.android.internal.telephony.uicc.IccUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for ApduChannelExecutor, against a fake RIL answering on its own thread.
+ */
+public class ApduChannelExecutorTest {
+    private static final int PHONE_ID = 0;
+    private static final int CHANNEL = 2;
+    private static final int OTHER_CHANNEL = 3;
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * Answers every APDU with its data as payload and 9000, unless the channel is held or the
+     * data is "FF".
+     */
+    private class FakeRil implements ApduChannelExecutor.Transport {
+        final List<String> mReceived = Collections.synchronizedList(new ArrayList<>());
+        final List<Message> mHeld = new ArrayList<>();
+        volatile int mHeldChannel = -1;
+
+        @Override
+        public void transmit(int channel, ApduChannelExecutor.Apdu apdu, Message onCompleted) {
+            mReceived.add(channel + ":" + apdu.data);
+            mRilHandler.post(() -> {
+                if ("FF".equals(apdu.data)) {
+                    AsyncResult.forMessage(onCompleted, null, new CommandException(
+                            CommandException.Error.GENERIC_FAILURE));
+                } else {
+                    AsyncResult.forMessage(onCompleted,
+                            new IccIoResult(0x90, 0, IccUtils.hexStringToBytes(apdu.data)), null);
+                }
+                if (channel == mHeldChannel) {
+                    mHeld.add(onCompleted);
+                } else {
+                    onCompleted.sendToTarget();
+                }
+            });
+        }
+
+        void release() {
+            mRilHandler.post(() -> {
+                mHeldChannel = -1;
+                for (Message msg : mHeld) {
+                    msg.sendToTarget();
+                }
+                mHeld.clear();
+            });
+        }
+    }
+
+    private HandlerThread mExecutorThread;
+    private HandlerThread mRilThread;
+    private Handler mRilHandler;
+    private FakeRil mRil;
+    private ApduChannelExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutorThread = new HandlerThread("ApduChannelExecutor");
+        mExecutorThread.start();
+        mRilThread = new HandlerThread("FakeRil");
+        mRilThread.start();
+        mRilHandler = new Handler(mRilThread.getLooper());
+        mRil = new FakeRil();
+        mExecutor = new ApduChannelExecutor(mExecutorThread.getLooper(),
+                phoneId -> phoneId == PHONE_ID ? mRil : null);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutorThread.quit();
+        mRilThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testScriptIsSentInOrder() {
+        final int count = 500;
+        List<ApduChannelExecutor.Apdu> script = createScript(count, 0);
+
+        List<IccIoResult> results = mExecutor.transmitScript(PHONE_ID, CHANNEL, script);
+
+        assertEquals(count, results.size());
+        assertEquals(count, mRil.mReceived.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(CHANNEL + ":" + script.get(i).data, mRil.mReceived.get(i));
+            assertEquals(0x90, results.get(i).sw1);
+            assertEquals(script.get(i).data, IccUtils.bytesToHexString(results.get(i).payload));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testScriptsOnSameChannelDoNotInterleave() throws Exception {
+        final int count = 100;
+        Thread other = new Thread(() ->
+                mExecutor.transmitScript(PHONE_ID, CHANNEL, createScript(count, 0x1000)));
+        other.start();
+        mExecutor.transmitScript(PHONE_ID, CHANNEL, createScript(count, 0x2000));
+        other.join(TIMEOUT_MS);
+
+        List<String> received = new ArrayList<>(mRil.mReceived);
+        assertEquals(2 * count, received.size());
+        // Each script is sent as one block, in order.
+        String firstPrefix = received.get(0).substring(0, 3);
+        for (int i = 0; i < 2 * count; i++) {
+            assertEquals(i < count, received.get(i).startsWith(firstPrefix));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testChannelsRunConcurrently() throws Exception {
+        mRil.mHeldChannel = OTHER_CHANNEL;
+        CountDownLatch otherDone = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            mExecutor.transmitScript(PHONE_ID, OTHER_CHANNEL, createScript(1, 0));
+            otherDone.countDown();
+        });
+        other.start();
+
+        // Not blocked by the held channel.
+        assertEquals(3, mExecutor.transmitScript(PHONE_ID, CHANNEL, createScript(3, 0)).size());
+        assertFalse(otherDone.await(50, TimeUnit.MILLISECONDS));
+
+        mRil.release();
+        assertTrue(otherDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    @SmallTest
+    public void testFailedApduDoesNotStopScript() {
+        List<ApduChannelExecutor.Apdu> script = new ArrayList<>();
+        script.add(new ApduChannelExecutor.Apdu(0, 0xA4, 0, 0, 1, "01"));
+        script.add(new ApduChannelExecutor.Apdu(0, 0xA4, 0, 0, 1, "FF"));
+        script.add(new ApduChannelExecutor.Apdu(0, 0xA4, 0, 0, 1, "03"));
+
+        List<IccIoResult> results = mExecutor.transmitScript(PHONE_ID, CHANNEL, script);
+        assertEquals(0x90, results.get(0).sw1);
+        assertEquals(0x6F, results.get(1).sw1);
+        assertNull(results.get(1).payload);
+        assertEquals(0x90, results.get(2).sw1);
+    }
+
+    @Test
+    @SmallTest
+    public void testNoUicc() {
+        List<IccIoResult> results = mExecutor.transmitScript(PHONE_ID + 1, CHANNEL,
+                createScript(2, 0));
+        assertEquals(2, results.size());
+        for (IccIoResult result : results) {
+            assertEquals(0x6F, result.sw1);
+            assertEquals(0, result.sw2);
+        }
+        assertTrue(mRil.mReceived.isEmpty());
+    }
+
+    private static List<ApduChannelExecutor.Apdu> createScript(int count, int base) {
+        List<ApduChannelExecutor.Apdu> script = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            script.add(new ApduChannelExecutor.Apdu(0x80, 0xE8, 0, 0, 2,
+                    String.format("%04X", base + i)));
+        }
+        return script;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.HandlerThread;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.TestableLooper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Set;
+
+/**
+ * Unit tests for CarrierConfigChangeBus
+ */
+public class CarrierConfigChangeBusTest {
+    private static final int SLOT_0 = 0;
+    private static final int SLOT_1 = 1;
+    private static final int SUB_1 = 1;
+    private static final int SUB_2 = 2;
+    private static final String KEY_WATCHED =
+            CarrierConfigManager.Ims.KEY_IMS_SINGLE_REGISTRATION_REQUIRED_BOOL;
+    private static final String KEY_OTHER = CarrierConfigManager.KEY_USE_ACS_FOR_RCS_BOOL;
+
+    @Mock Context mContext;
+    @Mock CarrierConfigManager mCarrierConfigManager;
+    @Mock CarrierConfigChangeBus.Listener mKeyListener;
+    @Mock CarrierConfigChangeBus.Listener mAllKeysListener;
+
+    private PersistableBundle mBundle;
+    private HandlerThread mHandlerThread;
+    private TestableLooper mLooper;
+    private CarrierConfigChangeBus mBus;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mContext.getSystemServiceName(eq(CarrierConfigManager.class)))
+                .thenReturn(Context.CARRIER_CONFIG_SERVICE);
+        when(mContext.getSystemService(eq(Context.CARRIER_CONFIG_SERVICE)))
+                .thenReturn(mCarrierConfigManager);
+        mBundle = new PersistableBundle();
+        // The bus keeps the config it delivered, so return a copy as the real service does.
+        when(mCarrierConfigManager.getConfigForSubId(anyInt()))
+                .thenAnswer(invocation -> new PersistableBundle(mBundle));
+
+        mHandlerThread = new HandlerThread("CarrierConfigChangeBusTest");
+        mHandlerThread.start();
+        mLooper = new TestableLooper(mHandlerThread.getLooper());
+        mBus = new CarrierConfigChangeBus(mContext, mHandlerThread.getLooper(), 0);
+        mBus.registerListener(Set.of(KEY_WATCHED), Runnable::run, mKeyListener);
+        mBus.registerListener(null, Runnable::run, mAllKeysListener);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mLooper != null) {
+            mLooper.destroy();
+            mLooper = null;
+        }
+        mHandlerThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstIsCoalescedPerSlot() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mBus.notifyCarrierConfigChanged(SLOT_0, SUB_1);
+        }
+        mBus.notifyCarrierConfigChanged(SLOT_1, SUB_2);
+        processAllMessages();
+
+        verify(mCarrierConfigManager, times(1)).getConfigForSubId(SUB_1);
+        verify(mCarrierConfigManager, times(1)).getConfigForSubId(SUB_2);
+        verify(mAllKeysListener, times(1)).onCarrierConfigChanged(eq(SLOT_0), eq(SUB_1), any(),
+                any());
+        verify(mAllKeysListener, times(1)).onCarrierConfigChanged(eq(SLOT_1), eq(SUB_2), any(),
+                any());
+    }
+
+    @Test
+    @SmallTest
+    public void testOnlyInterestedListenersNotified() throws Exception {
+        mBus.notifyCarrierConfigChanged(SLOT_0, SUB_1);
+        processAllMessages();
+        // The first config for a slot is delivered to everyone.
+        verify(mKeyListener, times(1)).onCarrierConfigChanged(anyInt(), anyInt(), any(), any());
+        verify(mAllKeysListener, times(1)).onCarrierConfigChanged(anyInt(), anyInt(), any(),
+                any());
+
+        // Nothing changed, nobody is notified.
+        mBus.notifyCarrierConfigChanged(SLOT_0, SUB_1);
+        processAllMessages();
+        verify(mAllKeysListener, times(1)).onCarrierConfigChanged(anyInt(), anyInt(), any(),
+                any());
+
+        mBundle.putBoolean(KEY_OTHER, true);
+        mBus.notifyCarrierConfigChanged(SLOT_0, SUB_1);
+        processAllMessages();
+        verify(mKeyListener, times(1)).onCarrierConfigChanged(anyInt(), anyInt(), any(), any());
+        verify(mAllKeysListener, times(1)).onCarrierConfigChanged(eq(SLOT_0), eq(SUB_1), any(),
+                eq(Set.of(KEY_OTHER)));
+
+        mBundle.putBoolean(KEY_WATCHED, true);
+        mBus.notifyCarrierConfigChanged(SLOT_0, SUB_1);
+        processAllMessages();
+        verify(mKeyListener, times(1)).onCarrierConfigChanged(eq(SLOT_0), eq(SUB_1), any(),
+                eq(Set.of(KEY_WATCHED)));
+    }
+
+    @Test
+    @SmallTest
+    public void testSubscriptionChangeNotifiesEveryone() throws Exception {
+        mBus.notifyCarrierConfigChanged(SLOT_0, SUB_1);
+        processAllMessages();
+
+        mBus.notifyCarrierConfigChanged(SLOT_0, SUB_2);
+        processAllMessages();
+        verify(mKeyListener, times(1)).onCarrierConfigChanged(eq(SLOT_0), eq(SUB_2), any(),
+                any());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnregisteredListenerNotNotified() throws Exception {
+        mBus.unregisterListener(mKeyListener);
+        mBus.notifyCarrierConfigChanged(SLOT_0, SUB_1);
+        processAllMessages();
+        verify(mKeyListener, never()).onCarrierConfigChanged(anyInt(), anyInt(), any(), any());
+    }
+
+    @Test
+    @SmallTest
+    public void testGetChangedKeys() {
+        PersistableBundle oldConfig = new PersistableBundle();
+        oldConfig.putStringArray("array", new String[] {"a", "b"});
+        oldConfig.putInt("removed", 1);
+        PersistableBundle nested = new PersistableBundle();
+        nested.putInt("value", 1);
+        oldConfig.putPersistableBundle("nested", nested);
+
+        PersistableBundle newConfig = new PersistableBundle();
+        newConfig.putStringArray("array", new String[] {"a", "b"});
+        newConfig.putInt("added", 1);
+        newConfig.putPersistableBundle("nested", new PersistableBundle(nested));
+
+        Set<String> changed = CarrierConfigChangeBus.getChangedKeys(oldConfig, newConfig);
+        assertEquals(2, changed.size());
+        assertTrue(changed.contains("removed"));
+        assertTrue(changed.contains("added"));
+    }
+
+    private void processAllMessages() {
+        while (!mLooper.getLooper().getQueue().isIdle()) {
+            mLooper.processAllMessages();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static android.telephony.TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+import static android.telephony.TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+import static android.telephony.TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
+
+import static junit.framework.Assert.assertEquals;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Unit tests for CarrierPrivilegeStatusCache
+ */
+public class CarrierPrivilegeStatusCacheTest {
+    private static final int SLOT_0 = 0;
+    private static final int SLOT_1 = 1;
+    private static final int CARRIER_UID = 10001;
+    private static final int OTHER_UID = 10002;
+    private static final String CARRIER_PACKAGE = "com.example.carrier";
+    private static final String OTHER_PACKAGE = "com.example.other";
+
+    private int mEvaluations;
+    private int mStatus;
+    private CarrierPrivilegeStatusCache mCache;
+
+    @Before
+    public void setUp() {
+        mEvaluations = 0;
+        mStatus = CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        mCache = new CarrierPrivilegeStatusCache();
+    }
+
+    @Test
+    @SmallTest
+    public void testStatusIsCachedPerSlotAndUid() {
+        assertEquals(CARRIER_PRIVILEGE_STATUS_NO_ACCESS, getForUid(SLOT_0, CARRIER_UID));
+        assertEquals(CARRIER_PRIVILEGE_STATUS_NO_ACCESS, getForUid(SLOT_0, CARRIER_UID));
+        assertEquals(1, mEvaluations);
+
+        getForUid(SLOT_1, CARRIER_UID);
+        getForUid(SLOT_0, OTHER_UID);
+        getForPackage(SLOT_0, CARRIER_PACKAGE);
+        assertEquals(4, mEvaluations);
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(4, mCache.getMissCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testGrantIsAlwaysCheckedWithTheTracker() {
+        mStatus = CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+        assertEquals(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS, getForUid(SLOT_0, CARRIER_UID));
+        assertEquals(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS,
+                getForPackage(SLOT_0, CARRIER_PACKAGE));
+
+        // Revoked before the invalidation is delivered.
+        mStatus = CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        assertEquals(CARRIER_PRIVILEGE_STATUS_NO_ACCESS, getForUid(SLOT_0, CARRIER_UID));
+        assertEquals(CARRIER_PRIVILEGE_STATUS_NO_ACCESS,
+                getForPackage(SLOT_0, CARRIER_PACKAGE));
+        assertEquals(4, mEvaluations);
+    }
+
+    @Test
+    @SmallTest
+    public void testRulesNotLoadedIsNotCached() {
+        mStatus = CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
+        getForUid(SLOT_0, CARRIER_UID);
+        mStatus = CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        assertEquals(CARRIER_PRIVILEGE_STATUS_NO_ACCESS, getForUid(SLOT_0, CARRIER_UID));
+        assertEquals(2, mEvaluations);
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidateSlotOnlyDropsThatSlot() {
+        getForUid(SLOT_0, CARRIER_UID);
+        getForUid(SLOT_1, CARRIER_UID);
+
+        mStatus = CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+        mCache.invalidateSlot(SLOT_0);
+        assertEquals(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS, getForUid(SLOT_0, CARRIER_UID));
+        assertEquals(CARRIER_PRIVILEGE_STATUS_NO_ACCESS, getForUid(SLOT_1, CARRIER_UID));
+        assertEquals(3, mEvaluations);
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidatePackageOnlyDropsThatUidAndPackage() {
+        getForUid(SLOT_0, CARRIER_UID);
+        getForUid(SLOT_0, OTHER_UID);
+        getForPackage(SLOT_0, CARRIER_PACKAGE);
+        getForPackage(SLOT_0, OTHER_PACKAGE);
+        assertEquals(4, mEvaluations);
+
+        mCache.invalidatePackage(CARRIER_UID, CARRIER_PACKAGE);
+        getForUid(SLOT_0, CARRIER_UID);
+        getForUid(SLOT_0, OTHER_UID);
+        getForPackage(SLOT_0, CARRIER_PACKAGE);
+        getForPackage(SLOT_0, OTHER_PACKAGE);
+        // Only the uid and its package are evaluated again.
+        assertEquals(6, mEvaluations);
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidationDuringEvaluationIsNotCached() {
+        int status = mCache.getStatusForUid(SLOT_0, CARRIER_UID, () -> {
+            mEvaluations++;
+            // The rules change while the old ones are being evaluated.
+            mCache.invalidateSlot(SLOT_0);
+            return CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+        });
+        assertEquals(CARRIER_PRIVILEGE_STATUS_NO_ACCESS, status);
+
+        mStatus = CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+        assertEquals(CARRIER_PRIVILEGE_STATUS_HAS_ACCESS, getForUid(SLOT_0, CARRIER_UID));
+        assertEquals(2, mEvaluations);
+    }
+
+    @Test
+    @SmallTest
+    public void testMultiSimConfigChangeRegistersTheNewSlots() {
+        Context context = mock(Context.class);
+        TelephonyManager tm = mock(TelephonyManager.class);
+        when(context.getSystemService(TelephonyManager.class)).thenReturn(tm);
+        mCache.registerForInvalidation(context, 1);
+
+        verify(context).registerReceiverForAllUsers(any(BroadcastReceiver.class),
+                any(IntentFilter.class), isNull(), isNull());
+        verify(tm).registerCarrierPrivilegesCallback(eq(SLOT_0), any(Executor.class), any());
+        verify(tm, never()).registerCarrierPrivilegesCallback(eq(SLOT_1), any(Executor.class),
+                any());
+        getForUid(SLOT_0, CARRIER_UID);
+
+        ArgumentCaptor<BroadcastReceiver> receivers =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        ArgumentCaptor<IntentFilter> filters = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(context, times(2)).registerReceiver(receivers.capture(),
+                filters.capture());
+        BroadcastReceiver multiSimConfigReceiver = null;
+        for (int i = 0; i < filters.getAllValues().size(); i++) {
+            if (filters.getAllValues().get(i).hasAction(
+                    TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED)) {
+                multiSimConfigReceiver = receivers.getAllValues().get(i);
+            }
+        }
+        multiSimConfigReceiver.onReceive(context,
+                new Intent(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED)
+                        .putExtra(TelephonyManager.EXTRA_ACTIVE_SIM_SUPPORTED_COUNT, 2));
+
+        verify(tm).registerCarrierPrivilegesCallback(eq(SLOT_1), any(Executor.class), any());
+        getForUid(SLOT_0, CARRIER_UID);
+        assertEquals(2, mEvaluations);
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstOfChecks() {
+        final int checks = 10000;
+        final int uids = 50;
+        for (int i = 0; i < checks; i++) {
+            getForUid((i / uids) % 2, CARRIER_UID + (i % uids));
+            if (i == checks / 2) {
+                // A rule update in the middle of the burst.
+                mCache.invalidateSlot(SLOT_0);
+            }
+        }
+
+        // One evaluation per slot and uid, plus the uids of slot 0 again after the update.
+        assertEquals(3 * uids, mEvaluations);
+        assertEquals(3 * uids, mCache.getMissCount());
+        assertEquals(checks - 3 * uids, mCache.getHitCount());
+    }
+
+    private int getForUid(int slotIndex, int uid) {
+        return mCache.getStatusForUid(slotIndex, uid, this::evaluate);
+    }
+
+    private int getForPackage(int slotIndex, String packageName) {
+        return mCache.getStatusForPackage(slotIndex, packageName, this::evaluate);
+    }
+
+    private int evaluate() {
+        mEvaluations++;
+        return mStatus;
+    }
+}
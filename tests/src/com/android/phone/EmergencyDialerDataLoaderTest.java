@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.emergency.EmergencyNumber;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.TestableLooper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for EmergencyDialerDataLoader
+ */
+public class EmergencyDialerDataLoaderTest {
+    /** Records the thread of every call. */
+    private class FakeDataSource implements EmergencyDialerDataLoader.DataSource {
+        final List<Thread> mCallThreads = new ArrayList<>();
+        final PersistableBundle mCarrierConfig = new PersistableBundle();
+        Map<Integer, List<EmergencyNumber>> mEmergencyNumbers = Map.of(1,
+                List.of(emergencyNumber("911"), emergencyNumber("112")));
+        RuntimeException mFailure;
+
+        @Override
+        public PersistableBundle getCarrierConfig() {
+            onCall();
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            return mCarrierConfig;
+        }
+
+        @Override
+        public Map<Integer, List<EmergencyNumber>> getEmergencyNumberList() {
+            onCall();
+            return mEmergencyNumbers;
+        }
+
+        private synchronized void onCall() {
+            mCallThreads.add(Thread.currentThread());
+        }
+    }
+
+    private final List<Runnable> mBackgroundTasks = new ArrayList<>();
+    private final List<EmergencyDialerDataLoader.Snapshot> mSnapshots = new ArrayList<>();
+
+    private Thread mMainThread;
+    private HandlerThread mHandlerThread;
+    private TestableLooper mLooper;
+    private FakeDataSource mDataSource;
+    private EmergencyDialerDataLoader mLoader;
+
+    @Before
+    public void setUp() throws Exception {
+        mMainThread = Thread.currentThread();
+        mHandlerThread = new HandlerThread("EmergencyDialerDataLoaderTest");
+        mHandlerThread.start();
+        mLooper = new TestableLooper(mHandlerThread.getLooper());
+        mDataSource = new FakeDataSource();
+        mLoader = new EmergencyDialerDataLoader(mDataSource, mBackgroundTasks::add,
+                new Handler(mHandlerThread.getLooper()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mLooper != null) {
+            mLooper.destroy();
+            mLooper = null;
+        }
+        mHandlerThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testNoTelephonyCallOnMainThread() throws Exception {
+        mLoader.load(mSnapshots::add);
+
+        // Nothing is read until the background task runs, so the keypad can be laid out first.
+        assertTrue(mDataSource.mCallThreads.isEmpty());
+        runBackgroundTasks();
+        assertEquals(2, mDataSource.mCallThreads.size());
+        for (Thread thread : mDataSource.mCallThreads) {
+            assertNotSame(mMainThread, thread);
+        }
+
+        assertTrue(mSnapshots.isEmpty());
+        processAllMessages();
+        assertEquals(1, mSnapshots.size());
+        assertSame(mDataSource.mCarrierConfig, mSnapshots.get(0).getCarrierConfig());
+        assertFalse(mSnapshots.get(0).isFallback());
+        assertTrue(mSnapshots.get(0).isKnownEmergencyNumber("911"));
+
+        // Loaded in time, no fallback follows.
+        mLooper.moveTimeForward(EmergencyDialerDataLoader.LOAD_DEADLINE_MS);
+        processAllMessages();
+        assertEquals(1, mSnapshots.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testFallbackAtDeadline() throws Exception {
+        mLoader.load(mSnapshots::add);
+        mLooper.moveTimeForward(EmergencyDialerDataLoader.LOAD_DEADLINE_MS);
+        processAllMessages();
+
+        assertEquals(1, mSnapshots.size());
+        EmergencyDialerDataLoader.Snapshot fallback = mSnapshots.get(0);
+        assertTrue(fallback.isFallback());
+        assertTrue(fallback.getCarrierConfig().getBoolean(
+                CarrierConfigManager.KEY_SHOW_ONSCREEN_DIAL_BUTTON_BOOL));
+        assertFalse(fallback.isKnownEmergencyNumber("911"));
+
+        // The late data still follows.
+        runBackgroundTasks();
+        processAllMessages();
+        assertEquals(2, mSnapshots.size());
+        assertFalse(mSnapshots.get(1).isFallback());
+        assertSame(mDataSource.mCarrierConfig, mSnapshots.get(1).getCarrierConfig());
+    }
+
+    @Test
+    @SmallTest
+    public void testFailedLoadDeliversFallbackOnce() throws Exception {
+        mDataSource.mFailure = new IllegalStateException("no service");
+        mLoader.load(mSnapshots::add);
+        runBackgroundTasks();
+        processAllMessages();
+        mLooper.moveTimeForward(EmergencyDialerDataLoader.LOAD_DEADLINE_MS);
+        processAllMessages();
+
+        assertEquals(1, mSnapshots.size());
+        assertTrue(mSnapshots.get(0).isFallback());
+    }
+
+    @Test
+    @SmallTest
+    public void testCancelDropsResult() throws Exception {
+        mLoader.load(mSnapshots::add);
+        runBackgroundTasks();
+        mLoader.cancel();
+        processAllMessages();
+        mLooper.moveTimeForward(EmergencyDialerDataLoader.LOAD_DEADLINE_MS);
+        processAllMessages();
+
+        assertTrue(mSnapshots.isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testSnapshotMatchesExactEmergencyNumbers() throws Exception {
+        mLoader.load(mSnapshots::add);
+        runBackgroundTasks();
+        processAllMessages();
+        EmergencyDialerDataLoader.Snapshot snapshot = mSnapshots.get(0);
+
+        assertTrue(snapshot.isKnownEmergencyNumber("911"));
+        assertTrue(snapshot.isKnownEmergencyNumber("1-1-2"));
+        assertFalse(snapshot.isKnownEmergencyNumber("9112"));
+        assertFalse(snapshot.isKnownEmergencyNumber("91"));
+        assertFalse(snapshot.isKnownEmergencyNumber(null));
+    }
+
+    @Test
+    @SmallTest
+    public void testSnapshotWithoutEmergencyNumbers() throws Exception {
+        mDataSource.mEmergencyNumbers = null;
+        mLoader.load(mSnapshots::add);
+        runBackgroundTasks();
+        processAllMessages();
+
+        assertEquals(1, mSnapshots.size());
+        assertFalse(mSnapshots.get(0).isKnownEmergencyNumber("911"));
+    }
+
+    private void runBackgroundTasks() throws Exception {
+        Thread background = new Thread(() -> {
+            for (Runnable task : mBackgroundTasks) {
+                task.run();
+            }
+        });
+        background.start();
+        background.join();
+        mBackgroundTasks.clear();
+    }
+
+    private void processAllMessages() {
+        while (!mLooper.getLooper().getQueue().isIdle()) {
+            mLooper.processAllMessages();
+        }
+    }
+
+    private static EmergencyNumber emergencyNumber(String number) {
+        return new EmergencyNumber(number, "us", "", 0, Collections.emptyList(),
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN);
+    }
+}
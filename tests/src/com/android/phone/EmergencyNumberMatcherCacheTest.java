@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+/**
+ * Unit tests for EmergencyNumberMatcherCache
+ */
+public class EmergencyNumberMatcherCacheTest {
+    private static final int SUB_ID = 1;
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+
+    private int mBuildCount;
+    private EmergencyNumberMatcherCache mCache;
+    private Context mContext;
+    private TelephonyManager mTelephonyManager;
+    private TelephonyManager mTelephonyManagerForSub;
+    private SubscriptionManager mSubscriptionManager;
+
+    @Before
+    public void setUp() {
+        mBuildCount = 0;
+        mCache = new EmergencyNumberMatcherCache(() -> {
+            mBuildCount++;
+            return new EmergencyNumberMatcher.Builder().build();
+        });
+        mContext = mock(Context.class);
+        mTelephonyManager = mock(TelephonyManager.class);
+        mTelephonyManagerForSub = mock(TelephonyManager.class);
+        mSubscriptionManager = mock(SubscriptionManager.class);
+        when(mContext.getSystemService(TelephonyManager.class)).thenReturn(mTelephonyManager);
+        when(mContext.getSystemService(SubscriptionManager.class))
+                .thenReturn(mSubscriptionManager);
+        when(mTelephonyManager.createForSubscriptionId(SUB_ID))
+                .thenReturn(mTelephonyManagerForSub);
+    }
+
+    @Test
+    @SmallTest
+    public void testMatcherIsReusedUntilInvalidated() {
+        EmergencyNumberMatcher matcher = mCache.getMatcher();
+        assertSame(matcher, mCache.getMatcher());
+        assertEquals(1, mBuildCount);
+
+        mCache.invalidate();
+        mCache.getMatcher();
+        mCache.getMatcher();
+        assertEquals(2, mBuildCount);
+        assertEquals(2, mCache.getRebuildCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testCountryChangeInvalidates() {
+        mCache.registerForInvalidation(mContext, DIRECT_EXECUTOR);
+        ArgumentCaptor<BroadcastReceiver> receiver =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        ArgumentCaptor<IntentFilter> filter = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(mContext).registerReceiver(receiver.capture(), filter.capture());
+        mCache.getMatcher();
+
+        Intent intent = new Intent(TelephonyManager.ACTION_NETWORK_COUNTRY_CHANGED);
+        assertTrue(filter.getValue().hasAction(intent.getAction()));
+        receiver.getValue().onReceive(mContext, intent);
+        mCache.getMatcher();
+        assertEquals(2, mBuildCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testEmergencyNumberListChangeOfActiveSubscriptionInvalidates() {
+        mCache.registerForInvalidation(mContext, DIRECT_EXECUTOR);
+        ArgumentCaptor<SubscriptionManager.OnSubscriptionsChangedListener> listener =
+                ArgumentCaptor.forClass(SubscriptionManager.OnSubscriptionsChangedListener.class);
+        verify(mSubscriptionManager).addOnSubscriptionsChangedListener(eq(DIRECT_EXECUTOR),
+                listener.capture());
+        when(mSubscriptionManager.getActiveSubscriptionIdList()).thenReturn(new int[] {SUB_ID});
+        listener.getValue().onSubscriptionsChanged();
+
+        ArgumentCaptor<TelephonyCallback> callback =
+                ArgumentCaptor.forClass(TelephonyCallback.class);
+        verify(mTelephonyManagerForSub).registerTelephonyCallback(eq(DIRECT_EXECUTOR),
+                callback.capture());
+        mCache.getMatcher();
+        ((TelephonyCallback.EmergencyNumberListListener) callback.getValue())
+                .onEmergencyNumberListChanged(Collections.emptyMap());
+        mCache.getMatcher();
+        mCache.getMatcher();
+        assertEquals(2, mBuildCount);
+
+        // The subscription is removed, its callback is unregistered.
+        when(mSubscriptionManager.getActiveSubscriptionIdList()).thenReturn(new int[0]);
+        listener.getValue().onSubscriptionsChanged();
+        verify(mTelephonyManager).unregisterTelephonyCallback(callback.getValue());
+        verify(mTelephonyManager, never()).registerTelephonyCallback(any(Executor.class), any());
+        mCache.getMatcher();
+        assertEquals(3, mBuildCount);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import android.telephony.PhoneNumberUtils;
+import android.telephony.emergency.EmergencyNumber;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for EmergencyNumberMatcher
+ */
+public class EmergencyNumberMatcherTest {
+    private static final String[] COUNTRIES = {"us", "br", "in", "cl"};
+    private static final String DIALABLE = "0123456789*#+N";
+    private static final String SEPARATORS = " -().,;p@";
+
+    @Test
+    @SmallTest
+    public void testMatchesExactAndPrefix() {
+        EmergencyNumberMatcher matcher = new EmergencyNumberMatcher.Builder()
+                .addSlot(1, "us", List.of(radioNumber("911"), radioNumber("112")))
+                .addSlot(2, "br", List.of(radioNumber("190")))
+                .build();
+
+        assertTrue(matcher.isEmergencyNumber("911", true));
+        assertTrue(matcher.isEmergencyNumber("9-1-1", true));
+        assertTrue(matcher.isEmergencyNumber("911,123", true));
+        assertFalse(matcher.isEmergencyNumber("9112", true));
+        assertTrue(matcher.isEmergencyNumber("9112", false));
+        assertFalse(matcher.isEmergencyNumber("91", false));
+        // Brazil only allows exact matches.
+        assertTrue(matcher.isEmergencyNumber("190", false));
+        assertFalse(matcher.isEmergencyNumber("1901", false));
+        assertFalse(matcher.isEmergencyNumber("911@example.com", false));
+        assertFalse(matcher.isEmergencyNumber(null, false));
+        assertEquals(2, matcher.getEmergencyNumberList().size());
+    }
+
+    @Test
+    @SmallTest
+    public void testSlotWithoutRadioNumbersIsDelegated() {
+        EmergencyNumberMatcher matcher = new EmergencyNumberMatcher.Builder()
+                .addSlot(1, "us", List.of(new EmergencyNumber("911", "us", "", 0,
+                        Collections.emptyList(), EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE,
+                        EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN)))
+                .addSlot(2, "us", null)
+                .build();
+
+        assertTrue(matcher.isSlotDelegated(0));
+        assertFalse(matcher.isSlotDelegated(1));
+        assertFalse(matcher.isEmergencyNumber("911", true));
+        assertEquals(1, matcher.getEmergencyNumberList().size());
+    }
+
+    @Test
+    @SmallTest
+    public void testListIsCopied() {
+        List<EmergencyNumber> numbers = new ArrayList<>(List.of(radioNumber("911")));
+        EmergencyNumberMatcher matcher = new EmergencyNumberMatcher.Builder()
+                .addSlot(1, "us", numbers)
+                .build();
+
+        // A tracker can update the list it returned.
+        numbers.add(radioNumber("100"));
+        assertFalse(matcher.isEmergencyNumber("100", true));
+        assertEquals(1, matcher.getEmergencyNumberList().get(1).size());
+    }
+
+    @Test
+    @SmallTest
+    public void testMatchesLinearScanOnGeneratedCorpus() {
+        Random random = new Random(0);
+        for (int corpus = 0; corpus < 50; corpus++) {
+            int slotCount = 1 + random.nextInt(3);
+            List<List<EmergencyNumber>> lists = new ArrayList<>();
+            String[] countries = new String[slotCount];
+            EmergencyNumberMatcher.Builder builder = new EmergencyNumberMatcher.Builder();
+            for (int slot = 0; slot < slotCount; slot++) {
+                List<EmergencyNumber> numbers = new ArrayList<>();
+                int count = 1 + random.nextInt(20);
+                for (int i = 0; i < count; i++) {
+                    numbers.add(radioNumber(randomString(random, DIALABLE, 1, 5)));
+                }
+                countries[slot] = COUNTRIES[random.nextInt(COUNTRIES.length)];
+                lists.add(numbers);
+                builder.addSlot(slot + 1, countries[slot], numbers);
+            }
+            EmergencyNumberMatcher matcher = builder.build();
+
+            for (int query = 0; query < 500; query++) {
+                String number = randomQuery(random, lists);
+                for (boolean exactMatch : new boolean[] {true, false}) {
+                    assertEquals("corpus " + corpus + ", number " + number + ", exact "
+                                    + exactMatch,
+                            linearScan(lists, countries, number, exactMatch),
+                            matcher.isEmergencyNumber(number, exactMatch));
+                }
+            }
+        }
+    }
+
+    /**
+     * The matching EmergencyNumberTracker#isEmergencyNumber does once the radio reported a list.
+     */
+    private static boolean linearScan(List<List<EmergencyNumber>> lists, String[] countries,
+            String number, boolean exactMatch) {
+        if (number == null || PhoneNumberUtils.isUriNumber(number)) {
+            return false;
+        }
+        number = PhoneNumberUtils.extractNetworkPortionAlt(number);
+        for (int slot = 0; slot < lists.size(); slot++) {
+            boolean exact = exactMatch || countries[slot].equals("br")
+                    || countries[slot].equals("cl") || countries[slot].equals("ni");
+            for (EmergencyNumber num : lists.get(slot)) {
+                if (exact ? num.getNumber().equals(number) : number.startsWith(num.getNumber())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String randomQuery(Random random, List<List<EmergencyNumber>> lists) {
+        switch (random.nextInt(4)) {
+            case 0: {
+                // An emergency number, possibly with extra digits and separators.
+                List<EmergencyNumber> numbers = lists.get(random.nextInt(lists.size()));
+                String number = numbers.get(random.nextInt(numbers.size())).getNumber();
+                if (random.nextBoolean()) {
+                    number += randomString(random, DIALABLE, 1, 3);
+                }
+                return random.nextBoolean() ? number : insertSeparators(random, number);
+            }
+            case 1: {
+                // A truncated emergency number.
+                List<EmergencyNumber> numbers = lists.get(random.nextInt(lists.size()));
+                String number = numbers.get(random.nextInt(numbers.size())).getNumber();
+                return number.substring(0, random.nextInt(number.length() + 1));
+            }
+            case 2:
+                return randomString(random, DIALABLE + SEPARATORS, 0, 12);
+            default:
+                return randomString(random, DIALABLE, 1, 11);
+        }
+    }
+
+    private static String insertSeparators(Random random, String number) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < number.length(); i++) {
+            if (random.nextInt(3) == 0) {
+                sb.append(SEPARATORS.charAt(random.nextInt(SEPARATORS.length())));
+            }
+            sb.append(number.charAt(i));
+        }
+        return sb.toString();
+    }
+
+    private static String randomString(Random random, String alphabet, int minLength,
+            int maxLength) {
+        int length = minLength + random.nextInt(maxLength - minLength + 1);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    private static EmergencyNumber radioNumber(String number) {
+        return new EmergencyNumber(number, "us", "", 0, Collections.emptyList(),
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING,
+                EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN);
+    }
+}
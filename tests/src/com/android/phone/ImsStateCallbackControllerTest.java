@@ -35,6 +35,7 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -92,6 +93,7 @@ public class ImsStateCallbackControllerTest {
     @Mock private SubscriptionManager mSubscriptionManager;
     private SubscriptionManager.OnSubscriptionsChangedListener mSubChangedListener;
     @Mock private TelephonyRegistryManager mTelephonyRegistryManager;
+    @Mock private CarrierConfigChangeBus mCarrierConfigChangeBus;
     @Mock private ITelephony.Stub mITelephony;
     @Mock private RcsFeatureManager mRcsFeatureManager;
     @Mock private ImsManager mMmTelFeatureManager;
@@ -464,6 +466,43 @@ public class ImsStateCallbackControllerTest {
         assertFalse(mImsStateCallbackController.isRegistered(mCallback1));
     }
 
+    @Test
+    @SmallTest
+    public void testDeadCallbacksRemovedTogether() throws Exception {
+        createController(1);
+
+        ArgumentCaptor<IBinder.DeathRecipient> recipient0 =
+                ArgumentCaptor.forClass(IBinder.DeathRecipient.class);
+        ArgumentCaptor<IBinder.DeathRecipient> recipient1 =
+                ArgumentCaptor.forClass(IBinder.DeathRecipient.class);
+
+        mImsStateCallbackController
+                .registerImsStateCallback(SLOT_0_SUB_ID, FEATURE_MMTEL, mCallback0, "callback0");
+        mImsStateCallbackController
+                .registerImsStateCallback(SLOT_0_SUB_ID, FEATURE_MMTEL, mCallback1, "callback1");
+        mImsStateCallbackController
+                .registerImsStateCallback(SLOT_0_SUB_ID, FEATURE_MMTEL, mCallback2, "callback2");
+        processAllMessages();
+        verify(mBinder0).linkToDeath(recipient0.capture(), anyInt());
+        verify(mBinder1).linkToDeath(recipient1.capture(), anyInt());
+
+        recipient0.getValue().binderDied();
+        recipient1.getValue().binderDied();
+        processAllMessages();
+
+        assertFalse(mImsStateCallbackController.isRegistered(mCallback0));
+        assertFalse(mImsStateCallbackController.isRegistered(mCallback1));
+        assertTrue(mImsStateCallbackController.isRegistered(mCallback2));
+
+        // Only the remaining callback is notified of the next state change.
+        mMmTelConnectorListenerSlot0.getValue()
+                .connectionUnavailable(UNAVAILABLE_REASON_IMS_UNSUPPORTED);
+        processAllMessages();
+        verify(mCallback0, never()).onUnavailable(REASON_NO_IMS_SERVICE_CONFIGURED);
+        verify(mCallback1, never()).onUnavailable(REASON_NO_IMS_SERVICE_CONFIGURED);
+        verify(mCallback2, times(1)).onUnavailable(REASON_NO_IMS_SERVICE_CONFIGURED);
+    }
+
     @Test
     @SmallTest
     public void testCarrierConfigurationChanged() throws Exception {
@@ -895,7 +934,8 @@ public class ImsStateCallbackControllerTest {
 
         mImsStateCallbackController =
                 new ImsStateCallbackController(mPhone, mHandlerThread.getLooper(),
-                        slotCount, mMmTelFeatureFactory, mRcsFeatureFactory, mImsResolver);
+                        slotCount, mMmTelFeatureFactory, mRcsFeatureFactory, mImsResolver,
+                        mCarrierConfigChangeBus);
 
         replaceInstance(ImsStateCallbackController.class,
                 "mPhoneFactoryProxy", mImsStateCallbackController, mPhoneFactoryProxy);
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import android.os.AsyncResult;
+import android.os.Bundle;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.ResultReceiver;
+import android.telephony.AccessNetworkConstants.AccessNetworkType;
+import android.telephony.ActivityStatsTechSpecificInfo;
+import android.telephony.ModemActivityInfo;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.TestableLooper;
+
+import com.android.internal.telephony.CommandException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for ModemActivityInfoAggregator, against a fake RIL answered by the test.
+ */
+public class ModemActivityInfoAggregatorTest {
+    private static final long MAX_AGE_MS = 1000;
+
+    private final List<Message> mPendingQueries = new ArrayList<>();
+    private final List<Bundle> mResults = new ArrayList<>();
+
+    private long mNowMs;
+    private boolean mHasModem;
+    private HandlerThread mHandlerThread;
+    private TestableLooper mLooper;
+
+    @Before
+    public void setUp() throws Exception {
+        mHasModem = true;
+        mHandlerThread = new HandlerThread("ModemActivityInfoAggregatorTest");
+        mHandlerThread.start();
+        mLooper = new TestableLooper(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mLooper != null) {
+            mLooper.destroy();
+            mLooper = null;
+        }
+        mHandlerThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstIsOneModemQuery() {
+        ModemActivityInfoAggregator aggregator = createAggregator(0);
+        for (int i = 0; i < 5; i++) {
+            aggregator.request(createReceiver(), null);
+        }
+        processAllMessages();
+        assertEquals(1, mPendingQueries.size());
+        assertTrue(mResults.isEmpty());
+
+        answer(report(1000, 100, 200, tech(AccessNetworkType.EUTRAN, 0, 10, 50)));
+        assertEquals(5, mResults.size());
+        ModemActivityInfo first = getInfo(mResults.get(0));
+        for (Bundle result : mResults) {
+            assertSame(first, getInfo(result));
+        }
+        assertEquals(100, first.getSleepTimeMillis());
+
+        // A request after the answer queries the modem again.
+        aggregator.request(createReceiver(), null);
+        processAllMessages();
+        assertEquals(1, mPendingQueries.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testDeltasAreSummed() {
+        ModemActivityInfoAggregator.Accumulator accumulator =
+                new ModemActivityInfoAggregator.Accumulator();
+        int mmwave = ServiceState.FREQUENCY_RANGE_MMWAVE;
+        int sub6 = ServiceState.FREQUENCY_RANGE_HIGH;
+
+        accumulator.add(report(1000, 100, 200, tech(AccessNetworkType.EUTRAN, 0, 10, 50)));
+        accumulator.add(report(2000, 100, 100,
+                tech(AccessNetworkType.EUTRAN, 0, 5, 20),
+                tech(AccessNetworkType.NGRAN, mmwave, 1, 3)));
+        accumulator.add(report(3000, 10, 10,
+                tech(AccessNetworkType.NGRAN, sub6, 7, 8),
+                tech(AccessNetworkType.NGRAN, mmwave, 2, 4)));
+        ModemActivityInfo info = accumulator.toModemActivityInfo();
+
+        assertEquals(3000, info.getTimestampMillis());
+        assertEquals(210, info.getSleepTimeMillis());
+        assertEquals(310, info.getIdleTimeMillis());
+        // Technologies not seen before come first.
+        assertEquals(4, info.getSpecificInfoLength());
+        assertEquals(AccessNetworkType.NGRAN, info.getSpecificInfoRat(0));
+        assertEquals(sub6, info.getSpecificInfoFrequencyRange(0));
+        assertEquals(AccessNetworkType.NGRAN, info.getSpecificInfoRat(1));
+        assertEquals(mmwave, info.getSpecificInfoFrequencyRange(1));
+        assertEquals(AccessNetworkType.EUTRAN, info.getSpecificInfoRat(2));
+        assertEquals(AccessNetworkType.UNKNOWN, info.getSpecificInfoRat(3));
+
+        assertArrayEquals(txTime(15), info.getTransmitTimeMillis(AccessNetworkType.EUTRAN));
+        assertEquals(70, info.getReceiveTimeMillis(AccessNetworkType.EUTRAN));
+        assertArrayEquals(txTime(3), info.getTransmitTimeMillis(AccessNetworkType.NGRAN, mmwave));
+        assertEquals(7, info.getReceiveTimeMillis(AccessNetworkType.NGRAN, mmwave));
+        assertArrayEquals(txTime(7), info.getTransmitTimeMillis(AccessNetworkType.NGRAN, sub6));
+        assertEquals(8, info.getReceiveTimeMillis(AccessNetworkType.NGRAN, sub6));
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidReportIsIgnored() {
+        ModemActivityInfoAggregator aggregator = createAggregator(0);
+        aggregator.request(createReceiver(), null);
+        processAllMessages();
+        answer(report(1000, 100, 200, tech(AccessNetworkType.EUTRAN, 0, 10, 50)));
+
+        // More sleep than time since the previous report.
+        aggregator.request(createReceiver(), null);
+        processAllMessages();
+        answer(report(1100, 500, 0, tech(AccessNetworkType.EUTRAN, 0, 10, 50)));
+
+        assertEquals(100, getInfo(mResults.get(1)).getSleepTimeMillis());
+        assertEquals(1000, getInfo(mResults.get(1)).getTimestampMillis());
+    }
+
+    @Test
+    @SmallTest
+    public void testRecentResultIsServedWithinMaxAge() {
+        ModemActivityInfoAggregator aggregator = createAggregator(MAX_AGE_MS);
+        aggregator.request(createReceiver(), null);
+        processAllMessages();
+        answer(report(1000, 100, 200, tech(AccessNetworkType.EUTRAN, 0, 10, 50)));
+
+        mNowMs += MAX_AGE_MS - 1;
+        aggregator.request(createReceiver(), null);
+        processAllMessages();
+        assertTrue(mPendingQueries.isEmpty());
+        assertSame(getInfo(mResults.get(0)), getInfo(mResults.get(1)));
+
+        mNowMs += 1;
+        aggregator.request(createReceiver(), null);
+        processAllMessages();
+        assertEquals(1, mPendingQueries.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testModemError() {
+        ModemActivityInfoAggregator aggregator = createAggregator(0);
+        aggregator.request(createReceiver(), null);
+        aggregator.request(createReceiver(), null);
+        processAllMessages();
+
+        Message query = mPendingQueries.remove(0);
+        AsyncResult.forMessage(query, null,
+                new CommandException(CommandException.Error.GENERIC_FAILURE));
+        query.sendToTarget();
+        processAllMessages();
+
+        assertEquals(2, mResults.size());
+        for (Bundle result : mResults) {
+            assertNull(getInfo(result));
+            assertEquals(TelephonyManager.ModemActivityInfoException.ERROR_INVALID_INFO_RECEIVED,
+                    result.getInt(TelephonyManager.EXCEPTION_RESULT_KEY));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testNoModem() {
+        mHasModem = false;
+        ModemActivityInfoAggregator aggregator = createAggregator(0);
+        aggregator.request(createReceiver(), null);
+        processAllMessages();
+
+        assertEquals(1, mResults.size());
+        assertEquals(0, getInfo(mResults.get(0)).getSleepTimeMillis());
+    }
+
+    private ModemActivityInfoAggregator createAggregator(long maxAgeMs) {
+        return new ModemActivityInfoAggregator(mHandlerThread.getLooper(),
+                (onCompleted, workSource) -> {
+                    if (!mHasModem) {
+                        return false;
+                    }
+                    mPendingQueries.add(onCompleted);
+                    return true;
+                }, maxAgeMs, () -> mNowMs);
+    }
+
+    private ResultReceiver createReceiver() {
+        return new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                mResults.add(resultData);
+            }
+        };
+    }
+
+    private void answer(ModemActivityInfo info) {
+        Message query = mPendingQueries.remove(0);
+        AsyncResult.forMessage(query, info, null);
+        query.sendToTarget();
+        processAllMessages();
+    }
+
+    private void processAllMessages() {
+        while (!mLooper.getLooper().getQueue().isIdle()) {
+            mLooper.processAllMessages();
+        }
+    }
+
+    private static ModemActivityInfo getInfo(Bundle result) {
+        return result.getParcelable(TelephonyManager.MODEM_ACTIVITY_RESULT_KEY);
+    }
+
+    private static ModemActivityInfo report(long timestampMs, long sleepMs, long idleMs,
+            ActivityStatsTechSpecificInfo... techs) {
+        return new ModemActivityInfo(timestampMs, sleepMs, idleMs, techs);
+    }
+
+    private static ActivityStatsTechSpecificInfo tech(int rat, int freq, int txMs, int rxMs) {
+        return new ActivityStatsTechSpecificInfo(rat, freq, txTime(txMs), rxMs);
+    }
+
+    // Transmit time on the lowest power level.
+    private static int[] txTime(int txMs) {
+        int[] txTimeMs = new int[ModemActivityInfo.getNumTxPowerLevels()];
+        txTimeMs[0] = txMs;
+        return txTimeMs;
+    }
+}
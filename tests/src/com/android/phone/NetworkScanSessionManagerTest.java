@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.telephony.AccessNetworkConstants.AccessNetworkType;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoLte;
+import android.telephony.NetworkScan;
+import android.telephony.NetworkScanRequest;
+import android.telephony.RadioAccessSpecifier;
+import android.telephony.TelephonyScanManager;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.TestableLooper;
+
+import com.android.internal.telephony.Phone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for NetworkScanSessionManager, against a fake modem driven by the test.
+ */
+public class NetworkScanSessionManagerTest {
+    private static final int UID_1 = 10001;
+    private static final int UID_2 = 10002;
+    private static final int PERIODICITY_SEC = 10;
+
+    /** Records the modem scans, and sends their results to the session manager. */
+    private class FakeModem implements NetworkScanSessionManager.ScanStarter {
+        final List<Integer> mStopped = new ArrayList<>();
+        Messenger mMessenger;
+        int mScans;
+
+        @Override
+        public int startNetworkScan(boolean renounceFineLocationAccess,
+                NetworkScanRequest request, Messenger messenger, IBinder binder, Phone phone,
+                int callingUid, int callingPid, String callingPackage) {
+            mMessenger = messenger;
+            return 100 + ++mScans;
+        }
+
+        @Override
+        public void stopNetworkScan(int scanId, int callingUid) {
+            mStopped.add(scanId);
+        }
+
+        void sendResults(List<CellInfo> cells) throws Exception {
+            Message message = Message.obtain(null, TelephonyScanManager.CALLBACK_SCAN_RESULTS,
+                    NetworkScan.SUCCESS, 100 + mScans);
+            Bundle b = new Bundle();
+            b.putParcelableArray(TelephonyScanManager.SCAN_RESULT_KEY,
+                    cells.toArray(new CellInfo[0]));
+            message.setData(b);
+            mMessenger.send(message);
+            processAllMessages();
+        }
+
+        void complete() throws Exception {
+            mMessenger.send(Message.obtain(null, TelephonyScanManager.CALLBACK_SCAN_COMPLETE,
+                    NetworkScan.SUCCESS, 100 + mScans));
+            processAllMessages();
+        }
+    }
+
+    /** A client of requestNetworkScan, keeping the messages it gets. */
+    private class Client {
+        final List<Message> mMessages = new ArrayList<>();
+        final Messenger mMessenger;
+
+        Client() {
+            mMessenger = new Messenger(new Handler(mHandlerThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    mMessages.add(Message.obtain(msg));
+                }
+            });
+        }
+
+        int getCellCount(int index) {
+            return mMessages.get(index).getData()
+                    .getParcelableArray(TelephonyScanManager.SCAN_RESULT_KEY).length;
+        }
+    }
+
+    private final Set<Integer> mUidsWithoutLocationAccess = new HashSet<>();
+    private final List<Integer> mCheckedUids = new ArrayList<>();
+    private long mNowMs;
+    private HandlerThread mHandlerThread;
+    private TestableLooper mLooper;
+    private FakeModem mModem;
+    private Phone mPhone;
+    private NetworkScanRequest mRequest;
+    private NetworkScanSessionManager mManager;
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread("NetworkScanSessionManagerTest");
+        mHandlerThread.start();
+        mLooper = new TestableLooper(mHandlerThread.getLooper());
+        mModem = new FakeModem();
+        mPhone = mock(Phone.class);
+        when(mPhone.getPhoneId()).thenReturn(0);
+        mRequest = createRequest(NetworkScanRequest.SCAN_TYPE_PERIODIC);
+        mManager = new NetworkScanSessionManager(mHandlerThread.getLooper(), mModem,
+                (phone, uid, pid, callingPackage) -> {
+                    mCheckedUids.add(uid);
+                    return !mUidsWithoutLocationAccess.contains(uid);
+                }, () -> mNowMs);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mLooper != null) {
+            mLooper.destroy();
+            mLooper = null;
+        }
+        mHandlerThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testIdenticalRequestsShareOneModemScan() throws Exception {
+        Client first = new Client();
+        Client second = new Client();
+        int firstId = start(first, UID_1, true, mRequest);
+        mModem.sendResults(List.of(cell(1, false), cell(2, false)));
+        int secondId = start(second, UID_2, true, createRequest(
+                NetworkScanRequest.SCAN_TYPE_PERIODIC));
+        processAllMessages();
+
+        assertEquals(1, mModem.mScans);
+        assertTrue(firstId != secondId);
+        // The late client starts with the cells found so far.
+        assertEquals(1, second.mMessages.size());
+        assertEquals(secondId, second.mMessages.get(0).arg2);
+        assertEquals(2, second.getCellCount(0));
+
+        mModem.sendResults(List.of(cell(3, false)));
+        assertEquals(2, first.mMessages.size());
+        assertEquals(2, second.mMessages.size());
+        assertEquals(firstId, first.mMessages.get(1).arg2);
+        assertEquals(1, second.getCellCount(1));
+    }
+
+    @Test
+    @SmallTest
+    public void testDifferentRequestsOrAccessDoNotShare() throws Exception {
+        start(new Client(), UID_1, true, mRequest);
+        start(new Client(), UID_2, false, mRequest);
+        start(new Client(), UID_2, true, createRequest(NetworkScanRequest.SCAN_TYPE_ONE_SHOT));
+        assertEquals(3, mModem.mScans);
+    }
+
+    @Test
+    @SmallTest
+    public void testModemScanStopsWithLastClient() throws Exception {
+        Client first = new Client();
+        Client second = new Client();
+        int firstId = start(first, UID_1, true, mRequest);
+        int secondId = start(second, UID_2, true, mRequest);
+
+        // Another uid cannot stop the scan.
+        mManager.stopNetworkScan(firstId, UID_2);
+        mManager.stopNetworkScan(firstId, UID_1);
+        processAllMessages();
+        assertTrue(mModem.mStopped.isEmpty());
+        assertEquals(TelephonyScanManager.CALLBACK_SCAN_COMPLETE, first.mMessages.get(0).what);
+
+        mManager.stopNetworkScan(secondId, UID_2);
+        assertEquals(List.of(101), mModem.mStopped);
+        mModem.complete();
+        assertEquals(TelephonyScanManager.CALLBACK_SCAN_COMPLETE, second.mMessages.get(0).what);
+        assertEquals(secondId, second.mMessages.get(0).arg2);
+
+        // A new request starts a new modem scan.
+        start(new Client(), UID_1, true, mRequest);
+        assertEquals(2, mModem.mScans);
+    }
+
+    @Test
+    @SmallTest
+    public void testLateClientGetsOnlyCellsSeenRecently() throws Exception {
+        start(new Client(), UID_1, true, mRequest);
+        mModem.sendResults(List.of(cell(1, false), cell(2, false)));
+        mNowMs += PERIODICITY_SEC * 1000;
+        mModem.sendResults(List.of(cell(2, true)));
+        mNowMs += PERIODICITY_SEC * 2000 + 1;
+        mModem.sendResults(List.of(cell(2, true)));
+
+        // Cell 1 was last seen more than two periods ago.
+        Client late = new Client();
+        start(late, UID_2, true, mRequest);
+        processAllMessages();
+        assertEquals(1, late.mMessages.size());
+        assertEquals(1, late.getCellCount(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testLocationAccessCheckedForEveryOtherClient() throws Exception {
+        Client owner = new Client();
+        Client allowed = new Client();
+        Client denied = new Client();
+        start(owner, UID_1, true, mRequest);
+        start(allowed, UID_2, true, mRequest);
+        mUidsWithoutLocationAccess.add(UID_2 + 1);
+        start(denied, UID_2 + 1, true, mRequest);
+
+        mModem.sendResults(List.of(cell(1, false)));
+        assertEquals(1, mModem.mScans);
+        // The modem scan checked the client which started it.
+        assertEquals(List.of(UID_2, UID_2 + 1), mCheckedUids);
+        assertEquals(TelephonyScanManager.CALLBACK_SCAN_RESULTS, owner.mMessages.get(0).what);
+        assertEquals(TelephonyScanManager.CALLBACK_SCAN_RESULTS, allowed.mMessages.get(0).what);
+        assertEquals(TelephonyScanManager.CALLBACK_RESTRICTED_SCAN_RESULTS,
+                denied.mMessages.get(0).what);
+        assertEquals(1, denied.getCellCount(0));
+
+        // Checked again for every result, access may be revoked during the scan.
+        mUidsWithoutLocationAccess.add(UID_2);
+        mModem.sendResults(List.of(cell(1, false)));
+        assertEquals(TelephonyScanManager.CALLBACK_RESTRICTED_SCAN_RESULTS,
+                allowed.mMessages.get(1).what);
+    }
+
+    @Test
+    @SmallTest
+    public void testOverlappingRequestsShareOneModemScan() throws Exception {
+        final int clients = 4;
+        final int rounds = 10;
+        List<CellInfo> cells = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            cells.add(cell(i, false));
+        }
+
+        Client[] fullClients = new Client[clients];
+        for (int i = 0; i < clients; i++) {
+            fullClients[i] = new Client();
+            start(fullClients[i], UID_1 + i, true, mRequest);
+        }
+        for (int round = 0; round < rounds; round++) {
+            cells.set(round, cell(round, true));
+            mModem.sendResults(cells);
+        }
+
+        assertEquals(1, mModem.mScans);
+        for (Client client : fullClients) {
+            assertEquals(rounds, client.mMessages.size());
+            assertEquals(cells.size(), client.getCellCount(rounds - 1));
+        }
+    }
+
+    private int start(Client client, int uid, boolean fullLocationAccess,
+            NetworkScanRequest request) {
+        return mManager.startNetworkScan(false, fullLocationAccess, request, client.mMessenger,
+                null, mPhone, uid, 0, "pkg" + uid);
+    }
+
+    private void processAllMessages() {
+        while (!mLooper.getLooper().getQueue().isIdle()) {
+            mLooper.processAllMessages();
+        }
+    }
+
+    private static NetworkScanRequest createRequest(int scanType) {
+        RadioAccessSpecifier[] specifiers = {
+                new RadioAccessSpecifier(AccessNetworkType.EUTRAN, null, null)};
+        return new NetworkScanRequest(scanType, specifiers, PERIODICITY_SEC, 60, true, 3, null);
+    }
+
+    private static CellInfo cell(int ci, boolean registered) {
+        CellInfoLte cellInfo = new CellInfoLte();
+        cellInfo.setCellIdentity(new CellIdentityLte(ci, 1, 1, 100, new int[0], 10000, "310",
+                "260", "Operator", "Op", Collections.emptyList(), null));
+        cellInfo.setRegistered(registered);
+        return cellInfo;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.app.NotificationManager;
+import android.app.role.RoleManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PersistableBundle;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.telecom.TelecomManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.TestableLooper;
+
+import com.android.TelephonyTestBase;
+import com.android.internal.telephony.Phone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.util.Collections;
+
+/**
+ * Unit tests for the voicemail notification of NotificationMgr.
+ */
+public class NotificationMgrTest extends TelephonyTestBase {
+    private static final String TAG = "NotificationMgrTest";
+    private static final int SUB_ID = 1;
+    private static final String DIALER_PACKAGE = "com.example.dialer";
+
+    @Mock PhoneGlobals mApp;
+    @Mock NotificationMgr.PhoneGlobalsProxy mPhoneGlobalsProxy;
+    @Mock Phone mPhone;
+    @Mock UserManager mUserManager;
+    @Mock PackageManager mPackageManager;
+    @Mock Context mUserContext;
+    @Mock NotificationManager mNotificationManager;
+    @Mock Resources mResources;
+    @Mock SubscriptionInfo mSubscriptionInfo;
+
+    private HandlerThread mHandlerThread;
+    private TestableLooper mLooper;
+    private SubscriptionManager mSubscriptionManager;
+    private BroadcastReceiver mPackageChangedReceiver;
+    private BroadcastReceiver mVoicemailDismissedReceiver;
+    private NotificationMgr mNotificationMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        PhoneGlobals.sVoiceCapable = true;
+        doReturn(mPhone).when(mPhoneGlobalsProxy).getPhone(SUB_ID);
+        doReturn(mUserManager).when(mContext).getSystemService(Context.USER_SERVICE);
+        doReturn(Context.ROLE_SERVICE).when(mContext).getSystemServiceName(RoleManager.class);
+        doReturn(mPackageManager).when(mContext).getPackageManager();
+        doReturn(null).when(mContext).registerReceiverForAllUsers(any(), any(), any(), any());
+        doReturn(mUserContext).when(mContext).createPackageContextAsUser(anyString(), anyInt(),
+                any());
+        doReturn(mNotificationManager).when(mUserContext).getSystemService(
+                Context.NOTIFICATION_SERVICE);
+        doReturn(new long[] {0}).when(mUserManager).getSerialNumbersOfUsers(true);
+        doReturn(UserHandle.SYSTEM).when(mUserManager).getUserForSerialNumber(0);
+        doReturn(DIALER_PACKAGE).when(mContext.getSystemService(TelecomManager.class))
+                .getDefaultDialerPackage(any(UserHandle.class));
+        doReturn(Collections.emptyList()).when(mPackageManager).queryBroadcastReceivers(
+                any(Intent.class), anyInt());
+        mSubscriptionManager = mContext.getSystemService(SubscriptionManager.class);
+
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mLooper = new TestableLooper(mHandlerThread.getLooper());
+        mNotificationMgr = new NotificationMgr(mApp, mContext, mHandlerThread.getLooper(),
+                mPhoneGlobalsProxy);
+
+        ArgumentCaptor<BroadcastReceiver> captor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext).registerReceiverForAllUsers(captor.capture(), any(), any(), any());
+        mPackageChangedReceiver = captor.getValue();
+        verify(mContext).registerReceiver(captor.capture(), any(IntentFilter.class), any(),
+                any(Handler.class), anyInt());
+        mVoicemailDismissedReceiver = captor.getValue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mLooper != null) {
+            mLooper.destroy();
+            mLooper = null;
+        }
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstOfUpdatesEndingHiddenCancelsOnce() {
+        mNotificationMgr.updateMwi(SUB_ID, true);
+        mNotificationMgr.updateMwi(SUB_ID, false);
+        mNotificationMgr.updateMwi(SUB_ID, true);
+        mNotificationMgr.updateMwi(SUB_ID, false);
+        mLooper.processAllMessages();
+
+        verify(mNotificationManager).cancel(Integer.toString(SUB_ID),
+                NotificationMgr.VOICEMAIL_NOTIFICATION);
+        verify(mNotificationManager, never()).notify(anyString(), anyInt(), any());
+        // The visible updates of the burst were never built.
+        verify(mSubscriptionManager, never()).getActiveSubscriptionInfo(anyInt());
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstOfUpdatesEndingVisibleBuildsOnce() {
+        mNotificationMgr.updateMwi(SUB_ID, false);
+        mNotificationMgr.updateMwi(SUB_ID, true);
+        mNotificationMgr.updateMwi(SUB_ID, false);
+        mNotificationMgr.updateMwi(SUB_ID, true);
+        mLooper.processAllMessages();
+
+        // Only the final, visible, state is built. There is no subscription info in this test,
+        // so nothing is posted either.
+        verify(mSubscriptionManager, times(1)).getActiveSubscriptionInfo(SUB_ID);
+        verify(mNotificationManager, never()).cancel(anyString(), anyInt());
+    }
+
+    @Test
+    @SmallTest
+    public void testDialerInfoIsCachedUntilPackagesChange() {
+        mNotificationMgr.updateMwi(SUB_ID, false);
+        mLooper.processAllMessages();
+        mNotificationMgr.updateMwi(SUB_ID, false);
+        mLooper.processAllMessages();
+        verify(mPackageManager, times(1)).queryBroadcastReceivers(any(Intent.class), anyInt());
+        // The notification was only cancelled once, the second update changes nothing.
+        verify(mNotificationManager, times(1)).cancel(anyString(), anyInt());
+
+        mPackageChangedReceiver.onReceive(mContext, new Intent(Intent.ACTION_PACKAGE_REPLACED,
+                Uri.fromParts("package", DIALER_PACKAGE, null)));
+        mNotificationMgr.updateMwi(SUB_ID, false);
+        mLooper.processAllMessages();
+        verify(mPackageManager, times(2)).queryBroadcastReceivers(any(Intent.class), anyInt());
+    }
+
+    @Test
+    @SmallTest
+    public void testRefreshPostsAgainAfterDismissal() {
+        setUpVisibleNotification();
+        mNotificationMgr.updateMwi(SUB_ID, true);
+        mLooper.processAllMessages();
+        mNotificationMgr.updateMwi(SUB_ID, true, true /* isRefresh */);
+        mLooper.processAllMessages();
+        // The refresh would look the same, it is skipped.
+        verify(mNotificationManager, times(1)).notify(anyString(), anyInt(), any());
+
+        mVoicemailDismissedReceiver.onReceive(mContext,
+                new Intent(NotificationMgr.ACTION_VOICEMAIL_NOTIFICATION_DISMISSED)
+                        .putExtra(NotificationMgr.EXTRA_SUB_ID, SUB_ID));
+        mNotificationMgr.updateMwi(SUB_ID, true, true /* isRefresh */);
+        mLooper.processAllMessages();
+        verify(mNotificationManager, times(2)).notify(anyString(), anyInt(), any());
+    }
+
+    // Lets a voicemail notification without a voicemail number be built and posted.
+    private void setUpVisibleNotification() {
+        ApplicationInfo applicationInfo = new ApplicationInfo();
+        applicationInfo.targetSdkVersion = Build.VERSION_CODES.CUR_DEVELOPMENT;
+        doReturn(applicationInfo).when(mContext).getApplicationInfo();
+        doReturn(mResources).when(mContext).getResources();
+        doReturn(0).when(mContext).getUserId();
+        doReturn(true).when(mPhone).getIccRecordsLoaded();
+        doReturn(mSubscriptionInfo).when(mSubscriptionManager).getActiveSubscriptionInfo(SUB_ID);
+        doReturn(new PersistableBundle()).when(mPhoneGlobalsProxy)
+                .getCarrierConfigForSubId(SUB_ID);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Unit tests for PermissionDecisionCache
+ */
+public class PermissionDecisionCacheTest {
+    private static final long TTL_MS = 1000;
+    private static final int UID = 10001;
+    private static final int PID = 2001;
+    private static final int SUB_ID = 1;
+    private static final String PERMISSION = "android.permission.READ_PRIVILEGED_PHONE_STATE";
+
+    private long mNow;
+    private int mCheckCount;
+    private boolean mGranted;
+    private PermissionDecisionCache mCache;
+
+    private final PermissionDecisionCache.PermissionCheck mCheck = () -> {
+        mCheckCount++;
+        if (!mGranted) throw new SecurityException("denied");
+    };
+
+    @Before
+    public void setUp() {
+        mNow = 0;
+        mCheckCount = 0;
+        mGranted = true;
+        mCache = new PermissionDecisionCache(TTL_MS, () -> mNow);
+    }
+
+    @Test
+    @SmallTest
+    public void testGrantIsReusedUntilExpiry() {
+        mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+        mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+        assertEquals(1, mCheckCount);
+
+        mNow += TTL_MS;
+        mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+        assertEquals(2, mCheckCount);
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testKeyIncludesCallerAndSubscription() {
+        mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+        mCache.enforce(UID + 1, PID, PERMISSION, SUB_ID, mCheck);
+        mCache.enforce(UID, PID + 1, PERMISSION, SUB_ID, mCheck);
+        mCache.enforce(UID, PID, PERMISSION, SUB_ID + 1, mCheck);
+        mCache.enforce(UID, PID, "other", SUB_ID, mCheck);
+        assertEquals(5, mCheckCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testDenialIsNeverCached() {
+        mGranted = false;
+        for (int i = 0; i < 2; i++) {
+            try {
+                mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+                fail("expected SecurityException");
+            } catch (SecurityException e) {
+                // expected
+            }
+        }
+        assertEquals(2, mCheckCount);
+
+        mGranted = true;
+        mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+        assertEquals(3, mCheckCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testInvalidateDropsGrants() {
+        mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+        mCache.invalidate();
+        mGranted = false;
+        try {
+            mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+            fail("expected SecurityException");
+        } catch (SecurityException e) {
+            // expected
+        }
+        assertEquals(2, mCheckCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testMultiSimConfigChangeRegistersTheNewSlots() {
+        Context context = mock(Context.class);
+        TelephonyManager tm = mock(TelephonyManager.class);
+        when(context.getSystemService(TelephonyManager.class)).thenReturn(tm);
+        mCache.registerForInvalidation(context, 1);
+        verify(tm).registerCarrierPrivilegesCallback(eq(0), any(Executor.class), any());
+        verify(tm, never()).registerCarrierPrivilegesCallback(eq(1), any(Executor.class), any());
+        mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+
+        verify(context).registerReceiverForAllUsers(any(BroadcastReceiver.class),
+                any(IntentFilter.class), isNull(), isNull());
+        ArgumentCaptor<BroadcastReceiver> receivers =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        ArgumentCaptor<IntentFilter> filters = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(context).registerReceiver(receivers.capture(), filters.capture());
+        assertTrue(filters.getValue().hasAction(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED));
+        BroadcastReceiver multiSimConfigReceiver = receivers.getValue();
+        multiSimConfigReceiver.onReceive(context,
+                new Intent(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED)
+                        .putExtra(TelephonyManager.EXTRA_ACTIVE_SIM_SUPPORTED_COUNT, 2));
+
+        verify(tm).registerCarrierPrivilegesCallback(eq(1), any(Executor.class), any());
+        mCache.enforce(UID, PID, PERMISSION, SUB_ID, mCheck);
+        assertEquals(2, mCheckCount);
+    }
+
+    @Test
+    @SmallTest
+    public void testIsGrantedCachesGrantsOnly() {
+        mGranted = false;
+        assertFalse(mCache.isGranted(UID, PID, PERMISSION, SUB_ID, this::check));
+        assertFalse(mCache.isGranted(UID, PID, PERMISSION, SUB_ID, this::check));
+        assertEquals(2, mCheckCount);
+
+        mGranted = true;
+        assertTrue(mCache.isGranted(UID, PID, PERMISSION, SUB_ID, this::check));
+        mGranted = false;
+        assertTrue(mCache.isGranted(UID, PID, PERMISSION, SUB_ID, this::check));
+        assertEquals(3, mCheckCount);
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(3, mCache.getMissCount());
+    }
+
+    private boolean check() {
+        mCheckCount++;
+        return mGranted;
+    }
+}
@@ -31,6 +31,7 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -38,7 +39,6 @@ import static org.mockito.Mockito.when;
 
 import android.app.role.OnRoleHoldersChangedListener;
 import android.app.role.RoleManager;
-import android.content.BroadcastReceiver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -53,6 +53,7 @@ import android.os.PersistableBundle;
 import android.os.UserHandle;
 import android.provider.Telephony.SimInfo;
 import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyRegistryManager;
 import android.telephony.ims.ProvisioningManager;
@@ -82,6 +83,7 @@ import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Executor;
 
@@ -151,7 +153,9 @@ public class RcsProvisioningMonitorTest {
     private PersistableBundle mBundle;
     private MockContentResolver mContentResolver = new MockContentResolver();
     private SimInfoContentProvider mProvider;
-    private BroadcastReceiver mReceiver;
+    private CarrierConfigChangeBus.Listener mCarrierConfigListener;
+    @Mock
+    private CarrierConfigChangeBus mCarrierConfigChangeBus;
     private static final int TEST_SUB_ID = 1;
     @Mock
     private Cursor mCursor;
@@ -257,10 +261,12 @@ public class RcsProvisioningMonitorTest {
         doAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
-                mReceiver = (BroadcastReceiver) invocation.getArguments()[0];
+                mCarrierConfigListener =
+                        (CarrierConfigChangeBus.Listener) invocation.getArguments()[2];
                 return null;
             }
-        }).when(mPhone).registerReceiver(any(BroadcastReceiver.class), any());
+        }).when(mCarrierConfigChangeBus).registerListener(any(), any(Executor.class),
+                any(CarrierConfigChangeBus.Listener.class));
 
         doAnswer(new Answer<Void>() {
             @Override
@@ -838,7 +844,76 @@ public class RcsProvisioningMonitorTest {
                 eq(RCS_CLIENT_PROVISIONING_STATS__EVENT__DMA_CHANGED));
     }
 
+    @Test
+    @SmallTest
+    public void testConfigLoadedOffHandler() throws Exception {
+        List<Runnable> ioTasks = new ArrayList<>();
+        createMonitor(1, ioTasks::add);
+
+        // before the io stage has run, the stored config is read directly
+        assertTrue(Arrays.equals(CONFIG_DEFAULT.getBytes(),
+                mRcsProvisioningMonitor.getConfig(FAKE_SUB_ID_BASE)));
+        assertEquals(1, ioTasks.size());
+
+        // sub changes while the load is in flight should not issue another load
+        mExecutor.execute(() -> mSubChangedListener.onSubscriptionsChanged());
+        processAllMessages();
+        assertEquals(1, ioTasks.size());
+
+        ioTasks.remove(0).run();
+        processAllMessages();
+
+        assertTrue(Arrays.equals(CONFIG_DEFAULT.getBytes(),
+                mRcsProvisioningMonitor.getConfig(FAKE_SUB_ID_BASE)));
+        verify(mIImsConfig, times(1)).notifyRcsAutoConfigurationReceived(any(), anyBoolean());
+    }
+
+    @Test
+    @SmallTest
+    public void testCarrierChangeReloadsConfig() throws Exception {
+        List<Runnable> ioTasks = new ArrayList<>();
+        createMonitor(1, ioTasks::add);
+        ioTasks.remove(0).run();
+        processAllMessages();
+
+        // the same carrier keeps the cached config
+        mExecutor.execute(() -> mSubChangedListener.onSubscriptionsChanged());
+        processAllMessages();
+        assertEquals(0, ioTasks.size());
+
+        SubscriptionInfo info = mock(SubscriptionInfo.class);
+        when(info.getCarrierId()).thenReturn(1);
+        when(mSubscriptionManager.getActiveSubscriptionInfo(FAKE_SUB_ID_BASE)).thenReturn(info);
+        mExecutor.execute(() -> mSubChangedListener.onSubscriptionsChanged());
+        processAllMessages();
+        assertEquals(1, ioTasks.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testConfigReceivedSupersedesPendingLoad() throws Exception {
+        List<Runnable> ioTasks = new ArrayList<>();
+        createMonitor(1, ioTasks::add);
+
+        byte[] newConfig = CONFIG_DEFAULT.replace("1.1", "2.0").getBytes();
+        mRcsProvisioningMonitor.updateConfig(FAKE_SUB_ID_BASE, newConfig, false);
+        processAllMessages();
+
+        while (!ioTasks.isEmpty()) {
+            ioTasks.remove(0).run();
+        }
+        processAllMessages();
+
+        // the stale config loaded from the database must not replace the received one
+        assertTrue(Arrays.equals(newConfig,
+                mRcsProvisioningMonitor.getConfig(FAKE_SUB_ID_BASE)));
+    }
+
     private void createMonitor(int subCount) throws Exception {
+        createMonitor(subCount, mExecutor);
+    }
+
+    private void createMonitor(int subCount, Executor configIoExecutor) throws Exception {
         if (Looper.myLooper() == null) {
             Looper.prepare();
         }
@@ -847,23 +922,25 @@ public class RcsProvisioningMonitorTest {
                 .thenReturn(mFeatureConnector);
         when(mFeatureManager.getConfig()).thenReturn(mIImsConfig);
         mRcsProvisioningMonitor = new RcsProvisioningMonitor(mPhone, mHandlerThread.getLooper(),
-                mRoleManager, mFeatureFactory, mRcsStats);
+                mRoleManager, mFeatureFactory, mRcsStats, configIoExecutor,
+                mCarrierConfigChangeBus);
         mHandler = mRcsProvisioningMonitor.getHandler();
         try {
             mLooper = new TestableLooper(mHandler.getLooper());
         } catch (Exception e) {
             logd("Unable to create looper from handler.");
         }
+        // deliver the configs loaded by the io executor
+        processAllMessages();
         mConnectorListener.getValue().connectionReady(mFeatureManager, TEST_SUB_ID);
 
         verify(mFeatureConnector, atLeastOnce()).connect();
     }
 
     private void broadcastCarrierConfigChange(int subId) {
-        Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
-        intent.putExtra(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX, subId);
         mExecutor.execute(() -> {
-            mReceiver.onReceive(mPhone, intent);
+            mCarrierConfigListener.onCarrierConfigChanged(0 /*slotIndex*/, subId, mBundle,
+                    Collections.emptySet());
         });
     }
 
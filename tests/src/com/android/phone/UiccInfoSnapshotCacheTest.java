@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.TelephonyManager;
+import android.telephony.UiccCardInfo;
+import android.telephony.UiccPortInfo;
+import android.telephony.UiccSlotInfo;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.uicc.IccCardStatus;
+import com.android.internal.telephony.uicc.UiccCard;
+import com.android.internal.telephony.uicc.UiccPort;
+import com.android.internal.telephony.uicc.UiccSlot;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for UiccInfoSnapshotCache
+ */
+public class UiccInfoSnapshotCacheTest {
+    private static final String ICCID_0 = "8901000000000000001";
+    private static final String ICCID_1 = "8901000000000000002";
+    private static final String EID = "89049032000000000000000000000001";
+
+    /** Serves the slots and cards set by the test, and counts the reads. */
+    private class FakeUiccController implements UiccInfoSnapshotCache.DataSource {
+        UiccSlot[] mSlots;
+        List<UiccCardInfo> mCardInfos = new ArrayList<>();
+        UiccCard mCard;
+        UiccPort[] mPorts = new UiccPort[2];
+        int mReads;
+
+        @Override
+        public UiccSlot[] getUiccSlots() {
+            mReads++;
+            return mSlots;
+        }
+
+        @Override
+        public List<UiccCardInfo> getAllUiccCardInfos() {
+            mReads++;
+            // A new list every time, like UiccController.
+            return new ArrayList<>(mCardInfos);
+        }
+
+        @Override
+        public UiccCard getUiccCardForSlot(int physicalSlotIndex) {
+            return mCard;
+        }
+
+        @Override
+        public UiccPort getUiccPortForSlot(int physicalSlotIndex, int portIndex) {
+            return mPorts[portIndex];
+        }
+    }
+
+    private FakeUiccController mUiccController;
+    private UiccSlot mSlot;
+    private BroadcastReceiver mReceiver;
+    private UiccInfoSnapshotCache mCache;
+
+    @Before
+    public void setUp() {
+        mSlot = mock(UiccSlot.class);
+        when(mSlot.getCardState()).thenReturn(IccCardStatus.CardState.CARDSTATE_PRESENT);
+        when(mSlot.getPortList()).thenReturn(new int[] {0});
+        when(mSlot.getIccId(0)).thenReturn(ICCID_0 + "F");
+        when(mSlot.isPortActive(0)).thenReturn(true);
+
+        mUiccController = new FakeUiccController();
+        mUiccController.mSlots = new UiccSlot[] {mSlot, null};
+        mUiccController.mCard = mock(UiccCard.class);
+        mUiccController.mPorts[0] = mock(UiccPort.class);
+        mUiccController.mPorts[1] = mock(UiccPort.class);
+        mUiccController.mCardInfos.add(new UiccCardInfo(true, 0, EID, 0, false, true,
+                List.of(new UiccPortInfo(ICCID_0, 0, 0, true),
+                        new UiccPortInfo(ICCID_1, 1, 1, true))));
+
+        mCache = new UiccInfoSnapshotCache(mUiccController);
+        Context context = mock(Context.class);
+        mCache.registerForInvalidation(context);
+        ArgumentCaptor<BroadcastReceiver> captor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(context).registerReceiver(captor.capture(), any(IntentFilter.class));
+        mReceiver = captor.getValue();
+    }
+
+    @Test
+    @SmallTest
+    public void testSlotsInfoIsShared() {
+        UiccSlotInfo[] first = mCache.getSlotsInfo(false);
+        UiccSlotInfo[] second = mCache.getSlotsInfo(false);
+
+        assertEquals(2, first.length);
+        assertNull(first[1]);
+        assertEquals(ICCID_0, first[0].getPorts().iterator().next().getIccId());
+        // Each caller gets its own array over the same entries.
+        assertNotSame(first, second);
+        assertSame(first[0], second[0]);
+        assertNotSame(first[0], mCache.getSlotsInfo(true)[0]);
+        assertEquals(1, mCache.getRebuildCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testNoSlots() {
+        mUiccController.mSlots = new UiccSlot[0];
+        assertNull(mCache.getSlotsInfo(false));
+    }
+
+    @Test
+    @SmallTest
+    public void testFreshAfterEachEvent() {
+        String[] actions = {
+                TelephonyManager.ACTION_SIM_SLOT_STATUS_CHANGED,
+                TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED,
+                TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED,
+                TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED,
+        };
+        IccCardStatus.CardState[] states = {
+                IccCardStatus.CardState.CARDSTATE_ABSENT,
+                IccCardStatus.CardState.CARDSTATE_ERROR,
+                IccCardStatus.CardState.CARDSTATE_RESTRICTED,
+                IccCardStatus.CardState.CARDSTATE_PRESENT,
+        };
+        int[] expected = {
+                UiccSlotInfo.CARD_STATE_INFO_ABSENT,
+                UiccSlotInfo.CARD_STATE_INFO_ERROR,
+                UiccSlotInfo.CARD_STATE_INFO_RESTRICTED,
+                UiccSlotInfo.CARD_STATE_INFO_PRESENT,
+        };
+        mCache.getSlotsInfo(false);
+        mCache.getCardsInfo(true, port -> true);
+        for (int i = 0; i < actions.length; i++) {
+            when(mSlot.getCardState()).thenReturn(states[i]);
+            UiccCardInfo cardInfo = new UiccCardInfo(false, i, null, 0, true, false, List.of());
+            mUiccController.mCardInfos.set(0, cardInfo);
+
+            mReceiver.onReceive(null, new Intent(actions[i]));
+            assertEquals(actions[i], expected[i], mCache.getSlotsInfo(false)[0].getCardStateInfo());
+            assertSame(actions[i], cardInfo, mCache.getCardsInfo(true, port -> true).get(0));
+        }
+        assertEquals(1 + actions.length, mCache.getRebuildCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testChangeDuringBuildIsNotKept() {
+        when(mSlot.getPortList()).thenAnswer(invocation -> {
+            // The slot status changes while the snapshot is being built.
+            mCache.invalidate();
+            return new int[] {0};
+        });
+        mCache.getSlotsInfo(false);
+
+        when(mSlot.getPortList()).thenReturn(new int[] {0});
+        mCache.getSlotsInfo(false);
+        mCache.getSlotsInfo(false);
+        assertEquals(2, mCache.getRebuildCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testCardsInfoRedaction() {
+        UiccCardInfo privileged = mUiccController.mCardInfos.get(0);
+        assertSame(privileged, mCache.getCardsInfo(true, port -> false).get(0));
+
+        // No carrier privileges, every caller gets the same redacted card.
+        UiccCardInfo redacted = mCache.getCardsInfo(false, port -> false).get(0);
+        assertSame(redacted, mCache.getCardsInfo(false, port -> false).get(0));
+        assertNull(redacted.getEid());
+        for (UiccPortInfo portInfo : redacted.getPorts()) {
+            assertEquals(UiccPortInfo.ICCID_REDACTED, portInfo.getIccId());
+        }
+
+        // Carrier privileges on every port, only the EID is redacted.
+        UiccCardInfo allPorts = mCache.getCardsInfo(false, port -> true).get(0);
+        assertSame(allPorts, mCache.getCardsInfo(false, port -> true).get(0));
+        assertNull(allPorts.getEid());
+        assertEquals(new ArrayList<>(privileged.getPorts()), new ArrayList<>(allPorts.getPorts()));
+
+        // Carrier privileges on one port.
+        UiccPort port0 = mUiccController.mPorts[0];
+        List<UiccPortInfo> ports = new ArrayList<>(
+                mCache.getCardsInfo(false, port -> port == port0).get(0).getPorts());
+        assertEquals(ICCID_0, ports.get(0).getIccId());
+        assertEquals(UiccPortInfo.ICCID_REDACTED, ports.get(1).getIccId());
+        assertEquals(1, mCache.getRebuildCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testInactiveCardIsRedacted() {
+        mUiccController.mCard = null;
+        mCache.invalidate();
+
+        UiccCardInfo cardInfo = mCache.getCardsInfo(false, port -> true).get(0);
+        assertNull(cardInfo.getEid());
+        for (UiccPortInfo portInfo : cardInfo.getPorts()) {
+            assertEquals(UiccPortInfo.ICCID_REDACTED, portInfo.getIccId());
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testReadsPerCall() {
+        final int calls = 1000;
+        for (int i = 0; i < calls; i++) {
+            mCache.getSlotsInfo(i % 2 == 0);
+            mCache.getCardsInfo(false, port -> false);
+        }
+        // One snapshot build reads the slots and the card infos, every other call shares it.
+        assertEquals(2, mUiccController.mReads);
+        assertEquals(1, mCache.getRebuildCount());
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.BaseEncoding;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests for DigestAuthSession, against an HTTP server on the loopback interface which enforces
+ * RFC 7616 digest authentication with the GBA credentials of 3GPP TS 33.222.
+ */
+public class DigestAuthSessionTest {
+    private static final int TIMEOUT_MILLIS = 10000;
+    private static final String REALM = "3GPP-bootstrapping@127.0.0.1";
+    private static final String OPAQUE = "5ccc069c403ebaf9f0171e9517f40e41";
+    private static final GbaCredentials CREDENTIALS =
+            new GbaCredentials("btid@bsf.example.com", new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    private static final Pattern PARAMETER = Pattern.compile("(\\w+)=(\"([^\"]*)\"|[^,\\s]*)");
+
+    private final DigestAuthSession mSession = new DigestAuthSession();
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mNonceGeneration = new AtomicInteger();
+    // The nonce counts used with each nonce issued by the server.
+    private final Map<String, TreeSet<Integer>> mNonceCounts = new HashMap<>();
+    // Whether the server rejects nonce counts below the highest one used, or only reused ones.
+    private volatile boolean mNonceCountsInOrder = true;
+    private volatile String mCurrentNonce;
+    private ServerSocket mServerSocket;
+    private Thread mServerThread;
+
+    @Before
+    public void setUp() throws Exception {
+        rotateNonce();
+        mServerSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        mServerThread = new Thread(this::serve);
+        mServerThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        mServerThread.join(TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void testChallengeOnlyOnce() throws Exception {
+        final int transfers = 10;
+        for (int i = 0; i < transfers; i++) {
+            assertEquals(200, authorizedGet());
+        }
+        // Only the first transfer was challenged.
+        assertEquals(transfers + 1, mRequests.get());
+    }
+
+    @Test
+    public void testStaleNonce() throws Exception {
+        assertEquals(200, authorizedGet());
+        int requests = mRequests.get();
+
+        rotateNonce();
+        String stale = mSession.authorize(CREDENTIALS, "GET", url());
+        HttpURLConnection connection = get(stale);
+        assertEquals(401, connection.getResponseCode());
+        assertTrue(mSession.onChallenge(DigestAuthUtils.parseAuthenticateHeader(
+                connection.getHeaderField(DigestAuthUtils.WWW_AUTHENTICATE))));
+        // The credentials are still good, only the nonce is new.
+        assertEquals(200, get(mSession.reauthorize("GET", url())).getResponseCode());
+        assertEquals(requests + 2, mRequests.get());
+    }
+
+    @Test
+    public void testReplayedNonceCountRejected() throws Exception {
+        assertEquals(200, authorizedGet());
+        String authorization = mSession.reauthorize("GET", url());
+        assertEquals(200, get(authorization).getResponseCode());
+        assertEquals(401, get(authorization).getResponseCode());
+    }
+
+    @Test
+    public void testConcurrentRequestsNotSerialized() throws Exception {
+        final int transfers = 8;
+        // Like servers keeping a window of nonce counts, so that the order of arrival does not
+        // matter.
+        mNonceCountsInOrder = false;
+        assertEquals(200, authorizedGet());
+        int requests = mRequests.get();
+        // Every request waits until all of them were authorized, which only happens if the
+        // session lets them run in parallel.
+        CountDownLatch authorized = new CountDownLatch(transfers);
+        ExecutorService threads = Executors.newFixedThreadPool(transfers);
+        try {
+            List<Future<Integer>> responses = new ArrayList<>();
+            for (int i = 0; i < transfers; i++) {
+                responses.add(threads.submit(() -> mSession.send(CREDENTIALS, "GET", url(),
+                        (authorization) -> {
+                            authorized.countDown();
+                            try {
+                                authorized.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                            return get(authorization);
+                        }).getResponseCode()));
+            }
+            for (Future<Integer> response : responses) {
+                assertEquals(200, (int) response.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        assertEquals(0, authorized.getCount());
+        assertEquals(requests + transfers, mRequests.get());
+    }
+
+    @Test
+    public void testOvertakenNonceCountAnsweredOnce() throws Exception {
+        assertEquals(200, authorizedGet());
+        int requests = mRequests.get();
+        CountDownLatch authorized = new CountDownLatch(1);
+        CountDownLatch overtaken = new CountDownLatch(1);
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> slow = thread.submit(() -> mSession.send(null, "GET", url(),
+                    (authorization) -> {
+                        authorized.countDown();
+                        try {
+                            overtaken.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return get(authorization);
+                    }).getResponseCode());
+            assertTrue(authorized.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertEquals(200, mSession.send(null, "GET", url(), this::get).getResponseCode());
+            overtaken.countDown();
+
+            assertEquals(200, (int) slow.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        } finally {
+            thread.shutdownNow();
+        }
+        // The slow request was rejected for its nonce count, and answered once.
+        assertEquals(requests + 3, mRequests.get());
+    }
+
+    @Test
+    public void testStaleNonceAnsweredBySend() throws Exception {
+        assertEquals(200, authorizedGet());
+        int requests = mRequests.get();
+
+        rotateNonce();
+        assertEquals(200, mSession.send(null, "GET", url(), this::get).getResponseCode());
+        assertEquals(requests + 2, mRequests.get());
+    }
+
+    @Test
+    public void testRejectedCredentialsNotAnswered() throws Exception {
+        assertEquals(200, authorizedGet());
+        int requests = mRequests.get();
+
+        GbaCredentials wrong = new GbaCredentials(CREDENTIALS.getTransactionId(), new byte[8]);
+        assertEquals(401, mSession.send(wrong, "GET", url(), this::get).getResponseCode());
+        assertEquals(requests + 1, mRequests.get());
+    }
+
+    @Test
+    public void testNewCredentials() throws Exception {
+        assertEquals(200, authorizedGet());
+        GbaCredentials wrong = new GbaCredentials(CREDENTIALS.getTransactionId(), new byte[8]);
+        HttpURLConnection connection = get(mSession.authorize(wrong, "GET", url()));
+        assertEquals(401, connection.getResponseCode());
+        assertFalse(mSession.onChallenge(DigestAuthUtils.parseAuthenticateHeader(
+                connection.getHeaderField(DigestAuthUtils.WWW_AUTHENTICATE))));
+        // The A1 hash follows the credentials.
+        assertEquals(200, get(mSession.authorize(CREDENTIALS, "GET", url())).getResponseCode());
+    }
+
+    @Test
+    public void testNonceCountIncreases() {
+        mSession.onChallenge(DigestAuthUtils.parseAuthenticateHeader(challenge(false)));
+        String first = mSession.authorize(CREDENTIALS, "GET", url());
+        String second = mSession.authorize(CREDENTIALS, "GET", url());
+        assertEquals("00000001", parse(first).get("nc"));
+        assertEquals("00000002", parse(second).get("nc"));
+        assertNotEquals(parse(first).get("cnonce"), parse(second).get("cnonce"));
+
+        mSession.reset();
+        assertFalse(mSession.isEstablished());
+    }
+
+    // Does a GET the way transfers do: authorized up front once the session is established.
+    private int authorizedGet() throws IOException {
+        HttpURLConnection connection = get(mSession.isEstablished()
+                ? mSession.authorize(CREDENTIALS, "GET", url()) : null);
+        if (connection.getResponseCode() != 401) {
+            return connection.getResponseCode();
+        }
+        mSession.onChallenge(DigestAuthUtils.parseAuthenticateHeader(
+                connection.getHeaderField(DigestAuthUtils.WWW_AUTHENTICATE)));
+        return get(mSession.authorize(CREDENTIALS, "GET", url())).getResponseCode();
+    }
+
+    private HttpURLConnection get(String authorization) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url()).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        if (authorization != null) {
+            connection.addRequestProperty("Authorization", authorization);
+        }
+        return connection;
+    }
+
+    private String url() {
+        return "http://" + mServerSocket.getInetAddress().getHostAddress() + ":"
+                + mServerSocket.getLocalPort() + "/picture";
+    }
+
+    private void rotateNonce() {
+        mCurrentNonce = "nonce" + mNonceGeneration.incrementAndGet();
+        synchronized (mNonceCounts) {
+            mNonceCounts.put(mCurrentNonce, new TreeSet<>());
+        }
+    }
+
+    private String challenge(boolean stale) {
+        return "Digest realm=\"" + REALM + "\", qop=\"auth\", algorithm=MD5, nonce=\""
+                + mCurrentNonce + "\", opaque=\"" + OPAQUE + "\"" + (stale ? ", stale=true" : "");
+    }
+
+    private void serve() {
+        while (true) {
+            try (Socket socket = mServerSocket.accept()) {
+                mRequests.incrementAndGet();
+                String headers = readHeaders(socket.getInputStream());
+                String authorization = null;
+                for (String line : headers.split("\r\n")) {
+                    if (line.toLowerCase().startsWith("authorization:")) {
+                        authorization = line.substring(14).trim();
+                    }
+                }
+                String method = headers.substring(0, headers.indexOf(' '));
+                Boolean stale = verify(method, authorization);
+                String response = stale == null ? "HTTP/1.1 200 OK\r\n"
+                        : "HTTP/1.1 401 Unauthorized\r\nWWW-Authenticate: " + challenge(stale)
+                                + "\r\n";
+                socket.getOutputStream().write((response
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    // Returns null if the request is authorized, or else whether only its nonce is stale.
+    private Boolean verify(String method, String authorization) {
+        if (authorization == null || !authorization.startsWith("Digest ")) {
+            return false;
+        }
+        Map<String, String> params = parse(authorization.substring(7));
+        if (!REALM.equals(params.get("realm")) || !OPAQUE.equals(params.get("opaque"))
+                || !"auth".equals(params.get("qop"))
+                || !CREDENTIALS.getTransactionId().equals(params.get("username"))
+                || params.get("nc") == null || params.get("cnonce") == null) {
+            return false;
+        }
+        String ha1 = md5(params.get("username") + ":" + REALM + ":"
+                + BaseEncoding.base64().encode(CREDENTIALS.getKey()));
+        String ha2 = md5(method + ":" + params.get("uri"));
+        String expected = md5(ha1 + ":" + params.get("nonce") + ":" + params.get("nc") + ":"
+                + params.get("cnonce") + ":auth:" + ha2);
+        if (!expected.equals(params.get("response"))) {
+            return false;
+        }
+        int nonceCount = Integer.parseInt(params.get("nc"), 16);
+        synchronized (mNonceCounts) {
+            TreeSet<Integer> used = mNonceCounts.get(params.get("nonce"));
+            if (used == null || used.contains(nonceCount)
+                    || (mNonceCountsInOrder && !used.isEmpty() && nonceCount < used.last())) {
+                // Unknown nonce, replayed request, or nonce count out of order.
+                return false;
+            }
+            used.add(nonceCount);
+        }
+        if (!mCurrentNonce.equals(params.get("nonce"))) {
+            return true;
+        }
+        return null;
+    }
+
+    private static Map<String, String> parse(String header) {
+        Map<String, String> params = new HashMap<>();
+        Matcher matcher = PARAMETER.matcher(header);
+        while (matcher.find()) {
+            params.put(matcher.group(1).toLowerCase(),
+                    matcher.group(3) != null ? matcher.group(3) : matcher.group(2));
+        }
+        return params;
+    }
+
+    private static String md5(String input) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            return BaseEncoding.base16().lowerCase()
+                    .encode(digest.digest(input.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String readHeaders(InputStream in) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) break;
+            headers.append((char) c);
+        }
+        return headers.toString();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class GbaCredentialCacheTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final long LIFETIME_MILLIS = 60000;
+    private static final long REFRESH_WINDOW_MILLIS = 5000;
+    private static final String REALM = "3GPP-bootstrapping@www.example.com";
+    private static final String OTHER_REALM = "3GPP-bootstrapping@www.example.org";
+
+    /** A GBA service completing the bootstraps when the test says so. */
+    private static class FakeBootstrapper implements GbaCredentialCache.Bootstrapper {
+        final List<Boolean> mForceRefreshes = Collections.synchronizedList(new ArrayList<>());
+        final List<CompletableFuture<GbaCredentials>> mPending =
+                Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public CompletableFuture<GbaCredentials> bootstrap(boolean forceRefresh,
+                Executor executor) {
+            mForceRefreshes.add(forceRefresh);
+            CompletableFuture<GbaCredentials> result = new CompletableFuture<>();
+            mPending.add(result);
+            return result;
+        }
+
+        GbaCredentials completeLatest(String transactionId) {
+            GbaCredentials credentials = new GbaCredentials(transactionId, new byte[] {1, 2, 3});
+            mPending.get(mPending.size() - 1).complete(credentials);
+            return credentials;
+        }
+    }
+
+    private final FakeBootstrapper mBootstrapper = new FakeBootstrapper();
+    private final Executor mExecutor = Runnable::run;
+    private long mNowMillis = 1000;
+    private final GbaCredentialCache mCache =
+            new GbaCredentialCache(LIFETIME_MILLIS, REFRESH_WINDOW_MILLIS, () -> mNowMillis);
+    private ExecutorService mThreads;
+
+    @After
+    public void tearDown() {
+        if (mThreads != null) {
+            mThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentTransfersShareOneBootstrap() throws Exception {
+        final int transfers = 8;
+        mThreads = Executors.newFixedThreadPool(transfers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<CompletableFuture<GbaCredentials>>> results = new ArrayList<>();
+        for (int i = 0; i < transfers; i++) {
+            CompletableFuture<CompletableFuture<GbaCredentials>> result =
+                    new CompletableFuture<>();
+            results.add(result);
+            mThreads.execute(() -> {
+                try {
+                    start.await();
+                    result.complete(mCache.get(REALM, false, mExecutor, mBootstrapper));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+        start.countDown();
+        List<CompletableFuture<GbaCredentials>> credentials = new ArrayList<>();
+        for (CompletableFuture<CompletableFuture<GbaCredentials>> result : results) {
+            credentials.add(result.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(1, mBootstrapper.mForceRefreshes.size());
+
+        GbaCredentials expected = mBootstrapper.completeLatest("btid");
+        for (CompletableFuture<GbaCredentials> future : credentials) {
+            assertSame(expected, future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+        // Later transfers use the cached credentials.
+        assertSame(expected, get(REALM, false).getNow(null));
+        assertEquals(1, mBootstrapper.mForceRefreshes.size());
+    }
+
+    @Test
+    public void testRealmsCachedSeparately() {
+        get(REALM, false);
+        GbaCredentials first = mBootstrapper.completeLatest("first");
+        get(OTHER_REALM, false);
+        GbaCredentials second = mBootstrapper.completeLatest("second");
+
+        assertSame(first, get(REALM, false).getNow(null));
+        assertSame(second, get(OTHER_REALM, false).getNow(null));
+        assertEquals(2, mBootstrapper.mForceRefreshes.size());
+    }
+
+    @Test
+    public void testExpiry() {
+        get(REALM, false);
+        mBootstrapper.completeLatest("first");
+
+        mNowMillis += LIFETIME_MILLIS;
+        CompletableFuture<GbaCredentials> afterExpiry = get(REALM, false);
+        assertFalse(afterExpiry.isDone());
+        GbaCredentials second = mBootstrapper.completeLatest("second");
+        assertSame(second, afterExpiry.getNow(null));
+        assertEquals(List.of(false, false), mBootstrapper.mForceRefreshes);
+    }
+
+    @Test
+    public void testProactiveRefresh() {
+        get(REALM, false);
+        GbaCredentials first = mBootstrapper.completeLatest("first");
+
+        // Close to the end of their lifetime, the credentials are still used while new ones are
+        // requested, once.
+        mNowMillis += LIFETIME_MILLIS - REFRESH_WINDOW_MILLIS;
+        assertSame(first, get(REALM, false).getNow(null));
+        assertSame(first, get(REALM, false).getNow(null));
+        assertEquals(List.of(false, true), mBootstrapper.mForceRefreshes);
+
+        GbaCredentials second = mBootstrapper.completeLatest("second");
+        assertSame(second, get(REALM, false).getNow(null));
+        assertEquals(2, mBootstrapper.mForceRefreshes.size());
+    }
+
+    @Test
+    public void testFailedProactiveRefreshBacksOff() {
+        get(REALM, false);
+        GbaCredentials first = mBootstrapper.completeLatest("first");
+
+        mNowMillis += LIFETIME_MILLIS - REFRESH_WINDOW_MILLIS;
+        assertSame(first, get(REALM, false).getNow(null));
+        mBootstrapper.mPending.get(1).complete(null);
+
+        // The credentials are still used, without refreshing them again right away.
+        assertSame(first, get(REALM, false).getNow(null));
+        assertEquals(List.of(false, true), mBootstrapper.mForceRefreshes);
+
+        mNowMillis += REFRESH_WINDOW_MILLIS / 2;
+        assertSame(first, get(REALM, false).getNow(null));
+        assertEquals(List.of(false, true, true), mBootstrapper.mForceRefreshes);
+    }
+
+    @Test
+    public void testRejectedCredentialsReauthenticate() {
+        get(REALM, false);
+        mBootstrapper.completeLatest("first");
+
+        // The server answered 401: the transfer retries with a refresh.
+        mCache.invalidate();
+        CompletableFuture<GbaCredentials> refreshed = get(REALM, true);
+        // Transfers started meanwhile wait for the new credentials.
+        CompletableFuture<GbaCredentials> other = get(REALM, false);
+        assertEquals(List.of(false, true), mBootstrapper.mForceRefreshes);
+
+        GbaCredentials second = mBootstrapper.completeLatest("second");
+        assertSame(second, refreshed.getNow(null));
+        assertSame(second, other.getNow(null));
+    }
+
+    @Test
+    public void testRefreshNotSharedWithPlainBootstrap() {
+        CompletableFuture<GbaCredentials> plain = get(REALM, false);
+        CompletableFuture<GbaCredentials> refreshed = get(REALM, true);
+        assertEquals(List.of(false, true), mBootstrapper.mForceRefreshes);
+
+        GbaCredentials second = mBootstrapper.completeLatest("second");
+        assertSame(second, refreshed.getNow(null));
+        // The credentials of the superseded bootstrap are not cached.
+        mBootstrapper.mPending.get(0).complete(new GbaCredentials("first", new byte[0]));
+        assertTrue(plain.isDone());
+        assertSame(second, get(REALM, false).getNow(null));
+    }
+
+    @Test
+    public void testFailureNotCached() {
+        CompletableFuture<GbaCredentials> failed = get(REALM, false);
+        mBootstrapper.mPending.get(0).complete(null);
+        assertNull(failed.getNow(new GbaCredentials("", new byte[0])));
+
+        get(REALM, false);
+        assertEquals(2, mBootstrapper.mForceRefreshes.size());
+    }
+
+    private CompletableFuture<GbaCredentials> get(String realm, boolean forceRefresh) {
+        return mCache.get(realm, forceRefresh, mExecutor, mBootstrapper);
+    }
+}
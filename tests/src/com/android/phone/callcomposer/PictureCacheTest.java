@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PictureCacheTest {
+    private static final long MAX_BYTES = 1000;
+    private static final long TTL_MILLIS = 60000;
+    private static final String URL = "https://www.example.com/AAAAA";
+
+    private final List<String> mEvictions = Collections.synchronizedList(new ArrayList<>());
+    private long mNowMillis;
+
+    private final PictureCache mCache = new PictureCache(MAX_BYTES, TTL_MILLIS, () -> mNowMillis,
+            (id, reason) -> mEvictions.add(id + ":" + reason));
+
+    @Test
+    public void testBudgetEvictsLeastRecentlyUsed() {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID third = UUID.randomUUID();
+        mCache.put(first, image(400), null);
+        mCache.put(second, image(400), null);
+        // Using the first picture makes the second one the least recently used.
+        assertNotNull(mCache.getImage(first));
+        mCache.put(third, image(400), null);
+
+        assertEquals(List.of(second + ":" + PictureCache.REASON_BUDGET), mEvictions);
+        assertNull(mCache.getImage(second));
+        assertNotNull(mCache.getImage(first));
+        assertNotNull(mCache.getImage(third));
+        assertEquals(800, mCache.getSizeBytes());
+    }
+
+    @Test
+    public void testUrlCountsInBudget() {
+        UUID id = UUID.randomUUID();
+        mCache.put(id, image(100), URL);
+        assertEquals(100 + 2 * URL.length(), mCache.getSizeBytes());
+        assertEquals(URL, mCache.getServerUrl(id));
+
+        mCache.remove(id);
+        assertEquals(0, mCache.getSizeBytes());
+        assertNull(mCache.getServerUrl(id));
+        assertTrue(mEvictions.isEmpty());
+    }
+
+    @Test
+    public void testPictureOverBudgetIsNotKept() {
+        UUID id = UUID.randomUUID();
+        mCache.put(id, image((int) MAX_BYTES + 1), URL);
+        assertNull(mCache.getImage(id));
+        assertEquals(0, mCache.getSizeBytes());
+    }
+
+    @Test
+    public void testExpiry() {
+        UUID id = UUID.randomUUID();
+        ImageData image = image(10);
+        mCache.put(id, image, URL);
+        mNowMillis += TTL_MILLIS - 1;
+        assertSame(image, mCache.getImage(id));
+
+        // Reading a picture does not extend its life.
+        mNowMillis += 1;
+        assertNull(mCache.getImage(id));
+        assertNull(mCache.getServerUrl(id));
+        assertEquals(List.of(id + ":" + PictureCache.REASON_EXPIRED), mEvictions);
+        assertEquals(0, mCache.getSizeBytes());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final int threads = 8;
+        final int operations = 2000;
+        PictureCache cache = new PictureCache(50 * 100, TTL_MILLIS, () -> 0, (id, reason) -> {});
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    List<UUID> ids = new ArrayList<>();
+                    for (int i = 0; i < operations; i++) {
+                        UUID id = UUID.randomUUID();
+                        ids.add(id);
+                        cache.put(id, image(100), URL);
+                        cache.getImage(ids.get(i / 2));
+                        cache.getServerUrl(ids.get(i / 3));
+                        if (i % 5 == 0) {
+                            cache.remove(ids.get(i / 4));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertTrue(cache.getSizeBytes() <= 50 * 100);
+        assertTrue(cache.getSizeBytes() >= 0);
+    }
+
+    private static ImageData image(int size) {
+        return new ImageData(new byte[size], "image/png", null);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.util.Log;
+
+import com.android.internal.http.multipart.ByteArrayPartSource;
+import com.android.internal.http.multipart.FilePart;
+import com.android.internal.http.multipart.MultipartEntity;
+import com.android.internal.http.multipart.Part;
+import com.android.internal.http.multipart.StringPart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for PictureStreams, against an HTTP server on the loopback interface.
+ */
+public class PictureStreamsTest {
+    private static final String TAG = "PictureStreamsTest";
+    private static final int MB = 1024 * 1024;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /** Counts the bytes read through it. */
+    private static class CountingInputStream extends FilterInputStream {
+        long mBytesRead;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) mBytesRead++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int numRead = super.read(b, off, len);
+            if (numRead > 0) mBytesRead += numRead;
+            return numRead;
+        }
+    }
+
+    /** What the server saw of a request. */
+    private static class ReceivedRequest {
+        String headers;
+        long bodyLength;
+    }
+
+    private ServerSocket mServerSocket;
+    private Thread mServerThread;
+
+    @Before
+    public void setUp() throws Exception {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        if (mServerThread != null) {
+            mServerThread.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void testDownloadOfKnownLength() throws Exception {
+        for (int sizeMb : new int[] {1, 2, 4, 8}) {
+            byte[] picture = createPicture(sizeMb * MB);
+            serveOnce(picture, true);
+
+            HttpURLConnection connection = openConnection();
+            CountingInputStream in = new CountingInputStream(connection.getInputStream());
+            byte[] body;
+            try {
+                body = PictureStreams.readBody(in, connection.getContentLengthLong(),
+                        8L * MB);
+            } finally {
+                in.close();
+            }
+            assertArrayEquals(picture, body);
+            // Read straight into the result, without reading past the body.
+            assertEquals(picture.length, in.mBytesRead);
+        }
+    }
+
+    @Test
+    public void testDownloadOfUnknownLength() throws Exception {
+        byte[] picture = createPicture(3 * MB + 123);
+        serveOnce(picture, false);
+
+        HttpURLConnection connection = openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            assertEquals(-1, connection.getContentLengthLong());
+            assertArrayEquals(picture, PictureStreams.readBody(in, -1, 4L * MB));
+        }
+    }
+
+    @Test
+    public void testDownloadAbortedAboveMaximum() throws Exception {
+        long maxBytes = MB;
+        // Announced length, nothing is read.
+        serveOnce(createPicture(2 * MB), true);
+        HttpURLConnection connection = openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            PictureStreams.readBody(in, connection.getContentLengthLong(), maxBytes);
+            fail("Expected PictureTooLargeException");
+        } catch (PictureStreams.PictureTooLargeException expected) {
+        }
+        connection.disconnect();
+        mServerThread.join(TIMEOUT_MILLIS);
+
+        // Unknown length, stopped at the first chunk over the maximum.
+        CountingInputStream endless = new CountingInputStream(new InputStream() {
+            @Override
+            public int read() {
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return len;
+            }
+        });
+        try {
+            PictureStreams.readBody(endless, -1, maxBytes);
+            fail("Expected PictureTooLargeException");
+        } catch (PictureStreams.PictureTooLargeException expected) {
+        }
+        assertTrue(endless.mBytesRead > maxBytes);
+        assertTrue(endless.mBytesRead <= maxBytes + PictureStreams.CHUNK_SIZE);
+    }
+
+    @Test
+    public void testTruncatedDownloadFails() throws Exception {
+        try {
+            PictureStreams.readBody(new ByteArrayInputStream(new byte[10]), 20, 100);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testUploadIsStreamedWithFixedLength() throws Exception {
+        for (int sizeMb : new int[] {1, 2, 4, 8}) {
+            byte[] picture = createPicture(sizeMb * MB);
+            MultipartEntity entity = new MultipartEntity(new Part[] {
+                    new StringPart("tid", "1234"),
+                    new FilePart("File", new ByteArrayPartSource("1234", picture), "image/jpeg",
+                            null)});
+            CompletableFuture<ReceivedRequest> received = receiveOnce();
+
+            HttpURLConnection connection = openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            PictureStreams.writeMultipart(connection, entity);
+            assertEquals(200, connection.getResponseCode());
+
+            ReceivedRequest request = received.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertEquals(entity.getContentLength(), request.bodyLength);
+            assertFalse(request.headers.toLowerCase().contains("transfer-encoding: chunked"));
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection openConnection() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://"
+                + mServerSocket.getInetAddress().getHostAddress() + ":"
+                + mServerSocket.getLocalPort() + "/picture").openConnection();
+        connection.setConnectTimeout((int) TIMEOUT_MILLIS);
+        connection.setReadTimeout((int) TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    // Answers one GET with the picture, with or without its length.
+    private void serveOnce(byte[] picture, boolean withLength) {
+        mServerThread = new Thread(() -> {
+            try (Socket socket = mServerSocket.accept()) {
+                readHeaders(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                String headers = "HTTP/1.1 200 OK\r\nContent-Type: image/jpeg\r\n"
+                        + (withLength ? "Content-Length: " + picture.length + "\r\n" : "")
+                        + "Connection: close\r\n\r\n";
+                out.write(headers.getBytes(StandardCharsets.US_ASCII));
+                out.write(picture);
+                out.flush();
+            } catch (IOException e) {
+                // The client may abort the download.
+                Log.d(TAG, "Server: " + e);
+            }
+        });
+        mServerThread.start();
+    }
+
+    // Receives one POST, discarding its body.
+    private CompletableFuture<ReceivedRequest> receiveOnce() {
+        CompletableFuture<ReceivedRequest> result = new CompletableFuture<>();
+        mServerThread = new Thread(() -> {
+            try (Socket socket = mServerSocket.accept()) {
+                InputStream in = socket.getInputStream();
+                ReceivedRequest request = new ReceivedRequest();
+                request.headers = readHeaders(in);
+                long contentLength = -1;
+                for (String line : request.headers.split("\r\n")) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Long.parseLong(line.substring(15).trim());
+                    }
+                }
+                byte[] buffer = new byte[PictureStreams.CHUNK_SIZE];
+                while (request.bodyLength < contentLength) {
+                    int numRead = in.read(buffer, 0,
+                            (int) Math.min(buffer.length, contentLength - request.bodyLength));
+                    if (numRead < 0) break;
+                    request.bodyLength += numRead;
+                }
+                socket.getOutputStream().write(("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                result.complete(request);
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        mServerThread.start();
+        return result;
+    }
+
+    private static String readHeaders(InputStream in) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) break;
+            headers.append((char) c);
+        }
+        return headers.toString();
+    }
+
+    private static byte[] createPicture(int size) {
+        byte[] picture = new byte[size];
+        new Random(size).nextBytes(picture);
+        return picture;
+    }
+}
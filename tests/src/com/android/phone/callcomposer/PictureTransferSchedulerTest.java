@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.callcomposer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class PictureTransferSchedulerTest {
+    private static final String TAG = "PictureTransferSchedulerTest";
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final long SLOW_MILLIS = 400;
+    private static final long FAST_MILLIS = 20;
+    private static final long DEADLINE_MILLIS = 60000;
+    private static final int SUB_1 = 1;
+    private static final int SUB_2 = 2;
+
+    /** A transfer completed by the test. */
+    private class FakeTask extends PictureTransferScheduler.Task {
+        final String mName;
+        final List<Boolean> mStarts = new ArrayList<>();
+        int mAbandonReason;
+
+        FakeTask(String name, int subId, int priority) {
+            this(name, subId, priority, DEADLINE_MILLIS);
+        }
+
+        FakeTask(String name, int subId, int priority, long deadlineMillis) {
+            super(subId, priority, mNowMillis + deadlineMillis);
+            mName = name;
+        }
+
+        @Override
+        protected void start(boolean credentialRefresh) {
+            mStarts.add(credentialRefresh);
+            mStarted.add(mName);
+        }
+
+        @Override
+        protected void onAbandoned(int reason) {
+            mAbandonReason = reason;
+        }
+    }
+
+    private final List<String> mStarted = Collections.synchronizedList(new ArrayList<>());
+    private final int[] mUploadsDone = new int[1];
+    private long mNowMillis = 1000;
+    private ScheduledExecutorService mTimer;
+    private ExecutorService mWorkers;
+    private ServerSocket mServerSocket;
+    private Thread mServerThread;
+
+    @Before
+    public void setUp() throws Exception {
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+        mWorkers = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mTimer.shutdownNow();
+        mWorkers.shutdownNow();
+        if (mServerSocket != null) {
+            mServerSocket.close();
+            mServerThread.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void testLimitsAndPriority() {
+        PictureTransferScheduler scheduler = createScheduler(2, 1);
+        FakeTask upload1 = new FakeTask("upload1", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        FakeTask upload2 = new FakeTask("upload2", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        FakeTask upload3 = new FakeTask("upload3", SUB_2, PictureTransferScheduler.PRIORITY_UPLOAD);
+        FakeTask download = new FakeTask("download", SUB_1,
+                PictureTransferScheduler.PRIORITY_DOWNLOAD);
+        scheduler.schedule(upload1);
+        scheduler.schedule(upload2);
+        scheduler.schedule(upload3);
+        scheduler.schedule(download);
+        // One transfer per subscription.
+        assertEquals(List.of("upload1", "upload3"), mStarted);
+
+        // The download was scheduled last but runs first.
+        assertTrue(upload1.finish());
+        assertEquals(List.of("upload1", "upload3", "download"), mStarted);
+        assertTrue(download.finish());
+        assertEquals(List.of("upload1", "upload3", "download", "upload2"), mStarted);
+
+        // The result of an attempt is only taken once.
+        assertFalse(download.finish());
+    }
+
+    @Test
+    public void testCancelQueuedTask() {
+        PictureTransferScheduler scheduler = createScheduler(1, 1);
+        FakeTask running = new FakeTask("running", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        FakeTask queued = new FakeTask("queued", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        scheduler.schedule(running);
+        scheduler.schedule(queued);
+
+        queued.cancel();
+        assertEquals(PictureTransferScheduler.REASON_CANCELLED, queued.mAbandonReason);
+        running.finish();
+        assertEquals(List.of("running"), mStarted);
+    }
+
+    @Test
+    public void testCancelRunningTaskDropsItsResult() {
+        PictureTransferScheduler scheduler = createScheduler(1, 1);
+        FakeTask download = new FakeTask("download", SUB_1,
+                PictureTransferScheduler.PRIORITY_DOWNLOAD);
+        FakeTask upload = new FakeTask("upload", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        scheduler.schedule(download);
+        scheduler.schedule(upload);
+
+        // The call ended while its picture was downloading.
+        download.cancel();
+        assertEquals(List.of("download", "upload"), mStarted);
+        assertFalse(download.finish());
+    }
+
+    @Test
+    public void testDeadline() {
+        PictureTransferScheduler scheduler = createScheduler(1, 1);
+        FakeTask running = new FakeTask("running", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        FakeTask queued = new FakeTask("queued", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        scheduler.schedule(running);
+        scheduler.schedule(queued);
+
+        mNowMillis += DEADLINE_MILLIS;
+        running.finish();
+        assertEquals(List.of("running"), mStarted);
+        assertEquals(PictureTransferScheduler.REASON_DEADLINE, queued.mAbandonReason);
+    }
+
+    @Test
+    public void testRunningTaskAbandonedAtDeadline() throws Exception {
+        PictureTransferScheduler scheduler = createScheduler(1, 1);
+        FakeTask running = new FakeTask("running", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD,
+                FAST_MILLIS);
+        FakeTask queued = new FakeTask("queued", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        scheduler.schedule(running);
+        scheduler.schedule(queued);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        mTimer.schedule(latch::countDown, 2 * FAST_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(PictureTransferScheduler.REASON_DEADLINE, running.mAbandonReason);
+        assertEquals(List.of("running", "queued"), mStarted);
+        assertFalse(running.finish());
+    }
+
+    @Test
+    public void testRetryAbandonedAfterDeadline() {
+        PictureTransferScheduler scheduler = createScheduler(1, 1);
+        FakeTask task = new FakeTask("task", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        scheduler.schedule(task);
+
+        task.retry(false, DEADLINE_MILLIS);
+        assertEquals(PictureTransferScheduler.REASON_DEADLINE, task.mAbandonReason);
+    }
+
+    @Test
+    public void testRetriesExhausted() throws Exception {
+        PictureTransferScheduler scheduler = createScheduler(1, 1);
+        FakeTask task = new FakeTask("task", SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD);
+        scheduler.schedule(task);
+
+        for (int attempt = 1; attempt < PictureTransferScheduler.MAX_ATTEMPTS; attempt++) {
+            // Retries asking for new credentials are not delayed further.
+            task.retry(true, 0);
+            waitForTimer();
+            assertEquals(attempt + 1, task.mStarts.size());
+            assertTrue(task.mStarts.get(attempt));
+        }
+        assertFalse(task.mStarts.get(0));
+
+        task.retry(true, 0);
+        waitForTimer();
+        assertEquals(PictureTransferScheduler.MAX_ATTEMPTS, task.mStarts.size());
+        assertEquals(PictureTransferScheduler.REASON_RETRIES_EXHAUSTED, task.mAbandonReason);
+    }
+
+    @Test
+    public void testBackoff() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100; i++) {
+            assertBetween(500, 1000, PictureTransferScheduler.getBackoffMillis(1, random));
+            assertBetween(1000, 2000, PictureTransferScheduler.getBackoffMillis(2, random));
+            assertBetween(2000, 4000, PictureTransferScheduler.getBackoffMillis(3, random));
+            assertBetween(PictureTransferScheduler.MAX_BACKOFF_MILLIS / 2,
+                    PictureTransferScheduler.MAX_BACKOFF_MILLIS,
+                    PictureTransferScheduler.getBackoffMillis(30, random));
+        }
+    }
+
+    /**
+     * Downloads against a loopback server, queued behind slow uploads, complete before the uploads
+     * which were queued first.
+     */
+    @Test
+    public void testDownloadsNotHeldBehindSlowUploads() throws Exception {
+        startServer();
+        PictureTransferScheduler scheduler = createScheduler(3, 2);
+        for (int i = 0; i < 6; i++) {
+            scheduler.schedule(new HttpTask(SUB_1, PictureTransferScheduler.PRIORITY_UPLOAD,
+                    "/slow"));
+        }
+
+        // Another subscription has a free slot.
+        HttpTask otherSubscription = new HttpTask(SUB_2,
+                PictureTransferScheduler.PRIORITY_DOWNLOAD, "/fast");
+        scheduler.schedule(otherSubscription);
+        assertEquals(0, otherSubscription.awaitUploadsDoneBefore());
+
+        // The same subscription runs the download as soon as an upload completes, before the
+        // uploads still queued.
+        HttpTask sameSubscription = new HttpTask(SUB_1,
+                PictureTransferScheduler.PRIORITY_DOWNLOAD, "/fast");
+        scheduler.schedule(sameSubscription);
+        int uploadsDoneBefore = sameSubscription.awaitUploadsDoneBefore();
+        assertTrue(uploadsDoneBefore >= 1);
+        assertTrue(uploadsDoneBefore <= 2);
+    }
+
+    /** A transfer doing a blocking request to the loopback server. */
+    private class HttpTask extends PictureTransferScheduler.Task {
+        private final String mPath;
+        private final boolean mUpload;
+        // The number of uploads which completed before this transfer.
+        private final CompletableFuture<Integer> mUploadsDoneBefore = new CompletableFuture<>();
+
+        HttpTask(int subId, int priority, String path) {
+            super(subId, priority, Long.MAX_VALUE);
+            mPath = path;
+            mUpload = priority == PictureTransferScheduler.PRIORITY_UPLOAD;
+        }
+
+        @Override
+        protected void start(boolean credentialRefresh) {
+            mWorkers.execute(() -> {
+                try {
+                    HttpURLConnection connection = (HttpURLConnection) new URL("http://"
+                            + mServerSocket.getInetAddress().getHostAddress() + ":"
+                            + mServerSocket.getLocalPort() + mPath).openConnection();
+                    connection.setReadTimeout((int) TIMEOUT_MILLIS);
+                    assertEquals(200, connection.getResponseCode());
+                    connection.disconnect();
+                    synchronized (mUploadsDone) {
+                        mUploadsDoneBefore.complete(mUploadsDone[0]);
+                        if (mUpload) {
+                            mUploadsDone[0]++;
+                        }
+                    }
+                    finish();
+                } catch (Throwable e) {
+                    mUploadsDoneBefore.completeExceptionally(e);
+                }
+            });
+        }
+
+        @Override
+        protected void onAbandoned(int reason) {
+            mUploadsDoneBefore.completeExceptionally(new IOException("Abandoned: " + reason));
+        }
+
+        int awaitUploadsDoneBefore() throws Exception {
+            return mUploadsDoneBefore.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Answers every request after a latency depending on its path.
+    private void startServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mServerThread = new Thread(() -> {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                mWorkers.execute(() -> {
+                    try (Socket s = socket) {
+                        String requestLine = readHeaders(s.getInputStream());
+                        Thread.sleep(requestLine.contains("/slow") ? SLOW_MILLIS : FAST_MILLIS);
+                        s.getOutputStream().write(("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n"
+                                + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    } catch (IOException | InterruptedException e) {
+                        Log.d(TAG, "Server: " + e);
+                    }
+                });
+            }
+        });
+        mServerThread.start();
+    }
+
+    private static String readHeaders(InputStream in) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) break;
+            headers.append((char) c);
+        }
+        return headers.toString();
+    }
+
+    private PictureTransferScheduler createScheduler(int maxRunning, int maxPerSubscription) {
+        return new PictureTransferScheduler(maxRunning, maxPerSubscription, mTimer,
+                () -> mNowMillis, new Random(0));
+    }
+
+    private void waitForTimer() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        mTimer.execute(latch::countDown);
+        assertTrue(latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+}
@@ -18,10 +18,13 @@ package com.android.phone.ecc;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import android.content.res.AssetManager;
+
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.TelephonyTestBase;
+import com.android.phone.ecc.nano.MessageNano;
 import com.android.phone.ecc.nano.ProtobufEccData;
 
 import org.junit.Test;
@@ -67,6 +70,50 @@ public class EccDataTest extends TelephonyTestBase {
         }
     }
 
+    @Test
+    public void testIndexedEccDataMatchesGzipEccData() throws IOException {
+        AssetManager assets = InstrumentationRegistry.getTargetContext().getAssets();
+        InputStream eccData = new GZIPInputStream(new BufferedInputStream(
+                assets.open(EccDataReader.GZIP_ASSET)));
+        ProtobufEccData.AllInfo allEccMessages = ProtobufEccData.AllInfo.parseFrom(
+                readInputStreamToByteArray(eccData));
+        eccData.close();
+
+        EccDataReader indexedReader = new EccDataReader(assets);
+        EccDataReader gzipReader = new EccDataReader(assets, null /* indexedAsset */,
+                EccDataReader.GZIP_ASSET);
+        // Loads the directory of the index.
+        assertThat(indexedReader.readCountryInfo("XX")).isNull();
+        assertThat(gzipReader.readCountryInfo("XX")).isNull();
+
+        for (ProtobufEccData.CountryInfo countryInfo : allEccMessages.countries) {
+            byte[] indexedBytes = indexedReader.readCountryInfo(countryInfo.isoCode);
+            ProtobufEccData.CountryInfo indexed =
+                    ProtobufEccData.CountryInfo.parseFrom(indexedBytes);
+            assertThat(indexedReader.isUsingIndex()).isTrue();
+            // Only the bytes of the country are read from the index.
+            assertThat(indexedReader.getLastBytesRead()).isEqualTo((long) indexedBytes.length);
+
+            ProtobufEccData.CountryInfo gzip = ProtobufEccData.CountryInfo.parseFrom(
+                    gzipReader.readCountryInfo(countryInfo.isoCode.toLowerCase()));
+            assertThat(gzipReader.getLastBytesRead()).isGreaterThan((long) indexedBytes.length);
+
+            assertThat(MessageNano.messageNanoEquals(countryInfo, indexed)).isTrue();
+            assertThat(MessageNano.messageNanoEquals(countryInfo, gzip)).isTrue();
+        }
+    }
+
+    @Test
+    public void testFallsBackToGzipEccData() throws IOException {
+        AssetManager assets = InstrumentationRegistry.getTargetContext().getAssets();
+        EccDataReader reader = new EccDataReader(assets, "missing_eccdata.idx",
+                EccDataReader.GZIP_ASSET);
+        EccDataReader indexedReader = new EccDataReader(assets);
+
+        assertThat(reader.readCountryInfo("US")).isEqualTo(indexedReader.readCountryInfo("US"));
+        assertThat(reader.isUsingIndex()).isFalse();
+    }
+
     /**
      * Util function to convert inputStream to byte array before parsing proto data.
      */
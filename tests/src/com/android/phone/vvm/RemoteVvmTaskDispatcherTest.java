@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.telecom.PhoneAccountHandle;
+import android.telephony.VisualVoicemailService;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.TestableLooper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for RemoteVvmTaskDispatcher, against a fake VisualVoicemailService which finishes
+ * every task right away.
+ */
+public class RemoteVvmTaskDispatcherTest {
+    private static final String TAG = "RemoteVvmTaskDispatcherTest";
+    private static final String EXTRA_INDEX = "index";
+    private static final ComponentName SERVICE =
+            new ComponentName("com.android.phone.vvm.test_client", "FakeVvmService");
+    private static final ComponentName OTHER_SERVICE =
+            new ComponentName("com.android.phone.vvm.other_client", "FakeVvmService");
+    private static final PhoneAccountHandle ACCOUNT_1 =
+            new PhoneAccountHandle(new ComponentName("com.android.phone", "Telephony"), "1");
+    private static final PhoneAccountHandle ACCOUNT_2 =
+            new PhoneAccountHandle(new ComponentName("com.android.phone", "Telephony"), "2");
+
+    /** The tasks received by the fake service, as "what:account:index". */
+    private final List<String> mReceived = new ArrayList<>();
+    private final List<ServiceConnection> mBound = new ArrayList<>();
+
+    private HandlerThread mHandlerThread;
+    private TestableLooper mLooper;
+    private Messenger mServiceMessenger;
+    private RemoteVvmTaskDispatcher mDispatcher;
+    private boolean mAutoConnect = true;
+    private int mIdleCount;
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mLooper = new TestableLooper(mHandlerThread.getLooper());
+        Handler handler = new Handler(mHandlerThread.getLooper());
+        mServiceMessenger = new Messenger(new Handler(mHandlerThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                Bundle data = msg.getData();
+                mReceived.add(msg.what + ":" + ((PhoneAccountHandle) data.getParcelable(
+                        VisualVoicemailService.DATA_PHONE_ACCOUNT_HANDLE)).getId() + ":"
+                        + data.getInt(EXTRA_INDEX));
+                try {
+                    msg.replyTo.send(Message.obtain(null, VisualVoicemailService.MSG_TASK_ENDED));
+                } catch (RemoteException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        mDispatcher = new RemoteVvmTaskDispatcher(handler,
+                new RemoteVvmTaskDispatcher.ServiceBinder() {
+                    @Override
+                    public boolean bindService(Intent intent, ServiceConnection connection) {
+                        assertTrue(SERVICE.equals(intent.getComponent())
+                                || OTHER_SERVICE.equals(intent.getComponent()));
+                        mBound.add(connection);
+                        if (mAutoConnect) {
+                            handler.post(() -> connect(connection));
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public void unbindService(ServiceConnection connection) {
+                        assertTrue(mBound.remove(connection));
+                    }
+                }, () -> mIdleCount++);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mLooper != null) {
+            mLooper.destroy();
+            mLooper = null;
+        }
+        mHandlerThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testOneBindWhileEventsKeepArriving() {
+        final int events = 100;
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < events; i++) {
+            dispatch(VisualVoicemailService.MSG_ON_SMS_RECEIVED, ACCOUNT_1, i);
+            expected.add(VisualVoicemailService.MSG_ON_SMS_RECEIVED + ":1:" + i);
+            processAllMessages();
+            // Tasks which arrive before the idle timeout reuse the binding.
+            mLooper.moveTimeForward(RemoteVvmTaskDispatcher.IDLE_TIMEOUT_MILLIS / 2);
+            processAllMessages();
+        }
+        assertEquals(1, mDispatcher.getBindCount());
+        assertEquals(expected, mReceived);
+        assertEquals(0, mIdleCount);
+
+        mLooper.moveTimeForward(RemoteVvmTaskDispatcher.IDLE_TIMEOUT_MILLIS);
+        processAllMessages();
+        assertEquals(1, mIdleCount);
+        assertTrue(mBound.isEmpty());
+
+        dispatch(VisualVoicemailService.MSG_ON_SMS_RECEIVED, ACCOUNT_1, events);
+        processAllMessages();
+        assertEquals(2, mDispatcher.getBindCount());
+        assertEquals(events + 1, mReceived.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testRepeatedEventsCoalesced() {
+        for (int i = 0; i < 5; i++) {
+            dispatch(VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED, ACCOUNT_1, i);
+        }
+        dispatch(VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED, ACCOUNT_2, 5);
+        dispatch(VisualVoicemailService.MSG_ON_SMS_RECEIVED, ACCOUNT_1, 6);
+        dispatch(VisualVoicemailService.MSG_ON_SMS_RECEIVED, ACCOUNT_1, 7);
+        dispatch(VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED, ACCOUNT_1, 8);
+        processAllMessages();
+
+        // The last event follows other events for its account, so it is not merged.
+        assertEquals(List.of(
+                VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED + ":1:0",
+                VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED + ":2:5",
+                VisualVoicemailService.MSG_ON_SMS_RECEIVED + ":1:6",
+                VisualVoicemailService.MSG_ON_SMS_RECEIVED + ":1:7",
+                VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED + ":1:8"), mReceived);
+        assertEquals(1, mDispatcher.getBindCount());
+
+        // The coalesced tasks are not waited for.
+        mLooper.moveTimeForward(RemoteVvmTaskDispatcher.IDLE_TIMEOUT_MILLIS);
+        processAllMessages();
+        assertEquals(1, mIdleCount);
+
+        // Once connected, events are sent as they come.
+        dispatch(VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED, ACCOUNT_1, 9);
+        processAllMessages();
+        dispatch(VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED, ACCOUNT_1, 10);
+        processAllMessages();
+        assertEquals(7, mReceived.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testEventAfterOppositeEventNotCoalesced() {
+        dispatch(VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED, ACCOUNT_1, 0);
+        dispatch(VisualVoicemailService.MSG_ON_SIM_REMOVED, ACCOUNT_1, 1);
+        dispatch(VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED, ACCOUNT_1, 2);
+        processAllMessages();
+
+        assertEquals(List.of(
+                VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED + ":1:0",
+                VisualVoicemailService.MSG_ON_SIM_REMOVED + ":1:1",
+                VisualVoicemailService.MSG_ON_CELL_SERVICE_CONNECTED + ":1:2"), mReceived);
+    }
+
+    @Test
+    @SmallTest
+    public void testDisconnectTearsDownOnlyThatService() {
+        mAutoConnect = false;
+        dispatch(SERVICE, VisualVoicemailService.MSG_ON_SMS_RECEIVED, ACCOUNT_1, 0);
+        dispatch(OTHER_SERVICE, VisualVoicemailService.MSG_ON_SMS_RECEIVED, ACCOUNT_1, 1);
+        assertEquals(2, mBound.size());
+        ServiceConnection other = mBound.get(1);
+
+        mBound.get(0).onServiceDisconnected(SERVICE);
+        assertEquals(List.of(other), mBound);
+        connect(other);
+        processAllMessages();
+        assertEquals(List.of(VisualVoicemailService.MSG_ON_SMS_RECEIVED + ":1:1"), mReceived);
+        assertEquals(1, mDispatcher.getDroppedCount());
+
+        mLooper.moveTimeForward(RemoteVvmTaskDispatcher.IDLE_TIMEOUT_MILLIS);
+        processAllMessages();
+        assertEquals(1, mIdleCount);
+        assertTrue(mBound.isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testQueueBounded() {
+        mAutoConnect = false;
+        final int events = RemoteVvmTaskDispatcher.MAX_QUEUED_TASKS + 10;
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < events; i++) {
+            dispatch(VisualVoicemailService.MSG_ON_SMS_RECEIVED, ACCOUNT_1, i);
+            if (i >= 10) {
+                expected.add(VisualVoicemailService.MSG_ON_SMS_RECEIVED + ":1:" + i);
+            }
+        }
+        assertEquals(1, mBound.size());
+        connect(mBound.get(0));
+        processAllMessages();
+
+        assertEquals(expected, mReceived);
+        assertEquals(10, mDispatcher.getDroppedCount());
+        assertEquals(1, mDispatcher.getBindCount());
+
+        // The dropped tasks are not waited for.
+        mLooper.moveTimeForward(RemoteVvmTaskDispatcher.IDLE_TIMEOUT_MILLIS);
+        processAllMessages();
+        assertEquals(1, mIdleCount);
+        assertTrue(mBound.isEmpty());
+    }
+
+    private void dispatch(int what, PhoneAccountHandle phoneAccountHandle, int index) {
+        dispatch(SERVICE, what, phoneAccountHandle, index);
+    }
+
+    private void dispatch(ComponentName service, int what, PhoneAccountHandle phoneAccountHandle,
+            int index) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(VisualVoicemailService.DATA_PHONE_ACCOUNT_HANDLE, phoneAccountHandle);
+        extras.putInt(EXTRA_INDEX, index);
+        mDispatcher.dispatch(service, what, extras);
+    }
+
+    private void connect(ServiceConnection connection) {
+        connection.onServiceConnected(SERVICE, mServiceMessenger.getBinder());
+    }
+
+    private void processAllMessages() {
+        while (!mLooper.getLooper().getQueue().isIdle()) {
+            mLooper.processAllMessages();
+        }
+    }
+}
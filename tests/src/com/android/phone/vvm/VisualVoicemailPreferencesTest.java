@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.telecom.PhoneAccountHandle;
+import android.util.AtomicFile;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public class VisualVoicemailPreferencesTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final PhoneAccountHandle OLD_ACCOUNT = new PhoneAccountHandle(
+            new ComponentName("com.android.phone", "Telephony"), "vvm_prefs_test_1");
+    private static final PhoneAccountHandle NEW_ACCOUNT = new PhoneAccountHandle(
+            new ComponentName("com.android.phone", "Telephony"), "vvm_prefs_test_2");
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        VisualVoicemailPreferences.resetForTest();
+        deleteFiles();
+    }
+
+    @After
+    public void tearDown() {
+        VisualVoicemailPreferences.resetForTest();
+        deleteFiles();
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(mContext).edit();
+        for (String key : PreferenceManager.getDefaultSharedPreferences(mContext).getAll()
+                .keySet()) {
+            if (key.endsWith(OLD_ACCOUNT.getId()) || key.endsWith(NEW_ACCOUNT.getId())) {
+                editor.remove(key);
+            }
+        }
+        editor.commit();
+    }
+
+    @Test
+    public void testMigration() {
+        SharedPreferences legacy = PreferenceManager.getDefaultSharedPreferences(mContext);
+        legacy.edit()
+                .putBoolean("visual_voicemail_is_enabled_" + OLD_ACCOUNT.getId(), true)
+                .putString("visual_voicemail_default_old_pin_" + OLD_ACCOUNT.getId(), "1234")
+                .putBoolean("visual_voicemail_is_enabled_" + NEW_ACCOUNT.getId(), true)
+                // The key of an account whose id ends with "_" and the id of this one.
+                .putBoolean("visual_voicemail_is_enabled_other_" + OLD_ACCOUNT.getId(), true)
+                .commit();
+
+        VisualVoicemailPreferences prefs = new VisualVoicemailPreferences(mContext, OLD_ACCOUNT);
+        assertTrue(prefs.getBoolean("is_enabled", false));
+        assertEquals("1234", prefs.getString("default_old_pin"));
+        assertFalse(legacy.contains("visual_voicemail_is_enabled_" + OLD_ACCOUNT.getId()));
+        assertFalse(legacy.contains("visual_voicemail_default_old_pin_" + OLD_ACCOUNT.getId()));
+        // Other accounts are migrated when they are used.
+        assertTrue(legacy.contains("visual_voicemail_is_enabled_" + NEW_ACCOUNT.getId()));
+        assertFalse(prefs.contains("is_enabled_other"));
+        assertTrue(legacy.contains("visual_voicemail_is_enabled_other_" + OLD_ACCOUNT.getId()));
+        assertTrue(VisualVoicemailPreferences.getFile(mContext, OLD_ACCOUNT).exists());
+
+        VisualVoicemailPreferences.resetForTest();
+        prefs = new VisualVoicemailPreferences(mContext, OLD_ACCOUNT);
+        assertTrue(prefs.getBoolean("is_enabled", false));
+        assertEquals("1234", prefs.getString("default_old_pin"));
+        // Read from the file, not migrated again.
+        assertEquals(0, prefs.getWriteCount());
+    }
+
+    @Test
+    public void testReadAfterRestart() {
+        new VisualVoicemailPreferences(mContext, OLD_ACCOUNT).edit()
+                .putBoolean("boolean", true)
+                .putInt("int", 42)
+                .putLong("long", 1L << 40)
+                .putFloat("float", 0.5f)
+                .putString("string", "value")
+                .putStringSet("set", Set.of("a", "b"))
+                .apply();
+
+        VisualVoicemailPreferences.resetForTest();
+        VisualVoicemailPreferences prefs = new VisualVoicemailPreferences(mContext, OLD_ACCOUNT);
+        assertTrue(prefs.getBoolean("boolean", false));
+        assertEquals(42, prefs.getInt("int", 0));
+        assertEquals(1L << 40, prefs.getLong("long", 0));
+        assertEquals(0.5f, prefs.getFloat("float", 0), 0);
+        assertEquals("value", prefs.getString("string"));
+        assertEquals(Set.of("a", "b"), prefs.getStringSet("set", null));
+        assertNull(prefs.getString("missing"));
+        assertNull(new VisualVoicemailPreferences(mContext, NEW_ACCOUNT).getString("string"));
+    }
+
+    @Test
+    public void testInterruptedWrite() throws Exception {
+        new VisualVoicemailPreferences(mContext, OLD_ACCOUNT).edit()
+                .putString("string", "value")
+                .apply();
+        VisualVoicemailPreferences.resetForTest();
+
+        // The process dies while writing the next values.
+        AtomicFile file = new AtomicFile(VisualVoicemailPreferences.getFile(mContext,
+                OLD_ACCOUNT));
+        FileOutputStream out = file.startWrite();
+        out.write("<pbundle_as_map><string name=".getBytes(StandardCharsets.UTF_8));
+        out.close();
+
+        VisualVoicemailPreferences prefs = new VisualVoicemailPreferences(mContext, OLD_ACCOUNT);
+        assertEquals("value", prefs.getString("string"));
+    }
+
+    @Test
+    public void testSimSwapWritesBatched() throws Exception {
+        VisualVoicemailPreferences oldPrefs =
+                new VisualVoicemailPreferences(mContext, OLD_ACCOUNT);
+        VisualVoicemailPreferences newPrefs =
+                new VisualVoicemailPreferences(mContext, NEW_ACCOUNT);
+
+        // The updates of a SIM swap, each applied on its own as the VVM state changes.
+        oldPrefs.edit().putBoolean("is_enabled", false).apply();
+        oldPrefs.edit().putString("default_old_pin", null).apply();
+        for (int state = 0; state < 4; state++) {
+            newPrefs.edit().putInt("activation_state", state).apply();
+        }
+        newPrefs.edit().putBoolean("is_enabled", true).apply();
+        newPrefs.edit().putString("default_old_pin", "1234").apply();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while ((oldPrefs.getWriteCount() == 0 || newPrefs.getWriteCount() == 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(VisualVoicemailPreferences.WRITE_DELAY_MILLIS / 5);
+        }
+        Thread.sleep(VisualVoicemailPreferences.WRITE_DELAY_MILLIS * 2);
+        // One write per account, instead of one per apply.
+        assertEquals(1, oldPrefs.getWriteCount());
+        assertEquals(1, newPrefs.getWriteCount());
+
+        VisualVoicemailPreferences.resetForTest();
+        newPrefs = new VisualVoicemailPreferences(mContext, NEW_ACCOUNT);
+        assertEquals(3, newPrefs.getInt("activation_state", -1));
+        assertEquals("1234", newPrefs.getString("default_old_pin"));
+        assertFalse(new VisualVoicemailPreferences(mContext, OLD_ACCOUNT)
+                .contains("default_old_pin"));
+    }
+
+    private void deleteFiles() {
+        new AtomicFile(VisualVoicemailPreferences.getFile(mContext, OLD_ACCOUNT)).delete();
+        new AtomicFile(VisualVoicemailPreferences.getFile(mContext, NEW_ACCOUNT)).delete();
+    }
+}
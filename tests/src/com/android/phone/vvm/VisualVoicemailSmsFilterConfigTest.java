@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.role.OnRoleHoldersChangedListener;
+import android.app.role.RoleManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.preference.PreferenceManager;
+import android.telephony.VisualVoicemailSmsFilterSettings;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class VisualVoicemailSmsFilterConfigTest {
+    private static final String PACKAGE = "com.android.phone.vvm.test_client";
+    private static final String OTHER_PACKAGE = "com.android.phone.vvm.other_client";
+    private static final int SUB_ID = 9001;
+
+    private final AtomicInteger mResolutions = new AtomicInteger();
+    private Context mContext;
+    private String mActivePackage = PACKAGE;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        VisualVoicemailSmsFilterConfig.resetForTest((context, subId) -> {
+            mResolutions.incrementAndGet();
+            return mActivePackage;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
+                mContext.createDeviceProtectedStorageContext());
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : prefs.getAll().keySet()) {
+            if (key.contains(PACKAGE) || key.contains(OTHER_PACKAGE)) {
+                editor.remove(key);
+            }
+        }
+        editor.commit();
+        VisualVoicemailSmsFilterConfig.resetForTest(null);
+    }
+
+    @Test
+    public void testPersistenceRoundTrip() {
+        VisualVoicemailSmsFilterSettings settings = new VisualVoicemailSmsFilterSettings.Builder()
+                .setClientPrefix("//VVM")
+                .setOriginatingNumbers(Arrays.asList("1234", "5678"))
+                .setDestinationPort(1808)
+                .build();
+        VisualVoicemailSmsFilterConfig.enableVisualVoicemailSmsFilter(mContext, PACKAGE, SUB_ID,
+                settings);
+        assertSettings(settings, VisualVoicemailSmsFilterConfig
+                .getVisualVoicemailSmsFilterSettings(mContext, PACKAGE, SUB_ID));
+
+        // Read back from storage, as after a restart.
+        VisualVoicemailSmsFilterConfig.resetForTest(null);
+        assertSettings(settings, VisualVoicemailSmsFilterConfig
+                .getVisualVoicemailSmsFilterSettings(mContext, PACKAGE, SUB_ID));
+        assertNull(VisualVoicemailSmsFilterConfig
+                .getVisualVoicemailSmsFilterSettings(mContext, OTHER_PACKAGE, SUB_ID));
+        assertNull(VisualVoicemailSmsFilterConfig
+                .getVisualVoicemailSmsFilterSettings(mContext, PACKAGE, SUB_ID + 1));
+
+        VisualVoicemailSmsFilterConfig.disableVisualVoicemailSmsFilter(mContext, PACKAGE, SUB_ID);
+        assertNull(VisualVoicemailSmsFilterConfig
+                .getVisualVoicemailSmsFilterSettings(mContext, PACKAGE, SUB_ID));
+        VisualVoicemailSmsFilterConfig.resetForTest(null);
+        assertNull(VisualVoicemailSmsFilterConfig
+                .getVisualVoicemailSmsFilterSettings(mContext, PACKAGE, SUB_ID));
+    }
+
+    @Test
+    public void testActivePackageResolvedOnce() {
+        VisualVoicemailSmsFilterSettings settings = new VisualVoicemailSmsFilterSettings.Builder()
+                .build();
+        VisualVoicemailSmsFilterConfig.enableVisualVoicemailSmsFilter(mContext, PACKAGE, SUB_ID,
+                settings);
+        VisualVoicemailSmsFilterConfig.enableVisualVoicemailSmsFilter(mContext, OTHER_PACKAGE,
+                SUB_ID, settings);
+
+        VisualVoicemailSmsFilterSettings active = VisualVoicemailSmsFilterConfig
+                .getActiveVisualVoicemailSmsFilterSettings(mContext, SUB_ID);
+        assertEquals(PACKAGE, active.packageName);
+        assertSame(active, VisualVoicemailSmsFilterConfig
+                .getActiveVisualVoicemailSmsFilterSettings(mContext, SUB_ID));
+        assertEquals(1, mResolutions.get());
+
+        // Another client became active.
+        mActivePackage = OTHER_PACKAGE;
+        VisualVoicemailSmsFilterConfig.invalidateActivePackages();
+        assertEquals(OTHER_PACKAGE, VisualVoicemailSmsFilterConfig
+                .getActiveVisualVoicemailSmsFilterSettings(mContext, SUB_ID).packageName);
+        assertEquals(2, mResolutions.get());
+    }
+
+    @Test
+    public void testLookupsDoNotResolveAgain() {
+        final int lookups = 1000;
+        VisualVoicemailSmsFilterConfig.enableVisualVoicemailSmsFilter(mContext, PACKAGE, SUB_ID,
+                new VisualVoicemailSmsFilterSettings.Builder().build());
+
+        VisualVoicemailSmsFilterSettings first = VisualVoicemailSmsFilterConfig
+                .getActiveVisualVoicemailSmsFilterSettings(mContext, SUB_ID);
+        for (int i = 0; i < lookups; i++) {
+            assertSame(first, VisualVoicemailSmsFilterConfig
+                    .getActiveVisualVoicemailSmsFilterSettings(mContext, SUB_ID));
+        }
+        assertEquals(1, mResolutions.get());
+    }
+
+    @Test
+    public void testUserSwitchAndDialerRoleChangesInvalidate() {
+        Context context = mock(Context.class);
+        RoleManager roleManager = mock(RoleManager.class);
+        when(context.getSystemService(RoleManager.class)).thenReturn(roleManager);
+        VisualVoicemailSmsFilterConfig.registerForActivePackageChanges(context,
+                new Handler(Looper.getMainLooper()));
+
+        ArgumentCaptor<BroadcastReceiver> receiver =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        ArgumentCaptor<IntentFilter> filters = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(context, times(2)).registerReceiverForAllUsers(receiver.capture(),
+                filters.capture(), isNull(), any(Handler.class));
+        ArgumentCaptor<OnRoleHoldersChangedListener> listener =
+                ArgumentCaptor.forClass(OnRoleHoldersChangedListener.class);
+        verify(roleManager).addOnRoleHoldersChangedListenerAsUser(any(Executor.class),
+                listener.capture(), eq(UserHandle.ALL));
+
+        VisualVoicemailSmsFilterConfig.getActiveVisualVoicemailSmsFilterSettings(mContext,
+                SUB_ID);
+        assertEquals(1, mResolutions.get());
+
+        Intent userSwitched = new Intent(Intent.ACTION_USER_SWITCHED);
+        assertTrue(hasAction(filters.getAllValues(), userSwitched.getAction()));
+        receiver.getValue().onReceive(context, userSwitched);
+        VisualVoicemailSmsFilterConfig.getActiveVisualVoicemailSmsFilterSettings(mContext,
+                SUB_ID);
+        assertEquals(2, mResolutions.get());
+
+        // Only dialer role changes matter.
+        listener.getValue().onRoleHoldersChanged(RoleManager.ROLE_SMS, UserHandle.SYSTEM);
+        VisualVoicemailSmsFilterConfig.getActiveVisualVoicemailSmsFilterSettings(mContext,
+                SUB_ID);
+        assertEquals(2, mResolutions.get());
+        listener.getValue().onRoleHoldersChanged(RoleManager.ROLE_DIALER, UserHandle.SYSTEM);
+        VisualVoicemailSmsFilterConfig.getActiveVisualVoicemailSmsFilterSettings(mContext,
+                SUB_ID);
+        assertEquals(3, mResolutions.get());
+    }
+
+    private static boolean hasAction(List<IntentFilter> filters, String action) {
+        for (IntentFilter filter : filters) {
+            if (filter.hasAction(action)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void assertSettings(VisualVoicemailSmsFilterSettings expected,
+            VisualVoicemailSmsFilterSettings actual) {
+        assertEquals(expected.clientPrefix, actual.clientPrefix);
+        assertEquals(new HashSet<>(expected.originatingNumbers),
+                new HashSet<>(actual.originatingNumbers));
+        assertEquals(expected.destinationPort, actual.destinationPort);
+        assertEquals(PACKAGE, actual.packageName);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.telecom.PhoneAccountHandle;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.testing.TestableLooper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for VvmSimStateCoalescer, replaying the broadcasts received during boot and SIM
+ * swaps against a fake telephony state.
+ */
+public class VvmSimStateCoalescerTest {
+    private static final String TAG = "VvmSimStateCoalescerTest";
+    private static final PhoneAccountHandle ACCOUNT_1 =
+            new PhoneAccountHandle(new ComponentName("com.android.phone", "Telephony"), "1");
+    private static final PhoneAccountHandle ACCOUNT_2 =
+            new PhoneAccountHandle(new ComponentName("com.android.phone", "Telephony"), "2");
+    // Broadcasts of a burst arrive within milliseconds of each other.
+    private static final long BURST_INTERVAL_MILLIS = 20;
+
+    private final Set<PhoneAccountHandle> mActive = new HashSet<>();
+    private final Set<PhoneAccountHandle> mInService = new HashSet<>();
+    private final Set<PhoneAccountHandle> mListening = new HashSet<>();
+    private final List<String> mEvents = new ArrayList<>();
+    private boolean mBootCompleted;
+
+    private HandlerThread mHandlerThread;
+    private TestableLooper mLooper;
+    private VvmSimStateCoalescer mCoalescer;
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mLooper = new TestableLooper(mHandlerThread.getLooper());
+        mCoalescer = new VvmSimStateCoalescer(new Handler(mHandlerThread.getLooper()),
+                new VvmSimStateCoalescer.Host() {
+                    @Override
+                    public boolean isBootCompleted() {
+                        return mBootCompleted;
+                    }
+
+                    @Override
+                    public boolean isActive(PhoneAccountHandle phoneAccountHandle) {
+                        return mActive.contains(phoneAccountHandle);
+                    }
+
+                    @Override
+                    public boolean isInService(PhoneAccountHandle phoneAccountHandle) {
+                        return mInService.contains(phoneAccountHandle);
+                    }
+
+                    @Override
+                    public void listen(PhoneAccountHandle phoneAccountHandle) {
+                        assertTrue(mListening.add(phoneAccountHandle));
+                    }
+
+                    @Override
+                    public void unlisten(PhoneAccountHandle phoneAccountHandle) {
+                        assertTrue(mListening.remove(phoneAccountHandle));
+                    }
+
+                    @Override
+                    public void sendConnected(PhoneAccountHandle phoneAccountHandle) {
+                        mEvents.add("connected:" + phoneAccountHandle.getId());
+                    }
+
+                    @Override
+                    public void sendSimRemoved(PhoneAccountHandle phoneAccountHandle) {
+                        mEvents.add("removed:" + phoneAccountHandle.getId());
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mLooper != null) {
+            mLooper.destroy();
+            mLooper = null;
+        }
+        mHandlerThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testBootSequence() {
+        // Recorded on a single SIM device: the carrier config is loaded several times while the
+        // SIM comes up, once for the default config of an inactive subscription, and again right
+        // after boot completed.
+        mActive.add(ACCOUNT_1);
+        mInService.add(ACCOUNT_1);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_1);
+        advance(BURST_INTERVAL_MILLIS);
+        mCoalescer.onSimRemoved();
+        advance(BURST_INTERVAL_MILLIS);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_1);
+        // The device is still in FBE mode for a while.
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS * 4);
+        assertEquals(List.of(), mEvents);
+
+        mBootCompleted = true;
+        mCoalescer.onBootCompleted();
+        advance(BURST_INTERVAL_MILLIS);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_1);
+        advance(BURST_INTERVAL_MILLIS);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_1);
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS);
+
+        // Six broadcasts, one event.
+        assertEquals(6, mCoalescer.getBroadcastCount());
+        assertEquals(List.of("connected:1"), mEvents);
+        assertEquals(1, mCoalescer.getEventCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testBootWithoutService() {
+        mActive.add(ACCOUNT_1);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_1);
+        mBootCompleted = true;
+        mCoalescer.onBootCompleted();
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_1);
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS);
+        assertEquals(Set.of(ACCOUNT_1), mListening);
+
+        // Listening once is enough.
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_1);
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS);
+        assertEquals(List.of(), mEvents);
+
+        mCoalescer.onServiceStateChanged(ACCOUNT_1, false);
+        mInService.add(ACCOUNT_1);
+        mCoalescer.onServiceStateChanged(ACCOUNT_1, true);
+        mCoalescer.onServiceStateChanged(ACCOUNT_1, true);
+        assertEquals(List.of("connected:1"), mEvents);
+        assertTrue(mListening.isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testSimSwap() {
+        connect(ACCOUNT_1);
+
+        // The SIM is reported absent, the default carrier config is loaded, then the new SIM
+        // comes up.
+        mActive.remove(ACCOUNT_1);
+        mCoalescer.onSimRemoved();
+        advance(BURST_INTERVAL_MILLIS);
+        mCoalescer.onSimRemoved();
+        advance(BURST_INTERVAL_MILLIS);
+        mActive.add(ACCOUNT_2);
+        mInService.add(ACCOUNT_2);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_2);
+        advance(BURST_INTERVAL_MILLIS);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_2);
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS);
+
+        assertEquals(List.of("removed:1", "connected:2"), mEvents);
+    }
+
+    @Test
+    @SmallTest
+    public void testTransientStatesCollapsed() {
+        connect(ACCOUNT_1);
+
+        // The same SIM is reported absent and loaded again.
+        mCoalescer.onSimRemoved();
+        advance(BURST_INTERVAL_MILLIS);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_1);
+        // A SIM inserted and removed right away.
+        mActive.add(ACCOUNT_2);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_2);
+        advance(BURST_INTERVAL_MILLIS);
+        mActive.remove(ACCOUNT_2);
+        mCoalescer.onSimRemoved();
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS);
+
+        assertEquals(List.of("connected:1"), mEvents);
+        assertTrue(mListening.isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testRemovedWhileWaitingForService() {
+        mBootCompleted = true;
+        mActive.add(ACCOUNT_1);
+        mCoalescer.onCarrierConfigChanged(ACCOUNT_1);
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS);
+        assertEquals(Set.of(ACCOUNT_1), mListening);
+
+        mActive.remove(ACCOUNT_1);
+        mCoalescer.onSimRemoved();
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS);
+        assertEquals(List.of("removed:1"), mEvents);
+        assertTrue(mListening.isEmpty());
+
+        // Unknown accounts are not removed again.
+        mCoalescer.onSimRemoved();
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS);
+        assertEquals(1, mEvents.size());
+    }
+
+    private void connect(PhoneAccountHandle phoneAccountHandle) {
+        mBootCompleted = true;
+        mActive.add(phoneAccountHandle);
+        mInService.add(phoneAccountHandle);
+        mCoalescer.onCarrierConfigChanged(phoneAccountHandle);
+        advance(VvmSimStateCoalescer.COALESCE_DELAY_MILLIS);
+        assertEquals(List.of("connected:" + phoneAccountHandle.getId()), mEvents);
+        mEvents.clear();
+    }
+
+    private void advance(long millis) {
+        mLooper.moveTimeForward(millis);
+        while (!mLooper.getLooper().getQueue().isIdle()) {
+            mLooper.processAllMessages();
+        }
+    }
+}
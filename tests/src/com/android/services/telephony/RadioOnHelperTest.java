@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import static junit.framework.Assert.assertEquals;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.UserHandle;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.TelephonyTestBase;
+import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+/**
+ * Tests RadioOnHelper with two fake phones and a controllable clock.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RadioOnHelperTest extends TelephonyTestBase {
+
+    private static final long TIMEOUT_MS = 1000;
+
+    @Mock Phone mPhone0;
+    @Mock Phone mPhone1;
+    @Mock CommandsInterface mCi0;
+    @Mock CommandsInterface mCi1;
+    @Mock ContentResolver mContentResolver;
+    @Mock RadioOnStateListener.Callback mCallback;
+    @Mock TelephonyConnectionService.PhoneFactoryProxy mPhoneFactoryProxy;
+
+    private long mNowMs;
+    private boolean mPhone0Ready;
+    private boolean mPhone1Ready;
+    private RadioOnLatencyStats mStats;
+    private RadioOnHelper mHelper;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        doReturn(mContentResolver).when(mContext).getContentResolver();
+        when(mContentResolver.getUserId()).thenReturn(UserHandle.USER_CURRENT);
+        TelephonyManager tm = (TelephonyManager) mContext.getSystemService(
+                Context.TELEPHONY_SERVICE);
+        when(tm.getActiveModemCount()).thenReturn(2);
+
+        setUpPhone(mPhone0, mCi0, 0);
+        setUpPhone(mPhone1, mCi1, 1);
+        when(mPhoneFactoryProxy.getPhones()).thenReturn(new Phone[] {mPhone0, mPhone1});
+        when(mCallback.isOkToCall(eq(mPhone0), anyInt())).thenAnswer(inv -> mPhone0Ready);
+        when(mCallback.isOkToCall(eq(mPhone1), anyInt())).thenAnswer(inv -> mPhone1Ready);
+
+        mStats = new RadioOnLatencyStats();
+        mHelper = new RadioOnHelper(mContext, mPhoneFactoryProxy, () -> mNowMs, mStats);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        RadioOnStateListener listener = new RadioOnStateListener();
+        listener.setTimeBetweenRetriesMillis(5000);
+        listener.setMaxNumRetries(5);
+        super.tearDown();
+    }
+
+    /**
+     * Every radio is asked to power on at once, for an emergency call on the selected phone.
+     */
+    @Test
+    @SmallTest
+    public void testPowersOnAllRadios() {
+        mHelper.triggerRadioOnAndListen(mCallback, true, mPhone1, false);
+
+        verify(mPhone0).setRadioPower(eq(true), eq(true), eq(false), eq(false));
+        verify(mPhone1).setRadioPower(eq(true), eq(true), eq(true), eq(false));
+    }
+
+    /**
+     * The callback fires once the selected phone is ready, without waiting for the other one.
+     */
+    @Test
+    @SmallTest
+    public void testCompletesWhenSelectedPhoneReady() {
+        mHelper.triggerRadioOnAndListen(mCallback, true, mPhone1, false);
+        Handler handler0 = getListenerHandler(mPhone0);
+        Handler handler1 = getListenerHandler(mPhone1);
+
+        mNowMs = 700;
+        mPhone1Ready = true;
+        handler1.sendEmptyMessage(RadioOnStateListener.MSG_RADIO_ON);
+        waitForHandlerAction(handler1, TIMEOUT_MS);
+
+        verify(mCallback).onComplete(isNull(), eq(true));
+        assertEquals(1, mStats.getRadioOnLatency().getCount());
+        assertEquals(700, mStats.getRadioOnLatency().getPercentileMillis(50));
+        assertEquals(700, mStats.getReadyLatency().getPercentileMillis(50));
+
+        // The other phone is no longer tracked.
+        mPhone0Ready = true;
+        handler0.sendEmptyMessage(RadioOnStateListener.MSG_RADIO_ON);
+        waitForHandlerAction(handler0, TIMEOUT_MS);
+        verify(mCallback, times(1)).onComplete(any(), anyBoolean());
+        assertEquals(1, mStats.getReadyLatency().getCount());
+    }
+
+    /**
+     * Another phone being ready first does not complete the sequence for the selected phone.
+     */
+    @Test
+    @SmallTest
+    public void testWaitsForSelectedPhone() {
+        mHelper.triggerRadioOnAndListen(mCallback, true, mPhone1, false);
+        Handler handler0 = getListenerHandler(mPhone0);
+        Handler handler1 = getListenerHandler(mPhone1);
+
+        mNowMs = 300;
+        mPhone0Ready = true;
+        handler0.sendEmptyMessage(RadioOnStateListener.MSG_RADIO_ON);
+        waitForHandlerAction(handler0, TIMEOUT_MS);
+        verify(mCallback, never()).onComplete(any(), anyBoolean());
+
+        mNowMs = 1200;
+        mPhone1Ready = true;
+        handler1.sendEmptyMessage(RadioOnStateListener.MSG_RADIO_ON);
+        waitForHandlerAction(handler1, TIMEOUT_MS);
+        verify(mCallback).onComplete(isNull(), eq(true));
+        assertEquals(2, mStats.getReadyLatency().getCount());
+        assertEquals(1200, mStats.getReadyLatency().getPercentileMillis(100));
+    }
+
+    /**
+     * When no phone becomes ready, the callback fires once every phone gave up.
+     */
+    @Test
+    @SmallTest
+    public void testFailsWhenNoPhoneReady() {
+        RadioOnStateListener listener = new RadioOnStateListener();
+        listener.setTimeBetweenRetriesMillis(0);
+        listener.setMaxNumRetries(1);
+
+        mHelper.triggerRadioOnAndListen(mCallback, true, mPhone1, false);
+        Handler handler1 = getListenerHandler(mPhone1);
+        waitForHandlerActionDelayed(handler1, TIMEOUT_MS, TIMEOUT_MS / 2);
+
+        verify(mCallback).onComplete(isNull(), eq(false));
+        // Once from the helper, once from the single retry.
+        verify(mPhone0, times(2)).setRadioPower(eq(true), eq(true), eq(false), eq(false));
+        verify(mPhone1, times(2)).setRadioPower(eq(true), eq(true), eq(true), eq(false));
+    }
+
+    /**
+     * Radios that are already on are not asked to power on again while waiting for service.
+     */
+    @Test
+    @SmallTest
+    public void testNoPowerRetryWhileRadioOn() {
+        RadioOnStateListener listener = new RadioOnStateListener();
+        listener.setTimeBetweenRetriesMillis(0);
+        listener.setMaxNumRetries(2);
+        when(mPhone0.isRadioOn()).thenReturn(true);
+        when(mPhone1.isRadioOn()).thenReturn(true);
+
+        mHelper.triggerRadioOnAndListen(mCallback, true, mPhone1, false);
+        Handler handler1 = getListenerHandler(mPhone1);
+        waitForHandlerActionDelayed(handler1, TIMEOUT_MS, TIMEOUT_MS / 2);
+
+        verify(mCallback).onComplete(isNull(), eq(false));
+        verify(mPhone1, times(1)).setRadioPower(anyBoolean(), anyBoolean(), anyBoolean(),
+                anyBoolean());
+    }
+
+    /**
+     * The retry interval follows the observed radio on latency, within bounds.
+     */
+    @Test
+    @SmallTest
+    public void testAdaptiveRetryInterval() {
+        RadioOnLatencyStats stats = new RadioOnLatencyStats();
+        assertEquals(5000, stats.getRetryIntervalMillis(5000));
+
+        for (int i = 0; i < RadioOnLatencyStats.MIN_SAMPLES_FOR_ADAPTIVE_RETRY; i++) {
+            stats.onRadioOn(400);
+        }
+        assertEquals(RadioOnLatencyStats.MIN_RETRY_INTERVAL_MILLIS,
+                stats.getRetryIntervalMillis(5000));
+
+        for (int i = 0; i < 10; i++) {
+            stats.onRadioOn(1800);
+        }
+        assertEquals(3600, stats.getRetryIntervalMillis(5000));
+
+        for (int i = 0; i < 10; i++) {
+            stats.onRadioOn(9000);
+        }
+        assertEquals(5000, stats.getRetryIntervalMillis(5000));
+    }
+
+    private void setUpPhone(Phone phone, CommandsInterface ci, int phoneId) {
+        phone.mCi = ci;
+        ServiceState state = new ServiceState();
+        state.setState(ServiceState.STATE_POWER_OFF);
+        when(phone.getServiceState()).thenReturn(state);
+        when(phone.getState()).thenReturn(PhoneConstants.State.IDLE);
+        when(phone.getPhoneId()).thenReturn(phoneId);
+        when(mPhoneFactoryProxy.getPhone(phoneId)).thenReturn(phone);
+    }
+
+    /**
+     * Waits for the listener of the phone to start and returns its handler.
+     */
+    private Handler getListenerHandler(Phone phone) {
+        ArgumentCaptor<Handler> captor = ArgumentCaptor.forClass(Handler.class);
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        waitForHandlerAction(mainHandler, TIMEOUT_MS);
+        verify(phone).registerForServiceStateChanged(captor.capture(),
+                eq(RadioOnStateListener.MSG_SERVICE_STATE_CHANGED), isNull());
+        return captor.getValue();
+    }
+}
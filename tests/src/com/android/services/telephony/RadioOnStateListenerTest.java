@@ -58,6 +58,7 @@ public class RadioOnStateListenerTest extends TelephonyTestBase {
     @Mock RadioOnStateListener.Callback mCallback;
     @Mock CommandsInterface mMockCi;
     RadioOnStateListener mListener;
+    private volatile long mNowMs;
 
     @Override
     @Before
@@ -192,4 +193,36 @@ public class RadioOnStateListenerTest extends TelephonyTestBase {
         verify(mMockPhone, times(2)).setRadioPower(eq(true),
                 eq(true), eq(true), eq(false));
     }
+
+    /**
+     * The radio is asked to power on at most MAX_NUM_RETRIES times, even before the time it is
+     * given to become ready is up.
+     */
+    @Test
+    @SmallTest
+    public void testPowerRetriesCappedWithinTimeBudget() {
+        ServiceState state = new ServiceState();
+        state.setState(ServiceState.STATE_POWER_OFF);
+        when(mMockPhone.getState()).thenReturn(PhoneConstants.State.IDLE);
+        when(mMockPhone.getServiceState()).thenReturn(state);
+        when(mCallback.isOkToCall(eq(mMockPhone), anyInt())).thenReturn(false);
+        mListener = new RadioOnStateListener(() -> mNowMs, new RadioOnLatencyStats());
+        mListener.setTimeBetweenRetriesMillis(10/*ms*/);
+        mListener.setMaxNumRetries(2);
+
+        mMockPhone.mCi = mMockCi;
+        mListener.waitForRadioOn(mMockPhone, mCallback, false, false);
+        waitForHandlerActionDelayed(mListener.getHandler(), TIMEOUT_MS, 200 /*delay*/);
+
+        verify(mMockPhone, times(2)).setRadioPower(eq(true), eq(false), eq(false), eq(false));
+        verify(mCallback, never()).onComplete(any(), anyBoolean());
+
+        // (MAX_NUM_RETRIES + 1) * TIME_BETWEEN_RETRIES_MILLIS
+        mNowMs = 30;
+        waitForHandlerActionDelayed(mListener.getHandler(), TIMEOUT_MS, 50 /*delay*/);
+
+        verify(mCallback).onComplete(eq(mListener), eq(false));
+        verify(mMockPhone, times(2)).setRadioPower(anyBoolean(), anyBoolean(), anyBoolean(),
+                anyBoolean());
+    }
 }
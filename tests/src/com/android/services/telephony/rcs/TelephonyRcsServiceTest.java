@@ -25,8 +25,6 @@ import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
-import android.content.BroadcastReceiver;
-import android.content.Intent;
 import android.os.PersistableBundle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
@@ -36,6 +34,7 @@ import androidx.test.runner.AndroidJUnit4;
 import com.android.TelephonyTestBase;
 import com.android.ims.FeatureConnector;
 import com.android.ims.RcsFeatureManager;
+import com.android.phone.CarrierConfigChangeBus;
 
 import org.junit.After;
 import org.junit.Before;
@@ -45,10 +44,13 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 
+import java.util.Collections;
+
 @RunWith(AndroidJUnit4.class)
 public class TelephonyRcsServiceTest extends TelephonyTestBase {
 
-    @Captor ArgumentCaptor<BroadcastReceiver> mReceiverCaptor;
+    @Captor ArgumentCaptor<CarrierConfigChangeBus.Listener> mCarrierConfigListenerCaptor;
+    @Mock CarrierConfigChangeBus mCarrierConfigChangeBus;
     @Mock TelephonyRcsService.FeatureFactory mFeatureFactory;
     @Mock TelephonyRcsService.ResourceProxy mResourceProxy;
     @Mock UceControllerManager mMockUceSlot0;
@@ -330,10 +332,8 @@ public class TelephonyRcsServiceTest extends TelephonyTestBase {
     }
 
     private void sendCarrierConfigChanged(int slotId, int subId) {
-        Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
-        intent.putExtra(CarrierConfigManager.EXTRA_SLOT_INDEX, slotId);
-        intent.putExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX, subId);
-        mReceiverCaptor.getValue().onReceive(mContext, intent);
+        mCarrierConfigListenerCaptor.getValue().onCarrierConfigChanged(slotId, subId,
+                mContext.getCarrierConfig(subId), Collections.emptySet());
     }
 
     private void setCarrierConfig(int subId, String key, boolean value) {
@@ -349,10 +349,12 @@ public class TelephonyRcsServiceTest extends TelephonyTestBase {
     }
 
     private TelephonyRcsService createRcsService(int numSlots) {
-        TelephonyRcsService service = new TelephonyRcsService(mContext, numSlots, mResourceProxy);
+        TelephonyRcsService service = new TelephonyRcsService(mContext, numSlots, mResourceProxy,
+                mCarrierConfigChangeBus);
         service.setFeatureFactory(mFeatureFactory);
         service.initialize();
-        verify(mContext).registerReceiver(mReceiverCaptor.capture(), any());
+        verify(mCarrierConfigChangeBus).registerListener(any(), any(),
+                mCarrierConfigListenerCaptor.capture());
         return service;
     }
 